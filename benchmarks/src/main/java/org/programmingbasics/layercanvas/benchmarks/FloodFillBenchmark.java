@@ -0,0 +1,64 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.raster.FloodFill;
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Flood fills mazes that are hard for scanline fills: long snaking 
+ * corridors, and a checkerboard filled with diagonal connections.
+ * Building the mask is included since it has to be done for every fill.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class FloodFillBenchmark
+{
+   @Param({"1024", "4096", "8192"})
+   int size;
+   
+   @Param({"rows", "columns", "checkerboard"})
+   String maze;
+   
+   Raster image;
+   FloodFill floodFill;
+   
+   @Setup
+   public void setup()
+   {
+      image = Raster.create(size, size);
+      floodFill = new FloodFill(size, size);
+      if ("rows".equals(maze))
+         Mazes.rows(image);
+      else if ("columns".equals(maze))
+         Mazes.columns(image);
+      else
+      {
+         Mazes.checkerboard(image);
+         floodFill.setEightConnected(true);
+      }
+   }
+   
+   @Benchmark
+   public int fill()
+   {
+      floodFill.buildAlphaMask(image.pixels, 0);
+      floodFill.fill(0, 0);
+      return floodFill.getFilledRunCount();
+   }
+}
@@ -0,0 +1,157 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.headless.BatchRenderer;
+import org.programmingbasics.layercanvas.headless.HeadlessRenderer;
+import org.programmingbasics.layercanvas.io.JournalCodec;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.StrokeRasterizer;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.ToolSettings;
+
+/**
+ * Renders saved journals to PNG files the way a server making thumbnails
+ * would, by replaying their strokes, flood fills, and stamps and then
+ * encoding the result. Each journal is a made-up drawing of a few dozen
+ * edits. Scores are in images per second, both for a single renderer and
+ * for a batch rendered on every core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class HeadlessRenderBenchmark
+{
+   static final int WIDTH = 1024;
+   static final int HEIGHT = 768;
+   static final int BATCH = 64;
+
+   /** Largest size of the rendered images (0 for full size) */
+   @Param({"0", "256"})
+   int maxSize;
+
+   List<byte[]> journals = new ArrayList<>();
+   BatchRenderer batchRenderer;
+
+   @State(Scope.Thread)
+   public static class SingleRenderer
+   {
+      HeadlessRenderer renderer = new HeadlessRenderer();
+      int next = 0;
+   }
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      Random random = new Random(1);
+      for (int n = 0; n < BATCH; n++)
+         journals.add(makeJournal(random));
+      batchRenderer = new BatchRenderer(maxSize);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws InterruptedException
+   {
+      batchRenderer.close();
+   }
+
+   @Benchmark
+   public byte[] renderOne(SingleRenderer state)
+   {
+      byte[] journal = journals.get(state.next++ % journals.size());
+      return state.renderer.renderPng(journal, maxSize);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH)
+   public List<byte[]> renderBatch() throws Exception
+   {
+      return batchRenderer.renderAll(journals);
+   }
+
+   /** Makes a journal of random strokes, stamps, and flood fills on an empty layer */
+   static byte[] makeJournal(Random random)
+   {
+      Map<Integer, TiledRaster> layers = new LinkedHashMap<>();
+      layers.put(0, new TiledRaster(Raster::create, WIDTH, HEIGHT));
+      Journal journal = Journal.startFrom(WIDTH, HEIGHT, layers);
+
+      RoundBrush softBrush = new RoundBrush();
+      softBrush.setHardness(0.5);
+      softBrush.setAntiAlias(true);
+      softBrush.setPressureResponse(0.25, 0.5, 1.0);
+      ToolSettings soft = settings(ToolSettings.PAINT, 12, softBrush);
+      ToolSettings hard = settings(ToolSettings.PAINT, 4, new RoundBrush());
+      ToolSettings eraser = settings(ToolSettings.ERASER, 10, new RoundBrush());
+      ToolSettings fill = settings(ToolSettings.FLOOD_FILL, 1, new RoundBrush());
+      ToolSettings stamp = settings(ToolSettings.STAMP, 1, new RoundBrush());
+      stamp.stamp = Raster.create(48, 48);
+      StrokeRasterizer circle = new StrokeRasterizer();
+      circle.capsule(24, 24, 24, 24, 20);
+      circle.fill(stamp.stamp, Pixels.pack(0, 0, 0, 255), new DirtyRect());
+
+      int count = 0;
+      for (int n = 0; n < 40; n++)
+      {
+         int pick = random.nextInt(10);
+         ToolSettings tool = pick < 4 ? hard : pick < 7 ? soft : pick < 8 ? eraser : pick < 9 ? stamp : fill;
+         int kind = tool == stamp ? JournalEntry.STAMP : tool == fill ? JournalEntry.FLOOD_FILL : JournalEntry.STROKE;
+         JournalEntry entry = JournalEntry.create(kind, 0, tool);
+         entry.setClip(0, 0, WIDTH, HEIGHT);
+         int x = random.nextInt(WIDTH);
+         int y = random.nextInt(HEIGHT);
+         entry.addPoint(x, y, 1.0);
+         if (kind == JournalEntry.STROKE)
+         {
+            for (int p = 0; p < 60; p++)
+            {
+               x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(41) - 20));
+               y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(41) - 20));
+               entry.addPoint(x, y, 0.3 + 0.7 * random.nextDouble());
+            }
+         }
+         journal.add(count++, entry);
+      }
+      return JournalCodec.write(journal, count, byte[]::new);
+   }
+
+   static ToolSettings settings(int tool, int brushSize, RoundBrush brush)
+   {
+      ToolSettings settings = new ToolSettings();
+      settings.tool = tool;
+      settings.brushSize = brushSize;
+      settings.brush = brush;
+      settings.mirrorWidth = WIDTH;
+      settings.floodFillEmptyColor = 0;
+      settings.floodFillFillColor = 255;
+      settings.floodFillTolerance = -1;
+      return settings;
+   }
+}
@@ -0,0 +1,85 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Builds test images and stroke paths for the benchmarks.
+ */
+public class Mazes
+{
+   static final int WALL = Pixels.pack(0, 0, 0, 255);
+   
+   /**
+    * A single one pixel wide corridor that snakes back and forth between
+    * horizontal walls. Every row of the corridor is one long run.
+    */
+   public static void rows(Raster raster)
+   {
+      raster.fillRect(0, 0, raster.width - 1, raster.height - 1, 0);
+      for (int y = 1; y < raster.height; y += 2)
+      {
+         if ((y / 2) % 2 == 0)
+            raster.fillRect(0, y, raster.width - 2, y, WALL);
+         else
+            raster.fillRect(1, y, raster.width - 1, y, WALL);
+      }
+   }
+   
+   /**
+    * A single one pixel wide corridor that snakes up and down between
+    * vertical walls. Every run is only a pixel long, which is the worst
+    * case for a scanline fill.
+    */
+   public static void columns(Raster raster)
+   {
+      raster.fillRect(0, 0, raster.width - 1, raster.height - 1, 0);
+      for (int x = 1; x < raster.width; x += 2)
+      {
+         if ((x / 2) % 2 == 0)
+            raster.fillRect(x, 0, x, raster.height - 2, WALL);
+         else
+            raster.fillRect(x, 1, x, raster.height - 1, WALL);
+      }
+   }
+   
+   /**
+    * A checkerboard of single pixels, which are only connected to each 
+    * other diagonally
+    */
+   public static void checkerboard(Raster raster)
+   {
+      for (int y = 0; y < raster.height; y++)
+      {
+         for (int x = 0; x < raster.width; x++)
+            raster.pixels[y * raster.width + x] = ((x + y) & 1) == 0 ? 0 : WALL;
+      }
+   }
+   
+   /**
+    * Points (as x, y pairs) of a zig-zag path going back and forth across 
+    * a square canvas several times, split into short segments like the 
+    * mouse positions of a real stroke
+    */
+   public static int[] zigZag(int size, int stepsPerLeg, int legs)
+   {
+      int[] path = new int[(legs * stepsPerLeg + 1) * 2];
+      int margin = size / 16;
+      int idx = 0;
+      for (int leg = 0; leg < legs; leg++)
+      {
+         int y0 = margin + (size - 2 * margin) * leg / legs;
+         int y1 = margin + (size - 2 * margin) * (leg + 1) / legs;
+         int x0 = leg % 2 == 0 ? margin : size - margin;
+         int x1 = leg % 2 == 0 ? size - margin : margin;
+         for (int step = 0; step < stepsPerLeg; step++)
+         {
+            path[idx++] = x0 + (x1 - x0) * step / stepsPerLeg;
+            path[idx++] = y0 + (y1 - y0) * step / stepsPerLeg;
+         }
+      }
+      path[idx++] = legs % 2 == 0 ? margin : size - margin;
+      path[idx++] = size - margin;
+      return path;
+   }
+}
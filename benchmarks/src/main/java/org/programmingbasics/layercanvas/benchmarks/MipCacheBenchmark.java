@@ -0,0 +1,68 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.raster.MipCache;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+
+/**
+ * Shows a whole drawing zoomed out to fit a 1024x1024 screen after a
+ * stroke lands on it, which is what happens on every frame while drawing
+ * on a zoomed-out view. Only the tiles under the stroke are made again.
+ * The drawing is a maze, so none of its tiles are a single color.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class MipCacheBenchmark
+{
+   @Param({"2048", "4096", "8192"})
+   int size;
+
+   static final int SCREEN_SIZE = 1024;
+
+   TiledRaster image;
+   MipCache mips;
+   Raster screen = Raster.create(SCREEN_SIZE, SCREEN_SIZE);
+   int level;
+   int strokeX;
+
+   @Setup
+   public void setup()
+   {
+      Raster maze = Raster.create(size, size);
+      Mazes.columns(maze);
+      image = TiledRaster.fromRaster(Raster::create, maze);
+      mips = new MipCache(Raster::create, size, size,
+            (tx, ty, to, toX, toY) -> {
+               image.readRect(tx * TiledRaster.TILE_SIZE, ty * TiledRaster.TILE_SIZE, to, toX, toY, TiledRaster.TILE_SIZE, TiledRaster.TILE_SIZE);
+               return true;
+            });
+      level = mips.chooseLevel((double)SCREEN_SIZE / size);
+      mips.readRect(level, 0, 0, screen, 0, 0, mips.getLevelWidth(level), mips.getLevelHeight(level));
+   }
+
+   @Benchmark
+   public Raster showAfterStroke()
+   {
+      strokeX = (strokeX + 97) % (size - 32);
+      mips.invalidate(strokeX, strokeX, strokeX + 31, strokeX + 31);
+      mips.readRect(level, 0, 0, screen, 0, 0, mips.getLevelWidth(level), mips.getLevelHeight(level));
+      return screen;
+   }
+}
@@ -0,0 +1,52 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.programmingbasics.layercanvas.io.PngEncoder;
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Saves a maze drawing as a PNG file. A maze only has two colors, so it
+ * is saved with a 1-bit palette like most line drawings would be. The 
+ * longest time spent on a single slice of rows is what decides whether
+ * exporting holds up drawing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class PngExportBenchmark
+{
+   @Param({"1024", "4096"})
+   int size;
+
+   Raster maze;
+
+   @Setup
+   public void setup()
+   {
+      maze = Raster.create(size, size);
+      Mazes.rows(maze);
+   }
+
+   @Benchmark
+   public void exportMaze(Blackhole blackhole)
+   {
+      PngEncoder encoder = new PngEncoder(maze, 0, 0, size, size, byte[]::new, blackhole::consume);
+      while (!encoder.encodeRows(16)) {}
+   }
+}
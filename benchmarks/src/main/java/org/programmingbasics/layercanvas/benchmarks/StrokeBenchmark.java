@@ -0,0 +1,87 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.raster.BrushEngine;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.StrokeRasterizer;
+
+/**
+ * Draws a zig-zag stroke across the whole canvas, with both the hard brush
+ * (which fills capsules) and a soft, pressure-sensitive brush (which 
+ * stamps dabs).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class StrokeBenchmark
+{
+   @Param({"1024", "4096", "8192"})
+   int size;
+   
+   @Param({"5", "40"})
+   int radius;
+   
+   Raster stroke;
+   DirtyRect dirty = new DirtyRect();
+   StrokeRasterizer rasterizer = new StrokeRasterizer();
+   BrushEngine brushEngine = new BrushEngine();
+   
+   /** Points along the stroke as (x, y) pairs */
+   int[] path;
+   
+   @Setup
+   public void setup()
+   {
+      stroke = Raster.create(size, size);
+      RoundBrush brush = new RoundBrush();
+      brush.setHardness(0.5);
+      brush.setAntiAlias(true);
+      brush.setPressureResponse(0.25, 0.5, 1.0);
+      brushEngine.setBrush(brush);
+      path = Mazes.zigZag(size, 16, 4);
+   }
+   
+   @Benchmark
+   public DirtyRect hardStroke()
+   {
+      dirty.clear();
+      for (int n = 2; n < path.length; n += 2)
+      {
+         rasterizer.capsule(path[n - 2], path[n - 1], path[n], path[n + 1], radius);
+         rasterizer.fill(stroke, Pixels.pack(0, 0, 0, 255), dirty);
+      }
+      return dirty;
+   }
+   
+   @Benchmark
+   public DirtyRect softStroke()
+   {
+      dirty.clear();
+      brushEngine.reset();
+      for (int n = 2; n < path.length; n += 2)
+      {
+         double pressure = (double)n / path.length;
+         brushEngine.strokeTo(stroke, dirty, radius, path[n - 2], path[n - 1], pressure, 
+               path[n], path[n + 1], pressure);
+      }
+      return dirty;
+   }
+}
@@ -0,0 +1,93 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.raster.Compositor;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.StrokeRasterizer;
+import org.programmingbasics.layercanvas.raster.TileSet;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoRecorder;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+
+/**
+ * Finishes a stroke that was drawn diagonally across the canvas, so 
+ * its bounding box covers everything: the stroke is merged into the 
+ * layer and an undo command is made for the change. Only the tiles
+ * touched by the stroke are processed, like in LayerCanvas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class StrokeFinalizeBenchmark
+{
+   @Param({"1024", "4096", "8192"})
+   int size;
+   
+   Raster layer;
+   Raster stroke;
+   TileSet strokeTiles;
+   DirtyRect segmentDirty = new DirtyRect();
+   StrokeRasterizer rasterizer = new StrokeRasterizer();
+   UndoRecorder undoRecorder;
+   
+   /** Tiles of the layer that the changes are stored into */
+   TiledRaster tiles;
+   boolean isRed = false;
+   
+   @Setup
+   public void setup()
+   {
+      layer = Raster.create(size, size);
+      stroke = Raster.create(size, size);
+      undoRecorder = new UndoRecorder(Raster::create, size, size);
+      tiles = new TiledRaster(Raster::create, size, size);
+      strokeTiles = new TileSet(size, size);
+   }
+   
+   @Setup(Level.Invocation)
+   public void drawStroke()
+   {
+      // Alternate colors so that the layer changes every time
+      isRed = !isRed;
+      int color = isRed ? Pixels.pack(255, 0, 0, 255) : Pixels.pack(0, 0, 0, 255);
+      int step = 16;
+      for (int n = step; n < size; n += step)
+      {
+         segmentDirty.clear();
+         rasterizer.capsule(n - step, n - step, n, n, 10);
+         rasterizer.fill(stroke, color, segmentDirty);
+         strokeTiles.add(segmentDirty);
+      }
+   }
+   
+   @Benchmark
+   public UndoableCommand finalizeStroke()
+   {
+      for (int n = 0; n < strokeTiles.size(); n++)
+      {
+         strokeTiles.getTileRect(n, segmentDirty);
+         undoRecorder.capture(layer, segmentDirty);
+         Compositor.mergeStroke(layer, stroke, segmentDirty);
+      }
+      strokeTiles.clear();
+      return undoRecorder.finish(layer, tiles, 0, 0);
+   }
+}
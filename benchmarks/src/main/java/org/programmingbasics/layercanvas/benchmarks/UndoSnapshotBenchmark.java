@@ -0,0 +1,98 @@
+package org.programmingbasics.layercanvas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.StrokeRasterizer;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoRecorder;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+
+/**
+ * Saves undo tiles for an eraser stroke going diagonally across the 
+ * canvas (which only touches tiles along the diagonal), and for clearing 
+ * the whole canvas. The undo command is then made, compressed, and 
+ * decompressed as happens when it moves through the undo history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class UndoSnapshotBenchmark
+{
+   @Param({"1024", "4096", "8192"})
+   int size;
+   
+   Raster layer;
+   UndoRecorder undoRecorder;
+   
+   /** Tiles of the layer that the changes are stored into */
+   TiledRaster tiles;
+   StrokeRasterizer rasterizer = new StrokeRasterizer();
+   DirtyRect dirty = new DirtyRect();
+   int color;
+   
+   @Setup
+   public void setup()
+   {
+      layer = Raster.create(size, size);
+      undoRecorder = new UndoRecorder(Raster::create, size, size);
+      tiles = new TiledRaster(Raster::create, size, size);
+   }
+   
+   /** Each call draws in a different color so that the drawing always changes */
+   int nextColor()
+   {
+      color = color == 0 ? Pixels.pack(0, 0, 0, 255) : 0;
+      return color;
+   }
+   
+   @Benchmark
+   public UndoableCommand eraseDiagonal()
+   {
+      int segmentColor = nextColor();
+      int step = 16;
+      for (int n = step; n < size; n += step)
+      {
+         rasterizer.capsule(n - step, n - step, n, n, 10);
+         dirty.clear();
+         rasterizer.addBounds(dirty);
+         undoRecorder.capture(layer, dirty);
+         dirty.clear();
+         rasterizer.fill(layer, segmentColor, dirty);
+      }
+      return undoRecorder.finish(layer, tiles, 0, 0);
+   }
+   
+   @Benchmark
+   public UndoableCommand clearCanvas()
+   {
+      undoRecorder.capture(layer, 0, 0, size - 1, size - 1);
+      layer.fillRect(0, 0, size - 1, size - 1, nextColor());
+      return undoRecorder.finish(layer, tiles, 0, 0);
+   }
+   
+   @Benchmark
+   public UndoableCommand clearCanvasAndCompress()
+   {
+      UndoableCommand cmd = clearCanvas();
+      cmd.compress();
+      cmd.decompress(Raster::create);
+      return cmd;
+   }
+}
@@ -0,0 +1,84 @@
+package org.programmingbasics.layercanvas.headless;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders lots of drawings in parallel, with one HeadlessRenderer per
+ * thread. Only a limited number of drawings can be waiting to be
+ * rendered. Once the queue is full, the thread handing over drawings
+ * renders the next one itself, which slows it down to the speed of the
+ * renderers instead of letting waiting drawings use up memory.
+ */
+public class BatchRenderer implements AutoCloseable
+{
+   /** Number of drawings that can be waiting for each thread */
+   static final int QUEUE_PER_THREAD = 4;
+
+   ThreadPoolExecutor executor;
+   ThreadLocal<HeadlessRenderer> renderers = ThreadLocal.withInitial(HeadlessRenderer::new);
+
+   /** Largest size of the rendered images (0 for full size) */
+   int maxSize;
+
+   /** Renders on a thread for each core */
+   public BatchRenderer(int maxSize)
+   {
+      this(Runtime.getRuntime().availableProcessors(), maxSize);
+   }
+
+   public BatchRenderer(int threads, int maxSize)
+   {
+      this.maxSize = maxSize;
+      executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+   /** Starts rendering a saved drawing or journal to a PNG file (null if the data is neither) */
+   public Future<byte[]> render(byte[] data)
+   {
+      return executor.submit(() -> renderers.get().renderPng(data, maxSize));
+   }
+
+   /**
+    * Starts rendering a saved drawing or journal in a file to a PNG file.
+    * The file is only read once it is ready to be rendered. The result is
+    * false if the file isn't a drawing.
+    */
+   public Future<Boolean> renderFile(File in, File out)
+   {
+      return executor.submit(() -> {
+         byte[] png = renderers.get().renderPng(Files.readAllBytes(in.toPath()), maxSize);
+         if (png == null) return false;
+         Files.write(out.toPath(), png);
+         return true;
+      });
+   }
+
+   /** Renders drawings to PNG files, returning them in the same order */
+   public List<byte[]> renderAll(List<byte[]> drawings) throws InterruptedException, ExecutionException
+   {
+      List<Future<byte[]>> results = new ArrayList<>();
+      for (byte[] data: drawings)
+         results.add(render(data));
+      List<byte[]> pngs = new ArrayList<>();
+      for (Future<byte[]> result: results)
+         pngs.add(result.get());
+      return pngs;
+   }
+
+   /** Finishes the drawings that are waiting and stops the threads */
+   @Override public void close() throws InterruptedException
+   {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+   }
+}
@@ -0,0 +1,79 @@
+package org.programmingbasics.layercanvas.headless;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.programmingbasics.layercanvas.raster.Compositor;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.TileSource;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+
+/**
+ * The layers of a drawing that has been loaded for rendering. Tiles of
+ * the flattened drawing can be read from it for shrinking in a MipCache.
+ */
+public class Drawing implements TileSource
+{
+   public final int width;
+   public final int height;
+
+   /** Layers from the bottom up, and how opaque each one is (0 to 255, with 0 for hidden layers) */
+   List<TiledRaster> layers = new ArrayList<>();
+   List<Integer> alphaScales = new ArrayList<>();
+
+   public Drawing(int width, int height)
+   {
+      this.width = width;
+      this.height = height;
+   }
+
+   /** Puts a layer on top of the others */
+   public void addLayer(TiledRaster tiles, int alphaScale)
+   {
+      layers.add(tiles);
+      alphaScales.add(alphaScale);
+   }
+
+   public int getLayerCount()
+   {
+      return layers.size();
+   }
+
+   /** Flattens all the layers in the area of the drawing at (x, y) that's the size of out */
+   public void flatten(Raster out, int x, int y)
+   {
+      out.fillRect(0, 0, out.width - 1, out.height - 1, 0);
+      for (int n = 0; n < layers.size(); n++)
+         Compositor.blendTiles(out, x, y, layers.get(n), alphaScales.get(n), 0, 0, out.width - 1, out.height - 1);
+   }
+
+   /** Composites a tile of the drawing (see LayerStack.readTile()) */
+   @Override public boolean readTile(int tx, int ty, Raster to, int toX, int toY)
+   {
+      int tileSize = TiledRaster.TILE_SIZE;
+      int x = tx * tileSize;
+      int y = ty * tileSize;
+      // Areas where every layer is a single color can be blended without
+      // touching any pixels
+      boolean isUniform = x + tileSize <= width && y + tileSize <= height;
+      int color = 0;
+      for (int n = 0; n < layers.size() && isUniform; n++)
+      {
+         TiledRaster tiles = layers.get(n);
+         if (tiles.getTile(tx, ty) != null)
+            isUniform = false;
+         else
+            color = Pixels.blendOver(color, Pixels.scaleAlpha(tiles.getTileColor(tx, ty), alphaScales.get(n)));
+      }
+      if (isUniform)
+      {
+         to.pixels[toY * to.width + toX] = color;
+         return false;
+      }
+      to.fillRect(toX, toY, toX + tileSize - 1, toY + tileSize - 1, 0);
+      for (int n = 0; n < layers.size(); n++)
+         Compositor.blendTiles(to, x - toX, y - toY, layers.get(n), alphaScales.get(n), toX, toY, toX + tileSize - 1, toY + tileSize - 1);
+      return true;
+   }
+}
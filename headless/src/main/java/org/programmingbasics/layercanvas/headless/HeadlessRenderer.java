@@ -0,0 +1,117 @@
+package org.programmingbasics.layercanvas.headless;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.programmingbasics.layercanvas.io.DocumentDecoder;
+import org.programmingbasics.layercanvas.io.JournalCodec;
+import org.programmingbasics.layercanvas.io.PngEncoder;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.JournalPlayer;
+import org.programmingbasics.layercanvas.raster.MipCache;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+
+/**
+ * Renders saved drawings (from LayerCanvas.saveDocument()) and journals
+ * (from LayerCanvas.saveJournal()) to PNG files without a browser.
+ * Journals are replayed with the same brush, flood fill, and stamp code
+ * that the canvas uses, so they come out exactly the same.
+ *
+ * A renderer keeps its buffers between drawings, so it should only be
+ * used by one thread at a time (see BatchRenderer for rendering on
+ * several threads).
+ */
+public class HeadlessRenderer
+{
+   RasterFactory factory = Raster::create;
+   JournalPlayer journalPlayer = new JournalPlayer(factory);
+
+   /** Loads a saved drawing or journal, returning null if the data is neither */
+   public Drawing load(byte[] data, int offset, int length)
+   {
+      DocumentDecoder decoder = new DocumentDecoder(factory);
+      if (decoder.read(data, offset, length))
+      {
+         Drawing drawing = new Drawing(decoder.getWidth(), decoder.getHeight());
+         for (DocumentDecoder.SavedLayer layer: decoder.getLayers())
+            drawing.addLayer(layer.tiles, layer.visible ? (int)Math.round(layer.opacity * 255) : 0);
+         return drawing;
+      }
+      Journal journal = JournalCodec.read(data, offset, length, factory);
+      if (journal != null)
+         return replay(journal);
+      return null;
+   }
+
+   /**
+    * Rebuilds a drawing by playing a journal from its checkpoint, which is
+    * drawn on in the process. Journals don't record the opacity of layers,
+    * so every layer is fully opaque.
+    */
+   public Drawing replay(Journal journal)
+   {
+      Drawing drawing = new Drawing(journal.width, journal.height);
+      Map<Integer, TiledRaster> layers = new LinkedHashMap<>(journal.getCheckpoint());
+      // Layers created after the checkpoint are put on top, like when a
+      // journal is replayed on a canvas
+      for (int n = 0; n < journal.size(); n++)
+      {
+         int id = journal.get(n).layerId;
+         if (!layers.containsKey(id))
+            layers.put(id, new TiledRaster(factory, journal.width, journal.height));
+      }
+      for (int n = 0; n < journal.size(); n++)
+      {
+         JournalEntry entry = journal.get(n);
+         journalPlayer.play(entry, layers.get(entry.layerId));
+      }
+      for (TiledRaster tiles: layers.values())
+         drawing.addLayer(tiles, 255);
+      return drawing;
+   }
+
+   /**
+    * Flattens a drawing into an image. If the drawing is bigger than
+    * maxSize in either direction, it is halved until it fits or is down to
+    * a single tile, so a thumbnail can be as small as half of maxSize. A
+    * maxSize of 0 keeps the drawing at full size.
+    */
+   public Raster render(Drawing drawing, int maxSize)
+   {
+      if (maxSize <= 0 || (drawing.width <= maxSize && drawing.height <= maxSize))
+      {
+         Raster out = factory.create(drawing.width, drawing.height);
+         drawing.flatten(out, 0, 0);
+         return out;
+      }
+      MipCache mips = new MipCache(factory, drawing.width, drawing.height, drawing);
+      int level = 1;
+      while (level < mips.getLevelCount() && (mips.getLevelWidth(level) > maxSize || mips.getLevelHeight(level) > maxSize))
+         level++;
+      int w = mips.getLevelWidth(level);
+      int h = mips.getLevelHeight(level);
+      Raster out = factory.create(w, h);
+      mips.readRect(level, 0, 0, out, 0, 0, w, h);
+      return out;
+   }
+
+   /** Renders a saved drawing or journal as a PNG file, or returns null if the data is neither */
+   public byte[] renderPng(byte[] data, int maxSize)
+   {
+      Drawing drawing = load(data, 0, data.length);
+      if (drawing == null) return null;
+      return encodePng(render(drawing, maxSize));
+   }
+
+   public static byte[] encodePng(Raster image)
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PngEncoder encoder = new PngEncoder(image, 0, 0, image.width, image.height, byte[]::new, (bytes) -> out.write(bytes, 0, bytes.length));
+      encoder.encodeAll();
+      return out.toByteArray();
+   }
+}
@@ -0,0 +1,73 @@
+package org.programmingbasics.layercanvas.headless;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Renders saved drawings and journals to PNG files from the command line.
+ * Each file is saved in the output directory under its own name with
+ * ".png" on the end.
+ *
+ * Usage: RenderThumbnails [-size maxSize] [-threads count] outputDir file...
+ */
+public class RenderThumbnails
+{
+   public static void main(String[] args) throws Exception
+   {
+      int maxSize = 256;
+      int threads = Runtime.getRuntime().availableProcessors();
+      int arg = 0;
+      while (arg + 1 < args.length && args[arg].startsWith("-"))
+      {
+         if (args[arg].equals("-size"))
+            maxSize = Integer.parseInt(args[arg + 1]);
+         else if (args[arg].equals("-threads"))
+            threads = Integer.parseInt(args[arg + 1]);
+         else
+            break;
+         arg += 2;
+      }
+      if (args.length - arg < 2)
+      {
+         System.err.println("Usage: RenderThumbnails [-size maxSize] [-threads count] outputDir file...");
+         System.exit(2);
+      }
+      File outDir = new File(args[arg++]);
+      outDir.mkdirs();
+
+      long start = System.nanoTime();
+      List<File> files = new ArrayList<>();
+      List<Future<Boolean>> results = new ArrayList<>();
+      try (BatchRenderer renderer = new BatchRenderer(threads, maxSize))
+      {
+         for (; arg < args.length; arg++)
+         {
+            File in = new File(args[arg]);
+            files.add(in);
+            results.add(renderer.renderFile(in, new File(outDir, in.getName() + ".png")));
+         }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      int rendered = 0;
+      for (int n = 0; n < files.size(); n++)
+      {
+         try
+         {
+            if (results.get(n).get())
+               rendered++;
+            else
+               System.err.println(files.get(n) + ": not a saved drawing or journal");
+         }
+         catch (ExecutionException e)
+         {
+            System.err.println(files.get(n) + ": " + e.getCause());
+         }
+      }
+      System.out.printf("Rendered %d of %d files in %.2f s (%.1f images/s)%n", rendered, files.size(), seconds, rendered / seconds);
+      System.exit(rendered == files.size() ? 0 : 1);
+   }
+}
@@ -0,0 +1,76 @@
+package org.programmingbasics.layercanvas.headless;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.programmingbasics.layercanvas.io.JournalCodec;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.ToolSettings;
+
+public class BatchRendererTest
+{
+   static final int WIDTH = 200;
+   static final int HEIGHT = 150;
+
+   /**
+    * Makes a journal of strokes with brushes that keep getting bigger, so
+    * that the threads rendering them are all working out new circle sizes
+    * at the same time
+    */
+   static byte[] makeJournal(long seed)
+   {
+      Random random = new Random(seed);
+      Journal journal = new Journal(WIDTH, HEIGHT, Collections.emptyMap());
+      int brushSize = 1 + random.nextInt(8);
+      for (int n = 0; n < 60; n++)
+      {
+         ToolSettings settings = new ToolSettings();
+         settings.tool = random.nextInt(4) == 0 ? ToolSettings.ERASER : ToolSettings.PAINT;
+         settings.brushSize = brushSize;
+         settings.brush = new RoundBrush();
+         settings.mirror = random.nextInt(3) == 0;
+         settings.mirrorWidth = WIDTH;
+         JournalEntry entry = JournalEntry.create(JournalEntry.STROKE, 1 + random.nextInt(2), settings);
+         entry.setClip(0, 0, WIDTH, HEIGHT);
+         for (int p = 0; p < 3; p++)
+            entry.addPoint(random.nextInt(WIDTH), random.nextInt(HEIGHT), 1.0);
+         journal.add(n, entry);
+         brushSize += 1 + random.nextInt(4);
+      }
+      return JournalCodec.write(journal, journal.size(), byte[]::new);
+   }
+
+   @Test
+   public void testParallelMatchesSingleThreaded() throws Exception
+   {
+      List<byte[]> drawings = new ArrayList<>();
+      for (int n = 0; n < 96; n++)
+         drawings.add(makeJournal(n));
+
+      // The drawings are rendered in parallel first, while nothing has been
+      // worked out yet, so that the threads are all starting on new brush
+      // sizes at the same time
+      List<byte[]> pngs;
+      try (BatchRenderer batch = new BatchRenderer(8, 0))
+      {
+         pngs = batch.renderAll(drawings);
+      }
+
+      HeadlessRenderer renderer = new HeadlessRenderer();
+      assertEquals(drawings.size(), pngs.size());
+      for (int n = 0; n < drawings.size(); n++)
+      {
+         assertNotNull(pngs.get(n));
+         assertArrayEquals("drawing " + n, renderer.renderPng(drawings.get(n), 0), pngs.get(n));
+      }
+   }
+}
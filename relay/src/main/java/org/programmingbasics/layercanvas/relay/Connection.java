@@ -0,0 +1,91 @@
+package org.programmingbasics.layercanvas.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/** Everything the server keeps track of for one connected canvas */
+class Connection
+{
+   SocketChannel channel;
+   SelectionKey key;
+
+   /** Room that the connection joined (null until the handshake is done) */
+   Room room;
+
+   /** Whether the WebSocket handshake is done */
+   boolean isOpen = false;
+
+   /** Whether the connection should be closed once its output has been written */
+   boolean isClosing = false;
+
+   /** Whether the canvas has the whole picture (it doesn't if it joined when the history wasn't available) */
+   boolean hasPicture = true;
+
+   /** Number of snapshots the canvas has been asked for, and the number it has sent */
+   int snapshotsRequested = 0;
+   int snapshotsSent = 0;
+
+   /** Whether the next binary message is a snapshot instead of operations */
+   boolean isNextMessageSnapshot = false;
+
+   /** Bytes that have been read but not handled yet (ready for more to be read into it) */
+   ByteBuffer in = ByteBuffer.allocate(4096);
+
+   /** Message being put together from the frames it was split into */
+   byte[] message = new byte[1024];
+   int messageLength = 0;
+   boolean isMessageStarted = false;
+   int messageOpcode;
+
+   /** Frames waiting to be written, and how many bytes they hold */
+   ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+   int outputBytes = 0;
+
+   /** Operations from other people waiting to be sent together in one message */
+   byte[] batch = new byte[1024];
+   int batchLength = 0;
+
+   Connection(SocketChannel channel)
+   {
+      this.channel = channel;
+   }
+
+   /** Amount of data waiting to be sent to the connection */
+   int getQueuedBytes()
+   {
+      return outputBytes + batchLength;
+   }
+
+   void addToBatch(byte[] data, int offset, int length)
+   {
+      batch = ensureCapacity(batch, batchLength, batchLength + length);
+      System.arraycopy(data, offset, batch, batchLength, length);
+      batchLength += length;
+   }
+
+   void addToMessage(byte[] data, int offset, int length)
+   {
+      message = ensureCapacity(message, messageLength, messageLength + length);
+      System.arraycopy(data, offset, message, messageLength, length);
+      messageLength += length;
+   }
+
+   /** Makes room for more to be read when the input buffer is full */
+   void growInput()
+   {
+      ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+      in.flip();
+      bigger.put(in);
+      in = bigger;
+   }
+
+   static byte[] ensureCapacity(byte[] array, int used, int size)
+   {
+      if (array.length >= size) return array;
+      byte[] bigger = new byte[Math.max(size, array.length * 2)];
+      System.arraycopy(array, 0, bigger, 0, used);
+      return bigger;
+   }
+}
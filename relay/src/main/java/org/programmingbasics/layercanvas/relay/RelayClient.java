@@ -0,0 +1,172 @@
+package org.programmingbasics.layercanvas.relay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * A simple blocking WebSocket client for talking to a relay server from
+ * Java, e.g. for trying out a server in the same process, or for a
+ * program that records the operations sent to a room.
+ */
+public class RelayClient
+{
+   Socket socket;
+   DataInputStream in;
+   OutputStream out;
+   Random random = new Random();
+
+   /** Message being put together from the frames it was split into */
+   byte[] message = new byte[1024];
+   int messageLength;
+   int messageOpcode;
+
+   /** Connects to the room for a URL path on a server */
+   public RelayClient(String host, int port, String path) throws IOException
+   {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = socket.getOutputStream();
+
+      byte[] nonce = new byte[16];
+      random.nextBytes(nonce);
+      String key = Base64.getEncoder().encodeToString(nonce);
+      String request = "GET " + path + " HTTP/1.1\r\n"
+            + "Host: " + host + ":" + port + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + key + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+      out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+
+      String status = readLine();
+      String accept = null;
+      for (String line = readLine(); !line.isEmpty(); line = readLine())
+      {
+         int colon = line.indexOf(':');
+         if (colon >= 0 && line.substring(0, colon).trim().equalsIgnoreCase("sec-websocket-accept"))
+            accept = line.substring(colon + 1).trim();
+      }
+      if (!status.startsWith("HTTP/1.1 101") || !WebSocket.acceptKey(key).equals(accept))
+      {
+         socket.close();
+         throw new IOException("Server refused connection: " + status);
+      }
+   }
+
+   String readLine() throws IOException
+   {
+      StringBuilder line = new StringBuilder();
+      for (int c = in.read(); c != '\n'; c = in.read())
+      {
+         if (c < 0) throw new IOException("Connection closed during handshake");
+         if (c != '\r')
+            line.append((char)c);
+      }
+      return line.toString();
+   }
+
+   /** Sets how long receive() waits before giving up (0 to wait forever) */
+   public void setTimeout(int ms) throws IOException
+   {
+      socket.setSoTimeout(ms);
+   }
+
+   /** Sends operations to everyone else in the room */
+   public void send(byte[] ops) throws IOException
+   {
+      sendFrame(WebSocket.OP_BINARY, ops, 0, ops.length);
+   }
+
+   /** Sends a snapshot of the picture, after the server has asked for one */
+   public synchronized void sendSnapshot(byte[] document) throws IOException
+   {
+      byte[] text = RelayServer.SNAPSHOT.getBytes(StandardCharsets.UTF_8);
+      sendFrame(WebSocket.OP_TEXT, text, 0, text.length);
+      sendFrame(WebSocket.OP_BINARY, document, 0, document.length);
+   }
+
+   synchronized void sendFrame(int opcode, byte[] data, int offset, int length) throws IOException
+   {
+      out.write(WebSocket.frame(opcode, data, offset, length, true, random.nextInt()));
+      out.flush();
+   }
+
+   /**
+    * Waits for the next message from the server, which is usually
+    * operations, but is text about the history of the room if isText()
+    * says so afterwards. Returns null if the server closed the connection.
+    */
+   public byte[] receive() throws IOException
+   {
+      messageLength = 0;
+      while (true)
+      {
+         int b0 = in.read();
+         if (b0 < 0) return null;
+         int b1 = in.readUnsignedByte();
+         boolean isFinal = (b0 & 0x80) != 0;
+         int opcode = b0 & 0x0f;
+         long length = b1 & 0x7f;
+         if (length == 126)
+            length = in.readUnsignedShort();
+         else if (length == 127)
+            length = in.readLong();
+         if ((b1 & 0x80) != 0 || length < 0 || length > Integer.MAX_VALUE - messageLength)
+            throw new IOException("Bad frame from server");
+         byte[] payload = new byte[(int)length];
+         in.readFully(payload);
+         if (opcode == WebSocket.OP_CLOSE)
+         {
+            sendFrame(WebSocket.OP_CLOSE, payload, 0, Math.min(payload.length, 2));
+            socket.close();
+            return null;
+         }
+         if (opcode == WebSocket.OP_PING)
+         {
+            sendFrame(WebSocket.OP_PONG, payload, 0, payload.length);
+            continue;
+         }
+         if (opcode == WebSocket.OP_PONG) continue;
+         if (opcode != WebSocket.OP_CONTINUATION)
+            messageOpcode = opcode;
+         message = Connection.ensureCapacity(message, messageLength, messageLength + payload.length);
+         System.arraycopy(payload, 0, message, messageLength, payload.length);
+         messageLength += payload.length;
+         if (isFinal)
+         {
+            byte[] result = new byte[messageLength];
+            System.arraycopy(message, 0, result, 0, messageLength);
+            return result;
+         }
+      }
+   }
+
+   /** Whether the last message received was text instead of operations */
+   public boolean isText()
+   {
+      return messageOpcode == WebSocket.OP_TEXT;
+   }
+
+   /** Tells the server that the connection is being closed, and closes it */
+   public void close() throws IOException
+   {
+      if (socket.isClosed()) return;
+      byte[] payload = WebSocket.closePayload(WebSocket.CLOSE_NORMAL);
+      try
+      {
+         sendFrame(WebSocket.OP_CLOSE, payload, 0, payload.length);
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+}
@@ -0,0 +1,606 @@
+package org.programmingbasics.layercanvas.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes the operations made by each canvas on to the other canvases
+ * drawing on the same picture. Canvases connect over a WebSocket, and the
+ * URL path they connect with says which picture they are drawing on.
+ *
+ * Everything is done on one thread with non-blocking sockets, so each
+ * connection only costs its buffers, and hundreds of canvases can be
+ * connected at once. Operations only hold the input that made them, so
+ * they are small, and the server never has to deal with any pixels.
+ *
+ * Operation streams can be joined together, so operations going to the
+ * same canvas are batched up into one message, which is sent once the
+ * batch delay has passed. A canvas that can't keep up (so that the data
+ * waiting to be sent to it grows past MAX_QUEUED_BYTES) is disconnected
+ * instead of using up more and more memory. It can reconnect and be
+ * caught up again.
+ *
+ * Canvases that join a room are caught up with the history of the room
+ * (see Room). The server sends these text messages about the history:
+ * <ul>
+ *   <li>"snapshot": the next binary message is a snapshot of the picture
+ *       (a saved document) to load instead of operations to apply. It is
+ *       followed by the operations made since.
+ *   <li>"snapshot-request": asks the canvas to send a snapshot of its
+ *       picture. The canvas replies with the text message "snapshot",
+ *       followed by a binary message of the snapshot, straight after
+ *       applying the operations received before the request.
+ *   <li>"history-unavailable": the history of the room was too big to
+ *       keep, so the canvas can't be caught up until a snapshot is made,
+ *       and needs the picture from somewhere else (e.g. a saved document).
+ * </ul>
+ */
+public class RelayServer implements Runnable
+{
+   /** Largest message that can be received */
+   static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+
+   /** Largest snapshot that can be received */
+   static final int MAX_SNAPSHOT_BYTES = Room.MAX_HISTORY_BYTES;
+
+   /** Amount of data waiting to be sent to a connection before it is disconnected */
+   static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+
+   /** Largest HTTP request for opening a connection */
+   static final int MAX_HANDSHAKE_BYTES = 8192;
+
+   /** Text messages about the history of a room */
+   static final String SNAPSHOT = "snapshot";
+   static final String SNAPSHOT_REQUEST = "snapshot-request";
+   static final String HISTORY_UNAVAILABLE = "history-unavailable";
+
+   Selector selector;
+   ServerSocketChannel serverChannel;
+   int port;
+   volatile boolean isRunning = true;
+
+   /** Rooms that have people in them, by URL path */
+   Map<String, Room> rooms = new HashMap<>();
+   List<Connection> connections = new ArrayList<>();
+
+   /**
+    * Milliseconds that operations are held for so that they can be sent
+    * together, and the connections that have operations waiting
+    */
+   int batchDelay = 10;
+   List<Connection> batched = new ArrayList<>();
+   long batchStartTime;
+
+   /** Amount of operations in a room at which a snapshot is asked for, and the most that are kept */
+   int snapshotThreshold = Room.SNAPSHOT_THRESHOLD;
+   int maxHistoryBytes = Room.MAX_HISTORY_BYTES;
+
+   /** Opens a server on a port (or any free port if the port is 0) */
+   public RelayServer(int port) throws IOException
+   {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port));
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      this.port = ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+   }
+
+   public int getPort()
+   {
+      return port;
+   }
+
+   /** Sets how long operations are held so that they can be sent together (0 to send them straight away) */
+   public void setBatchDelay(int ms)
+   {
+      batchDelay = ms;
+   }
+
+   /** 
+    * Sets the amount of operations in a room after which a member is asked
+    * for a snapshot, and the most that are kept while waiting for one
+    */
+   public void setHistoryLimits(int snapshotThreshold, int maxHistoryBytes)
+   {
+      this.snapshotThreshold = snapshotThreshold;
+      this.maxHistoryBytes = maxHistoryBytes;
+   }
+
+   /** Runs the server on a new thread */
+   public Thread start()
+   {
+      Thread thread = new Thread(this, "relay-" + port);
+      thread.start();
+      return thread;
+   }
+
+   /** Tells the server to close all its connections and stop */
+   public void stop()
+   {
+      isRunning = false;
+      selector.wakeup();
+   }
+
+   @Override public void run()
+   {
+      try
+      {
+         while (isRunning)
+         {
+            long timeout = 0;
+            if (!batched.isEmpty())
+               timeout = Math.max(batchStartTime + batchDelay - System.currentTimeMillis(), 1);
+            selector.select(timeout);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+               SelectionKey key = it.next();
+               it.remove();
+               if (!key.isValid()) continue;
+               if (key.isAcceptable())
+                  accept();
+               else
+               {
+                  Connection c = (Connection)key.attachment();
+                  if (key.isReadable())
+                     read(c);
+                  if (key.isValid() && key.isWritable())
+                     writeOutput(c);
+               }
+            }
+            if (!batched.isEmpty() && System.currentTimeMillis() - batchStartTime >= batchDelay)
+               sendBatches();
+         }
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+      finally
+      {
+         for (Connection c: new ArrayList<>(connections))
+            disconnect(c);
+         closeQuietly(serverChannel);
+         closeQuietly(selector);
+      }
+   }
+
+   void accept() throws IOException
+   {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null)
+      {
+         channel.configureBlocking(false);
+         channel.socket().setTcpNoDelay(true);
+         Connection c = new Connection(channel);
+         c.key = channel.register(selector, SelectionKey.OP_READ, c);
+         connections.add(c);
+      }
+   }
+
+   void read(Connection c)
+   {
+      int count;
+      try
+      {
+         count = c.channel.read(c.in);
+      }
+      catch (IOException e)
+      {
+         count = -1;
+      }
+      if (count < 0)
+      {
+         disconnect(c);
+         return;
+      }
+      c.in.flip();
+      if (!c.isOpen)
+         readHandshake(c);
+      while (c.isOpen && !c.isClosing && readFrame(c))
+         ;
+      c.in.compact();
+      // Anything sent after a close is ignored
+      if (c.isClosing)
+         c.in.clear();
+      // Frames are only handled once they've fully arrived, so the buffer
+      // has to be able to hold the biggest frame
+      else if (!c.in.hasRemaining())
+         c.growInput();
+   }
+
+   /** Reads the HTTP request that opens a WebSocket, and joins the room for its path */
+   void readHandshake(Connection c)
+   {
+      ByteBuffer in = c.in;
+      int end = -1;
+      for (int n = in.position(); n + 3 < in.limit(); n++)
+      {
+         if (in.get(n) == '\r' && in.get(n + 1) == '\n' && in.get(n + 2) == '\r' && in.get(n + 3) == '\n')
+         {
+            end = n + 4;
+            break;
+         }
+      }
+      if (end < 0)
+      {
+         if (in.remaining() >= MAX_HANDSHAKE_BYTES)
+            rejectHandshake(c);
+         return;
+      }
+      byte[] request = new byte[end - in.position()];
+      in.get(request);
+      String[] lines = new String(request, StandardCharsets.ISO_8859_1).split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      String key = null;
+      boolean isUpgrade = false;
+      for (int n = 1; n < lines.length; n++)
+      {
+         int colon = lines[n].indexOf(':');
+         if (colon < 0) continue;
+         String name = lines[n].substring(0, colon).trim().toLowerCase();
+         String value = lines[n].substring(colon + 1).trim();
+         if (name.equals("sec-websocket-key"))
+            key = value;
+         else if (name.equals("upgrade"))
+            isUpgrade = value.equalsIgnoreCase("websocket");
+      }
+      if (requestLine.length != 3 || !requestLine[0].equals("GET") || key == null || !isUpgrade)
+      {
+         rejectHandshake(c);
+         return;
+      }
+      String response = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + WebSocket.acceptKey(key) + "\r\n\r\n";
+      send(c, response.getBytes(StandardCharsets.ISO_8859_1));
+      c.isOpen = true;
+
+      // The query string doesn't change which picture is being drawn on
+      String path = requestLine[1];
+      if (path.indexOf('?') >= 0)
+         path = path.substring(0, path.indexOf('?'));
+      Room room = rooms.get(path);
+      if (room == null)
+      {
+         room = new Room(path, snapshotThreshold, maxHistoryBytes);
+         rooms.put(path, room);
+      }
+      room.members.add(c);
+      c.room = room;
+      // Catch up on what has been drawn already
+      c.hasPicture = !room.isHistoryLost;
+      if (room.isHistoryLost)
+      {
+         sendText(c, HISTORY_UNAVAILABLE);
+         return;
+      }
+      if (room.snapshot != null)
+      {
+         sendText(c, SNAPSHOT);
+         sendMessage(c, room.snapshot, 0, room.snapshot.length);
+      }
+      if (room.historyLength > 0)
+         sendMessage(c, room.history, 0, room.historyLength);
+   }
+
+   void rejectHandshake(Connection c)
+   {
+      send(c, "HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      closeAfterOutput(c);
+   }
+
+   /** Handles the next frame in the input, returning false if it hasn't all arrived yet */
+   boolean readFrame(Connection c)
+   {
+      ByteBuffer in = c.in;
+      int start = in.position();
+      if (in.remaining() < 2) return false;
+      int b0 = in.get(start) & 0xff;
+      int b1 = in.get(start + 1) & 0xff;
+      boolean isFinal = (b0 & 0x80) != 0;
+      int opcode = b0 & 0x0f;
+      long length = b1 & 0x7f;
+      int headerLength = 2;
+      if (length == 126)
+      {
+         if (in.remaining() < 4) return false;
+         length = in.getShort(start + 2) & 0xffff;
+         headerLength = 4;
+      }
+      else if (length == 127)
+      {
+         if (in.remaining() < 10) return false;
+         length = in.getLong(start + 2);
+         headerLength = 10;
+      }
+      // Clients always have to mask what they send
+      if ((b1 & 0x80) == 0 || (b0 & 0x70) != 0)
+      {
+         close(c, WebSocket.CLOSE_PROTOCOL_ERROR);
+         return false;
+      }
+      headerLength += 4;
+      int maxLength = c.isNextMessageSnapshot ? MAX_SNAPSHOT_BYTES : MAX_MESSAGE_BYTES;
+      if (length < 0 || length > maxLength)
+      {
+         close(c, WebSocket.CLOSE_TOO_BIG);
+         return false;
+      }
+      int frameLength = headerLength + (int)length;
+      if (in.remaining() < frameLength) return false;
+      byte[] mask = new byte[4];
+      byte[] payload = new byte[(int)length];
+      in.position(start + headerLength - 4);
+      in.get(mask);
+      in.get(payload);
+      WebSocket.applyMask(payload, 0, payload.length, mask, 0);
+
+      if (opcode >= WebSocket.OP_CLOSE)
+      {
+         if (!isFinal || payload.length > WebSocket.MAX_CONTROL_PAYLOAD)
+         {
+            close(c, WebSocket.CLOSE_PROTOCOL_ERROR);
+            return false;
+         }
+         if (opcode == WebSocket.OP_CLOSE)
+            close(c, WebSocket.CLOSE_NORMAL);
+         else if (opcode == WebSocket.OP_PING)
+            send(c, WebSocket.frame(WebSocket.OP_PONG, payload, 0, payload.length, false, 0));
+         return true;
+      }
+
+      if (opcode == WebSocket.OP_CONTINUATION)
+      {
+         if (!c.isMessageStarted)
+         {
+            close(c, WebSocket.CLOSE_PROTOCOL_ERROR);
+            return false;
+         }
+      }
+      else if (opcode == WebSocket.OP_BINARY || opcode == WebSocket.OP_TEXT)
+      {
+         if (c.isMessageStarted)
+         {
+            close(c, WebSocket.CLOSE_PROTOCOL_ERROR);
+            return false;
+         }
+         c.isMessageStarted = true;
+         c.messageOpcode = opcode;
+         c.messageLength = 0;
+      }
+      else
+      {
+         close(c, WebSocket.CLOSE_PROTOCOL_ERROR);
+         return false;
+      }
+      if (c.messageLength + payload.length > maxLength)
+      {
+         close(c, WebSocket.CLOSE_TOO_BIG);
+         return false;
+      }
+      c.addToMessage(payload, 0, payload.length);
+      if (isFinal)
+      {
+         c.isMessageStarted = false;
+         if (c.messageOpcode == WebSocket.OP_TEXT)
+            readText(c);
+         else if (c.isNextMessageSnapshot)
+         {
+            c.isNextMessageSnapshot = false;
+            receiveSnapshot(c, c.message, 0, c.messageLength);
+         }
+         else if (c.messageLength > 0)
+            relay(c, c.message, 0, c.messageLength);
+         // Don't hold on to the memory of an unusually big message
+         if (c.message.length > MAX_MESSAGE_BYTES)
+            c.message = new byte[1024];
+      }
+      return true;
+   }
+
+   /** Handles a text message, which says that a snapshot is coming (anything else is ignored) */
+   void readText(Connection c)
+   {
+      String text = new String(c.message, 0, c.messageLength, StandardCharsets.UTF_8);
+      if (text.equals(SNAPSHOT))
+         c.isNextMessageSnapshot = true;
+   }
+
+   /** 
+    * Replaces the history of a room with a snapshot, if it is the answer 
+    * to the request that the room is waiting for
+    */
+   void receiveSnapshot(Connection c, byte[] data, int offset, int length)
+   {
+      c.snapshotsSent++;
+      Room room = c.room;
+      if (room == null || room.snapshotSource != c || c.snapshotsSent != room.snapshotRequest) return;
+      room.setSnapshot(data, offset, length);
+   }
+
+   /**
+    * Asks a member of a room for a snapshot. Any operations waiting to be
+    * sent to the member go first, so that the snapshot includes them.
+    */
+   void requestSnapshot(Room room)
+   {
+      Connection source = room.findSnapshotSource();
+      if (source == null) return;
+      if (source.batchLength > 0)
+      {
+         sendMessage(source, source.batch, 0, source.batchLength);
+         source.batchLength = 0;
+      }
+      sendText(source, SNAPSHOT_REQUEST);
+      source.snapshotsRequested++;
+      room.startSnapshot(source);
+   }
+
+   /** Passes on operations from a connection to everyone else in its room */
+   void relay(Connection from, byte[] ops, int offset, int length)
+   {
+      Room room = from.room;
+      room.addToHistory(from, ops, offset, length);
+      for (Connection to: new ArrayList<>(room.members))
+      {
+         if (to == from || to.isClosing) continue;
+         if (to.getQueuedBytes() + length > MAX_QUEUED_BYTES)
+         {
+            // The connection isn't keeping up
+            disconnect(to);
+            continue;
+         }
+         if (to.batchLength == 0)
+         {
+            if (batched.isEmpty())
+               batchStartTime = System.currentTimeMillis();
+            batched.add(to);
+         }
+         to.addToBatch(ops, offset, length);
+      }
+      if (room.needsSnapshot() && !room.members.isEmpty())
+         requestSnapshot(room);
+   }
+
+   /** Sends the operations waiting for each connection as one message */
+   void sendBatches()
+   {
+      for (Connection c: batched)
+      {
+         if (c.batchLength == 0 || c.isClosing) continue;
+         sendMessage(c, c.batch, 0, c.batchLength);
+         c.batchLength = 0;
+         // Don't hold on to the memory of an unusually big batch
+         if (c.batch.length > 64 * 1024)
+            c.batch = new byte[1024];
+      }
+      batched.clear();
+   }
+
+   void sendMessage(Connection c, byte[] data, int offset, int length)
+   {
+      send(c, WebSocket.frame(WebSocket.OP_BINARY, data, offset, length, false, 0));
+   }
+
+   void sendText(Connection c, String text)
+   {
+      byte[] data = text.getBytes(StandardCharsets.UTF_8);
+      send(c, WebSocket.frame(WebSocket.OP_TEXT, data, 0, data.length, false, 0));
+   }
+
+   /** Queues up data to be written to a connection, and writes as much as it can straight away */
+   void send(Connection c, byte[] data)
+   {
+      if (c.isClosing || !c.key.isValid()) return;
+      c.output.add(ByteBuffer.wrap(data));
+      c.outputBytes += data.length;
+      writeOutput(c);
+   }
+
+   void writeOutput(Connection c)
+   {
+      try
+      {
+         while (!c.output.isEmpty())
+         {
+            ByteBuffer buf = c.output.peek();
+            c.outputBytes -= c.channel.write(buf);
+            if (buf.hasRemaining()) break;
+            c.output.poll();
+         }
+      }
+      catch (IOException e)
+      {
+         disconnect(c);
+         return;
+      }
+      if (c.output.isEmpty() && c.isClosing)
+      {
+         disconnect(c);
+         return;
+      }
+      // Only wait for the socket to be writable while there's something to write
+      c.key.interestOps(c.output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+   }
+
+   /** Sends a close frame, and closes the connection once it has been written */
+   void close(Connection c, int status)
+   {
+      byte[] payload = WebSocket.closePayload(status);
+      send(c, WebSocket.frame(WebSocket.OP_CLOSE, payload, 0, payload.length, false, 0));
+      closeAfterOutput(c);
+   }
+
+   void closeAfterOutput(Connection c)
+   {
+      if (!c.key.isValid()) return;
+      c.isClosing = true;
+      leaveRoom(c);
+      writeOutput(c);
+   }
+
+   void disconnect(Connection c)
+   {
+      leaveRoom(c);
+      connections.remove(c);
+      c.key.cancel();
+      closeQuietly(c.channel);
+   }
+
+   void leaveRoom(Connection c)
+   {
+      Room room = c.room;
+      if (room == null) return;
+      room.members.remove(c);
+      c.room = null;
+      c.batchLength = 0;
+      // The picture is forgotten once everyone has left
+      if (room.members.isEmpty())
+      {
+         rooms.remove(room.path);
+         return;
+      }
+      // Someone else is asked for the snapshot that the member was going to send
+      if (room.snapshotSource == c)
+      {
+         room.cancelSnapshot();
+         if (room.needsSnapshot())
+            requestSnapshot(room);
+      }
+   }
+
+   static void closeQuietly(Closeable closeable)
+   {
+      try
+      {
+         closeable.close();
+      }
+      catch (IOException e)
+      {
+         // Nothing more can be done with it anyway
+      }
+   }
+
+   public static void main(String[] args) throws IOException
+   {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : 8025;
+      RelayServer server = new RelayServer(port);
+      System.out.println("Relaying drawing operations on port " + server.getPort());
+      server.run();
+   }
+}
@@ -0,0 +1,136 @@
+package org.programmingbasics.layercanvas.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The people connected to the server with the same URL path, who are all
+ * drawing on the same picture
+ */
+class Room
+{
+   /** Amount of operations after the last snapshot at which a new snapshot is asked for */
+   static final int SNAPSHOT_THRESHOLD = 4 * 1024 * 1024;
+
+   /** Amount of operations remembered for people who join later */
+   static final int MAX_HISTORY_BYTES = 16 * 1024 * 1024;
+
+   final String path;
+   final int snapshotThreshold;
+   final int maxHistoryBytes;
+   List<Connection> members = new ArrayList<>();
+
+   /**
+    * What people who join later are sent so that they start with the same
+    * picture: the last snapshot of the picture (a document saved by one of
+    * the canvases, or null if there hasn't been one), and every operation
+    * sent to the room since. Operations can't be dropped from the start
+    * without changing the picture, so once there are a lot of them, a
+    * member is asked for a new snapshot to replace them. If there are too
+    * many before a snapshot arrives, the history is thrown away, and people
+    * who join are told that it isn't available until the next snapshot.
+    */
+   byte[] snapshot;
+   byte[] history = new byte[4096];
+   int historyLength = 0;
+   boolean isHistoryLost = false;
+
+   /**
+    * Member that has been asked for a snapshot (or null), and the number
+    * of its request. The snapshot will already have the member's own
+    * operations, so only the operations from everyone else since it was
+    * asked come after it.
+    */
+   Connection snapshotSource;
+   int snapshotRequest;
+   byte[] opsAfterSnapshot = new byte[1024];
+   int opsAfterSnapshotLength = 0;
+
+   Room(String path, int snapshotThreshold, int maxHistoryBytes)
+   {
+      this.path = path;
+      this.snapshotThreshold = snapshotThreshold;
+      this.maxHistoryBytes = maxHistoryBytes;
+   }
+
+   void addToHistory(Connection from, byte[] data, int offset, int length)
+   {
+      if (snapshotSource != null && from != snapshotSource)
+      {
+         if (opsAfterSnapshotLength + length > maxHistoryBytes)
+            cancelSnapshot();
+         else
+         {
+            opsAfterSnapshot = Connection.ensureCapacity(opsAfterSnapshot, opsAfterSnapshotLength, opsAfterSnapshotLength + length);
+            System.arraycopy(data, offset, opsAfterSnapshot, opsAfterSnapshotLength, length);
+            opsAfterSnapshotLength += length;
+         }
+      }
+      if (isHistoryLost) return;
+      if (historyLength + length > maxHistoryBytes)
+      {
+         isHistoryLost = true;
+         snapshot = null;
+         history = new byte[4096];
+         historyLength = 0;
+         return;
+      }
+      if (historyLength + length > history.length)
+      {
+         byte[] bigger = new byte[Math.min(Math.max(history.length * 2, historyLength + length), maxHistoryBytes)];
+         System.arraycopy(history, 0, bigger, 0, historyLength);
+         history = bigger;
+      }
+      System.arraycopy(data, offset, history, historyLength, length);
+      historyLength += length;
+   }
+
+   /** Whether a member should be asked for a snapshot */
+   boolean needsSnapshot()
+   {
+      return snapshotSource == null && (isHistoryLost || historyLength > snapshotThreshold);
+   }
+
+   /**
+    * Member to ask for a snapshot: the one that has been in the room the
+    * longest, out of those with the whole picture that have answered all
+    * their earlier requests (or null if there isn't one)
+    */
+   Connection findSnapshotSource()
+   {
+      for (Connection c: members)
+      {
+         if (c.hasPicture && !c.isClosing && c.snapshotsSent >= c.snapshotsRequested)
+            return c;
+      }
+      return null;
+   }
+
+   void startSnapshot(Connection source)
+   {
+      snapshotSource = source;
+      snapshotRequest = source.snapshotsRequested;
+      opsAfterSnapshotLength = 0;
+   }
+
+   /** Replaces the history with a snapshot from the member that was asked for it */
+   void setSnapshot(byte[] data, int offset, int length)
+   {
+      snapshot = new byte[length];
+      System.arraycopy(data, offset, snapshot, 0, length);
+      history = opsAfterSnapshot;
+      historyLength = opsAfterSnapshotLength;
+      isHistoryLost = false;
+      opsAfterSnapshot = new byte[1024];
+      opsAfterSnapshotLength = 0;
+      snapshotSource = null;
+   }
+
+   /** Stops waiting for a snapshot (e.g. when the member asked for it leaves) */
+   void cancelSnapshot()
+   {
+      snapshotSource = null;
+      opsAfterSnapshot = new byte[1024];
+      opsAfterSnapshotLength = 0;
+   }
+}
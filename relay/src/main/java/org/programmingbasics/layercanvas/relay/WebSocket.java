@@ -0,0 +1,102 @@
+package org.programmingbasics.layercanvas.relay;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The parts of the WebSocket protocol (RFC 6455) that are shared by the
+ * server and the client. Only binary messages are used.
+ */
+class WebSocket
+{
+   static final int OP_CONTINUATION = 0;
+   static final int OP_TEXT = 1;
+   static final int OP_BINARY = 2;
+   static final int OP_CLOSE = 8;
+   static final int OP_PING = 9;
+   static final int OP_PONG = 10;
+
+   /** Close status codes */
+   static final int CLOSE_NORMAL = 1000;
+   static final int CLOSE_PROTOCOL_ERROR = 1002;
+   static final int CLOSE_TOO_BIG = 1009;
+
+   /** Largest payload that a control frame can have */
+   static final int MAX_CONTROL_PAYLOAD = 125;
+
+   static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+   /** Value of the Sec-WebSocket-Accept header that answers a Sec-WebSocket-Key */
+   static String acceptKey(String key)
+   {
+      try
+      {
+         MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+         byte[] hash = sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.ISO_8859_1));
+         return Base64.getEncoder().encodeToString(hash);
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // Every JVM has SHA-1
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Makes a frame holding a whole message. Frames sent by a client have
+    * to be masked, so a mask is given for those (or else 0 for frames
+    * sent by the server).
+    */
+   static byte[] frame(int opcode, byte[] data, int offset, int length, boolean isMasked, int mask)
+   {
+      int headerLength = 2;
+      if (length > 0xffff)
+         headerLength += 8;
+      else if (length > 125)
+         headerLength += 2;
+      if (isMasked)
+         headerLength += 4;
+      byte[] frame = new byte[headerLength + length];
+      frame[0] = (byte)(0x80 | opcode);
+      int pos = 2;
+      if (length > 0xffff)
+      {
+         frame[1] = 127;
+         for (int n = 7; n >= 0; n--)
+            frame[pos++] = (byte)((long)length >>> (n * 8));
+      }
+      else if (length > 125)
+      {
+         frame[1] = 126;
+         frame[pos++] = (byte)(length >>> 8);
+         frame[pos++] = (byte)length;
+      }
+      else
+         frame[1] = (byte)length;
+      if (isMasked)
+      {
+         frame[1] |= 0x80;
+         for (int n = 0; n < 4; n++)
+            frame[pos++] = (byte)(mask >>> (24 - n * 8));
+      }
+      System.arraycopy(data, offset, frame, pos, length);
+      if (isMasked)
+         applyMask(frame, pos, length, frame, pos - 4);
+      return frame;
+   }
+
+   /** Payload of a close frame with a status code */
+   static byte[] closePayload(int status)
+   {
+      return new byte[] {(byte)(status >>> 8), (byte)status};
+   }
+
+   /** Masks or unmasks data using the 4 byte mask at maskOffset */
+   static void applyMask(byte[] data, int offset, int length, byte[] mask, int maskOffset)
+   {
+      for (int n = 0; n < length; n++)
+         data[offset + n] ^= mask[maskOffset + (n & 3)];
+   }
+}
@@ -0,0 +1,371 @@
+package org.programmingbasics.layercanvas.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tries out a relay server by connecting lots of clients to it in the
+ * same process. The clients send made-up operations that say which room
+ * they were sent to, who sent them, and in what order, so that receivers
+ * can check that they get the operations of everyone else in their room,
+ * in order, and nothing else.
+ */
+public class LoopbackTest
+{
+   /** Operations start with the room, the client that sent it, and a sequence number */
+   static final int OP_HEADER = 12;
+
+   RelayServer server;
+   Thread serverThread;
+   List<RelayClient> clients = new ArrayList<>();
+
+   AtomicInteger errors = new AtomicInteger();
+   AtomicLong messagesReceived = new AtomicLong();
+   AtomicLong opsReceived = new AtomicLong();
+
+   void startServer(int batchDelay) throws IOException
+   {
+      server = new RelayServer(0);
+      server.setBatchDelay(batchDelay);
+      serverThread = server.start();
+   }
+
+   RelayClient connect(int room) throws IOException
+   {
+      RelayClient client = new RelayClient("localhost", server.getPort(), "/room" + room);
+      client.setTimeout(30000);
+      clients.add(client);
+      return client;
+   }
+
+   @After
+   public void stopServer() throws InterruptedException
+   {
+      for (RelayClient client: clients)
+      {
+         try
+         {
+            client.close();
+         }
+         catch (IOException e)
+         {
+            // The server may have already closed it
+         }
+      }
+      if (server != null)
+      {
+         server.stop();
+         serverThread.join();
+      }
+   }
+
+   static byte[] createOp(int room, int sender, int seq, int opSize)
+   {
+      ByteBuffer op = ByteBuffer.allocate(opSize);
+      op.putInt(room);
+      op.putInt(sender);
+      op.putInt(seq);
+      return op.array();
+   }
+
+   interface IoTask
+   {
+      void run() throws IOException;
+   }
+
+   Thread startThread(IoTask task)
+   {
+      Thread thread = new Thread(() -> {
+         try
+         {
+            task.run();
+         }
+         catch (IOException e)
+         {
+            e.printStackTrace();
+            errors.incrementAndGet();
+         }
+      });
+      thread.start();
+      return thread;
+   }
+
+   /**
+    * Receives count operations of opSize bytes, checking that they come
+    * from other clients in the same room, in the order they were sent.
+    * nextSeq holds the sequence number expected next from each sender.
+    */
+   void receiveOps(RelayClient client, int room, int id, int opSize, int[] nextSeq, int count) throws IOException
+   {
+      while (count > 0)
+      {
+         byte[] data = client.receive();
+         if (data == null || data.length % opSize != 0)
+         {
+            errors.incrementAndGet();
+            return;
+         }
+         messagesReceived.incrementAndGet();
+         ByteBuffer ops = ByteBuffer.wrap(data);
+         for (int pos = 0; pos < data.length; pos += opSize)
+         {
+            int opRoom = ops.getInt(pos);
+            int sender = ops.getInt(pos + 4);
+            int seq = ops.getInt(pos + 8);
+            if (opRoom != room || sender == id || sender < 0 || sender >= nextSeq.length || seq != nextSeq[sender])
+               errors.incrementAndGet();
+            else
+               nextSeq[sender]++;
+            opsReceived.incrementAndGet();
+            count--;
+         }
+      }
+   }
+
+   /** Receives a text message about the history of the room */
+   static String receiveText(RelayClient client) throws IOException
+   {
+      byte[] data = client.receive();
+      assertTrue(data != null && client.isText());
+      return new String(data, StandardCharsets.UTF_8);
+   }
+
+   @Test
+   public void testDeliversOpsInOrder() throws Exception
+   {
+      int rooms = 5;
+      int clientsPerRoom = 6;
+      int opsPerClient = 100;
+      int opSize = 100;
+      startServer(10);
+      int clientCount = rooms * clientsPerRoom;
+      for (int n = 0; n < clientCount; n++)
+         connect(n / clientsPerRoom);
+
+      List<Thread> threads = new ArrayList<>();
+      for (int n = 0; n < clientCount; n++)
+      {
+         int id = n;
+         int room = n / clientsPerRoom;
+         RelayClient client = clients.get(n);
+         threads.add(startThread(() -> receiveOps(client, room, id, opSize, new int[clientCount], (clientsPerRoom - 1) * opsPerClient)));
+         threads.add(startThread(() -> {
+            for (int seq = 0; seq < opsPerClient; seq++)
+               client.send(createOp(room, id, seq, opSize));
+         }));
+      }
+      for (Thread thread: threads)
+         thread.join();
+      assertEquals(0, errors.get());
+      assertEquals((long)clientCount * (clientsPerRoom - 1) * opsPerClient, opsReceived.get());
+   }
+
+   @Test
+   public void testBatchesOps() throws Exception
+   {
+      int opCount = 200;
+      int opSize = 50;
+      startServer(200);
+      RelayClient sender = connect(0);
+      RelayClient receiver = connect(0);
+      // Operations sent within the batch delay of each other go out in one message
+      for (int seq = 0; seq < opCount; seq++)
+         sender.send(createOp(0, 0, seq, opSize));
+      receiveOps(receiver, 0, 1, opSize, new int[2], opCount);
+      assertEquals(0, errors.get());
+      assertTrue("Received " + messagesReceived.get() + " messages", messagesReceived.get() < opCount / 10);
+   }
+
+   @Test
+   public void testLateJoinerGetsHistory() throws Exception
+   {
+      int clientsPerRoom = 3;
+      int opsPerClient = 50;
+      int opSize = 64;
+      startServer(10);
+      for (int n = 0; n < clientsPerRoom; n++)
+         connect(0);
+      RelayClient watcher = connect(0);
+      // A client in another room, whose operations mustn't be in the history
+      RelayClient other = connect(1);
+      for (int seq = 0; seq < opsPerClient; seq++)
+      {
+         for (int n = 0; n < clientsPerRoom; n++)
+            clients.get(n).send(createOp(0, n, seq, opSize));
+         other.send(createOp(1, clientsPerRoom + 1, seq, opSize));
+      }
+      // Once the watcher has everything, the server has seen everything
+      receiveOps(watcher, 0, clientsPerRoom, opSize, new int[clientsPerRoom + 2], clientsPerRoom * opsPerClient);
+
+      RelayClient late = connect(0);
+      opsReceived.set(0);
+      receiveOps(late, 0, -1, opSize, new int[clientsPerRoom + 2], clientsPerRoom * opsPerClient);
+      assertEquals(0, errors.get());
+      assertEquals(clientsPerRoom * opsPerClient, opsReceived.get());
+   }
+
+   @Test
+   public void testDisconnectsSlowConsumer() throws Exception
+   {
+      // Much more than can be queued, even with the data held by the sockets
+      int messageSize = 256 * 1024;
+      int messageCount = 4 * RelayServer.MAX_QUEUED_BYTES / messageSize + 64;
+      startServer(0);
+      RelayClient sender = connect(0);
+      RelayClient reader = connect(0);
+      RelayClient slow = connect(0);
+
+      // The sender waits for the reader to get each message, so that only
+      // the client that never reads falls behind
+      Semaphore received = new Semaphore(0);
+      Thread readerThread = startThread(() -> {
+         int[] nextSeq = new int[3];
+         for (int n = 0; n < messageCount; n++)
+         {
+            receiveOps(reader, 0, 1, messageSize, nextSeq, 1);
+            received.release();
+         }
+      });
+      for (int seq = 0; seq < messageCount; seq++)
+      {
+         sender.send(createOp(0, 0, seq, messageSize));
+         received.acquire();
+      }
+      readerThread.join();
+      assertEquals(0, errors.get());
+      assertEquals(messageCount, opsReceived.get());
+
+      // The slow client gets what was sent before it was disconnected, in
+      // order, and then the connection ends
+      long bytes = 0;
+      int seq = 0;
+      try
+      {
+         for (byte[] data = slow.receive(); data != null; data = slow.receive())
+         {
+            ByteBuffer ops = ByteBuffer.wrap(data);
+            for (int pos = 0; pos + OP_HEADER <= data.length; pos += messageSize)
+               assertEquals(seq++, ops.getInt(pos + 8));
+            bytes += data.length;
+         }
+      }
+      catch (IOException e)
+      {
+         // Disconnected in the middle of a message
+      }
+      assertTrue("Slow client received " + bytes + " bytes", bytes < (long)messageCount * messageSize);
+      assertTrue(bytes > 0);
+   }
+
+   @Test
+   public void testSnapshotReplacesHistory() throws Exception
+   {
+      int opSize = 64;
+      startServer(0);
+      server.setHistoryLimits(16 * opSize - 1, 1000 * opSize);
+      RelayClient a = connect(0);
+      RelayClient b = connect(0);
+      for (int seq = 0; seq < 20; seq++)
+         a.send(createOp(0, 0, seq, opSize));
+      receiveOps(b, 0, 1, opSize, new int[2], 20);
+      // The client that has been there longest is asked for a snapshot
+      // once there's too much history
+      assertEquals(RelayServer.SNAPSHOT_REQUEST, receiveText(a));
+      byte[] document = createOp(-1, 0, 20, 300);
+      a.sendSnapshot(document);
+      for (int seq = 0; seq < 8; seq++)
+         b.send(createOp(0, 1, seq, opSize));
+      a.send(createOp(0, 0, 20, opSize));
+      int[] seenByA = new int[2];
+      receiveOps(a, 0, 0, opSize, seenByA, 8);
+      int[] seenByB = {20, 0};
+      receiveOps(b, 0, 1, opSize, seenByB, 1);
+
+      // Someone joining later is sent the snapshot instead of the
+      // operations it includes, and then everything sent since
+      RelayClient late = connect(0);
+      assertEquals(RelayServer.SNAPSHOT, receiveText(late));
+      assertArrayEquals(document, late.receive());
+      assertFalse(late.isText());
+      int[] nextSeq = {20, 0};
+      opsReceived.set(0);
+      receiveOps(late, 0, -1, opSize, nextSeq, 9);
+      assertEquals(0, errors.get());
+      assertEquals(21, nextSeq[0]);
+      assertEquals(8, nextSeq[1]);
+   }
+
+   @Test
+   public void testTellsJoinersWhenHistoryIsLost() throws Exception
+   {
+      int opSize = 64;
+      startServer(0);
+      server.setHistoryLimits(16 * opSize - 1, 32 * opSize);
+      RelayClient a = connect(0);
+      RelayClient b = connect(0);
+      for (int seq = 0; seq < 40; seq++)
+         a.send(createOp(0, 0, seq, opSize));
+      receiveOps(b, 0, 1, opSize, new int[2], 40);
+
+      // Without a snapshot, there's more history than can be kept
+      RelayClient lost = connect(0);
+      assertEquals(RelayServer.HISTORY_UNAVAILABLE, receiveText(lost));
+      a.send(createOp(0, 0, 40, opSize));
+      receiveOps(lost, 0, 2, opSize, new int[] {40, 0, 0}, 1);
+
+      // It's available again once the snapshot arrives
+      assertEquals(RelayServer.SNAPSHOT_REQUEST, receiveText(a));
+      byte[] document = createOp(-1, 0, 41, 200);
+      a.sendSnapshot(document);
+      a.send(createOp(0, 0, 41, opSize));
+      receiveOps(b, 0, 1, opSize, new int[] {40, 0}, 2);
+      RelayClient late = connect(0);
+      assertEquals(RelayServer.SNAPSHOT, receiveText(late));
+      assertArrayEquals(document, late.receive());
+      receiveOps(late, 0, -1, opSize, new int[] {41, 0, 0}, 1);
+      assertEquals(0, errors.get());
+   }
+
+   @Test
+   public void testAsksSomeoneElseWhenSnapshotSourceLeaves() throws Exception
+   {
+      int opSize = 64;
+      startServer(0);
+      server.setHistoryLimits(16 * opSize - 1, 1000 * opSize);
+      RelayClient a = connect(0);
+      RelayClient b = connect(0);
+      RelayClient c = connect(0);
+      for (int seq = 0; seq < 20; seq++)
+         a.send(createOp(0, 0, seq, opSize));
+      receiveOps(b, 0, 1, opSize, new int[3], 20);
+      receiveOps(c, 0, 2, opSize, new int[3], 20);
+      assertEquals(RelayServer.SNAPSHOT_REQUEST, receiveText(a));
+      a.close();
+
+      // The next client that has been there longest is asked instead
+      assertEquals(RelayServer.SNAPSHOT_REQUEST, receiveText(b));
+      byte[] document = createOp(-1, 1, 0, 100);
+      b.sendSnapshot(document);
+      b.send(createOp(0, 1, 0, opSize));
+      receiveOps(c, 0, 2, opSize, new int[] {20, 0, 0}, 1);
+      RelayClient late = connect(0);
+      assertEquals(RelayServer.SNAPSHOT, receiveText(late));
+      assertArrayEquals(document, late.receive());
+      receiveOps(late, 0, -1, opSize, new int[] {20, 0, 0}, 1);
+      assertEquals(0, errors.get());
+   }
+}
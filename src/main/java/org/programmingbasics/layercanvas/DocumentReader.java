@@ -0,0 +1,76 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.programmingbasics.layercanvas.io.DocumentDecoder;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.UndoStack;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+
+/**
+ * Loads drawings saved by a DocumentWriter, turning the layers read by a
+ * DocumentDecoder into a layer stack and undo stack.
+ */
+public class DocumentReader
+{
+   /** Used for allocating memory for tiles */
+   RasterFactory factory;
+
+   /** The loaded drawing */
+   LayerStack layers;
+   UndoStack undos;
+
+   /** Undo commands in the history, by id */
+   Map<Integer, UndoableCommand> commands = new HashMap<>();
+
+   public DocumentReader(RasterFactory factory)
+   {
+      this.factory = factory;
+   }
+
+   /**
+    * Reads a saved file. Returns false if the data isn't a saved drawing.
+    * Records that are damaged are ignored along with everything after them.
+    */
+   public boolean read(byte[] data, int offset, int length)
+   {
+      DocumentDecoder decoder = new DocumentDecoder(factory);
+      if (!decoder.read(data, offset, length)) return false;
+      layers = new LayerStack(decoder.getWidth(), decoder.getHeight());
+      // Layers that were removed still need their ids used up, so that 
+      // new layers don't get mixed up with them
+      Map<Integer, Layer> layersById = new HashMap<>();
+      for (DocumentDecoder.SavedLayer saved: decoder.getAllLayers())
+      {
+         Layer layer = layers.createLayer(saved.id);
+         layer.tiles = saved.tiles;
+         layer.opacity = saved.opacity;
+         layer.visible = saved.visible;
+         layer.vector = saved.vector;
+         layersById.put(saved.id, layer);
+      }
+      for (DocumentDecoder.SavedLayer saved: decoder.getLayers())
+         layers.layers.add(layersById.get(saved.id));
+      layers.active = decoder.getActive();
+      commands = decoder.getCommands();
+      undos = new UndoStack(factory);
+      undos.restore(decoder.getHistory(), decoder.getHistoryPosition());
+      return true;
+   }
+
+   /**
+    * Sets up a writer to append changes to the file that was read. The
+    * undo commands in the file keep their ids.
+    */
+   public void continueFile(DocumentWriter writer)
+   {
+      for (Map.Entry<Integer, UndoableCommand> entry: commands.entrySet())
+      {
+         writer.commandIds.put(entry.getValue(), entry.getKey());
+         writer.nextCommandId = Math.max(writer.nextCommandId, entry.getKey() + 1);
+      }
+      writer.rememberSaved(layers, undos);
+      writer.hasSaved = true;
+   }
+}
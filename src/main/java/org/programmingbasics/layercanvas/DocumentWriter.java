@@ -0,0 +1,298 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import org.programmingbasics.layercanvas.io.ByteWriter;
+import org.programmingbasics.layercanvas.io.Checksums;
+import org.programmingbasics.layercanvas.io.DocumentDecoder;
+import org.programmingbasics.layercanvas.io.JournalCodec;
+import org.programmingbasics.layercanvas.io.TileCodec;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoStack;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+import org.programmingbasics.layercanvas.raster.VectorLayer;
+
+/**
+ * Saves drawings in LayerCanvas's own file format, which keeps the
+ * layers and the undo history.
+ *
+ * A file is a header followed by records. The first record is a full
+ * save that holds everything. Each record after it only holds the tiles
+ * and undo commands that changed since the record before, so autosaving
+ * can append a record that is about the size of the latest edits instead
+ * of writing out the whole drawing each time. The writer remembers what
+ * was last saved so that it knows what has changed.
+ *
+ * Header: the bytes "LCDF", then the format version (varint).
+ *
+ * Record: the kind of record (byte), the length of its contents (varint),
+ * the contents, and a CRC-32 of the contents. A record that was cut off
+ * or damaged (e.g. because the page was closed while appending it) is
+ * ignored along with everything after it.
+ *
+ * Contents of a record, with all numbers being varints unless noted:
+ * <ul>
+ *   <li>width and height of the drawing
+ *   <li>number of layers, then for each layer from the bottom up: its id,
+ *       its opacity (double), whether it is visible (byte), and its kind
+ *       (byte, 1 for a vector layer)
+ *   <li>index of the active layer
+ *   <li>number of tiles, then for each tile: the id of its layer, its
+ *       tile index, and its pixels (see TileCodec)
+ *   <li>number of vector layers with changed strokes, then for each: its
+ *       id, how many of its strokes are applied, the index of the first
+ *       stroke that changed, and the strokes from there on (see
+ *       JournalCodec.writeEntries())
+ *   <li>number of undo commands in the history, how many of them are
+ *       applied, and the id of each command, oldest first
+ *   <li>number of commands stored in the record, then for each: its id,
+ *       the id of its layer plus one (0 if the layer has been removed),
+ *       its number of tiles, the tile index and pixels of each tile, and
+ *       the number of applied strokes of the vector layer on the other
+ *       side of the command plus one (0 if it isn't for a vector layer)
+ * </ul>
+ *
+ * The tiles of vector layers aren't written, since they can be drawn 
+ * again from the strokes, which take much less space. Version 1 files
+ * have no layer kinds, vector strokes, or stroke counts in commands.
+ */
+public class DocumentWriter
+{
+   /** Whether there is a saved file that changes can be appended to */
+   boolean hasSaved = false;
+
+   /** Change counts of the tiles of each layer (by layer id) when last saved */
+   Map<Integer, Integer> savedChangeCounts = new HashMap<>();
+
+   /** Strokes of each vector layer (by layer id) when last saved, and how many were applied */
+   Map<Integer, List<JournalEntry>> savedEntries = new HashMap<>();
+   Map<Integer, Integer> savedVectorCounts = new HashMap<>();
+
+   /** Ids of the undo commands in the saved file */
+   Map<UndoableCommand, Integer> commandIds = new IdentityHashMap<>();
+   int nextCommandId = 0;
+
+   /** Swap counts of the undo commands when last saved */
+   Map<UndoableCommand, Integer> savedSwapCounts = new IdentityHashMap<>();
+
+   /** Saves the whole drawing as a new file */
+   public byte[] saveAll(LayerStack layers, UndoStack undos, IntFunction<byte[]> allocator)
+   {
+      savedChangeCounts.clear();
+      savedEntries.clear();
+      savedVectorCounts.clear();
+      commandIds.clear();
+      savedSwapCounts.clear();
+      nextCommandId = 0;
+      ByteWriter out = new ByteWriter();
+      for (byte b: DocumentDecoder.MAGIC)
+         out.writeByte(b);
+      out.writeVarint(DocumentDecoder.VERSION);
+      writeRecord(out, DocumentDecoder.RECORD_FULL, layers, undos);
+      hasSaved = true;
+      return out.toByteArray(allocator);
+   }
+
+   /**
+    * Saves what changed since the last save as a record to be appended to
+    * the saved file. Returns null if nothing has been saved yet.
+    */
+   public byte[] saveChanges(LayerStack layers, UndoStack undos, IntFunction<byte[]> allocator)
+   {
+      if (!hasSaved) return null;
+      ByteWriter out = new ByteWriter();
+      writeRecord(out, DocumentDecoder.RECORD_CHANGES, layers, undos);
+      return out.toByteArray(allocator);
+   }
+
+   void writeRecord(ByteWriter out, int kind, LayerStack layers, UndoStack undos)
+   {
+      ByteWriter record = new ByteWriter();
+      record.writeVarint(layers.width);
+      record.writeVarint(layers.height);
+      record.writeVarint(layers.layers.size());
+      for (Layer layer: layers.layers)
+      {
+         record.writeVarint(layer.id);
+         record.writeDouble(layer.opacity);
+         record.writeByte(layer.visible ? 1 : 0);
+         record.writeByte(layer.vector != null ? DocumentDecoder.LAYER_VECTOR : DocumentDecoder.LAYER_PIXELS);
+      }
+      record.writeVarint(layers.active);
+      writeChangedTiles(record, layers);
+      writeChangedVectors(record, layers);
+      writeChangedCommands(record, layers, undos);
+
+      out.writeByte(kind);
+      out.writeVarint(record.getLength());
+      out.writeBytes(record.getData(), 0, record.getLength());
+      out.writeInt(Checksums.crc32(0, record.getData(), 0, record.getLength()));
+      rememberSaved(layers, undos);
+   }
+
+   /** 
+    * Tiles are written if they changed since the layer was last saved (or
+    * ever, for new layers), except in vector layers
+    */
+   void writeChangedTiles(ByteWriter record, LayerStack layers)
+   {
+      int count = 0;
+      for (Layer layer: layers.layers)
+      {
+         if (layer.vector == null)
+            count += countChangedTiles(layer.tiles, savedChangeCounts.getOrDefault(layer.id, 0));
+      }
+      record.writeVarint(count);
+      for (Layer layer: layers.layers)
+      {
+         if (layer.vector != null) continue;
+         TiledRaster tiles = layer.tiles;
+         int saved = savedChangeCounts.getOrDefault(layer.id, 0);
+         if (tiles.getChangeCount() == saved) continue;
+         for (int ty = 0; ty < tiles.getTilesDown(); ty++)
+         {
+            for (int tx = 0; tx < tiles.getTilesAcross(); tx++)
+            {
+               if (tiles.getTileChangeCount(tx, ty) <= saved) continue;
+               record.writeVarint(layer.id);
+               record.writeVarint(ty * tiles.getTilesAcross() + tx);
+               TileCodec.writeTile(record, tiles.getTile(tx, ty), tiles.getTileColor(tx, ty));
+            }
+         }
+      }
+   }
+
+   static int countChangedTiles(TiledRaster tiles, int saved)
+   {
+      if (tiles.getChangeCount() == saved) return 0;
+      int count = 0;
+      for (int ty = 0; ty < tiles.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < tiles.getTilesAcross(); tx++)
+         {
+            if (tiles.getTileChangeCount(tx, ty) > saved)
+               count++;
+         }
+      }
+      return count;
+   }
+
+   /** Strokes of vector layers are written from the first one that isn't the same as when the layer was last saved */
+   void writeChangedVectors(ByteWriter record, LayerStack layers)
+   {
+      List<Layer> changed = new ArrayList<>();
+      for (Layer layer: layers.layers)
+      {
+         if (layer.vector == null) continue;
+         if (findFirstUnsaved(layer) < layer.vector.size() || !savedEntries.containsKey(layer.id)
+               || savedEntries.get(layer.id).size() != layer.vector.size()
+               || savedVectorCounts.get(layer.id) != layer.vector.getCount())
+            changed.add(layer);
+      }
+      record.writeVarint(changed.size());
+      for (Layer layer: changed)
+      {
+         VectorLayer vector = layer.vector;
+         int from = findFirstUnsaved(layer);
+         record.writeVarint(layer.id);
+         record.writeVarint(vector.getCount());
+         record.writeVarint(from);
+         JournalCodec.writeEntries(record, vector.getEntries(), from, vector.size());
+      }
+   }
+
+   /** Index of the first stroke of a vector layer that is different from when it was last saved */
+   int findFirstUnsaved(Layer layer)
+   {
+      List<JournalEntry> saved = savedEntries.get(layer.id);
+      if (saved == null) return 0;
+      List<JournalEntry> entries = layer.vector.getEntries();
+      int n = 0;
+      while (n < saved.size() && n < entries.size() && saved.get(n) == entries.get(n))
+         n++;
+      return n;
+   }
+
+   /**
+    * Undo commands are written when they are new, or when they have been
+    * undone or redone since they were last saved, since that exchanges
+    * their tiles with the ones in the layer
+    */
+   void writeChangedCommands(ByteWriter record, LayerStack layers, UndoStack undos)
+   {
+      record.writeVarint(undos.size());
+      record.writeVarint(undos.getPosition());
+      int changedCount = 0;
+      for (int n = 0; n < undos.size(); n++)
+      {
+         UndoableCommand cmd = undos.get(n);
+         if (!commandIds.containsKey(cmd))
+            commandIds.put(cmd, nextCommandId++);
+         record.writeVarint(commandIds.get(cmd));
+         if (!savedSwapCounts.containsKey(cmd) || savedSwapCounts.get(cmd) != cmd.getSwapCount())
+            changedCount++;
+      }
+      record.writeVarint(changedCount);
+      for (int n = 0; n < undos.size(); n++)
+      {
+         UndoableCommand cmd = undos.get(n);
+         if (savedSwapCounts.containsKey(cmd) && savedSwapCounts.get(cmd) == cmd.getSwapCount()) continue;
+         record.writeVarint(commandIds.get(cmd));
+         record.writeVarint(findLayerId(layers, cmd.getTarget()) + 1);
+         record.writeVarint(cmd.getTileCount());
+         TiledRaster target = cmd.getTarget();
+         for (int t = 0; t < cmd.getTileCount(); t++)
+         {
+            int tx = cmd.getTileX(t) / TiledRaster.TILE_SIZE;
+            int ty = cmd.getTileY(t) / TiledRaster.TILE_SIZE;
+            record.writeVarint(ty * target.getTilesAcross() + tx);
+            TileCodec.writeTile(record, cmd.getTilePixels(t, Raster::create), cmd.getTileColor(t));
+         }
+         record.writeVarint(cmd.getVector() == null ? 0 : cmd.getVectorCount() + 1);
+      }
+   }
+
+   /** Id of the layer holding the given tiles, or -1 if the layer isn't in the drawing anymore */
+   static int findLayerId(LayerStack layers, TiledRaster tiles)
+   {
+      for (Layer layer: layers.layers)
+      {
+         if (layer.tiles == tiles) return layer.id;
+      }
+      return -1;
+   }
+
+   /**
+    * Records the current state of the drawing as what was last saved.
+    * Commands that are no longer in the undo history are forgotten.
+    */
+   void rememberSaved(LayerStack layers, UndoStack undos)
+   {
+      savedChangeCounts.clear();
+      savedEntries.clear();
+      savedVectorCounts.clear();
+      for (Layer layer: layers.layers)
+      {
+         savedChangeCounts.put(layer.id, layer.tiles.getChangeCount());
+         if (layer.vector == null) continue;
+         savedEntries.put(layer.id, new ArrayList<>(layer.vector.getEntries()));
+         savedVectorCounts.put(layer.id, layer.vector.getCount());
+      }
+      Map<UndoableCommand, Integer> ids = new IdentityHashMap<>();
+      savedSwapCounts.clear();
+      for (int n = 0; n < undos.size(); n++)
+      {
+         UndoableCommand cmd = undos.get(n);
+         ids.put(cmd, commandIds.get(cmd));
+         savedSwapCounts.put(cmd, cmd.getSwapCount());
+      }
+      commandIds = ids;
+   }
+}
@@ -0,0 +1,54 @@
+package org.programmingbasics.layercanvas;
+
+/**
+ * Measures how long the work done in each animation frame takes, and 
+ * counts the frames that went over a time budget. Frames that take too
+ * long make the browser skip frames, which makes drawing feel laggy.
+ */
+public class FrameTimer
+{
+   /** 
+    * Milliseconds of work allowed per frame. This is less than a 60Hz frame
+    * so that the browser still has time to present the frame.
+    */
+   double budget = 10;
+   
+   int frameCount = 0;
+   int overBudgetCount = 0;
+   double lastFrameTime = 0;
+   double worstFrameTime = 0;
+   
+   double frameStart;
+   
+   public void setBudget(double ms)
+   {
+      budget = ms;
+   }
+   
+   public void startFrame()
+   {
+      frameStart = now();
+   }
+   
+   public void endFrame()
+   {
+      lastFrameTime = now() - frameStart;
+      frameCount++;
+      if (lastFrameTime > budget)
+         overBudgetCount++;
+      if (lastFrameTime > worstFrameTime)
+         worstFrameTime = lastFrameTime;
+   }
+   
+   public void reset()
+   {
+      frameCount = 0;
+      overBudgetCount = 0;
+      lastFrameTime = 0;
+      worstFrameTime = 0;
+   }
+   
+   static native double now() /*-{
+      return $wnd.performance.now();
+   }-*/;
+}
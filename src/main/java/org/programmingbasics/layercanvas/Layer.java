@@ -0,0 +1,42 @@
+package org.programmingbasics.layercanvas;
+
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.VectorLayer;
+
+/**
+ * A single layer of a drawing
+ */
+public class Layer
+{
+   /** 
+    * Pixels of the whole layer. Only the tiles that have been drawn on 
+    * take up memory.
+    */
+   TiledRaster tiles;
+   
+   /** 
+    * Strokes of a vector layer, which its tiles are drawn from, or null
+    * for a layer that is only pixels
+    */
+   VectorLayer vector;
+   
+   /** Identifies the layer in saved drawings, even after layers are moved around */
+   int id;
+   
+   double opacity = 1.0;
+   boolean visible = true;
+   
+   public static Layer create(int width, int height)
+   {
+      Layer layer = new Layer();
+      layer.tiles = new TiledRaster(PixelBuffer::create, width, height);
+      return layer;
+   }
+   
+   /** Opacity as an integer from 0 to 255, or 0 if the layer is hidden */
+   int getAlphaScale()
+   {
+      if (!visible) return 0;
+      return (int)Math.round(opacity * 255);
+   }
+}
@@ -1,7 +1,38 @@
 package org.programmingbasics.layercanvas;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.programmingbasics.layercanvas.io.JournalCodec;
+import org.programmingbasics.layercanvas.io.PngEncoder;
+import org.programmingbasics.layercanvas.raster.BasicBrush;
+import org.programmingbasics.layercanvas.raster.BrushEngine;
+import org.programmingbasics.layercanvas.raster.Compositor;
+import org.programmingbasics.layercanvas.raster.DabMask;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.FloodFill;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.JournalPlayer;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.SquareBrush;
+import org.programmingbasics.layercanvas.raster.StrokeRasterizer;
+import org.programmingbasics.layercanvas.raster.StrokeSimplifier;
+import org.programmingbasics.layercanvas.raster.Symmetry;
+import org.programmingbasics.layercanvas.raster.TileSet;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.ToolSettings;
+import org.programmingbasics.layercanvas.raster.UndoRecorder;
+import org.programmingbasics.layercanvas.raster.UndoStack;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+import org.programmingbasics.layercanvas.raster.VectorLayer;
+import org.programmingbasics.layercanvas.worker.WorkerMessage;
 
 import com.google.gwt.core.client.JavaScriptObject;
 
@@ -19,7 +50,7 @@ import elemental.html.CanvasRenderingContext2D;
 import elemental.html.DivElement;
 import elemental.html.ImageData;
 import elemental.html.ImageElement;
-import elemental.util.SettableInt;
+import elemental.util.ArrayOf;
 import jsinterop.annotations.JsMethod;
 import jsinterop.annotations.JsType;
 
@@ -29,27 +60,142 @@ public class LayerCanvas
    // Div that we hook events to
    DivElement eventDiv;
    
-   // Various canvases that are used for drawing
+   // Canvas that the drawing is shown on
    CanvasElement mainCanvas;
-   CanvasElement brushCanvas;
    CanvasRenderingContext2D mainCtx;
-   CanvasRenderingContext2D brushCtx;
-   ImageData mainData;
-   ImageData brushData;
+   int canvasWidth;
+   int canvasHeight;
+   
+   /** Size of the drawing, which can be bigger than the canvas */
+   int docWidth;
+   int docHeight;
+   
+   /** Position in the drawing of the top-left corner of the canvas */
+   int viewX = 0;
+   int viewY = 0;
+   
+   /** How many canvas pixels each pixel of the drawing is shown as */
+   double zoom = 1.0;
+   static final double MIN_ZOOM = 1.0 / 64;
+   static final double MAX_ZOOM = 32;
+   
+   /** 
+    * Largest area of the drawing (on each side) that can be unpacked into
+    * the window. When zoomed out far enough that more than this is 
+    * visible, the view can only be looked at and not drawn on.
+    */
+   static final int MAX_DRAWABLE_SIZE = 1536;
+   
+   /** Rows of a PNG file made between checks of how long the export has been running */
+   static final int PNG_EXPORT_ROWS = 16;
+   
+   /** Most pixels in a scaled up PNG export, since all of them are held in memory at once */
+   static final double MAX_EXPORT_PIXELS = 1 << 26;
+   
+   /** Milliseconds that a PNG export runs for before letting the page do other things */
+   static final double PNG_EXPORT_SLICE_TIME = 8;
+   
+   /** Whether the view moved or zoomed since it was last shown */
+   boolean isViewChanged = false;
+   
+   /** Shows the drawing on the main canvas at the current zoom */
+   ViewRenderer viewRenderer;
+   
+   /** 
+    * Size of the window, the part of the drawing around the view that is
+    * unpacked from the tiles of the layers (see LayerStack). Drawing tools 
+    * work in the coordinates of the window.
+    */
    int width;
    int height;
 
+   /** Layers of the drawing. The main canvas shows the layers composited together */
+   LayerStack layers;
+
+   /** Pixels of the active layer in the window, which is the part being drawn on */
+   PixelBuffer mainRaster;
+   
+   /** Holds a brush stroke until it is finished and merged into the active layer */
+   ImageData brushData;
+   PixelBuffer brushRaster;
+
+   /** Region of the composite image that needs to be recalculated and uploaded to the main canvas */
+   DirtyRect mainDirty = new DirtyRect();
+
+   /** Region of the brush image data holding the current, not yet finalized, stroke */
+   DirtyRect strokeDirty = new DirtyRect();
+   
+   /** Tiles of the brush image touched by the current stroke. Only these need to be merged when the stroke ends */
+   TileSet strokeTiles;
+   
+   /** Whether a stroke has been started and not yet finished */
+   boolean isStrokeActive = false;
+
    /** Manages the stack of undo commands */
-   UndoStack undos = new UndoStack();
+   UndoStack undos;
+   
+   /** Saves the tiles of the drawing that are about to be changed so 
+    * that an undo command can be made for them afterwards.
+    */
+   UndoRecorder undoRecorder;
+
+   /** Saves the drawing, keeping track of what has changed since it was last saved */
+   DocumentWriter documentWriter;
+   
+   /** 
+    * Records every edit as the input that made it. Undoing past the 
+    * commands that fit in the undo stack's memory budget is done by 
+    * replaying the journal from its nearest checkpoint. The journal has
+    * its own memory budget, past which its oldest edits are dropped.
+    */
+   Journal journal;
+   int journalMemoryBudget = Journal.DEFAULT_MEMORY_BUDGET;
+   JournalPlayer journalPlayer = new JournalPlayer(PixelBuffer::create);
+   
+   /** 
+    * Number of edits since the journal's checkpoint that are applied.
+    * This is negative when the undo stack has gone back past the 
+    * checkpoint.
+    */
+   int historyPosition;
+   
+   /** 
+    * Position in the history of the oldest command that the undo stack 
+    * has held since it was last cleared. The undo stack can only be used
+    * when it is in step with the history (see isUndoStackInSync())
+    */
+   int undoStackStart;
+   
+   /** Edit being recorded for the current stroke */
+   JournalEntry currentEntry;
    
-   /** Keeps a copy of the current drawing when painting ends so that 
-    * an undo can be quickly made if painting is restarted.
+   /** Tool settings of the last edit, which are shared with later edits that use the same settings */
+   ToolSettings lastToolSettings;
+
+   /**
+    * Whether edits are kept as operations for sending to other people
+    * drawing on the same picture, and the edits that haven't been taken yet
     */
-   ImageData mainDataBackupForUndo;
+   boolean isSharingOps = false;
+   List<JournalEntry> outgoingOps = new ArrayList<>();
+
+   /** Edits from other people that are waiting for the current stroke or worker job to finish */
+   List<JournalEntry> incomingOps = new ArrayList<>();
 
    /** For remapping mouse coordinates to canvas coordinates */
    double mouseToCanvasRescale = 1.0;
 
+   /** Whether the current stroke was started where it can't be drawn, so its input is dropped */
+   boolean isIgnoringStroke = false;
+
+   /**
+    * Drops points that don't change the shape of strokes on vector layers,
+    * and whether the current stroke is being simplified (so it is drawn
+    * again from its kept points when it is finished)
+    */
+   StrokeSimplifier strokeSimplifier = new StrokeSimplifier();
+   boolean isSimplifyingStroke = false;
+
    /** Whether the mouse button was depressed on the pattern portion of the canvas */
    boolean isTrackingMouseOnPattern = false;
    
@@ -57,22 +203,108 @@ public class LayerCanvas
    boolean isTrackingTouchOnPattern = false;
    int trackingTouchId = -1;
 
+   /** Whether a pointer (when pointer events are available) is being tracked, plus its id */
+   boolean isTrackingPointerOnPattern = false;
+   int trackingPointerId = -1;
+
    /** Last position of a brush stroke */
    int lastMouseX;
    int lastMouseY;
+   
+   /** Pen pressure at the last position of a brush stroke (1 for devices without pressure) */
+   double lastPressure = 1.0;
+   
+   /** Kinds of entries in the input queue */
+   static final int INPUT_START = 0;
+   static final int INPUT_MOVE = 1;
+   static final int INPUT_END = 2;
+   
+   /** 
+    * Stroke input received since the last animation frame, stored as
+    * (kind, x, y, pressure). Input events only queue positions, and the 
+    * queue is drawn once per frame, so that fast mice and pens don't cause
+    * several uploads of the image per displayed frame. Input is also held 
+    * here while the worker has the active layer.
+    */
+   double[] pendingInput = new double[4 * 32];
+   int pendingInputSize = 0;
+   
+   boolean isFrameRequested = false;
+   Runnable frameCallback = () -> onAnimationFrame();
+   
+   /** Keeps track of how long it takes to draw each frame */
+   FrameTimer frameTimer = new FrameTimer();
+
+   /** Timings and counts of the work done, for reporting how well drawing performs (see getStats()) */
+   Metrics metrics = new Metrics();
+   Metrics.Timing frameTiming = metrics.timing("frame");
+   Metrics.Timing strokeTiming = metrics.timing("brushStroke");
+   Metrics.Timing finishStrokeTiming = metrics.timing("finishStroke");
+   Metrics.Timing floodFillTiming = metrics.timing("floodFill");
+   Metrics.Timing workerJobTiming = metrics.timing("workerJob");
+   Metrics.Timing undoCaptureTiming = metrics.timing("undoCapture");
+   Metrics.Timing compositeTiming = metrics.timing("composite");
+   Metrics.Counter pixelsTouched = metrics.counter("pixelsTouched");
+   Metrics.Counter undoBytes = metrics.counter("undoBytes");
+
+   /** When the job that the worker is doing was started (for metrics) */
+   double workerJobStart = -1;
 
    /** Size of brush */
    int brushSize = 5;
+   
+   /** Shape of the brush used in paint mode and how it responds to pressure */
+   BasicBrush brush = new RoundBrush();
+   
+   /** Draws strokes with soft or pressure-sensitive brushes */
+   BrushEngine brushEngine = new BrushEngine();
+   
+   /** Area changed by the latest part of a brush stroke */
+   DirtyRect segmentDirty = new DirtyRect();
+   
+   /** With symmetry, each part of a stroke is drawn here once and then copied */
+   DabMask dabMask = new DabMask(PixelBuffer::create);
+   DirtyRect copyDirty = new DirtyRect();
+   
+   /** Works out the area covered by brush strokes */
+   StrokeRasterizer strokeRasterizer = new StrokeRasterizer();
 
    /** When doing a flood fill, specifies the color to replace, and the color to fill */
    int floodFillEmptyColor = 0;
    int floodFillFillColor = 255;
    
+   /** When non-negative, flood fill replaces pixels whose RGBA channels are all
+    * within this distance of the pixel that was clicked on instead of only 
+    * looking at whether the alpha matches the empty color
+    */
+   int floodFillTolerance = -1;
+   
+   /** Whether flood fill spreads to diagonally adjacent pixels */
+   boolean floodFillEightConnected = false;
+   
+   FloodFill floodFill;
+   
+   /** Runs flood fills, clears, and image loads off the page when set */
+   RasterWorker rasterWorker;
+   
+   /** Operations requested while the worker had the active layer, to be run once it is done */
+   List<Runnable> afterWorker = new ArrayList<>();
+   
+   /** Callbacks waiting for the worker to finish everything */
+   List<JavaScriptObject> idleCallbacks = new ArrayList<>();
+   
+   /** Whether the layers changed while the worker was busy, so everything must be redrawn afterwards */
+   boolean isFullRedrawPending = false;
+   
    /** Should the image be horizontally mirrored */
    boolean mirrorMode = false;
    
-   /** Info about image to stamp */
-   CanvasElement imageStamp;
+   /** Number of copies of strokes and fills rotated around the middle of the drawing (1 for none) */
+   int symmetryRotations = 1;
+   
+   /** Image to stamp, and recently used stamps */
+   StampCache.Stamp stamp;
+   StampCache stampCache = new StampCache();
    
    static enum ToolMode {
       PAINT, ERASER, IMAGESTAMP, FLOODFILL
@@ -82,17 +314,146 @@ public class LayerCanvas
    public void go()
    {
       mainCtx = (CanvasRenderingContext2D)mainCanvas.getContext("2d");
-      brushCtx = (CanvasRenderingContext2D)brushCanvas.getContext("2d");
-      width = mainCanvas.getWidth();
-      height = mainCanvas.getHeight();
-      mainData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-      brushData = brushCtx.getImageData(0, 0, brushCanvas.getWidth(), brushCanvas.getHeight());
-      mainDataBackupForUndo = backupMainForUndo();
+      canvasWidth = mainCanvas.getWidth();
+      canvasHeight = mainCanvas.getHeight();
+      docWidth = canvasWidth;
+      docHeight = canvasHeight;
+      brushEngine.setBrush(brush);
+      viewRenderer = new ViewRenderer(mainCanvas, mainCtx, metrics);
+      createDocument();
       hookEvents();
    }
    
+   /** Sets up an empty drawing of size docWidth by docHeight, showing its top-left corner */
+   void createDocument()
+   {
+      LayerStack newLayers = new LayerStack(docWidth, docHeight);
+      newLayers.layers.add(newLayers.createLayer());
+      showDocument(newLayers, new UndoStack(PixelBuffer::create), new DocumentWriter(), null);
+   }
+   
+   /** 
+    * Replaces the drawing with a different one, showing its top-left 
+    * corner. The drawing is the result of all the edits in the journal,
+    * or a new journal is started if there isn't one.
+    */
+   void showDocument(LayerStack newLayers, UndoStack newUndos, DocumentWriter writer, Journal newJournal)
+   {
+      zoom = 1.0;
+      layers = newLayers;
+      docWidth = layers.width;
+      docHeight = layers.height;
+      undos = newUndos;
+      documentWriter = writer;
+      currentEntry = null;
+      if (newJournal == null)
+      {
+         historyPosition = 0;
+         restartJournal();
+      }
+      else
+      {
+         journal = newJournal;
+         journal.setMemoryBudget(journalMemoryBudget);
+         historyPosition = journal.size();
+      }
+      undoStackStart = historyPosition - undos.getDiscardedCount() - undos.getPosition();
+      // The drawing might not cover the whole canvas
+      mainCtx.clearRect(0, 0, canvasWidth, canvasHeight);
+      pendingInputSize = 0;
+      isStrokeActive = false;
+      isIgnoringStroke = false;
+      isSimplifyingStroke = false;
+      resizeWindow();
+      setView(0, 0, true);
+   }
+   
+   /** 
+    * Makes the window big enough to cover everything visible at the 
+    * current zoom (up to MAX_DRAWABLE_SIZE). Everything in the window must
+    * already be stored in the layers. Returns true if the window was 
+    * replaced, in which case it needs to be reloaded.
+    */
+   boolean resizeWindow()
+   {
+      int viewWidth = Math.min(getVisibleWidth(), Math.max(canvasWidth, MAX_DRAWABLE_SIZE));
+      int viewHeight = Math.min(getVisibleHeight(), Math.max(canvasHeight, MAX_DRAWABLE_SIZE));
+      if (!layers.resizeWindow(mainCtx, viewWidth, viewHeight)) return false;
+      width = layers.windowWidth;
+      height = layers.windowHeight;
+      mainRaster = layers.activeRaster;
+      brushData = mainCtx.createImageData(width, height);
+      brushRaster = PixelBuffer.wrap(brushData);
+      strokeTiles = new TileSet(width, height);
+      undoRecorder = new UndoRecorder(PixelBuffer::create, width, height);
+      floodFill = null;
+      strokeDirty.clear();
+      brushEngine.reset();
+      return true;
+   }
+   
+   /** Size of the area of the drawing that fits on the canvas at the current zoom */
+   int getVisibleWidth()
+   {
+      return (int)Math.ceil(canvasWidth / zoom);
+   }
+   
+   int getVisibleHeight()
+   {
+      return (int)Math.ceil(canvasHeight / zoom);
+   }
+   
+   /** Whether the window can cover everything visible at the current zoom, so that it can be drawn on */
+   boolean canDrawAtZoom()
+   {
+      return getVisibleWidth() <= Math.max(canvasWidth, MAX_DRAWABLE_SIZE) 
+            && getVisibleHeight() <= Math.max(canvasHeight, MAX_DRAWABLE_SIZE);
+   }
+   
+   /** Whether everything visible when the view is at (x, y) is inside the window */
+   boolean isViewInWindow(int x, int y)
+   {
+      return layers.isInWindow(x, y, Math.min(x + getVisibleWidth(), docWidth) - 1, Math.min(y + getVisibleHeight(), docHeight) - 1);
+   }
+   
+   /** 
+    * Moves the view, keeping it inside the drawing. The window follows the
+    * view when it is able to cover it, or it can be forced to reload after
+    * it has been resized.
+    */
+   void setView(int x, int y, boolean isWindowStale)
+   {
+      int newX = Math.max(0, Math.min(x, docWidth - getVisibleWidth()));
+      int newY = Math.max(0, Math.min(y, docHeight - getVisibleHeight()));
+      boolean isWindowMoving = canDrawAtZoom() && !isViewInWindow(newX, newY);
+      if (isWindowMoving && !isWindowStale)
+      {
+         // Everything in the window has to be stored in the layers before it can move
+         finalizeBrushStroke();
+         if (deferWhileWorking(() -> setView(newX, newY, false))) return;
+      }
+      viewX = newX;
+      viewY = newY;
+      if (isWindowMoving || isWindowStale)
+      {
+         layers.moveWindow(viewX, viewY);
+         layers.reloadWindow();
+         mainDirty.add(0, 0, width - 1, height - 1);
+      }
+      isViewChanged = true;
+      draw();
+   }
+   
    void hookEvents()
    {
+     // Pointer events cover mice, pens, and touches, and they report pen 
+     // pressure, so mouse and touch events are only used as a fallback
+     if (hasPointerEvents())
+     {
+       hookPointerEvents();
+       return;
+     }
+     
      // Hook mouse events
      eventDiv.addEventListener(Event.MOUSEDOWN, (e) -> {
        MouseEvent evt = (MouseEvent)e;
@@ -110,10 +471,7 @@ public class LayerCanvas
 //         isMouseTurnOn = !data.rows[row].data[col]; 
 //         data.rows[row].data[col] = isMouseTurnOn;
          isTrackingMouseOnPattern = true;
-         lastMouseX = mouseX;
-         lastMouseY = mouseY;
-         handleBrushStroke(mouseX, mouseY);
-         draw();
+         startStroke(mouseX, mouseY, 1.0);
 //         draw();
        }
      }, false);
@@ -124,16 +482,14 @@ public class LayerCanvas
        if (!isTrackingMouseOnPattern) return;
        int mouseX = (int)(evt.getOffsetX() * mouseToCanvasRescale);
        int mouseY = (int)(evt.getOffsetY() * mouseToCanvasRescale);
-       handleBrushStroke(mouseX, mouseY);
-       draw();
+       queueStrokePoint(mouseX, mouseY, 1.0);
      }, false);
      eventDiv.addEventListener(Event.MOUSEUP, (e) -> {
        MouseEvent evt = (MouseEvent)e;
        evt.preventDefault();
        evt.stopPropagation();
        isTrackingMouseOnPattern = false;
-       finalizeBrushStroke();
-       draw();
+       endStroke();
      }, false);
      
      // Hook touch events
@@ -156,10 +512,7 @@ public class LayerCanvas
          // If there are multiple touches, just reset to follow the latest one
          isTrackingTouchOnPattern = true;
          trackingTouchId = touch.getIdentifier();
-         lastMouseX = mouseX;
-         lastMouseY = mouseY;
-         handleBrushStroke(mouseX, mouseY);
-         draw();
+         startStroke(mouseX, mouseY, 1.0);
          evt.preventDefault();
          evt.stopPropagation();
        }
@@ -171,8 +524,7 @@ public class LayerCanvas
        if (touch == null) return;
        int mouseX = (int)(pageXRelativeToEl(touch.getPageX(), eventDiv) * mouseToCanvasRescale);
        int mouseY = (int)(pageYRelativeToEl(touch.getPageY(), eventDiv) * mouseToCanvasRescale);
-       handleBrushStroke(mouseX, mouseY);
-       draw();
+       queueStrokePoint(mouseX, mouseY, 1.0);
        evt.preventDefault();
        evt.stopPropagation();
      }, false);
@@ -183,10 +535,9 @@ public class LayerCanvas
        if (touch == null) return;
        int mouseX = (int)(pageXRelativeToEl(touch.getPageX(), eventDiv) * mouseToCanvasRescale);
        int mouseY = (int)(pageYRelativeToEl(touch.getPageY(), eventDiv) * mouseToCanvasRescale);
-       handleBrushStroke(mouseX, mouseY);
+       queueStrokePoint(mouseX, mouseY, 1.0);
        isTrackingTouchOnPattern = false;
-       finalizeBrushStroke();
-       draw();
+       endStroke();
        evt.preventDefault();
        evt.stopPropagation();
      }, false);
@@ -195,12 +546,203 @@ public class LayerCanvas
        evt.preventDefault();
        evt.stopPropagation();
        isTrackingTouchOnPattern = false;
-       finalizeBrushStroke();
-       draw();
+       endStroke();
      }, false);
 //     eventDiv.addEventListener(Event.DRAGSTART, (e) -> { e.preventDefault(); }, false);
    }
    
+   void hookPointerEvents()
+   {
+     // Stop the browser from scrolling or zooming when touching the canvas
+     eventDiv.getStyle().setProperty("touch-action", "none");
+     eventDiv.addEventListener("pointerdown", (e) -> {
+       MouseEvent evt = (MouseEvent)e;
+       if (isTrackingPointerOnPattern) return;
+       int mouseX = (int)(evt.getOffsetX() * mouseToCanvasRescale);
+       int mouseY = (int)(evt.getOffsetY() * mouseToCanvasRescale);
+       if (isValidStrokeStart(mouseX, mouseY))
+       {
+         evt.preventDefault();
+         evt.stopPropagation();
+         isTrackingPointerOnPattern = true;
+         trackingPointerId = getPointerId(evt);
+         setPointerCapture(eventDiv, trackingPointerId);
+         startStroke(mouseX, mouseY, getPointerPressure(evt));
+       }
+     }, false);
+     eventDiv.addEventListener("pointermove", (e) -> {
+       MouseEvent evt = (MouseEvent)e;
+       if (!isTrackingPointerOnPattern || getPointerId(evt) != trackingPointerId) return;
+       evt.preventDefault();
+       evt.stopPropagation();
+       // Pens and high-rate mice can move several times per event, and 
+       // the browser keeps the in-between positions in coalesced events
+       ArrayOf<MouseEvent> moves = getCoalescedEvents(evt);
+       for (int n = 0; n < moves.length(); n++)
+       {
+         MouseEvent move = moves.get(n);
+         int mouseX = (int)(move.getOffsetX() * mouseToCanvasRescale);
+         int mouseY = (int)(move.getOffsetY() * mouseToCanvasRescale);
+         queueStrokePoint(mouseX, mouseY, getPointerPressure(move));
+       }
+     }, false);
+     EventListener endListener = (e) -> {
+       MouseEvent evt = (MouseEvent)e;
+       if (!isTrackingPointerOnPattern || getPointerId(evt) != trackingPointerId) return;
+       evt.preventDefault();
+       evt.stopPropagation();
+       isTrackingPointerOnPattern = false;
+       endStroke();
+     };
+     eventDiv.addEventListener("pointerup", endListener, false);
+     eventDiv.addEventListener("pointercancel", endListener, false);
+   }
+   
+   private static native boolean hasPointerEvents() /*-{
+     return !!$wnd.PointerEvent;
+   }-*/;
+   
+   /** Returns the moves merged into a pointer event, oldest first, or just the event itself */
+   private static native ArrayOf<MouseEvent> getCoalescedEvents(Event evt) /*-{
+     if (evt.getCoalescedEvents)
+     {
+       var events = evt.getCoalescedEvents();
+       if (events.length > 0) return events;
+     }
+     return [evt];
+   }-*/;
+   
+   private static native int getPointerId(Event evt) /*-{
+     return evt.pointerId;
+   }-*/;
+   
+   /** Mice and most touch screens don't sense pressure, so only pen pressure is used */
+   private static native double getPointerPressure(Event evt) /*-{
+     if (evt.pointerType != "pen") return 1.0;
+     return evt.pressure;
+   }-*/;
+   
+   private static native void setPointerCapture(Element el, int pointerId) /*-{
+     if (el.setPointerCapture) el.setPointerCapture(pointerId);
+   }-*/;
+   
+   /** Positions are given in canvas coordinates, but they are queued in drawing coordinates */
+   void startStroke(int x, int y, double pressure)
+   {
+      // Drawing is only possible where the window covers the view, and
+      // with the tools that the active layer can keep
+      isIgnoringStroke = !canDrawAtZoom() || !isToolUsableOnActiveLayer();
+      if (isIgnoringStroke) return;
+      queueInput(INPUT_START, toDocumentX(x), toDocumentY(y), pressure);
+   }
+   
+   void queueStrokePoint(int x, int y, double pressure)
+   {
+      if (isIgnoringStroke) return;
+      queueInput(INPUT_MOVE, toDocumentX(x), toDocumentY(y), pressure);
+   }
+   
+   /** Vector layers can only be painted on or erased */
+   boolean isToolUsableOnActiveLayer()
+   {
+      return layers.getActive().vector == null || tool == ToolMode.PAINT || tool == ToolMode.ERASER;
+   }
+   
+   int toDocumentX(int canvasX)
+   {
+      return viewX + (int)Math.floor(canvasX / zoom);
+   }
+   
+   int toDocumentY(int canvasY)
+   {
+      return viewY + (int)Math.floor(canvasY / zoom);
+   }
+   
+   /** Finishes the stroke right away instead of waiting for the next frame */
+   void endStroke()
+   {
+      if (isIgnoringStroke)
+      {
+         isIgnoringStroke = false;
+         return;
+      }
+      queueInput(INPUT_END, 0, 0, 0);
+      flushPendingInput();
+      draw();
+   }
+   
+   void queueInput(int kind, int x, int y, double pressure)
+   {
+      if (pendingInputSize + 4 > pendingInput.length)
+      {
+         double[] newInput = new double[pendingInput.length * 2];
+         for (int n = 0; n < pendingInputSize; n++)
+            newInput[n] = pendingInput[n];
+         pendingInput = newInput;
+      }
+      pendingInput[pendingInputSize] = kind;
+      pendingInput[pendingInputSize + 1] = x;
+      pendingInput[pendingInputSize + 2] = y;
+      pendingInput[pendingInputSize + 3] = pressure;
+      pendingInputSize += 4;
+      if (!isFrameRequested)
+      {
+         isFrameRequested = true;
+         requestAnimationFrame(frameCallback);
+      }
+   }
+   
+   /** 
+    * Draws the stroke input that has been queued up. If finishing a stroke
+    * hands the active layer to the worker, the rest of the input stays 
+    * queued until the worker is done.
+    */
+   void flushPendingInput()
+   {
+      int n = 0;
+      for (; n < pendingInputSize && !isWaitingForWorker(); n += 4)
+      {
+         int kind = (int)pendingInput[n];
+         int x = (int)pendingInput[n + 1] - layers.originX;
+         int y = (int)pendingInput[n + 2] - layers.originY;
+         double pressure = pendingInput[n + 3];
+         if (kind == INPUT_START)
+         {
+            isStrokeActive = true;
+            lastMouseX = x;
+            lastMouseY = y;
+            lastPressure = pressure;
+         }
+         if (kind == INPUT_END)
+            finishStroke();
+         else
+            handleBrushStroke(x, y, pressure);
+      }
+      for (int i = n; i < pendingInputSize; i++)
+         pendingInput[i - n] = pendingInput[i];
+      pendingInputSize -= n;
+   }
+   
+   void onAnimationFrame()
+   {
+      isFrameRequested = false;
+      // The stroke may already have been drawn when it was finished
+      if (pendingInputSize == 0 && mainDirty.isEmpty()) return;
+      if (isWaitingForWorker()) return;
+      double start = metrics.start();
+      frameTimer.startFrame();
+      flushPendingInput();
+      draw();
+      frameTimer.endFrame();
+      frameTiming.stop(start);
+   }
+   
+   private static native void requestAnimationFrame(Runnable callback) /*-{
+     $wnd.requestAnimationFrame(function(time) {
+       callback.@java.lang.Runnable::run()();
+     });
+   }-*/;
+   
    private boolean isValidStrokeStart(int mouseX, int mouseY)
    {
       return true;
@@ -216,24 +758,25 @@ public class LayerCanvas
      return null;
    }
 
-   void handleBrushStroke(int mouseX, int mouseY)
+   void handleBrushStroke(int mouseX, int mouseY, double pressure)
    {
-      int dx = mouseX - lastMouseX;
-      int dy = mouseY - lastMouseY;
-      
-      if (tool == ToolMode.ERASER || tool == ToolMode.PAINT)
+      double start = metrics.start();
+      if (currentEntry == null)
+         startJournalEntry();
+      if (tool == ToolMode.PAINT || tool == ToolMode.ERASER)
       {
-         int len = (int)Math.ceil(Math.sqrt(dx * dx + dy * dy));
-         double increment = 1.0 / len;
-         for (double alpha = 0; alpha <= 1; alpha += increment)
+         // The last point is only added if this starts a new entry
+         if (isSimplifyingStroke)
          {
-            int x = (int)(mouseX * alpha + lastMouseX * (1 - alpha));
-            int y = (int)(mouseY * alpha + lastMouseY * (1 - alpha));
-            
-            drawBrushPoint(x, y);
-            if (mirrorMode)
-               drawBrushPoint(width -x, y);
+            strokeSimplifier.addPoint(lastMouseX + layers.originX, lastMouseY + layers.originY, lastPressure);
+            strokeSimplifier.addPoint(mouseX + layers.originX, mouseY + layers.originY, pressure);
          }
+         else
+         {
+            currentEntry.addPoint(lastMouseX + layers.originX, lastMouseY + layers.originY, lastPressure);
+            currentEntry.addPoint(mouseX + layers.originX, mouseY + layers.originY, pressure);
+         }
+         drawStrokeSegment(lastMouseX, lastMouseY, lastPressure, mouseX, mouseY, pressure);
       }
       else if (tool == ToolMode.IMAGESTAMP)
       {
@@ -246,62 +789,92 @@ public class LayerCanvas
       
       lastMouseX = mouseX;
       lastMouseY = mouseY;
+      lastPressure = pressure;
+      strokeTiming.stop(start);
+   }
+   
+   /** Starts recording the edit made by a stroke of the current tool, which is limited to the window */
+   void startJournalEntry()
+   {
+      int kind = JournalEntry.STROKE;
+      if (tool == ToolMode.IMAGESTAMP)
+         kind = JournalEntry.STAMP;
+      else if (tool == ToolMode.FLOODFILL)
+         kind = JournalEntry.FLOOD_FILL;
+      currentEntry = JournalEntry.create(kind, layers.getActive().id, getToolSettings());
+      currentEntry.setClip(layers.originX, layers.originY, width, height);
+      // Strokes on vector layers only keep the points that matter. Erasing
+      // isn't simplified, since it can't be drawn again once it's finished
+      isSimplifyingStroke = kind == JournalEntry.STROKE && tool == ToolMode.PAINT && layers.getActive().vector != null;
+      if (isSimplifyingStroke)
+         strokeSimplifier.start(currentEntry);
+   }
+   
+   /** Makes a record of the current tool settings, reusing the last one if nothing changed */
+   ToolSettings getToolSettings()
+   {
+      ToolSettings settings = new ToolSettings();
+      if (tool == ToolMode.ERASER)
+         settings.tool = ToolSettings.ERASER;
+      else if (tool == ToolMode.IMAGESTAMP)
+         settings.tool = ToolSettings.STAMP;
+      else if (tool == ToolMode.FLOODFILL)
+         settings.tool = ToolSettings.FLOOD_FILL;
+      else
+         settings.tool = ToolSettings.PAINT;
+      settings.brushSize = brushSize;
+      settings.brush = brush;
+      settings.mirror = mirrorMode;
+      settings.mirrorWidth = docWidth;
+      settings.rotations = symmetryRotations;
+      settings.mirrorHeight = docHeight;
+      settings.floodFillEmptyColor = floodFillEmptyColor;
+      settings.floodFillFillColor = floodFillFillColor;
+      settings.floodFillTolerance = floodFillTolerance;
+      settings.floodFillEightConnected = floodFillEightConnected;
+      if (tool == ToolMode.IMAGESTAMP)
+         settings.stamp = stamp.pixels;
+      if (lastToolSettings != null && lastToolSettings.isSame(settings))
+         return lastToolSettings;
+      // The brush can be changed later, so the record needs its own copy
+      settings.brush = brush.copy();
+      lastToolSettings = settings;
+      return settings;
    }
    
    void drawBrushPoint(int px, int py)
    {
-      int brushRadius = brushSize;
-      if (tool == ToolMode.PAINT) 
-      {
-         SettableInt data = (SettableInt)brushData.getData();
-         for (int y = - brushRadius; y <= brushRadius; y++)
-         {
-            int canvasY = y + py;
-            if (canvasY < 0 || canvasY >= height) continue;
-            int rightX = (int)Math.sqrt(brushRadius * brushRadius - y * y);
-            int leftX = px-rightX;
-            rightX = px + rightX;
-            if (leftX < 0) leftX = 0;
-            if (leftX >= width) continue;
-            if (rightX >= width) rightX = width - 1;
-            if (rightX < 0) continue;
-            for (int idx = (canvasY * width + leftX) * 4; idx <= (canvasY * width + rightX) * 4; idx+= 4)
-            {
-               data.setAt(idx, 0);
-               data.setAt(idx+1, 0);
-               data.setAt(idx+2, 0);
-               data.setAt(idx+3, 255);
-            }
-         }
-      } 
-      else if (tool == ToolMode.ERASER)
+      if (tool == ToolMode.PAINT || tool == ToolMode.ERASER)
       {
-         SettableInt data = (SettableInt)mainData.getData();
-         for (int y = - brushRadius; y <= brushRadius; y++)
-         {
-            int canvasY = y + py;
-            if (canvasY < 0 || canvasY >= height) continue;
-            int rightX = (int)Math.sqrt(brushRadius * brushRadius - y * y);
-            int leftX = px-rightX;
-            rightX = px + rightX;
-            if (leftX < 0) leftX = 0;
-            if (leftX >= width) continue;
-            if (rightX >= width) rightX = width - 1;
-            if (rightX < 0) continue;
-            for (int idx = (canvasY * width + leftX) * 4; idx <= (canvasY * width + rightX) * 4; idx+= 4)
-            {
-               data.setAt(idx, 0);
-               data.setAt(idx+1, 0);
-               data.setAt(idx+2, 0);
-               data.setAt(idx+3, 0);
-            }
-         }
+         drawBrushSegment(px, py, px, py);
       }
       else if (tool == ToolMode.IMAGESTAMP)
       {
-         brushCtx.clearRect(0, 0, width, height);
-         brushCtx.drawImage(imageStamp, px - imageStamp.getWidth() / 2, py - imageStamp.getHeight() / 2);
-         brushData = brushCtx.getImageData(0, 0, brushCanvas.getWidth(), brushCanvas.getHeight());
+         // Remove the stamp from its previous position
+         if (!strokeDirty.isEmpty())
+         {
+            brushRaster.fillRect(strokeDirty, 0);
+            mainDirty.add(strokeDirty);
+            strokeDirty.clear();
+         }
+         // Copy the part of the stamp inside the window into the brush image
+         Raster stampPixels = stamp.pixels;
+         int stampX = px - stamp.centerX;
+         int stampY = py - stamp.centerY;
+         int x0 = Math.max(stampX, 0);
+         int y0 = Math.max(stampY, 0);
+         int x1 = Math.min(stampX + stampPixels.width, width) - 1;
+         int y1 = Math.min(stampY + stampPixels.height, height) - 1;
+         // Only the last position of the stamp ends up being drawn
+         currentEntry.pointCount = 0;
+         if (x0 > x1 || y0 > y1) return;
+         currentEntry.addPoint(stampX + layers.originX, stampY + layers.originY, 1.0);
+         currentEntry.setClip(x0 + layers.originX, y0 + layers.originY, x1 - x0 + 1, y1 - y0 + 1);
+         brushRaster.copyRect(stampPixels, x0 - stampX, y0 - stampY, x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+         segmentDirty.clear();
+         segmentDirty.add(x0, y0, x1, y1);
+         addToStroke(segmentDirty);
+         mainDirty.add(x0, y0, x1, y1);
       }
       else if (tool == ToolMode.FLOODFILL)
       {
@@ -309,185 +882,542 @@ public class LayerCanvas
       }
    }
    
-   void finalizeBrushStroke()
+   /** Paints or erases the part of a stroke between two points of the window */
+   void drawStrokeSegment(int x0, int y0, double pressure0, int x1, int y1, double pressure1)
    {
-      if (tool == ToolMode.FLOODFILL)
+      if (currentEntry.settings.getSymmetry().hasCopies())
       {
-         // Flood fill is only activated on mouse up
-         doFloodFill(lastMouseX, lastMouseY);
-         if (mirrorMode)
-            doFloodFill(width - lastMouseX, lastMouseY);
+         drawSymmetricSegment(currentEntry.settings, x0, y0, pressure0, x1, y1, pressure1);
       }
-      SettableInt mainRawData = (SettableInt)mainData.getData();
-      SettableInt brushRawData = (SettableInt)brushData.getData();
-      for (int n = 0; n < width * height * 4; n += 4) {
-         if (brushRawData.intAt(n + 3) > 0)
-         {
-            mainRawData.setAt(n, brushRawData.intAt(n));
-            mainRawData.setAt(n+1, brushRawData.intAt(n+1));
-            mainRawData.setAt(n+2, brushRawData.intAt(n+2));
-            mainRawData.setAt(n+3, brushRawData.intAt(n+3));
-         }
-         brushRawData.setAt(n, 0);
-         brushRawData.setAt(n+1, 0);
-         brushRawData.setAt(n+2, 0);
-         brushRawData.setAt(n+3, 0);
+      else if (tool == ToolMode.PAINT && !brush.isHardCircle())
+      {
+         segmentDirty.clear();
+         brushEngine.strokeTo(brushRaster, segmentDirty, brushSize, x0, y0, pressure0, x1, y1, pressure1);
+         addToStroke(segmentDirty);
+         mainDirty.add(segmentDirty);
+      }
+      else
+      {
+         drawBrushSegment(x0, y0, x1, y1);
       }
-      createUndoFromMainData();
-      mainCtx.putImageData(mainData, 0, 0);
-      brushCtx.putImageData(brushData, 0, 0);
-   }
-
-   void draw()
-   {
-      if (tool == ToolMode.PAINT || tool == ToolMode.IMAGESTAMP)
-         brushCtx.putImageData(brushData, 0, 0);
-      else if (tool == ToolMode.ERASER)
-         mainCtx.putImageData(mainData, 0, 0);
-   }
-
-   void createUndoFromMainData()
-   {
-      ImageData before = mainDataBackupForUndo;
-      ImageData after = backupMainForUndo();
-      UndoableCommand cmd = UndoableCommand.create(before, after);
-      undos.push(cmd);
-      mainDataBackupForUndo = after;
    }
    
-   ImageData backupMainForUndo()
+   /**
+    * Draws a simplified stroke again from the points that were kept, so
+    * that what is merged into the layer is exactly what playing the stroke
+    * back draws (e.g. when the layer is drawn at a bigger size)
+    */
+   void redrawSimplifiedStroke()
    {
-      ImageData backupData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-      copyImageData(mainData, backupData);
-      return backupData;
+      JournalEntry entry = currentEntry;
+      strokeSimplifier.finish();
+      isSimplifyingStroke = false;
+      if (!strokeDirty.isEmpty())
+      {
+         brushRaster.fillRect(strokeDirty, 0);
+         mainDirty.add(strokeDirty);
+         strokeDirty.clear();
+      }
+      brushEngine.reset();
+      int originX = layers.originX;
+      int originY = layers.originY;
+      // Like when the stroke started, the first point is a segment from
+      // itself to itself
+      for (int n = 0; n < entry.pointCount; n++)
+      {
+         int prev = Math.max(n - 1, 0);
+         drawStrokeSegment(entry.getX(prev) - originX, entry.getY(prev) - originY, entry.getPressure(prev),
+               entry.getX(n) - originX, entry.getY(n) - originY, entry.getPressure(n));
+      }
    }
    
-   void copyImageData(ImageData fromData, ImageData toData)
+   /** Paints or erases the area covered by the brush moving in a straight line */
+   void drawBrushSegment(int x0, int y0, int x1, int y1)
    {
-      SettableInt fromRawData = (SettableInt)fromData.getData();
-      SettableInt toRawData = (SettableInt)toData.getData();
-      for (int n = fromData.getData().getByteLength() - 1; n >= 0; n--)
+      strokeRasterizer.capsule(x0, y0, x1, y1, brushSize);
+      segmentDirty.clear();
+      if (tool == ToolMode.ERASER)
+      {
+         strokeRasterizer.addBounds(segmentDirty);
+         undoRecorder.capture(mainRaster, segmentDirty);
+         segmentDirty.clear();
+         strokeRasterizer.fill(mainRaster, 0, segmentDirty);
+         pixelsTouched.addArea(segmentDirty);
+      }
+      else
       {
-         toRawData.setAt(n, fromRawData.intAt(n));
+         strokeRasterizer.fill(brushRaster, Pixels.pack(0, 0, 0, 255), segmentDirty);
+         addToStroke(segmentDirty);
       }
+      mainDirty.add(segmentDirty);
    }
    
-   void doFloodFill(int mouseX, int mouseY)
+   /** 
+    * Draws the part of a stroke between two points of the window once into
+    * the dab mask, and then copies it to where each of its symmetric copies
+    * goes. Copies are only drawn where they land inside the window.
+    */
+   void drawSymmetricSegment(ToolSettings settings, int x0, int y0, double pressure0, int x1, int y1, double pressure1)
    {
-      // Tracks spans of pixels that need to be checked to see if they can 
-      // be filled with color
-      class Span
+      Symmetry symmetry = settings.getSymmetry();
+      int originX = layers.originX;
+      int originY = layers.originY;
+      dabMask.drawSegment(settings, brushEngine, strokeRasterizer, x0 + originX, y0 + originY, pressure0, x1 + originX, y1 + originY, pressure1);
+      for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
       {
-         Span(int startX, int endX, int y) { this.startX = startX; this.endX = endX; this.y = y; }
-         int y;
-         int startX, endX;
-      }
-      // Spans that will have to be examined
-      List<Span> workList = new ArrayList<>();
-      workList.add(new Span(mouseX, mouseX, mouseY));
-      
-      // Repeatedly get a span, fill it in where possible, and look
-      // to create more spans to be examined later. This particular 
-      // algorithm isn't super-optimized, and may look at each pixel at
-      // least 2-3 times
-      while (!workList.isEmpty())
-      {
-         Span span = workList.remove(workList.size() - 1);
-         if (span.y < 0 || span.y >= height)
-            continue;
-         
-         // Check for extensions horizontally to the left
-         if (floodFillNeedFill(span.startX, span.y))
-         {
-            if (span.startX > 0 && floodFillNeedFill(span.startX - 1, span.y))
-            {
-               Span newSpan = new Span(span.startX - 1, span.startX - 1, span.y);
-               workList.add(newSpan);
-               for (int x = span.startX - 2; x >= 0; x--)
-               {
-                  if (!floodFillNeedFill(x, span.y))
-                     break;
-                  newSpan.startX = x;
-               }
-            }
-         }
-
-         // Check for extensions horizontally to the right
-         if (floodFillNeedFill(span.endX, span.y))
+         segmentDirty.clear();
+         if (tool == ToolMode.ERASER)
          {
-            if (span.endX < width - 1 && floodFillNeedFill(span.endX + 1, span.y))
-            {
-               Span newSpan = new Span(span.endX + 1, span.endX + 1, span.y);
-               workList.add(newSpan);
-               for (int x = span.endX + 2; x < width; x++)
-               {
-                  if (!floodFillNeedFill(x, span.y))
-                     break;
-                  newSpan.endX = x;
-               }
-            }
+            symmetry.getCopyBounds(copy, dabMask, mainRaster, originX, originY, copyDirty);
+            if (copyDirty.isEmpty()) continue;
+            undoRecorder.capture(mainRaster, copyDirty);
+            symmetry.eraseCopy(copy, dabMask, mainRaster, originX, originY, segmentDirty);
+            pixelsTouched.addArea(segmentDirty);
          }
-
-         // Extend span vertically, and actually fill in the span
-         Span aboveSpan = null;
-         Span belowSpan = null;
-         for (int x = span.startX; x <= span.endX; x++)
+         else
          {
-            if (floodFillDoFill(x, span.y))
-            {
-               // Extend span above
-               if (aboveSpan == null || aboveSpan.endX != x - 1)
-               {
-                  aboveSpan = new Span(x, x, span.y - 1);
-                  workList.add(aboveSpan);
-               }
-               aboveSpan.endX = x;
-               // Extend span below
-               if (belowSpan == null || belowSpan.endX != x - 1)
-               {
-                  belowSpan = new Span(x, x, span.y + 1);
-                  workList.add(belowSpan);
-               }
-               belowSpan.endX = x;
-            }
+            symmetry.drawCopy(copy, dabMask, brushRaster, originX, originY, segmentDirty);
+            addToStroke(segmentDirty);
          }
-         // Go left
-         // Go right
+         mainDirty.add(segmentDirty);
       }
    }
-
-   // Returns true if a pixel was set at the given location 
-   private boolean floodFillDoFill(int x, int y)
+   
+   /** Records that an area of the brush image has been drawn on by the current stroke */
+   void addToStroke(DirtyRect rect)
+   {
+      strokeDirty.add(rect);
+      strokeTiles.add(rect);
+      pixelsTouched.addArea(rect);
+   }
+   
+   /** Finishes any stroke in progress (e.g. before exporting an image) */
+   void finalizeBrushStroke()
+   {
+      // Positions that haven't been drawn yet are still part of the stroke
+      flushPendingInput();
+      if (!isWaitingForWorker())
+         finishStroke();
+   }
+   
+   void finishStroke()
    {
-      int pos = (y * width + x) * 4 + 3;
-      if (mainData.getData().intAt(pos) == floodFillEmptyColor)
+      // Nothing to do if there's no stroke (e.g. when exporting an image)
+      if (!isStrokeActive && strokeTiles.isEmpty() && currentEntry == null) return;
+      double start = metrics.start();
+      if (tool == ToolMode.FLOODFILL && isStrokeActive)
+      {
+         // Flood fill is only activated on mouse up
+         doFloodFill(lastMouseX, lastMouseY);
+      }
+      isStrokeActive = false;
+      if (isSimplifyingStroke)
+         redrawSimplifiedStroke();
+      brushEngine.reset();
+      // Merge the stroke into the main image, but only in the tiles that
+      // the stroke actually drew on. The composite image already shows the
+      // stroke drawn over the layer, so it doesn't need to be redrawn
+      for (int n = 0; n < strokeTiles.size(); n++)
       {
-         SettableInt mainRawData = (SettableInt)mainData.getData();
-         mainRawData.setAt(pos, floodFillFillColor);
-         return true;
+         strokeTiles.getTileRect(n, segmentDirty);
+         undoRecorder.capture(mainRaster, segmentDirty);
+         Compositor.mergeStroke(mainRaster, brushRaster, segmentDirty);
       }
-      return false;
+      strokeTiles.clear();
+      strokeDirty.clear();
+      createUndoFromMainData();
+      draw();
+      finishStrokeTiming.stop(start);
+      applyIncomingOps();
    }
 
-   private boolean floodFillNeedFill(int x, int y)
+   /** Recomposites the layers in the dirty region and shows the result */
+   void draw()
    {
-      int pos = (y * width + x) * 4 + 3;
-      return (mainData.getData().intAt(pos) == floodFillEmptyColor);
+      // The active layer can't be shown while the worker has its pixels
+      if ((mainDirty.isEmpty() && !isViewChanged) || isWaitingForWorker()) return;
+      double start = metrics.start();
+      layers.composite(brushRaster, mainDirty);
+      compositeTiming.stop(start);
+      viewRenderer.show(layers, zoom, viewX, viewY, mainDirty, isViewChanged);
+      mainDirty.clear();
+      isViewChanged = false;
    }
 
-   
-   @JsMethod public void setBrushSize(int size)
+   /** Reloads the window and redraws everything after the layers have changed */
+   void redrawAllLayers()
    {
-      brushSize = size;
+      if (isWaitingForWorker())
+      {
+         // The window might not hold the active layer until the worker is done
+         isFullRedrawPending = true;
+         return;
+      }
+      layers.reloadWindow();
+      layers.mips.invalidateAll();
+      mainDirty.add(0, 0, width - 1, height - 1);
+      isViewChanged = true;
+      draw();
    }
-   
-   @JsMethod public void setFloodFillColor(int c)
+
+   void createUndoFromMainData()
    {
-      floodFillFillColor = c;
-      floodFillEmptyColor = c ^ 255;
+      double start = metrics.start();
+      UndoableCommand cmd = undoRecorder.finish(mainRaster, layers.getActive().tiles, layers.originX, layers.originY);
+      undoCaptureTiming.stop(start);
+      JournalEntry entry = currentEntry;
+      currentEntry = null;
+      if (cmd == null) return;
+      undoBytes.add(cmd.getByteSize());
+      recordEdit(cmd, entry);
    }
    
-   @JsMethod public void paintMode()
+   /** 
+    * Adds a finished edit to the undo history, both as an undo command and
+    * as a journal entry. An edit without an entry can't be replayed, so 
+    * the journal has to start again after it.
+    */
+   void recordEdit(UndoableCommand cmd, JournalEntry entry)
+   {
+      addToHistory(cmd, entry);
+      if (isSharingOps && entry != null)
+         outgoingOps.add(entry);
+   }
+
+   /** Adds an edit to the undo history without sharing it */
+   void addToHistory(UndoableCommand cmd, JournalEntry entry)
+   {
+      // Vector layers keep the edit as well as its pixels
+      Layer layer = entry == null ? null : layers.findLayer(entry.layerId);
+      if (layer != null && layer.vector != null)
+         cmd.setVectorChange(layer.vector, layer.vector.add(entry));
+      if (!isUndoStackInSync())
+      {
+         // The commands in the undo stack are for a different point in the history
+         undos.clear();
+         undoStackStart = historyPosition;
+      }
+      undos.push(cmd);
+      if (historyPosition < 0 || entry == null)
+      {
+         // Edits from before the checkpoint can't be replayed, so the 
+         // drawing as it is now becomes the checkpoint
+         historyPosition++;
+         restartJournal();
+         return;
+      }
+      journal.add(historyPosition, entry);
+      historyPosition++;
+      if (journal.needsCheckpoint())
+         journal.addCheckpoint(getLayerTiles(), getVectorCounts());
+      trimJournal();
+   }
+   
+   /** Drops the oldest edits of the journal if it is over its memory budget */
+   void trimJournal()
+   {
+      if (historyPosition < 0) return;
+      int dropped = journal.trim(historyPosition);
+      historyPosition -= dropped;
+      undoStackStart -= dropped;
+   }
+   
+   /** Whether the undo stack's position is the current position in the history */
+   boolean isUndoStackInSync()
+   {
+      return historyPosition == undoStackStart + undos.getDiscardedCount() + undos.getPosition();
+   }
+   
+   /** Starts a new journal with a copy of the layers as they are now as its checkpoint */
+   void restartJournal()
+   {
+      journal = Journal.startFrom(docWidth, docHeight, getLayerTiles(), getVectorCounts());
+      journal.setMemoryBudget(journalMemoryBudget);
+      undoStackStart -= historyPosition;
+      historyPosition = 0;
+   }
+   
+   /** Tiles of each layer by layer id, from the bottom up */
+   Map<Integer, TiledRaster> getLayerTiles()
+   {
+      Map<Integer, TiledRaster> tiles = new LinkedHashMap<>();
+      for (Layer layer: layers.layers)
+         tiles.put(layer.id, layer.tiles);
+      return tiles;
+   }
+   
+   /** Number of strokes applied on each vector layer, by layer id */
+   Map<Integer, Integer> getVectorCounts()
+   {
+      Map<Integer, Integer> counts = new HashMap<>();
+      for (Layer layer: layers.layers)
+      {
+         if (layer.vector != null)
+            counts.put(layer.id, layer.vector.getCount());
+      }
+      return counts;
+   }
+   
+   /** Rebuilds the layers as they were at a position in the history by replaying the journal */
+   void replayJournalTo(int position)
+   {
+      Journal.Checkpoint checkpoint = journal.findCheckpoint(position);
+      for (Layer layer: layers.layers)
+      {
+         TiledRaster saved = checkpoint.layers.get(layer.id);
+         // Layers created after the checkpoint started out empty
+         if (saved != null)
+            layer.tiles.replaceTiles(saved.copy(), 0, 0);
+         else
+            layer.tiles.fill(0);
+         if (layer.vector != null)
+            layer.vector.setCount(checkpoint.vectorCounts.getOrDefault(layer.id, 0));
+      }
+      for (int n = checkpoint.position; n < position; n++)
+         playJournalEntry(journal.get(n));
+      historyPosition = position;
+      redrawAllLayers();
+   }
+   
+   /**
+    * Applies edits from other people that were waiting. Their edits go
+    * into the undo history like any other edit, so the journal can still
+    * rebuild the drawing.
+    */
+   void applyIncomingOps()
+   {
+      if (incomingOps.isEmpty() || isStrokeActive || currentEntry != null || isWaitingForWorker()) return;
+      for (JournalEntry entry: incomingOps)
+      {
+         // Edits to layers that this drawing doesn't have are dropped
+         Layer layer = layers.findLayer(entry.layerId);
+         if (layer == null) continue;
+         if (layer.vector != null && !VectorLayer.canHold(entry)) continue;
+         UndoableCommand cmd = journalPlayer.playUndoable(entry, layer.tiles);
+         if (cmd == null) continue;
+         addToHistory(cmd, entry);
+         layers.reloadArea(layer.tiles, cmd.getBounds(), mainDirty);
+      }
+      incomingOps.clear();
+      draw();
+   }
+
+   void playJournalEntry(JournalEntry entry)
+   {
+      // Edits to layers that have been removed don't matter anymore
+      Layer layer = layers.findLayer(entry.layerId);
+      if (layer == null) return;
+      if (layer.vector != null)
+      {
+         if (!VectorLayer.canHold(entry)) return;
+         layer.vector.add(entry);
+      }
+      journalPlayer.play(entry, layer.tiles);
+   }
+   
+   /** 
+    * Clears the part of the window that hangs over the edge of the 
+    * drawing. Strokes can leave pixels there that are never stored in the
+    * layer, and they would change how far a flood fill spreads compared
+    * to when the fill is replayed.
+    */
+   void clearOutsideDocument()
+   {
+      int x = docWidth - layers.originX;
+      int y = docHeight - layers.originY;
+      if (x < width)
+         mainRaster.fillRect(x, 0, width - 1, height - 1, 0);
+      if (y < height)
+         mainRaster.fillRect(0, y, width - 1, height - 1, 0);
+   }
+   
+   /** Flood fills the active layer from a point (and its symmetric copies) */
+   void doFloodFill(int mouseX, int mouseY)
+   {
+      currentEntry.pointCount = 0;
+      currentEntry.addPoint(mouseX + layers.originX, mouseY + layers.originY, 1.0);
+      int[] seeds = currentEntry.settings.getSymmetry().copyPoints(mouseX + layers.originX, mouseY + layers.originY, layers.originX, layers.originY);
+      clearOutsideDocument();
+      if (isWorkerAvailable())
+      {
+         WorkerMessage request = createWorkerRequest(WorkerMessage.FLOOD_FILL);
+         request.setPixels("seeds", seeds);
+         request.setInt("emptyAlpha", floodFillEmptyColor);
+         request.setInt("tolerance", floodFillTolerance);
+         request.setInt("fillAlpha", floodFillFillColor);
+         request.setInt("eightConnected", floodFillEightConnected ? 1 : 0);
+         startWorkerJob(request, currentEntry);
+         currentEntry = null;
+         return;
+      }
+      double start = metrics.start();
+      if (floodFill == null)
+         floodFill = new FloodFill(width, height);
+      floodFill.setEightConnected(floodFillEightConnected);
+      segmentDirty.clear();
+      floodFill.fillRasterFromSeeds(mainRaster, seeds, floodFillEmptyColor, floodFillTolerance, floodFillFillColor, undoRecorder, segmentDirty);
+      mainDirty.add(segmentDirty);
+      pixelsTouched.addArea(segmentDirty);
+      floodFillTiming.stop(start);
+   }
+   
+   /** 
+    * Fills the whole active layer with a color. Only the table of tiles
+    * changes, so this is quick no matter how big the drawing is.
+    */
+   void fillActiveLayer(int color)
+   {
+      finalizeBrushStroke();
+      if (deferWhileWorking(() -> fillActiveLayer(color))) return;
+      UndoableCommand cmd = layers.getActive().tiles.fill(color);
+      if (cmd == null) return;
+      JournalEntry entry = JournalEntry.create(JournalEntry.FILL, layers.getActive().id, null);
+      entry.color = color;
+      recordEdit(cmd, entry);
+      layers.reloadArea(cmd.getTarget(), cmd.getBounds(), mainDirty);
+      draw();
+   }
+   
+   /** Puts tiles into a layer, replacing the tiles that were there */
+   void replaceLayerTiles(Layer layer, TiledRaster tiles)
+   {
+      // Vector layers can't keep images
+      if (layer.vector != null) return;
+      // The tiles are moved out of the image that is put in, so the journal needs a copy
+      JournalEntry entry = JournalEntry.create(JournalEntry.IMAGE, layer.id, null);
+      entry.image = tiles.copy();
+      UndoableCommand cmd = layer.tiles.replaceTiles(tiles, 0, 0);
+      if (cmd == null) return;
+      recordEdit(cmd, entry);
+      layers.reloadArea(layer.tiles, cmd.getBounds(), mainDirty);
+      draw();
+   }
+   
+   boolean isWorkerAvailable()
+   {
+      return rasterWorker != null && rasterWorker.isAvailable();
+   }
+   
+   /** Whether the worker has the pixels of a layer, so drawing has to wait */
+   boolean isWaitingForWorker()
+   {
+      return rasterWorker != null && rasterWorker.isBusy();
+   }
+   
+   /** 
+    * If the worker has the pixels of a layer, queues an operation to be 
+    * run once the worker is done and returns true
+    */
+   boolean deferWhileWorking(Runnable operation)
+   {
+      if (!isWaitingForWorker()) return false;
+      afterWorker.add(operation);
+      return true;
+   }
+   
+   WorkerMessage createWorkerRequest(String op)
+   {
+      return WorkerMessage.create(op, width, height, mainRaster.pixels);
+   }
+   
+   /** Sends the active layer's window to the worker to be changed by an edit */
+   void startWorkerJob(WorkerMessage request, JournalEntry entry)
+   {
+      Layer layer = layers.getActive();
+      workerJobStart = metrics.start();
+      rasterWorker.start(mainRaster, request, (reply) -> finishWorkerJob(layer, entry, reply));
+   }
+   
+   /** Stores and shows the result of an operation done by the worker on the window */
+   void finishWorkerJob(Layer layer, JournalEntry entry, WorkerMessage reply)
+   {
+      UndoableCommand cmd = RasterWorker.commitChangedTiles(reply, mainRaster, layer.tiles, layers.originX, layers.originY);
+      if (cmd != null)
+      {
+         undoBytes.add(cmd.getByteSize());
+         recordEdit(cmd, entry);
+      }
+      segmentDirty.clear();
+      segmentDirty.add(reply.getInt("minX"), reply.getInt("minY"), reply.getInt("maxX"), reply.getInt("maxY"));
+      mainDirty.add(segmentDirty);
+      pixelsTouched.addArea(segmentDirty);
+      workerJobTiming.stop(workerJobStart);
+      afterWorkerJob();
+   }
+   
+   /** Catches up on everything that was waiting for the worker */
+   void afterWorkerJob()
+   {
+      if (isFullRedrawPending)
+      {
+         isFullRedrawPending = false;
+         redrawAllLayers();
+      }
+      else
+         draw();
+      // Input is handled before operations that were requested while the worker was busy
+      flushPendingInput();
+      while (!afterWorker.isEmpty() && !isWaitingForWorker())
+         afterWorker.remove(0).run();
+      draw();
+      if (isWaitingForWorker()) return;
+      applyIncomingOps();
+      for (JavaScriptObject callback: idleCallbacks)
+         callFunction(callback);
+      idleCallbacks.clear();
+   }
+   
+   private static native void callFunction(JavaScriptObject fn) /*-{
+      fn();
+   }-*/;
+
+   @JsMethod public void setBrushSize(int size)
+   {
+      brushSize = Math.max(size, 0);
+   }
+   
+   @JsMethod public BasicBrush getBrush()
+   {
+      return brush;
+   }
+   
+   /** Sets the brush used in paint mode. Its size still comes from setBrushSize() */
+   @JsMethod public void setBrush(BasicBrush newBrush)
+   {
+      brush = newBrush;
+      brushEngine.setBrush(brush);
+   }
+   
+   /** Changes the shape of the brush ("round" or "square") while keeping its other settings */
+   @JsMethod public void setBrushShape(String shape)
+   {
+      BasicBrush newBrush = "square".equals(shape) ? new SquareBrush() : new RoundBrush();
+      newBrush.copySettings(brush);
+      setBrush(newBrush);
+   }
+   
+   @JsMethod public void setFloodFillColor(int c)
+   {
+      floodFillFillColor = c;
+      floodFillEmptyColor = c ^ 255;
+   }
+   
+   /** 
+    * Makes flood fill compare colors, filling pixels whose red, green, blue, and
+    * alpha all differ from the clicked pixel by at most the tolerance. A negative
+    * tolerance goes back to only filling pixels with the empty alpha value.
+    */
+   @JsMethod public void setFloodFillTolerance(int tolerance)
+   {
+      floodFillTolerance = tolerance;
+   }
+   
+   @JsMethod public void setFloodFillEightConnected(boolean enable)
+   {
+      floodFillEightConnected = enable;
+   }
+   
+   @JsMethod public void paintMode()
    {
       tool = ToolMode.PAINT;
    }
@@ -505,29 +1435,7 @@ public class LayerCanvas
          return;
       }
       tool = ToolMode.IMAGESTAMP;
-      int size = Math.max(img.getWidth(), img.getHeight());
-      size = (int)Math.ceil(scale * size); 
-      size *= 2;
-      if (size < 2) size = 2;
-      imageStamp = (CanvasElement)Browser.getDocument().createElement("canvas");
-      imageStamp.setWidth(size);
-      imageStamp.setHeight(size);
-      setCanvasImageSmoothing(imageStamp, false);
-      CanvasRenderingContext2D imgCtx = (CanvasRenderingContext2D)imageStamp.getContext("2d");
-      imgCtx.clearRect(0, 0, size, size);
-      imgCtx.save();
-      imgCtx.translate(size / 2, size / 2);
-      imgCtx.rotate((float)rotation);
-      imgCtx.scale((float)scale, (float)scale);
-      imgCtx.translate(-img.getWidth() / 2, -img.getHeight() / 2);
-      imgCtx.drawImage(img, 0, 0);
-      imgCtx.restore();
-      // Threshold the image to be safe
-      ImageData imgData = imgCtx.getImageData(0, 0, size, size);
-      SettableInt rawData = (SettableInt)imgData.getData();
-      for (int n = 3; n < size * size * 4; n += 4)
-         rawData.setAt(n, rawData.intAt(n) < 255 ? 0 : 255);
-      imgCtx.putImageData(imgData, 0, 0);
+      stamp = stampCache.get(img, scale, rotation);
    }
    
    @JsMethod public void floodFillMode()
@@ -540,97 +1448,717 @@ public class LayerCanvas
       mirrorMode = enable;
    }
    
+   /**
+    * Draws rotated copies of strokes and fills around the middle of the 
+    * drawing, evenly spaced so that there are the given number of them 
+    * altogether (1 turns rotation off). With mirror mode on as well, each
+    * rotated copy is also mirrored, like a kaleidoscope.
+    */
+   @JsMethod public void setSymmetryRotations(int count)
+   {
+      symmetryRotations = Math.max(1, count);
+   }
+   
+   /** Adds an empty layer above the active layer and makes it the active layer */
+   @JsMethod public int addLayer()
+   {
+      finalizeBrushStroke();
+      layers.addLayer();
+      redrawAllLayers();
+      return layers.active;
+   }
+   
+   /**
+    * Adds an empty vector layer above the active layer and makes it the
+    * active layer. Vector layers keep their strokes, so they can be
+    * exported at a higher resolution (see exportScaledPng()), but they can
+    * only be painted on, erased, and cleared.
+    */
+   @JsMethod public int addVectorLayer()
+   {
+      finalizeBrushStroke();
+      layers.addVectorLayer();
+      redrawAllLayers();
+      return layers.active;
+   }
+   
+   @JsMethod public boolean isVectorLayer(int index)
+   {
+      if (index < 0 || index >= layers.layers.size()) return false;
+      return layers.layers.get(index).vector != null;
+   }
+   
+   @JsMethod public void removeLayer(int index)
+   {
+      finalizeBrushStroke();
+      layers.removeLayer(index);
+      redrawAllLayers();
+   }
+   
+   /** Moves a layer to a different position in the stack of layers (0 is the bottom) */
+   @JsMethod public void moveLayer(int from, int to)
+   {
+      finalizeBrushStroke();
+      layers.moveLayer(from, to);
+      redrawAllLayers();
+   }
+   
+   @JsMethod public int getLayerCount()
+   {
+      return layers.layers.size();
+   }
+   
+   /** Chooses which layer gets drawn on */
+   @JsMethod public void setActiveLayer(int index)
+   {
+      finalizeBrushStroke();
+      layers.setActive(index);
+      redrawAllLayers();
+   }
+   
+   @JsMethod public int getActiveLayer()
+   {
+      return layers.active;
+   }
+   
+   @JsMethod public void setLayerOpacity(int index, double opacity)
+   {
+      if (index < 0 || index >= layers.layers.size() || Double.isNaN(opacity)) return;
+      layers.layers.get(index).opacity = Math.max(0, Math.min(1, opacity));
+      redrawAllLayers();
+   }
+   
+   @JsMethod public void setLayerVisible(int index, boolean visible)
+   {
+      if (index < 0 || index >= layers.layers.size()) return;
+      layers.layers.get(index).visible = visible;
+      redrawAllLayers();
+   }
+   
+   /** Clears the active layer */
    @JsMethod public void clear()
    {
-      mainCtx.clearRect(0, 0, width, height);
-      mainData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-      createUndoFromMainData();
+      if (deferWhileWorking(() -> clear())) return;
+      fillActiveLayer(0);
    }
 
+   /** Fills the active layer with black */
    @JsMethod public void clearToBlack()
    {
-      mainCtx.setFillStyle("black");
-      mainCtx.fillRect(0, 0, width, height);
-      mainData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-      createUndoFromMainData();
+      if (deferWhileWorking(() -> clearToBlack())) return;
+      fillActiveLayer(Pixels.pack(0, 0, 0, 255));
    }
 
    @JsMethod public void undo()
    {
+      if (deferWhileWorking(() -> undo())) return;
       // TODO: cancel any in-progress brush-strokes
-      UndoableCommand cmd = undos.undo();
-      if (cmd == null) return;
-      copyImageData(cmd.before, mainData);
-      mainDataBackupForUndo = cmd.before;
-      mainCtx.putImageData(mainData, 0, 0);
+      if (isUndoStackInSync() && undos.getPosition() > 0)
+      {
+         applyUndoableCommand(undos.undo());
+         historyPosition--;
+      }
+      else if (historyPosition > 0)
+      {
+         // The undo command has been thrown away to save memory
+         replayJournalTo(historyPosition - 1);
+      }
    }
    
    @JsMethod public void redo()
    {
+      if (deferWhileWorking(() -> redo())) return;
       // TODO: cancel any in-progress brush-strokes
-      UndoableCommand cmd = undos.redo();
-      if (cmd == null) return;
-      copyImageData(cmd.after, mainData);
-      mainDataBackupForUndo = cmd.after;
-      mainCtx.putImageData(mainData, 0, 0);
+      if (isUndoStackInSync() && undos.getPosition() < undos.size())
+      {
+         applyUndoableCommand(undos.redo());
+         historyPosition++;
+      }
+      else if (historyPosition >= 0 && historyPosition < journal.size())
+      {
+         playJournalEntry(journal.get(historyPosition));
+         historyPosition++;
+         redrawAllLayers();
+      }
+   }
+   
+   void applyUndoableCommand(UndoableCommand cmd)
+   {
+      cmd.swap();
+      layers.reloadArea(cmd.getTarget(), cmd.getBounds(), mainDirty);
+      draw();
+   }
+   
+   /** Number of bytes of memory used to hold the undo history */
+   @JsMethod public int getMemoryUsage()
+   {
+      return undos.getMemoryUsage();
+   }
+   
+   /** Sets how many bytes of memory the undo history may use before old entries are discarded */
+   @JsMethod public void setMemoryBudget(int bytes)
+   {
+      undos.setMemoryBudget(bytes);
+   }
+   
+   /** Number of bytes of memory used by the journal of edits and its checkpoints */
+   @JsMethod public int getJournalMemoryUsage()
+   {
+      return journal.getMemoryUsage();
    }
    
+   /** 
+    * Sets how many bytes of memory the journal may use before its oldest
+    * edits are dropped, after which they can't be undone anymore
+    */
+   @JsMethod public void setJournalMemoryBudget(int bytes)
+   {
+      journalMemoryBudget = bytes;
+      journal.setMemoryBudget(bytes);
+      trimJournal();
+   }
+   
+   /** Number of bytes of memory used to hold the pixels of the layers */
+   @JsMethod public int getLayerMemoryUsage()
+   {
+      return layers.getMemoryUsage();
+   }
+   
+   /** Starts or stops recording timings and counts of the work done by the canvas */
+   @JsMethod public void setStatsEnabled(boolean enable)
+   {
+      metrics.setEnabled(enable);
+   }
+   
+   /**
+    * Returns the timings and counts recorded since stats were enabled or 
+    * reset as a JSON string, along with the current memory usage. Timings
+    * are histograms of milliseconds (see Metrics.toJson()).
+    */
+   @JsMethod public String getStats()
+   {
+      metrics.setGauge("undoMemory", undos.getMemoryUsage());
+      metrics.setGauge("undoCommands", undos.size());
+      metrics.setGauge("undoDiscarded", undos.getDiscardedCount());
+      metrics.setGauge("journalMemory", journal.getMemoryUsage());
+      metrics.setGauge("journalEntries", journal.size());
+      metrics.setGauge("journalCheckpoints", journal.getCheckpointCount());
+      metrics.setGauge("layerMemory", layers.getMemoryUsage());
+      metrics.setGauge("framesOverBudget", frameTimer.overBudgetCount);
+      return metrics.toJson();
+   }
+   
+   @JsMethod public void resetStats()
+   {
+      metrics.reset();
+   }
+   
+   /** 
+    * Starts a new, empty drawing of the given size. The drawing can't be 
+    * smaller than the canvas. The undo history is discarded.
+    */
+   @JsMethod public void setDocumentSize(int w, int h)
+   {
+      if (deferWhileWorking(() -> setDocumentSize(w, h))) return;
+      docWidth = Math.max(w, canvasWidth);
+      docHeight = Math.max(h, canvasHeight);
+      createDocument();
+   }
+   
+   @JsMethod public int getDocumentWidth()
+   {
+      return docWidth;
+   }
+   
+   @JsMethod public int getDocumentHeight()
+   {
+      return docHeight;
+   }
+   
+   /** 
+    * Scrolls the canvas so that it shows the drawing starting from the 
+    * given position. Scrolling outside the window of pixels unpacked from
+    * the layers finishes the current stroke.
+    */
+   @JsMethod public void scrollTo(int x, int y)
+   {
+      setView(x, y, false);
+   }
+   
+   /** 
+    * Changes the zoom while keeping the point of the drawing under (canvasX,
+    * canvasY) of the canvas in the same place. Finishes the current stroke.
+    */
+   @JsMethod public void zoomAt(double newZoom, int canvasX, int canvasY)
+   {
+      // The window may be resized, so everything in it has to be stored in the layers first
+      finalizeBrushStroke();
+      if (deferWhileWorking(() -> zoomAt(newZoom, canvasX, canvasY))) return;
+      double clampedZoom = Math.max(MIN_ZOOM, Math.min(newZoom, MAX_ZOOM));
+      if (clampedZoom == zoom) return;
+      int docX = toDocumentX(canvasX);
+      int docY = toDocumentY(canvasY);
+      zoom = clampedZoom;
+      boolean isResized = resizeWindow();
+      setView(docX - (int)Math.floor(canvasX / zoom), docY - (int)Math.floor(canvasY / zoom), isResized);
+   }
+   
+   /** Changes the zoom, keeping the middle of the canvas in place */
+   @JsMethod public void setZoom(double newZoom)
+   {
+      zoomAt(newZoom, canvasWidth / 2, canvasHeight / 2);
+   }
+   
+   @JsMethod public double getZoom()
+   {
+      return zoom;
+   }
+   
+   @JsMethod public int getViewX()
+   {
+      return viewX;
+   }
+   
+   @JsMethod public int getViewY()
+   {
+      return viewY;
+   }
+   
+   /** Sets how many milliseconds drawing a frame may take before it counts as over budget */
+   @JsMethod public void setFrameBudget(double ms)
+   {
+      frameTimer.setBudget(ms);
+   }
+   
+   @JsMethod public int getFrameCount()
+   {
+      return frameTimer.frameCount;
+   }
+   
+   /** Number of frames that took longer than the frame budget to draw */
+   @JsMethod public int getFramesOverBudget()
+   {
+      return frameTimer.overBudgetCount;
+   }
+   
+   /** Milliseconds taken by the slowest frame */
+   @JsMethod public double getWorstFrameTime()
+   {
+      return frameTimer.worstFrameTime;
+   }
+   
+   @JsMethod public void resetFrameStats()
+   {
+      frameTimer.reset();
+   }
+   
+   /** 
+    * Runs flood fills, clears, and image loads in a web worker started 
+    * from the given script (layercanvasworker/layercanvasworker.worker.js)
+    * so that they don't freeze the page. While the worker is busy, input
+    * and other changes to the drawing are queued up. Passing null goes 
+    * back to doing everything on the page.
+    */
+   @JsMethod public void setWorkerUrl(String url)
+   {
+      if (deferWhileWorking(() -> setWorkerUrl(url))) return;
+      if (rasterWorker != null)
+         rasterWorker.terminate();
+      rasterWorker = url == null ? null : RasterWorker.create(url);
+   }
+   
+   /** Whether the worker is busy, in which case changes to the drawing are delayed until it is done */
+   @JsMethod public boolean isBusy()
+   {
+      return isWaitingForWorker();
+   }
+   
+   /** Calls the callback once the worker has finished all the operations that have been requested */
+   @JsMethod public void whenIdle(JavaScriptObject callback)
+   {
+      if (isWaitingForWorker())
+         idleCallbacks.add(callback);
+      else
+         callFunction(callback);
+   }
+   
+   /** 
+    * Saves the whole drawing as a PNG data URL. This has to be done all at
+    * once, so exportPng() should be used instead for big drawings.
+    */
    @JsMethod public String extractPngDataUrl()
    {
       finalizeBrushStroke();
-      return mainCanvas.toDataURL("image/png");
+      DirtyRect area = new DirtyRect();
+      area.add(0, 0, docWidth - 1, docHeight - 1);
+      List<byte[]> pieces = new ArrayList<>();
+      createPngEncoder(area, 1, pieces::add).encodeAll();
+      return toPngDataUrl(joinPieces(pieces));
+   }
+   
+   /** 
+    * Saves the drawing as a PNG file a little at a time, so that the page
+    * isn't held up. The file is passed to onData in pieces (as 
+    * Uint8Arrays) as it is made, and then onDone(x, y, width, height) is
+    * called. When cropToInk is set, only the area of the drawing that has
+    * been drawn on is saved, and onDone is told where that area is. If 
+    * nothing has been drawn, onDone is called with a width and height of 
+    * 0 and no data.
+    */
+   @JsMethod public void exportPng(boolean cropToInk, JavaScriptObject onData, JavaScriptObject onDone)
+   {
+      startPngExport(cropToInk, 1, (piece) -> callWithBytes(onData, piece), 
+            (area) -> callWithArea(onDone, area.getX(), area.getY(), area.getWidth(), area.getHeight()));
+   }
+   
+   /**
+    * Like exportPng(), but makes the picture scale times bigger (2, 4, or
+    * 8). Vector layers are drawn again from their strokes at the bigger
+    * size, so they stay sharp, while other layers are just made blocky.
+    * The scale is lowered if the picture would be too big. onDone is told
+    * where the area is in the bigger picture.
+    */
+   @JsMethod public void exportScaledPng(boolean cropToInk, int scale, JavaScriptObject onData, JavaScriptObject onDone)
+   {
+      startPngExport(cropToInk, scale, (piece) -> callWithBytes(onData, piece), 
+            (area) -> callWithArea(onDone, area.getX(), area.getY(), area.getWidth(), area.getHeight()));
+   }
+   
+   /** Biggest scale (up to 8) that is a power of two, no bigger than scale, and keeps an area below MAX_EXPORT_PIXELS */
+   static int findExportScale(DirtyRect area, int scale)
+   {
+      int s = 1;
+      while (s * 2 <= Math.min(scale, 8) && (double)area.getWidth() * area.getHeight() * (s * 2) * (s * 2) <= MAX_EXPORT_PIXELS)
+         s *= 2;
+      return s;
+   }
+   
+   /** 
+    * The layers are flattened when the export starts, so drawing can carry
+    * on while the file is made.
+    */
+   void startPngExport(boolean cropToInk, int scale, Consumer<byte[]> onData, Consumer<DirtyRect> onDone)
+   {
+      finalizeBrushStroke();
+      if (deferWhileWorking(() -> startPngExport(cropToInk, scale, onData, onDone))) return;
+      DirtyRect area;
+      if (cropToInk)
+         area = layers.getInkedBounds();
+      else
+      {
+         area = new DirtyRect();
+         area.add(0, 0, docWidth - 1, docHeight - 1);
+      }
+      if (area.isEmpty())
+      {
+         onDone.accept(area);
+         return;
+      }
+      int s = findExportScale(area, scale);
+      PngEncoder encoder = createPngEncoder(area, s, onData);
+      DirtyRect scaledArea = new DirtyRect();
+      scaledArea.add(area.minX * s, area.minY * s, (area.maxX + 1) * s - 1, (area.maxY + 1) * s - 1);
+      continuePngExport(encoder, scaledArea, onDone);
+   }
+   
+   void continuePngExport(PngEncoder encoder, DirtyRect area, Consumer<DirtyRect> onDone)
+   {
+      double start = FrameTimer.now();
+      while (!encoder.encodeRows(PNG_EXPORT_ROWS))
+      {
+         if (FrameTimer.now() - start > PNG_EXPORT_SLICE_TIME)
+         {
+            setTimeout(() -> continuePngExport(encoder, area, onDone));
+            return;
+         }
+      }
+      onDone.accept(area);
+   }
+   
+   /** Flattens an area of the drawing, made scale times bigger, and sets up an encoder for it */
+   PngEncoder createPngEncoder(DirtyRect area, int scale, Consumer<byte[]> onData)
+   {
+      int w = area.getWidth() * scale;
+      int h = area.getHeight() * scale;
+      PixelBuffer flattened = PixelBuffer.create(w, h);
+      layers.flattenDrawingAtScale(flattened, area.getX() * scale, area.getY() * scale, scale);
+      return new PngEncoder(flattened, 0, 0, w, h, LayerCanvas::newByteArray, onData);
+   }
+   
+   /** Bytes are kept in typed arrays so that they can be handed to JavaScript without copying */
+   static native byte[] newByteArray(int size) /*-{
+      return new Int8Array(size);
+   }-*/;
+   
+   /** Joins pieces of a file together into a single array */
+   static byte[] joinPieces(List<byte[]> pieces)
+   {
+      int length = 0;
+      for (byte[] piece: pieces)
+         length += piece.length;
+      byte[] joined = newByteArray(length);
+      int offset = 0;
+      for (byte[] piece: pieces)
+      {
+         copyBytes(piece, joined, offset);
+         offset += piece.length;
+      }
+      return joined;
+   }
+   
+   private static native void copyBytes(byte[] from, byte[] to, int offset) /*-{
+      to.set(from, offset);
+   }-*/;
+   
+   private static native void callWithBytes(JavaScriptObject fn, byte[] bytes) /*-{
+      fn(new Uint8Array(bytes.buffer, bytes.byteOffset, bytes.length));
+   }-*/;
+   
+   private static native void callWithArea(JavaScriptObject fn, int x, int y, int w, int h) /*-{
+      fn(x, y, w, h);
+   }-*/;
+   
+   private static native String toPngDataUrl(byte[] bytes) /*-{
+      var data = new Uint8Array(bytes.buffer, bytes.byteOffset, bytes.length);
+      var binary = '';
+      for (var n = 0; n < data.length; n += 32768)
+         binary += String.fromCharCode.apply(null, data.subarray(n, n + 32768));
+      return 'data:image/png;base64,' + $wnd.btoa(binary);
+   }-*/;
+   
+   private static native void setTimeout(Runnable fn) /*-{
+      $wnd.setTimeout(function() {
+         fn.@java.lang.Runnable::run()();
+      }, 0);
+   }-*/;
+   
+   /** 
+    * Saves the drawing, including its layers and undo history, as a new 
+    * file in LayerCanvas's own format. Anything being worked on by the
+    * worker (e.g. a flood fill) when this is called isn't saved yet.
+    */
+   @JsMethod public ArrayBuffer saveDocument()
+   {
+      finalizeBrushStroke();
+      return getBuffer(documentWriter.saveAll(layers, undos, LayerCanvas::newByteArray));
+   }
+   
+   /**
+    * Saves only what has changed since the drawing was last saved or 
+    * loaded. The result should be appended to the end of that file, so 
+    * autosaving doesn't have to write out the whole drawing every time. 
+    * Returns null if the drawing hasn't been saved or loaded yet, in 
+    * which case saveDocument() must be used instead.
+    */
+   @JsMethod public ArrayBuffer saveDocumentChanges()
+   {
+      finalizeBrushStroke();
+      byte[] changes = documentWriter.saveChanges(layers, undos, LayerCanvas::newByteArray);
+      if (changes == null) return null;
+      return getBuffer(changes);
+   }
+   
+   /** 
+    * Replaces the drawing with one saved by saveDocument() (plus any 
+    * changes appended to it). Returns false if the data isn't a saved 
+    * drawing.
+    */
+   @JsMethod public boolean loadDocument(ArrayBuffer data)
+   {
+      byte[] bytes = wrapArrayBuffer(data);
+      DocumentReader reader = new DocumentReader(PixelBuffer::create);
+      if (!reader.read(bytes, 0, bytes.length)) return false;
+      showLoadedDocument(reader);
+      return true;
+   }
+   
+   void showLoadedDocument(DocumentReader reader)
+   {
+      if (deferWhileWorking(() -> showLoadedDocument(reader))) return;
+      DocumentWriter writer = new DocumentWriter();
+      reader.continueFile(writer);
+      showDocument(reader.layers, reader.undos, writer, null);
    }
    
+   /** 
+    * Saves the journal of the edits that have been made since the drawing
+    * was started or loaded, along with a copy of the drawing from before 
+    * those edits. This is usually much smaller than saveDocument(), but
+    * takes longer to load, since the edits have to be replayed.
+    */
+   @JsMethod public ArrayBuffer saveJournal()
+   {
+      finalizeBrushStroke();
+      // The current drawing can't be rebuilt from a checkpoint that comes after it
+      if (historyPosition < 0)
+         restartJournal();
+      return getBuffer(JournalCodec.write(journal, historyPosition, LayerCanvas::newByteArray));
+   }
+   
+   /** 
+    * Replaces the drawing with one rebuilt by replaying a journal saved by
+    * saveJournal(). The edits in the journal can be undone, but nothing 
+    * before them. Returns false if the data isn't a saved journal.
+    */
+   @JsMethod public boolean replayJournal(ArrayBuffer data)
+   {
+      byte[] bytes = wrapArrayBuffer(data);
+      Journal loaded = JournalCodec.read(bytes, 0, bytes.length, PixelBuffer::create);
+      if (loaded == null) return false;
+      showReplayedJournal(loaded);
+      return true;
+   }
+   
+   void showReplayedJournal(Journal loaded)
+   {
+      if (deferWhileWorking(() -> showReplayedJournal(loaded))) return;
+      LayerStack newLayers = new LayerStack(loaded.width, loaded.height);
+      for (Map.Entry<Integer, TiledRaster> saved: loaded.getCheckpoint().entrySet())
+      {
+         Layer layer = newLayers.createLayer(saved.getKey());
+         layer.tiles.replaceTiles(saved.getValue().copy(), 0, 0);
+         newLayers.layers.add(layer);
+      }
+      // Layers created after the checkpoint are put on top
+      for (int n = 0; n < loaded.size(); n++)
+      {
+         if (newLayers.findLayer(loaded.get(n).layerId) == null)
+            newLayers.layers.add(newLayers.createLayer(loaded.get(n).layerId));
+      }
+      if (newLayers.layers.isEmpty())
+         newLayers.layers.add(newLayers.createLayer());
+      for (int n = 0; n < loaded.size(); n++)
+         journalPlayer.play(loaded.get(n), newLayers.findLayer(loaded.get(n).layerId).tiles);
+      showDocument(newLayers, new UndoStack(PixelBuffer::create), new DocumentWriter(), loaded);
+   }
+   
+   /**
+    * Starts or stops keeping edits as operations that can be sent to
+    * other people drawing on the same picture (see takeOps()). Undo, redo,
+    * and changes to the layers themselves aren't shared.
+    */
+   @JsMethod public void setShareOps(boolean enable)
+   {
+      isSharingOps = enable;
+      outgoingOps.clear();
+   }
+
+   /**
+    * Returns the edits made since the last call as a stream of operations
+    * for applyOps() on other canvases, or null if there haven't been any.
+    * Streams can be joined together before they are applied.
+    */
+   @JsMethod public ArrayBuffer takeOps()
+   {
+      if (outgoingOps.isEmpty()) return null;
+      byte[] ops = JournalCodec.writeOps(outgoingOps, LayerCanvas::newByteArray);
+      outgoingOps.clear();
+      return getBuffer(ops);
+   }
+
+   /**
+    * Applies operations from takeOps() on another canvas to this drawing.
+    * If a stroke is being drawn, they are applied once it's finished.
+    * Returns false if the data isn't a stream of operations.
+    */
+   @JsMethod public boolean applyOps(ArrayBuffer data)
+   {
+      byte[] bytes = wrapArrayBuffer(data);
+      List<JournalEntry> ops = JournalCodec.readOps(bytes, 0, bytes.length, PixelBuffer::create, docWidth, docHeight);
+      if (ops == null) return false;
+      incomingOps.addAll(ops);
+      applyIncomingOps();
+      return true;
+   }
+
+   private static native ArrayBuffer getBuffer(byte[] bytes) /*-{
+      return bytes.buffer;
+   }-*/;
+   
+   private static native byte[] wrapArrayBuffer(ArrayBuffer data) /*-{
+      return new Int8Array(data);
+   }-*/;
+   
+   /** Draws a PNG image on top of the active layer */
    @JsMethod public void loadInPngDataUrl(String url)
    {
       ImageElement img = (ImageElement)Browser.getDocument().createElement("img");
-      img.setOnload((e) -> {
-         mainCtx.drawImage(img, 0, 0);
-         mainData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-         createUndoFromMainData();
-      });
+      img.setOnload((e) -> drawLoadedImage(img));
       img.setSrc(url);
    }
+   
+   /** Images are drawn at the top-left of the drawing */
+   private void drawLoadedImage(ImageElement img)
+   {
+      // The active layer is needed to draw the image over
+      if (deferWhileWorking(() -> drawLoadedImage(img))) return;
+      finalizeBrushStroke();
+      if (deferWhileWorking(() -> drawLoadedImage(img))) return;
+      if (layers.getActive().vector != null) return;
+      // The image is drawn over a copy of the active layer in a separate 
+      // canvas. The copy is made of whole tiles so that the result can
+      // replace tiles of the layer without merging
+      int w = Math.min(LayerStack.roundUpToTile(img.getWidth()), docWidth);
+      int h = Math.min(LayerStack.roundUpToTile(img.getHeight()), docHeight);
+      if (w <= 0 || h <= 0) return;
+      CanvasElement loadCanvas = (CanvasElement)Browser.getDocument().createElement("canvas");
+      loadCanvas.setWidth(w);
+      loadCanvas.setHeight(h);
+      CanvasRenderingContext2D loadCtx = (CanvasRenderingContext2D)loadCanvas.getContext("2d");
+      ImageData layerData = loadCtx.createImageData(w, h);
+      layers.getActive().tiles.readRect(0, 0, PixelBuffer.wrap(layerData), 0, 0, w, h);
+      loadCtx.putImageData(layerData, 0, 0);
+      loadCtx.drawImage(img, 0, 0);
+      finishLoad(loadCtx.getImageData(0, 0, w, h));
+   }
+   
+   private void finishLoad(ImageData loaded)
+   {
+      Layer layer = layers.getActive();
+      if (isWorkerAvailable())
+      {
+         // Splitting the image into tiles is done in the worker
+         WorkerMessage request = WorkerMessage.create(WorkerMessage.SPLIT_TILES, loaded.getWidth(), loaded.getHeight(), PixelBuffer.wrap(loaded).pixels);
+         rasterWorker.start(null, request, (reply) -> {
+            replaceLayerTiles(layer, RasterWorker.getSplitTiles(reply));
+            afterWorkerJob();
+         });
+         return;
+      }
+      replaceLayerTiles(layer, TiledRaster.fromRaster(PixelBuffer::create, PixelBuffer.wrap(loaded)));
+   }
 
+   /** Saves the whole drawing as a PNG file, and passes it to the callback as an ArrayBuffer */
    @JsMethod public void extractPngArrayBuffer(JavaScriptObject callback)
    {
-      finalizeBrushStroke();
-      canvasToBlob(mainCanvas, callback);
+      List<byte[]> pieces = new ArrayList<>();
+      startPngExport(false, 1, pieces::add, (area) -> callWithBuffer(callback, joinPieces(pieces)));
    }
 
-   private static native void canvasToBlob(CanvasElement canvas, JavaScriptObject callback) /*-{
-      canvas.toBlob(function(blob) {
-         var reader = new $wnd.FileReader();
-         reader.onload = function(e) {
-            callback(event.target.result);
-         }
-         reader.readAsArrayBuffer(blob);
-      }, "image/png");
+   private static native void callWithBuffer(JavaScriptObject fn, byte[] bytes) /*-{
+      fn(bytes.buffer);
    }-*/;
 
+   /** Draws a PNG image on top of the active layer */
    @JsMethod public void loadInPngArrayBuffer(ArrayBuffer arrbuff)
    {
-      arrayBufferToCanvas(arrbuff, mainCanvas, () -> {
-         mainData = mainCtx.getImageData(0, 0, mainCanvas.getWidth(), mainCanvas.getHeight());
-         createUndoFromMainData();
-      });
+      arrayBufferToImage(arrbuff, (img) -> drawLoadedImage(img));
    }
 
-   private static native void arrayBufferToCanvas(ArrayBuffer arrbuff, CanvasElement canvas, Runnable r) /*-{
+   private static native void arrayBufferToImage(ArrayBuffer arrbuff, Consumer<ImageElement> r) /*-{
       var blob = new Blob([arrbuff], {type:"image/png"});
       var reader = new $wnd.FileReader();
       reader.onload = function(e) {
          var img = $doc.createElement("img");
          img.onload = function(e) {
-            canvas.getContext('2d').drawImage(img, 0, 0);
-            r.@java.lang.Runnable::run()();
+            r.@java.util.function.Consumer::accept(Ljava/lang/Object;)(img);
          }
          img.src = event.target.result;
       }
       reader.readAsDataURL(blob);
    }-*/;
 
-   private static native void setCanvasImageSmoothing(CanvasElement canvas, boolean val) /*-{
+   static native void setCanvasImageSmoothing(CanvasElement canvas, boolean val) /*-{
      canvas.imageSmoothingEnabled = val;
    }-*/;
 
@@ -667,12 +2195,11 @@ public class LayerCanvas
    }
 
    
-   @JsMethod public static LayerCanvas createUi(DivElement div, CanvasElement canvas1, CanvasElement canvas2)
+   @JsMethod public static LayerCanvas createUi(DivElement div, CanvasElement canvas)
    {
       LayerCanvas lc = new LayerCanvas();
       lc.eventDiv = div;
-      lc.mainCanvas = canvas1;
-      lc.brushCanvas = canvas2;
+      lc.mainCanvas = canvas;
       lc.go();
       return lc;
    }
@@ -0,0 +1,404 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.programmingbasics.layercanvas.raster.Compositor;
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.MipCache;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.TileSource;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.VectorLayer;
+
+import elemental.html.CanvasRenderingContext2D;
+import elemental.html.ImageData;
+
+/**
+ * Holds the layers of a drawing, and composites them together for display.
+ * 
+ * Layers are stored as tiles, and only the part of the drawing around
+ * what's shown on screen, the window, is ever unpacked into full images.
+ * The window starts at the corner of a tile, so its tiles line up with 
+ * the tiles of the layers. The active layer is copied into the window so
+ * that it can be drawn on, and changes are stored back into the layer's
+ * tiles when an operation is finished.
+ * 
+ * Since drawing only ever changes the active layer, the layers below the
+ * active layer and the layers above it are each flattened into a cached 
+ * image of the window. Showing a change to the active layer then only 
+ * involves blending three images together over the area that changed. 
+ * The caches must be rebuilt whenever the layers other than the active 
+ * one change.
+ * 
+ * For zoomed-out views, shrunken copies of the composite image of the 
+ * whole drawing are kept in a MipCache. Changes to the window mark the 
+ * tiles they touch as out of date, but anything else that changes the 
+ * layers must do so itself.
+ */
+public class LayerStack implements TileSource
+{
+   /** Size of the drawing */
+   int width;
+   int height;
+   
+   /** Position of the window in the drawing, and its size */
+   int originX = 0;
+   int originY = 0;
+   int windowWidth;
+   int windowHeight;
+   
+   /** Layers ordered from bottom to top */
+   List<Layer> layers = new ArrayList<>();
+   int active = 0;
+   
+   /** Id to give to the next layer that is created */
+   int nextLayerId = 0;
+   
+   /** Pixels of the active layer in the window */
+   PixelBuffer activeRaster;
+   
+   /** Flattened layers below and above the active layer (null if there are no such layers) */
+   PixelBuffer below;
+   PixelBuffer above;
+   
+   /** Final composite image of the window for display */
+   ImageData compositeData;
+   PixelBuffer compositeRaster;
+   
+   /** Shrunken copies of the composite image of the whole drawing */
+   MipCache mips;
+   
+   /** 
+    * Creates a stack for a drawing of the given size. The window must be
+    * given a size with resizeWindow() before it is used.
+    */
+   public LayerStack(int width, int height)
+   {
+      this.width = width;
+      this.height = height;
+      mips = new MipCache(PixelBuffer::create, width, height, this);
+   }
+   
+   /** 
+    * Makes the window big enough to hold a view of viewWidth by viewHeight
+    * pixels of the drawing wherever the view starts. Returns false if the 
+    * window is already that size. Otherwise, the window must be moved and 
+    * reloaded afterwards.
+    */
+   public boolean resizeWindow(CanvasRenderingContext2D ctx, int viewWidth, int viewHeight)
+   {
+      // The window must still cover the view when the view doesn't start at the corner of a tile
+      int tileSize = TiledRaster.TILE_SIZE;
+      int newWidth = Math.min(roundUpToTile(width), roundUpToTile(viewWidth) + tileSize);
+      int newHeight = Math.min(roundUpToTile(height), roundUpToTile(viewHeight) + tileSize);
+      if (activeRaster != null && newWidth == windowWidth && newHeight == windowHeight) 
+         return false;
+      windowWidth = newWidth;
+      windowHeight = newHeight;
+      activeRaster = PixelBuffer.wrap(ctx.createImageData(windowWidth, windowHeight));
+      compositeData = ctx.createImageData(windowWidth, windowHeight);
+      compositeRaster = PixelBuffer.wrap(compositeData);
+      below = null;
+      above = null;
+      return true;
+   }
+   
+   static int roundUpToTile(int size)
+   {
+      return (size + TiledRaster.TILE_SIZE - 1) / TiledRaster.TILE_SIZE * TiledRaster.TILE_SIZE;
+   }
+   
+   public Layer getActive()
+   {
+      return layers.get(active);
+   }
+   
+   public Layer createLayer()
+   {
+      return createLayer(nextLayerId);
+   }
+   
+   /** Creates a layer with a given id (e.g. when loading a saved drawing) */
+   public Layer createLayer(int id)
+   {
+      Layer layer = Layer.create(width, height);
+      layer.id = id;
+      nextLayerId = Math.max(nextLayerId, id + 1);
+      return layer;
+   }
+   
+   /** Finds the layer with the given id, or null if there isn't one */
+   public Layer findLayer(int id)
+   {
+      for (Layer layer: layers)
+      {
+         if (layer.id == id) return layer;
+      }
+      return null;
+   }
+   
+   /** Adds an empty layer above the active layer and makes it active */
+   public void addLayer()
+   {
+      layers.add(active + 1, createLayer());
+      active++;
+   }
+   
+   /** 
+    * Adds an empty vector layer, which keeps its strokes so that it can 
+    * be drawn again at any size, above the active layer and makes it active
+    */
+   public void addVectorLayer()
+   {
+      Layer layer = createLayer();
+      layer.vector = new VectorLayer(PixelBuffer::create, width, height);
+      layers.add(active + 1, layer);
+      active++;
+   }
+   
+   public void removeLayer(int index)
+   {
+      if (layers.size() <= 1 || index < 0 || index >= layers.size()) return;
+      layers.remove(index);
+      if (index < active || active >= layers.size())
+         active--;
+   }
+   
+   public void moveLayer(int from, int to)
+   {
+      if (from < 0 || from >= layers.size() || to < 0 || to >= layers.size()) return;
+      Layer activeLayer = getActive();
+      layers.add(to, layers.remove(from));
+      active = layers.indexOf(activeLayer);
+   }
+   
+   public void setActive(int index)
+   {
+      if (index < 0 || index >= layers.size()) return;
+      active = index;
+   }
+   
+   /** Whether an area of the drawing (inclusive coordinates) is inside the window */
+   boolean isInWindow(int x0, int y0, int x1, int y1)
+   {
+      return x0 >= originX && y0 >= originY && x1 < originX + windowWidth && y1 < originY + windowHeight;
+   }
+   
+   /** 
+    * Moves the window so that its top-left corner is in the tile holding
+    * the given point of the drawing. Everything in the window must have 
+    * been stored back into the layers beforehand, and the window must be
+    * reloaded afterwards.
+    */
+   void moveWindow(int x, int y)
+   {
+      originX = x / TiledRaster.TILE_SIZE * TiledRaster.TILE_SIZE;
+      originY = y / TiledRaster.TILE_SIZE * TiledRaster.TILE_SIZE;
+   }
+   
+   /** Copies the active layer into the window and recalculates the cached images */
+   public void reloadWindow()
+   {
+      getActive().tiles.readRect(originX, originY, activeRaster, 0, 0, windowWidth, windowHeight);
+      rebuildCaches();
+   }
+   
+   /**
+    * Shows that an area of a layer (in the coordinates of the drawing) was
+    * changed directly in its tiles by copying it into the window. The 
+    * part of the area that is in the window is added to windowDirty.
+    */
+   public void reloadArea(TiledRaster layerTiles, DirtyRect area, DirtyRect windowDirty)
+   {
+      mips.invalidate(area.minX, area.minY, area.maxX, area.maxY);
+      int x0 = Math.max(area.minX - originX, 0);
+      int y0 = Math.max(area.minY - originY, 0);
+      int x1 = Math.min(area.maxX - originX, windowWidth - 1);
+      int y1 = Math.min(area.maxY - originY, windowHeight - 1);
+      if (x0 > x1 || y0 > y1) return;
+      if (layerTiles == getActive().tiles)
+         layerTiles.readRect(originX + x0, originY + y0, activeRaster, x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+      else
+         rebuildCaches(x0, y0, x1, y1);
+      windowDirty.add(x0, y0, x1, y1);
+   }
+   
+   /** Recalculates the cached images of the layers below and above the active layer (window coordinates) */
+   public void rebuildCaches(int x0, int y0, int x1, int y1)
+   {
+      if (active > 0)
+      {
+         if (below == null)
+            below = PixelBuffer.create(windowWidth, windowHeight);
+         flatten(below, 0, active, x0, y0, x1, y1);
+      }
+      else
+         below = null;
+      if (active < layers.size() - 1)
+      {
+         if (above == null)
+            above = PixelBuffer.create(windowWidth, windowHeight);
+         flatten(above, active + 1, layers.size(), x0, y0, x1, y1);
+      }
+      else
+         above = null;
+   }
+
+   public void rebuildCaches()
+   {
+      rebuildCaches(0, 0, windowWidth - 1, windowHeight - 1);
+   }
+   
+   /**
+    * Updates the composite image in the given area. The brush image holds
+    * an unfinished stroke that is shown as if it were already drawn over
+    * the active layer.
+    */
+   public void composite(PixelBuffer brush, DirtyRect rect)
+   {
+      Compositor.composite(compositeRaster, below, activeRaster, getActive().getAlphaScale(), brush, above, rect);
+      if (!rect.isEmpty())
+         mips.invalidate(rect.minX + originX, rect.minY + originY, rect.maxX + originX, rect.maxY + originY);
+   }
+   
+   /** 
+    * Composites a tile of the drawing for the mip cache. Tiles in the 
+    * window are taken from the composite image of the window, so they 
+    * include any unfinished stroke.
+    */
+   @Override public boolean readTile(int tx, int ty, Raster to, int toX, int toY)
+   {
+      int tileSize = TiledRaster.TILE_SIZE;
+      int x = tx * tileSize;
+      int y = ty * tileSize;
+      if (activeRaster != null && isInWindow(x, y, x + tileSize - 1, y + tileSize - 1))
+      {
+         to.copyRect(compositeRaster, x - originX, y - originY, toX, toY, tileSize, tileSize);
+         return true;
+      }
+      // Areas where every layer is a single color can be blended without 
+      // touching any pixels
+      boolean isUniform = x + tileSize <= width && y + tileSize <= height;
+      int color = 0;
+      for (int n = 0; n < layers.size() && isUniform; n++)
+      {
+         TiledRaster tiles = layers.get(n).tiles;
+         if (tiles.getTile(tx, ty) != null)
+            isUniform = false;
+         else
+            color = Pixels.blendOver(color, Pixels.scaleAlpha(tiles.getTileColor(tx, ty), layers.get(n).getAlphaScale()));
+      }
+      if (isUniform)
+      {
+         to.pixels[toY * to.width + toX] = color;
+         return false;
+      }
+      to.fillRect(toX, toY, toX + tileSize - 1, toY + tileSize - 1, 0);
+      for (Layer layer: layers)
+         Compositor.blendTiles(to, x - toX, y - toY, layer.tiles, layer.getAlphaScale(), toX, toY, toX + tileSize - 1, toY + tileSize - 1);
+      return true;
+   }
+   
+   /** Flattens a range of layers into an image of the window (inclusive coordinates) */
+   void flatten(PixelBuffer out, int fromLayer, int toLayer, int x0, int y0, int x1, int y1)
+   {
+      out.fillRect(x0, y0, x1, y1, 0);
+      for (int n = fromLayer; n < toLayer; n++)
+         Compositor.blendTiles(out, originX, originY, layers.get(n).tiles, layers.get(n).getAlphaScale(), x0, y0, x1, y1);
+   }
+   
+   /** Area of the drawing that has been drawn on in the visible layers */
+   public DirtyRect getInkedBounds()
+   {
+      DirtyRect bounds = new DirtyRect();
+      for (Layer layer: layers)
+      {
+         if (layer.getAlphaScale() > 0)
+            layer.tiles.addInkedBounds(bounds);
+      }
+      return bounds;
+   }
+   
+   /** Flattens all the layers in the area of the drawing at (x, y) that's the size of out */
+   public void flattenDrawing(Raster out, int x, int y)
+   {
+      out.fillRect(0, 0, out.width - 1, out.height - 1, 0);
+      for (Layer layer: layers)
+         Compositor.blendTiles(out, x, y, layer.tiles, layer.getAlphaScale(), 0, 0, out.width - 1, out.height - 1);
+   }
+   
+   /**
+    * Flattens all the layers into the area at (x, y) that's the size of
+    * out of the drawing at scale (1, 2, 4, or 8) times its size. Vector
+    * layers are drawn again from their strokes, and in other layers, each
+    * pixel becomes a block of pixels. This is done in bands a tile high, 
+    * so vector layers only need to hold one band of their bigger copies 
+    * in their caches at a time.
+    */
+   public void flattenDrawingAtScale(Raster out, int x, int y, int scale)
+   {
+      if (scale == 1)
+      {
+         flattenDrawing(out, x, y);
+         return;
+      }
+      int bandHeight = TiledRaster.TILE_SIZE;
+      PixelBuffer band = PixelBuffer.create(out.width, bandHeight);
+      PixelBuffer bandLayer = PixelBuffer.create(out.width, bandHeight);
+      PixelBuffer unscaled = PixelBuffer.create(out.width / scale + 2, bandHeight / scale + 2);
+      for (int bandY = 0; bandY < out.height; bandY += bandHeight)
+      {
+         int h = Math.min(bandHeight, out.height - bandY);
+         band.fillRect(0, 0, out.width - 1, h - 1, 0);
+         for (Layer layer: layers)
+         {
+            if (layer.getAlphaScale() == 0) continue;
+            if (layer.vector != null)
+               layer.vector.readScaledRect(scale, x, y + bandY, bandLayer, 0, 0, out.width, h);
+            else
+            {
+               int fromX = x / scale;
+               int fromY = (y + bandY) / scale;
+               layer.tiles.readRect(fromX, fromY, unscaled, 0, 0, (x + out.width - 1) / scale - fromX + 1, (y + bandY + h - 1) / scale - fromY + 1);
+               scaleUp(unscaled, fromX, fromY, bandLayer, x, y + bandY, out.width, h, scale);
+            }
+            Compositor.blendLayer(band, bandLayer, layer.getAlphaScale(), 0, 0, out.width - 1, h - 1);
+         }
+         out.copyRect(band, 0, 0, 0, bandY, out.width, h);
+      }
+   }
+   
+   /**
+    * Fills a w by h block of a raster with a part of the drawing scaled up
+    * by a whole number. The block starts at (x, y) in the scaled drawing,
+    * and the pixels it is made from are in from, which starts at (fromX,
+    * fromY) in the drawing.
+    */
+   static void scaleUp(Raster from, int fromX, int fromY, Raster to, int x, int y, int w, int h, int scale)
+   {
+      int[] fromPixels = from.pixels;
+      int[] toPixels = to.pixels;
+      for (int row = 0; row < h; row++)
+      {
+         int fromIdx = ((y + row) / scale - fromY) * from.width - fromX;
+         int idx = row * to.width;
+         for (int col = 0; col < w; col++)
+            toPixels[idx + col] = fromPixels[fromIdx + (x + col) / scale];
+      }
+   }
+   
+   /** Bytes of memory used for holding the pixels of the layers, and the strokes and caches of vector layers */
+   public int getMemoryUsage()
+   {
+      int bytes = 0;
+      for (Layer layer: layers)
+      {
+         bytes += layer.tiles.getMemoryUsage();
+         if (layer.vector != null)
+            bytes += layer.vector.getMemoryUsage();
+      }
+      return bytes;
+   }
+}
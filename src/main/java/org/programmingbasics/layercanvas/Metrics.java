@@ -0,0 +1,197 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+
+/**
+ * Collects timings and counts of the work done by a canvas, so that a page
+ * can report how well drawing performs on the devices people actually
+ * use. Nothing is recorded until it is enabled, and while it's disabled,
+ * the cost of recording is a single check.
+ *
+ * Timings are kept as histograms with buckets that double in size, so
+ * they don't grow no matter how long they are recorded for.
+ */
+public class Metrics
+{
+   /** Upper bounds of the buckets of timing histograms, in milliseconds. There's one more bucket for anything longer */
+   static final double[] BUCKET_BOUNDS = {0.25, 0.5, 1, 2, 4, 8, 16, 32, 64, 128};
+
+   /** Distribution of how long an operation takes */
+   public static class Timing
+   {
+      final String name;
+      int[] buckets = new int[BUCKET_BOUNDS.length + 1];
+      int count;
+      double total;
+      double max;
+
+      Timing(String name)
+      {
+         this.name = name;
+      }
+
+      /** Records the time since a start time from Metrics.start(), if recording was enabled then */
+      public void stop(double start)
+      {
+         if (start < 0) return;
+         add(FrameTimer.now() - start);
+      }
+
+      void add(double ms)
+      {
+         int bucket = 0;
+         while (bucket < BUCKET_BOUNDS.length && ms > BUCKET_BOUNDS[bucket])
+            bucket++;
+         buckets[bucket]++;
+         count++;
+         total += ms;
+         if (ms > max)
+            max = ms;
+      }
+   }
+
+   /**
+    * A running total. Totals are kept as doubles because longs are slow
+    * in JavaScript, and doubles can count exactly up to 2^53.
+    */
+   public static class Counter
+   {
+      final String name;
+      double total;
+      Metrics metrics;
+
+      Counter(Metrics metrics, String name)
+      {
+         this.metrics = metrics;
+         this.name = name;
+      }
+
+      public void add(double amount)
+      {
+         if (metrics.isEnabled)
+            total += amount;
+      }
+
+      /** Adds the number of pixels in a rectangle */
+      public void addArea(DirtyRect rect)
+      {
+         if (metrics.isEnabled)
+            total += (double)rect.getWidth() * rect.getHeight();
+      }
+   }
+
+   boolean isEnabled = false;
+   List<Timing> timings = new ArrayList<>();
+   List<Counter> counters = new ArrayList<>();
+
+   /** Values that are read when a snapshot is taken (e.g. memory usage) */
+   List<String> gaugeNames = new ArrayList<>();
+   List<Double> gaugeValues = new ArrayList<>();
+
+   public Timing timing(String name)
+   {
+      Timing timing = new Timing(name);
+      timings.add(timing);
+      return timing;
+   }
+
+   public Counter counter(String name)
+   {
+      Counter counter = new Counter(this, name);
+      counters.add(counter);
+      return counter;
+   }
+
+   public void setEnabled(boolean enable)
+   {
+      isEnabled = enable;
+   }
+
+   public boolean isEnabled()
+   {
+      return isEnabled;
+   }
+
+   /** Gets a start time for Timing.stop(), or -1 if recording is disabled */
+   public double start()
+   {
+      return isEnabled ? FrameTimer.now() : -1;
+   }
+
+   /** Sets the value of a gauge in the next snapshot */
+   public void setGauge(String name, double value)
+   {
+      int index = gaugeNames.indexOf(name);
+      if (index < 0)
+      {
+         gaugeNames.add(name);
+         gaugeValues.add(value);
+      }
+      else
+         gaugeValues.set(index, value);
+   }
+
+   public void reset()
+   {
+      for (Timing timing: timings)
+      {
+         timing.buckets = new int[BUCKET_BOUNDS.length + 1];
+         timing.count = 0;
+         timing.total = 0;
+         timing.max = 0;
+      }
+      for (Counter counter: counters)
+         counter.total = 0;
+   }
+
+   /**
+    * Writes everything recorded so far as JSON. Each timing has its count,
+    * total and maximum milliseconds, and the counts in each bucket, where
+    * bucket n holds times up to bucketBounds[n] (and the last bucket holds
+    * anything longer).
+    */
+   public String toJson()
+   {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"enabled\":").append(isEnabled);
+      json.append(",\"bucketBounds\":[");
+      for (int n = 0; n < BUCKET_BOUNDS.length; n++)
+      {
+         if (n > 0) json.append(',');
+         json.append(BUCKET_BOUNDS[n]);
+      }
+      json.append("],\"timings\":{");
+      for (int n = 0; n < timings.size(); n++)
+      {
+         Timing timing = timings.get(n);
+         if (n > 0) json.append(',');
+         json.append('"').append(timing.name).append("\":{\"count\":").append(timing.count)
+            .append(",\"totalMs\":").append(timing.total)
+            .append(",\"maxMs\":").append(timing.max)
+            .append(",\"buckets\":[");
+         for (int b = 0; b < timing.buckets.length; b++)
+         {
+            if (b > 0) json.append(',');
+            json.append(timing.buckets[b]);
+         }
+         json.append("]}");
+      }
+      json.append("},\"counters\":{");
+      for (int n = 0; n < counters.size(); n++)
+      {
+         if (n > 0) json.append(',');
+         json.append('"').append(counters.get(n).name).append("\":").append(counters.get(n).total);
+      }
+      json.append("},\"gauges\":{");
+      for (int n = 0; n < gaugeNames.size(); n++)
+      {
+         if (n > 0) json.append(',');
+         json.append('"').append(gaugeNames.get(n)).append("\":").append(gaugeValues.get(n));
+      }
+      json.append("}}");
+      return json.toString();
+   }
+}
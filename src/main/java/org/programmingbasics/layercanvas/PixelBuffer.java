@@ -0,0 +1,111 @@
+package org.programmingbasics.layercanvas;
+
+import org.programmingbasics.layercanvas.raster.Raster;
+
+import elemental.html.ImageData;
+import elemental.html.Uint8ClampedArray;
+
+/**
+ * A raster whose pixels are kept in a typed array, possibly sharing 
+ * memory with canvas image data so that it can be shown on a canvas 
+ * without any copying. Copies and fills are done with the bulk 
+ * operations of typed arrays (set() and fill()), which are much faster 
+ * than moving pixels one at a time in JavaScript.
+ * 
+ * Typed arrays aren't really Java arrays, but GWT compiles reads and 
+ * writes of int arrays into plain JavaScript array accesses, so an
+ * Int32Array can stand in for an int[] as long as it is only indexed
+ * and has its length read. An Int32Array is used instead of a 
+ * Uint32Array so that pixels read back as the same (signed) values that 
+ * Java code writes. Image data is viewed as little-endian ints, which is 
+ * the byte order used by all browsers in practice.
+ */
+public class PixelBuffer extends Raster
+{
+   /** Image data sharing memory with the pixels (or null) */
+   ImageData imageData;
+   
+   PixelBuffer(int width, int height, int[] pixels, ImageData imageData)
+   {
+      super(width, height, pixels);
+      this.imageData = imageData;
+   }
+   
+   /** Creates a buffer that isn't attached to any image data. Can be used as a RasterFactory */
+   public static PixelBuffer create(int width, int height)
+   {
+      return new PixelBuffer(width, height, newIntArray(width * height), null);
+   }
+   
+   /** Views the pixels of image data as a raster. Changes to one show up in the other */
+   public static PixelBuffer wrap(ImageData data)
+   {
+      return new PixelBuffer(data.getWidth(), data.getHeight(), asIntArray(data.getData()), data);
+   }
+   
+   public ImageData getImageData()
+   {
+      return imageData;
+   }
+   
+   /** Switches the raster over to the pixels of different image data of the same size */
+   public void attach(ImageData data)
+   {
+      pixels = asIntArray(data.getData());
+      imageData = data;
+   }
+   
+   /** Creates image data that shares its memory with an Int32Array of pixels */
+   static native ImageData createImageData(int[] pixels, int width, int height) /*-{
+      return new $wnd.ImageData(new $wnd.Uint8ClampedArray(pixels.buffer, pixels.byteOffset, pixels.length * 4), width, height);
+   }-*/;
+   
+   @Override public void fillSpan(int idx, int count, int color)
+   {
+      fill(pixels, idx, idx + count, color);
+   }
+   
+   @Override public void copySpan(Raster from, int fromIdx, int toIdx, int count)
+   {
+      if (!(from instanceof PixelBuffer))
+      {
+         super.copySpan(from, fromIdx, toIdx, count);
+         return;
+      }
+      copy(from.pixels, fromIdx, pixels, toIdx, count);
+   }
+   
+   @Override public void swapRect(Raster other, int otherX, int otherY, int x, int y, int w, int h)
+   {
+      if (!(other instanceof PixelBuffer))
+      {
+         super.swapRect(other, otherX, otherY, x, y, w, h);
+         return;
+      }
+      int[] temp = newIntArray(w);
+      for (int row = 0; row < h; row++)
+      {
+         int otherIdx = (otherY + row) * other.width + otherX;
+         int idx = (y + row) * width + x;
+         copy(pixels, idx, temp, 0, w);
+         copy(other.pixels, otherIdx, pixels, idx, w);
+         copy(temp, 0, other.pixels, otherIdx, w);
+      }
+   }
+   
+   private static native int[] newIntArray(int size) /*-{
+      return new Int32Array(size);
+   }-*/;
+   
+   private static native int[] asIntArray(Uint8ClampedArray bytes) /*-{
+      return new Int32Array(bytes.buffer, bytes.byteOffset, bytes.length >> 2);
+   }-*/;
+   
+   private static native void fill(int[] arr, int start, int end, int val) /*-{
+      arr.fill(val, start, end);
+   }-*/;
+   
+   private static native void copy(int[] from, int fromIdx, int[] to, int toIdx, int count) /*-{
+      to.set(from.subarray(fromIdx, fromIdx + count), toIdx);
+   }-*/;
+}
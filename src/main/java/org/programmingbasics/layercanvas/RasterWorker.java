@@ -0,0 +1,141 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.function.Consumer;
+
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoRecorder;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+import org.programmingbasics.layercanvas.worker.WorkerMessage;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Runs big operations on pixels in a web worker (see RasterWorkerEntry)
+ * so that the page keeps responding while they run. The pixels are 
+ * transferred to the worker and back instead of being copied, so they 
+ * can't be read or drawn on until the worker replies. Only one operation
+ * is sent to the worker at a time.
+ */
+public class RasterWorker
+{
+   JavaScriptObject worker;
+   
+   /** 
+    * Whether the worker has loaded. Nothing is sent to the worker before
+    * then so that a worker that fails to load doesn't take a layer with it
+    */
+   boolean isReady = false;
+   
+   /** Raster whose pixels are with the worker (if any) */
+   PixelBuffer busyRaster;
+   
+   /** Called with the reply to the operation in progress */
+   Consumer<WorkerMessage> onReply;
+   
+   public static RasterWorker create(String url)
+   {
+      RasterWorker rasterWorker = new RasterWorker();
+      rasterWorker.worker = rasterWorker.startWorker(url);
+      return rasterWorker;
+   }
+   
+   /** Whether an operation can be sent to the worker right now */
+   boolean isAvailable()
+   {
+      return isReady && onReply == null;
+   }
+   
+   boolean isBusy()
+   {
+      return onReply != null;
+   }
+   
+   /** 
+    * Sends a request to work on the pixels of a raster (or on other pixels
+    * if the raster is null). The raster can't be used until the reply arrives
+    */
+   void start(PixelBuffer raster, WorkerMessage request, Consumer<WorkerMessage> onReply)
+   {
+      busyRaster = raster;
+      this.onReply = onReply;
+      request.postTo(worker);
+   }
+   
+   void onMessage(WorkerMessage reply)
+   {
+      if (WorkerMessage.READY.equals(reply.getOp()))
+      {
+         isReady = true;
+         return;
+      }
+      PixelBuffer raster = busyRaster;
+      Consumer<WorkerMessage> handler = onReply;
+      busyRaster = null;
+      onReply = null;
+      if (raster != null)
+         raster.attach(PixelBuffer.createImageData(reply.getPixels("pixels"), raster.width, raster.height));
+      handler.accept(reply);
+   }
+   
+   /** 
+    * Stores the tiles of a raster that were changed by the worker into a 
+    * layer and makes an undo command from the old tiles in the reply (or
+    * returns null if nothing changed). The raster holds the part of the 
+    * layer starting at (originX, originY).
+    */
+   static UndoableCommand commitChangedTiles(WorkerMessage reply, Raster raster, TiledRaster layerTiles, int originX, int originY)
+   {
+      int tileCount = reply.getTileCount();
+      if (tileCount == 0) return null;
+      int[] tileX = reply.getPixels("tileX");
+      int[] tileY = reply.getPixels("tileY");
+      Raster[] tiles = new Raster[tileCount];
+      for (int n = 0; n < tileCount; n++)
+      {
+         int tileWidth = Math.min(UndoRecorder.TILE_SIZE, raster.width - tileX[n]);
+         int tileHeight = Math.min(UndoRecorder.TILE_SIZE, raster.height - tileY[n]);
+         tiles[n] = new PixelBuffer(tileWidth, tileHeight, reply.getTile(n), null);
+      }
+      return layerTiles.commit(raster, originX, originY, tileCount, tileX, tileY, tiles);
+   }
+   
+   /** Rebuilds an image that was split into tiles by the worker */
+   static TiledRaster getSplitTiles(WorkerMessage reply)
+   {
+      TiledRaster tiled = new TiledRaster(PixelBuffer::create, reply.getInt("width"), reply.getInt("height"));
+      int[] tileIndex = reply.getPixels("tileIndex");
+      int[] tileColors = reply.getPixels("tileColors");
+      int n = 0;
+      for (int ty = 0; ty < tiled.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < tiled.getTilesAcross(); tx++, n++)
+         {
+            if (tileIndex[n] < 0)
+               tiled.setTile(tx, ty, null, tileColors[n]);
+            else
+               tiled.setTile(tx, ty, new PixelBuffer(tiled.getTileWidth(tx), tiled.getTileHeight(ty), reply.getTile(tileIndex[n]), null), 0);
+         }
+      }
+      return tiled;
+   }
+   
+   /** Stops the worker. Must not be called while the worker is busy */
+   void terminate()
+   {
+      terminateWorker(worker);
+   }
+   
+   private native JavaScriptObject startWorker(String url) /*-{
+      var self = this;
+      var worker = new $wnd.Worker(url);
+      worker.onmessage = function(e) {
+         self.@org.programmingbasics.layercanvas.RasterWorker::onMessage(*)(e.data);
+      };
+      return worker;
+   }-*/;
+   
+   private static native void terminateWorker(JavaScriptObject worker) /*-{
+      worker.terminate();
+   }-*/;
+}
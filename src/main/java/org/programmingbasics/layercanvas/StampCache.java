@@ -0,0 +1,104 @@
+package org.programmingbasics.layercanvas;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.Raster;
+
+import elemental.client.Browser;
+import elemental.html.CanvasElement;
+import elemental.html.CanvasRenderingContext2D;
+import elemental.html.ImageData;
+import elemental.html.ImageElement;
+
+/**
+ * Turns images into stamps, which are scaled, rotated, and thresholded
+ * so that every pixel is either opaque or fully transparent. Making a
+ * stamp needs the image to be drawn on a canvas and read back, so the
+ * most recently used stamps are kept around for when the same image is
+ * picked again with the same scale and rotation. Placing a stamp is then
+ * just a copy of its pixels.
+ */
+public class StampCache
+{
+   /** Number of stamps to keep */
+   static final int MAX_STAMPS = 8;
+
+   /** A stamp, cropped to the pixels that aren't transparent */
+   public static class Stamp
+   {
+      public Raster pixels;
+
+      /** Position in the pixels that goes under the pointer */
+      public int centerX;
+      public int centerY;
+   }
+
+   /** Stamps from least to most recently used */
+   LinkedHashMap<String, Stamp> stamps = new LinkedHashMap<>(16, 0.75f, true);
+
+   /** Gets the stamp for an image, making it if it isn't in the cache. The image must be loaded */
+   public Stamp get(ImageElement img, double scale, double rotation)
+   {
+      // Images with the same source have the same pixels
+      String key = scale + " " + rotation + " " + img.getSrc();
+      Stamp stamp = stamps.get(key);
+      if (stamp != null) return stamp;
+      stamp = rasterize(img, scale, rotation);
+      stamps.put(key, stamp);
+      if (stamps.size() > MAX_STAMPS)
+      {
+         Iterator<String> oldest = stamps.keySet().iterator();
+         oldest.next();
+         oldest.remove();
+      }
+      return stamp;
+   }
+
+   static Stamp rasterize(ImageElement img, double scale, double rotation)
+   {
+      int size = Math.max(img.getWidth(), img.getHeight());
+      size = (int)Math.ceil(scale * size);
+      size *= 2;
+      if (size < 2) size = 2;
+      CanvasElement canvas = (CanvasElement)Browser.getDocument().createElement("canvas");
+      canvas.setWidth(size);
+      canvas.setHeight(size);
+      LayerCanvas.setCanvasImageSmoothing(canvas, false);
+      CanvasRenderingContext2D ctx = (CanvasRenderingContext2D)canvas.getContext("2d");
+      ctx.clearRect(0, 0, size, size);
+      ctx.save();
+      ctx.translate(size / 2, size / 2);
+      ctx.rotate((float)rotation);
+      ctx.scale((float)scale, (float)scale);
+      ctx.translate(-img.getWidth() / 2, -img.getHeight() / 2);
+      ctx.drawImage(img, 0, 0);
+      ctx.restore();
+      // Threshold the image to be safe
+      ImageData imgData = ctx.getImageData(0, 0, size, size);
+      Raster full = PixelBuffer.wrap(imgData);
+      int[] pixels = full.pixels;
+      DirtyRect bounds = new DirtyRect();
+      for (int y = 0; y < size; y++)
+      {
+         for (int x = 0, idx = y * size; x < size; x++, idx++)
+         {
+            if ((pixels[idx] >>> 24) < 255)
+               pixels[idx] = 0;
+            else
+               bounds.add(x, y, x, y);
+         }
+      }
+      // The image is drawn with room for any rotation, so most of it is
+      // usually empty
+      if (bounds.isEmpty())
+         bounds.add(0, 0, 0, 0);
+      Stamp stamp = new Stamp();
+      stamp.pixels = PixelBuffer.create(bounds.maxX - bounds.minX + 1, bounds.maxY - bounds.minY + 1);
+      stamp.pixels.copyRect(full, bounds.minX, bounds.minY, 0, 0, stamp.pixels.width, stamp.pixels.height);
+      stamp.centerX = size / 2 - bounds.minX;
+      stamp.centerY = size / 2 - bounds.minY;
+      return stamp;
+   }
+}
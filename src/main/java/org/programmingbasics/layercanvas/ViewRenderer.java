@@ -0,0 +1,149 @@
+package org.programmingbasics.layercanvas;
+
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.MipCache;
+
+import elemental.client.Browser;
+import elemental.html.CanvasElement;
+import elemental.html.CanvasRenderingContext2D;
+import elemental.html.ImageData;
+
+/**
+ * Shows the drawing on the main canvas at any zoom.
+ *
+ * At full size, the composite image of the window is put straight onto
+ * the canvas. When zoomed in, the composite image is put onto an
+ * offscreen canvas that the browser then draws scaled up. When zoomed
+ * out, the view is read from the level of the mip cache closest in size
+ * to what is shown, and the browser only has to shrink that by less than
+ * half. The work done then depends on the size of the canvas and not on
+ * how much of the drawing is visible.
+ */
+public class ViewRenderer
+{
+   CanvasElement canvas;
+   CanvasRenderingContext2D ctx;
+
+   /** Offscreen image that is drawn scaled onto the canvas */
+   CanvasElement scaledCanvas;
+   CanvasRenderingContext2D scaledCtx;
+   ImageData scaledData;
+   PixelBuffer scaledRaster;
+
+   /** Whether the offscreen image holds the composite image of the window (when zoomed in) */
+   boolean isScaledWindow = false;
+
+   /** Time taken by each putImageData(), and the bytes of pixels put onto canvases */
+   Metrics metrics;
+   Metrics.Timing putImageTiming;
+   Metrics.Counter bytesCopied;
+
+   public ViewRenderer(CanvasElement canvas, CanvasRenderingContext2D ctx, Metrics metrics)
+   {
+      this.canvas = canvas;
+      this.ctx = ctx;
+      this.metrics = metrics;
+      putImageTiming = metrics.timing("putImageData");
+      bytesCopied = metrics.counter("bytesCopied");
+   }
+
+   /**
+    * Shows the drawing at the given zoom, with the top-left corner of the
+    * canvas at (viewX, viewY) of the drawing. Only the dirty area of the
+    * window (which must already be composited) has changed since the
+    * last time, unless the view has changed.
+    */
+   public void show(LayerStack layers, double zoom, int viewX, int viewY, DirtyRect dirty, boolean isViewChanged)
+   {
+      if (zoom == 1)
+         showActualSize(layers, viewX, viewY, dirty, isViewChanged);
+      else if (zoom > 1)
+         showZoomedIn(layers, zoom, viewX, viewY, dirty, isViewChanged);
+      else
+         showZoomedOut(layers, zoom, viewX, viewY);
+   }
+
+   void showActualSize(LayerStack layers, int viewX, int viewY, DirtyRect dirty, boolean isViewChanged)
+   {
+      isScaledWindow = false;
+      // The canvas shows the part of the window starting at the view
+      if (isViewChanged)
+         putImageData(ctx, layers.compositeData, layers.originX - viewX, layers.originY - viewY,
+               0, 0, layers.windowWidth, layers.windowHeight);
+      else
+         putImageData(ctx, layers.compositeData, layers.originX - viewX, layers.originY - viewY,
+               dirty.getX(), dirty.getY(), dirty.getWidth(), dirty.getHeight());
+   }
+
+   /** When zoomed in, the view is always inside the window */
+   void showZoomedIn(LayerStack layers, double zoom, int viewX, int viewY, DirtyRect dirty, boolean isViewChanged)
+   {
+      if (!isScaledWindow || scaledCanvas.getWidth() != layers.windowWidth || scaledCanvas.getHeight() != layers.windowHeight)
+      {
+         createScaledCanvas(layers.windowWidth, layers.windowHeight);
+         isScaledWindow = true;
+         isViewChanged = true;
+      }
+      if (isViewChanged)
+         putImageData(scaledCtx, layers.compositeData, 0, 0, 0, 0, layers.windowWidth, layers.windowHeight);
+      else if (!dirty.isEmpty())
+         putImageData(scaledCtx, layers.compositeData, 0, 0, dirty.getX(), dirty.getY(), dirty.getWidth(), dirty.getHeight());
+      // Pixels should look like squares instead of being blurred together
+      setImageSmoothing(ctx, false);
+      ctx.drawImage(scaledCanvas, viewX - layers.originX, viewY - layers.originY,
+            (float)(canvas.getWidth() / zoom), (float)(canvas.getHeight() / zoom),
+            0, 0, canvas.getWidth(), canvas.getHeight());
+   }
+
+   /**
+    * When zoomed out, everything visible is read from the mip cache each
+    * time. Tiles that haven't changed are just copied, and this only
+    * involves up to four times as many pixels as are on the canvas.
+    */
+   void showZoomedOut(LayerStack layers, double zoom, int viewX, int viewY)
+   {
+      MipCache mips = layers.mips;
+      int level = mips.chooseLevel(zoom);
+      double scale = zoom * (1 << level);
+      int x = viewX >> level;
+      int y = viewY >> level;
+      int w = Math.min((int)Math.ceil(canvas.getWidth() / scale) + 1, mips.getLevelWidth(level) - x);
+      int h = Math.min((int)Math.ceil(canvas.getHeight() / scale) + 1, mips.getLevelHeight(level) - y);
+      if (isScaledWindow || scaledCanvas == null || scaledCanvas.getWidth() < w || scaledCanvas.getHeight() < h)
+      {
+         createScaledCanvas(Math.max(w, 2 * canvas.getWidth() + 2), Math.max(h, 2 * canvas.getHeight() + 2));
+         isScaledWindow = false;
+      }
+      mips.readRect(level, x, y, scaledRaster, 0, 0, w, h);
+      putImageData(scaledCtx, scaledData, 0, 0, 0, 0, w, h);
+      // The drawing might not fill the whole canvas
+      ctx.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+      setImageSmoothing(ctx, true);
+      ctx.drawImage(scaledCanvas, 0, 0, w, h,
+            (float)(((x << level) - viewX) * zoom), (float)(((y << level) - viewY) * zoom),
+            (float)(w * scale), (float)(h * scale));
+   }
+
+   /** Puts an area of image data onto a canvas, keeping track of how long it takes */
+   void putImageData(CanvasRenderingContext2D to, ImageData data, int x, int y, int dirtyX, int dirtyY, int dirtyWidth, int dirtyHeight)
+   {
+      double start = metrics.start();
+      to.putImageData(data, x, y, dirtyX, dirtyY, dirtyWidth, dirtyHeight);
+      putImageTiming.stop(start);
+      bytesCopied.add(4.0 * dirtyWidth * dirtyHeight);
+   }
+
+   void createScaledCanvas(int w, int h)
+   {
+      scaledCanvas = (CanvasElement)Browser.getDocument().createElement("canvas");
+      scaledCanvas.setWidth(w);
+      scaledCanvas.setHeight(h);
+      scaledCtx = (CanvasRenderingContext2D)scaledCanvas.getContext("2d");
+      scaledData = scaledCtx.createImageData(w, h);
+      scaledRaster = PixelBuffer.wrap(scaledData);
+   }
+
+   private static native void setImageSmoothing(CanvasRenderingContext2D ctx, boolean isEnabled) /*-{
+      ctx.imageSmoothingEnabled = isEnabled;
+   }-*/;
+}
@@ -0,0 +1,91 @@
+package org.programmingbasics.layercanvas.io;
+
+/**
+ * Reads numbers written by a ByteWriter. Reading past the end of the 
+ * data returns zeros instead of failing, and marks the reader as having
+ * overrun, which should be checked once a whole block of data has been
+ * read. The data can come from a JavaScript Uint8Array, so bytes are 
+ * always masked to their lowest 8 bits.
+ */
+public class ByteReader
+{
+   byte[] data;
+   int pos;
+   int end;
+   boolean isOverrun = false;
+
+   /** Reads length bytes of data starting from offset */
+   public ByteReader(byte[] data, int offset, int length)
+   {
+      this.data = data;
+      this.pos = offset;
+      this.end = offset + length;
+   }
+
+   public int getPosition()
+   {
+      return pos;
+   }
+
+   public int getRemaining()
+   {
+      return end - pos;
+   }
+
+   /** Whether a read went past the end of the data */
+   public boolean isOverrun()
+   {
+      return isOverrun;
+   }
+
+   public void skip(int count)
+   {
+      if (count > end - pos)
+      {
+         isOverrun = true;
+         pos = end;
+         return;
+      }
+      pos += count;
+   }
+
+   public int readByte()
+   {
+      if (pos >= end)
+      {
+         isOverrun = true;
+         return 0;
+      }
+      return data[pos++] & 0xff;
+   }
+
+   public int readInt()
+   {
+      return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+   }
+
+   public int readVarint()
+   {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7)
+      {
+         int b = readByte();
+         value |= (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) break;
+      }
+      return value;
+   }
+
+   public int readSignedVarint()
+   {
+      int value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public double readDouble()
+   {
+      long high = readInt();
+      long low = readInt() & 0xffffffffL;
+      return Double.longBitsToDouble((high << 32) | low);
+   }
+}
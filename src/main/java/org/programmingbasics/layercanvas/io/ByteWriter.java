@@ -0,0 +1,95 @@
+package org.programmingbasics.layercanvas.io;
+
+import java.util.function.IntFunction;
+
+/**
+ * Builds up binary data in an array that grows as needed. Numbers are 
+ * written most significant byte first, and small non-negative numbers 
+ * can be written as varints, which take one byte for every 7 bits used.
+ */
+public class ByteWriter
+{
+   byte[] data = new byte[4096];
+   int length = 0;
+
+   public void writeByte(int b)
+   {
+      if (length == data.length)
+         grow(length + 1);
+      data[length++] = (byte)b;
+   }
+
+   public void writeInt(int value)
+   {
+      writeByte(value >>> 24);
+      writeByte(value >>> 16);
+      writeByte(value >>> 8);
+      writeByte(value);
+   }
+
+   /** Writes a non-negative number 7 bits at a time, lowest bits first */
+   public void writeVarint(int value)
+   {
+      while ((value & ~0x7f) != 0)
+      {
+         writeByte((value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      writeByte(value);
+   }
+
+   /** Writes a number that may be negative, with small negative numbers taking few bytes */
+   public void writeSignedVarint(int value)
+   {
+      writeVarint((value << 1) ^ (value >> 31));
+   }
+
+   public void writeDouble(double value)
+   {
+      long bits = Double.doubleToLongBits(value);
+      writeInt((int)(bits >>> 32));
+      writeInt((int)bits);
+   }
+
+   public void writeBytes(byte[] from, int offset, int count)
+   {
+      if (length + count > data.length)
+         grow(length + count);
+      for (int n = 0; n < count; n++)
+         data[length + n] = from[offset + n];
+      length += count;
+   }
+
+   public int getLength()
+   {
+      return length;
+   }
+
+   /** Data written so far is at the start of this array */
+   public byte[] getData()
+   {
+      return data;
+   }
+
+   public void clear()
+   {
+      length = 0;
+   }
+
+   /** Copies the data written so far into an array of exactly the right size made by the allocator */
+   public byte[] toByteArray(IntFunction<byte[]> allocator)
+   {
+      byte[] copy = allocator.apply(length);
+      // The allocator might make typed arrays, which System.arraycopy() can't copy into
+      for (int n = 0; n < length; n++)
+         copy[n] = data[n];
+      return copy;
+   }
+
+   private void grow(int minLength)
+   {
+      byte[] newData = new byte[Math.max(minLength, data.length * 2)];
+      System.arraycopy(data, 0, newData, 0, length);
+      data = newData;
+   }
+}
@@ -0,0 +1,56 @@
+package org.programmingbasics.layercanvas.io;
+
+/**
+ * The CRC-32 used by PNG chunks and the Adler-32 used by zlib streams.
+ * java.util.zip isn't available in the browser, so they are calculated
+ * here instead.
+ */
+public class Checksums
+{
+   static final int[] CRC_TABLE = new int[256];
+   static
+   {
+      for (int n = 0; n < 256; n++)
+      {
+         int c = n;
+         for (int k = 0; k < 8; k++)
+            c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+         CRC_TABLE[n] = c;
+      }
+   }
+
+   /** Continues a CRC-32 (starting from 0) over more data */
+   public static int crc32(int crc, byte[] data, int offset, int length)
+   {
+      int c = ~crc;
+      for (int n = offset; n < offset + length; n++)
+         c = CRC_TABLE[(c ^ data[n]) & 0xff] ^ (c >>> 8);
+      return ~c;
+   }
+
+   static final int ADLER_BASE = 65521;
+
+   /** Most bytes that can be summed before the Adler-32 sums might overflow */
+   static final int ADLER_MAX_RUN = 5552;
+
+   /** Continues an Adler-32 (starting from 1) over more data */
+   public static int adler32(int adler, byte[] data, int offset, int length)
+   {
+      int a = adler & 0xffff;
+      int b = adler >>> 16;
+      while (length > 0)
+      {
+         int run = Math.min(length, ADLER_MAX_RUN);
+         for (int n = offset; n < offset + run; n++)
+         {
+            a += data[n] & 0xff;
+            b += a;
+         }
+         a %= ADLER_BASE;
+         b %= ADLER_BASE;
+         offset += run;
+         length -= run;
+      }
+      return (b << 16) | a;
+   }
+}
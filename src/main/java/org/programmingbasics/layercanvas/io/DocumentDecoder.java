@@ -0,0 +1,345 @@
+package org.programmingbasics.layercanvas.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoableCommand;
+import org.programmingbasics.layercanvas.raster.VectorLayer;
+
+/**
+ * Reads drawings saved in LayerCanvas's own file format (described in
+ * DocumentWriter) into tiles and undo commands. The records of the file
+ * are applied one after another, each one replacing the tiles and undo
+ * commands that it holds.
+ *
+ * The pixels of vector layers aren't saved, so they are drawn from the
+ * layers' strokes once all the records have been read.
+ *
+ * Nothing here needs a browser, so saved drawings can also be read on a
+ * server (e.g. for making thumbnails).
+ */
+public class DocumentDecoder
+{
+   public static final byte[] MAGIC = {'L', 'C', 'D', 'F'};
+   public static final int VERSION = 2;
+
+   /** Kinds of layers (from version 2 on) */
+   public static final int LAYER_PIXELS = 0;
+   public static final int LAYER_VECTOR = 1;
+
+   /** Kinds of records */
+   public static final int RECORD_FULL = 1;
+   public static final int RECORD_CHANGES = 2;
+
+   /** A layer of the saved drawing */
+   public static class SavedLayer
+   {
+      public int id;
+      public double opacity;
+      public boolean visible;
+      public TiledRaster tiles;
+
+      /** Strokes of a vector layer (null for other layers) */
+      public VectorLayer vector;
+   }
+
+   /** Used for allocating memory for tiles */
+   RasterFactory factory;
+
+   /** Format version of the file being read */
+   int version;
+
+   /** Size of the drawing (0 until a full record has been read) */
+   int width;
+   int height;
+
+   /** Layers of the drawing from the bottom up, and which one is active */
+   List<SavedLayer> layers = new ArrayList<>();
+   int active;
+
+   /**
+    * Every layer that has been in the drawing, by id. Undo commands can
+    * still refer to layers that were removed later on.
+    */
+   Map<Integer, SavedLayer> layersById = new HashMap<>();
+
+   /** Undo commands in the history, by id */
+   Map<Integer, UndoableCommand> commands = new HashMap<>();
+   List<UndoableCommand> history = new ArrayList<>();
+   int historyPosition;
+
+   /** Holds undo commands for layers that aren't in the drawing anymore */
+   TiledRaster removedLayerTiles;
+
+   /** Whether something in the current record doesn't make sense */
+   boolean isDamaged;
+
+   /** Color of the last tile read, if it was all one color */
+   int tileColor;
+
+   public DocumentDecoder(RasterFactory factory)
+   {
+      this.factory = factory;
+   }
+
+   /**
+    * Reads a saved file. Returns false if the data isn't a saved drawing.
+    * Records that are damaged are ignored along with everything after them.
+    */
+   public boolean read(byte[] data, int offset, int length)
+   {
+      ByteReader in = new ByteReader(data, offset, length);
+      for (byte b: MAGIC)
+      {
+         if (in.readByte() != b) return false;
+      }
+      version = in.readVarint();
+      if (version < 1 || version > VERSION) return false;
+      boolean hasFullRecord = false;
+      while (in.getRemaining() > 0)
+      {
+         int kind = in.readByte();
+         int recordLength = in.readVarint();
+         if (in.isOverrun() || recordLength > in.getRemaining() - 4) break;
+         int start = in.getPosition();
+         in.skip(recordLength);
+         if (in.readInt() != Checksums.crc32(0, data, start, recordLength)) break;
+         if (kind == RECORD_CHANGES && !hasFullRecord) break;
+         if (kind != RECORD_FULL && kind != RECORD_CHANGES) break;
+         if (!readRecord(new ByteReader(data, start, recordLength), kind == RECORD_FULL))
+         {
+            // A full save that can't be read leaves nothing to apply later records to
+            if (kind == RECORD_FULL)
+               hasFullRecord = false;
+            break;
+         }
+         hasFullRecord = true;
+      }
+      if (!hasFullRecord) return false;
+      for (SavedLayer layer: layersById.values())
+      {
+         if (layer.vector != null)
+            layer.vector.render(layer.tiles, 1, 0, 0, width - 1, height - 1);
+      }
+      return true;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   /** Layers of the drawing from the bottom up */
+   public List<SavedLayer> getLayers()
+   {
+      return layers;
+   }
+
+   /** Every layer that has been in the drawing, including ones that undo commands refer to after they were removed */
+   public Collection<SavedLayer> getAllLayers()
+   {
+      return layersById.values();
+   }
+
+   /** Index of the active layer */
+   public int getActive()
+   {
+      return active;
+   }
+
+   /** Undo commands in the history, oldest first */
+   public List<UndoableCommand> getHistory()
+   {
+      return history;
+   }
+
+   /** Number of commands in the history that are applied */
+   public int getHistoryPosition()
+   {
+      return historyPosition;
+   }
+
+   /** Undo commands in the history, by their ids in the file */
+   public Map<Integer, UndoableCommand> getCommands()
+   {
+      return commands;
+   }
+
+   boolean readRecord(ByteReader in, boolean isFull)
+   {
+      isDamaged = false;
+      int recordWidth = in.readVarint();
+      int recordHeight = in.readVarint();
+      if (isFull)
+      {
+         if (recordWidth <= 0 || recordHeight <= 0) return false;
+         width = recordWidth;
+         height = recordHeight;
+         layersById.clear();
+         commands.clear();
+         removedLayerTiles = null;
+      }
+      else if (recordWidth != width || recordHeight != height)
+         return false;
+
+      int layerCount = in.readVarint();
+      if (layerCount <= 0 || layerCount > in.getRemaining()) return false;
+      List<SavedLayer> newLayers = new ArrayList<>();
+      for (int n = 0; n < layerCount; n++)
+      {
+         int id = in.readVarint();
+         SavedLayer layer = layersById.get(id);
+         boolean isNew = layer == null;
+         if (isNew)
+         {
+            layer = new SavedLayer();
+            layer.id = id;
+            layer.tiles = new TiledRaster(factory, width, height);
+            layersById.put(id, layer);
+         }
+         layer.opacity = in.readDouble();
+         layer.visible = in.readByte() != 0;
+         // Layers keep their kind, so only new layers can be vector layers
+         int layerKind = version >= 2 ? in.readByte() : LAYER_PIXELS;
+         if (layerKind == LAYER_VECTOR && isNew)
+            layer.vector = new VectorLayer(factory, width, height);
+         else if (layerKind != (layer.vector != null ? LAYER_VECTOR : LAYER_PIXELS))
+            return false;
+         newLayers.add(layer);
+      }
+      layers = newLayers;
+      active = in.readVarint();
+      if (active >= layerCount) return false;
+
+      int tileCount = in.readVarint();
+      if (tileCount > in.getRemaining()) return false;
+      for (int n = 0; n < tileCount && !isDamaged && !in.isOverrun(); n++)
+      {
+         SavedLayer layer = layersById.get(in.readVarint());
+         int tile = in.readVarint();
+         if (layer == null || tile >= layer.tiles.getTilesAcross() * layer.tiles.getTilesDown()) return false;
+         int tx = tile % layer.tiles.getTilesAcross();
+         int ty = tile / layer.tiles.getTilesAcross();
+         Raster pixels = readTile(in, layer.tiles.getTileWidth(tx), layer.tiles.getTileHeight(ty));
+         layer.tiles.setTile(tx, ty, pixels, tileColor);
+      }
+
+      if (version >= 2 && !readVectors(in)) return false;
+      return readCommands(in) && !isDamaged && !in.isOverrun();
+   }
+
+   /**
+    * Reads the strokes of vector layers that changed. Each layer's strokes
+    * replace the ones it had from the given index on.
+    */
+   boolean readVectors(ByteReader in)
+   {
+      int layerCount = in.readVarint();
+      if (layerCount > in.getRemaining()) return false;
+      List<JournalEntry> entries = new ArrayList<>();
+      for (int n = 0; n < layerCount && !in.isOverrun(); n++)
+      {
+         SavedLayer layer = layersById.get(in.readVarint());
+         int count = in.readVarint();
+         int from = in.readVarint();
+         if (layer == null || layer.vector == null || from > layer.vector.size()) return false;
+         entries.clear();
+         if (!JournalCodec.readEntries(in, layer.id, factory, width, height, entries)) return false;
+         layer.vector.setCount(from);
+         for (JournalEntry entry: entries)
+         {
+            if (!VectorLayer.canHold(entry)) return false;
+            layer.vector.add(entry);
+         }
+         if (count > layer.vector.size()) return false;
+         layer.vector.setCount(count);
+      }
+      return !in.isOverrun();
+   }
+
+   boolean readCommands(ByteReader in)
+   {
+      int historySize = in.readVarint();
+      historyPosition = in.readVarint();
+      if (historySize > in.getRemaining() || historyPosition > historySize) return false;
+      int[] ids = new int[historySize];
+      for (int n = 0; n < historySize; n++)
+         ids[n] = in.readVarint();
+
+      int storedCount = in.readVarint();
+      if (storedCount > in.getRemaining()) return false;
+      for (int n = 0; n < storedCount && !isDamaged && !in.isOverrun(); n++)
+      {
+         int id = in.readVarint();
+         int layerId = in.readVarint() - 1;
+         int tileCount = in.readVarint();
+         if (tileCount > in.getRemaining()) return false;
+         TiledRaster target;
+         if (layerId >= 0 && layersById.containsKey(layerId))
+            target = layersById.get(layerId).tiles;
+         else
+         {
+            if (removedLayerTiles == null)
+               removedLayerTiles = new TiledRaster(factory, width, height);
+            target = removedLayerTiles;
+         }
+         UndoableCommand cmd = UndoableCommand.createEmpty(target, tileCount);
+         for (int t = 0; t < tileCount; t++)
+         {
+            int tile = in.readVarint();
+            if (tile >= target.getTilesAcross() * target.getTilesDown()) return false;
+            int tx = tile % target.getTilesAcross();
+            int ty = tile / target.getTilesAcross();
+            int w = target.getTileWidth(tx);
+            int h = target.getTileHeight(ty);
+            Raster pixels = readTile(in, w, h);
+            cmd.addTile(tx * TiledRaster.TILE_SIZE, ty * TiledRaster.TILE_SIZE, w, h, pixels, tileColor);
+         }
+         int vectorCount = version >= 2 ? in.readVarint() - 1 : -1;
+         if (vectorCount >= 0 && target != removedLayerTiles && layersById.get(layerId).vector != null)
+            cmd.setVectorChange(layersById.get(layerId).vector, vectorCount);
+         commands.put(id, cmd);
+      }
+
+      // Commands that have dropped out of the history won't be needed again
+      Map<Integer, UndoableCommand> kept = new HashMap<>();
+      history.clear();
+      for (int id: ids)
+      {
+         UndoableCommand cmd = commands.get(id);
+         if (cmd == null) return false;
+         history.add(cmd);
+         kept.put(id, cmd);
+      }
+      commands = kept;
+      return true;
+   }
+
+   /** Reads a tile, returning its pixels, or null with tileColor set if it is all one color */
+   Raster readTile(ByteReader in, int w, int h)
+   {
+      int kind = in.readByte();
+      tileColor = 0;
+      if (kind == TileCodec.UNIFORM)
+      {
+         tileColor = in.readInt();
+         return null;
+      }
+      Raster tile = factory.create(w, h);
+      if (kind != TileCodec.PACKETS || !TileCodec.readPackets(in, tile))
+         isDamaged = true;
+      return tile;
+   }
+}
@@ -0,0 +1,516 @@
+package org.programmingbasics.layercanvas.io;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import org.programmingbasics.layercanvas.raster.BasicBrush;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.SquareBrush;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.ToolSettings;
+
+/**
+ * Saves and loads journals. Apart from the checkpoint, a journal is just
+ * the points and settings of each edit, so it is much smaller than the
+ * pixels that the edits changed.
+ *
+ * The file is the bytes "LCJF", then the following, with all numbers
+ * being varints unless noted:
+ * <ul>
+ *   <li>the format version
+ *   <li>width and height of the drawing
+ *   <li>number of layers in the checkpoint, then for each layer: its id,
+ *       and all of its tiles in order (see TileCodec)
+ *   <li>number of stamps, then for each: its width, height, and pixels
+ *       (as one big tile)
+ *   <li>number of different tool settings, then the settings (see
+ *       writeSettings())
+ *   <li>number of entries, then for each: its kind (byte), the id of its
+ *       layer, and the index of its settings plus one (0 if it has none).
+ *       Strokes, stamps, and flood fills are followed by their clip area
+ *       (signed x and y, width and height), their number of points, and
+ *       the points. Fills are followed by a color (int), and images by
+ *       their width, height, and tiles.
+ * </ul>
+ *
+ * Each point is stored as its distance from the point before (starting
+ * from 0, 0), with a flag saying whether the pressure changed. Pressures
+ * that fit in a float (e.g. pen pressures from the browser) are stored
+ * as floats.
+ *
+ * Entries can also be written as a stream of operations for sending to
+ * other people drawing on the same picture (see writeOps()).
+ */
+public class JournalCodec
+{
+   static final byte[] MAGIC = {'L', 'C', 'J', 'F'};
+   static final int VERSION = 1;
+
+   /** How the pressure of a point is stored */
+   static final int PRESSURE_SAME = 0;
+   static final int PRESSURE_FLOAT = 1;
+   static final int PRESSURE_DOUBLE = 2;
+
+   /** Brush shapes */
+   static final int ROUND_BRUSH = 0;
+   static final int SQUARE_BRUSH = 1;
+
+   /** Flags for the symmetry of settings. Older journals only have MIRRORED */
+   static final int MIRRORED = 1;
+   static final int ROTATED = 2;
+
+   /** Saves the checkpoint and the first count entries of a journal */
+   public static byte[] write(Journal journal, int count, IntFunction<byte[]> allocator)
+   {
+      ByteWriter out = new ByteWriter();
+      for (byte b: MAGIC)
+         out.writeByte(b);
+      out.writeVarint(VERSION);
+      out.writeVarint(journal.width);
+      out.writeVarint(journal.height);
+      out.writeVarint(journal.getCheckpoint().size());
+      for (Map.Entry<Integer, TiledRaster> layer: journal.getCheckpoint().entrySet())
+      {
+         out.writeVarint(layer.getKey());
+         writeTiles(out, layer.getValue());
+      }
+
+      // Settings and stamps are shared by many entries, so they are
+      // stored once and referred to by number
+      Map<ToolSettings, Integer> settingsIndex = new IdentityHashMap<>();
+      List<ToolSettings> settingsList = new ArrayList<>();
+      Map<Raster, Integer> stampIndex = new IdentityHashMap<>();
+      List<Raster> stamps = new ArrayList<>();
+      for (int n = 0; n < count; n++)
+      {
+         ToolSettings settings = journal.get(n).settings;
+         if (settings == null || settingsIndex.containsKey(settings)) continue;
+         settingsIndex.put(settings, settingsList.size());
+         settingsList.add(settings);
+         if (settings.stamp != null && !stampIndex.containsKey(settings.stamp))
+         {
+            stampIndex.put(settings.stamp, stamps.size());
+            stamps.add(settings.stamp);
+         }
+      }
+      out.writeVarint(stamps.size());
+      for (Raster stamp: stamps)
+         writeStamp(out, stamp);
+      out.writeVarint(settingsList.size());
+      for (ToolSettings settings: settingsList)
+      {
+         writeSettings(out, settings);
+         out.writeVarint(settings.stamp == null ? 0 : stampIndex.get(settings.stamp) + 1);
+      }
+
+      out.writeVarint(count);
+      for (int n = 0; n < count; n++)
+      {
+         JournalEntry entry = journal.get(n);
+         out.writeByte(entry.kind);
+         out.writeVarint(entry.layerId);
+         out.writeVarint(entry.settings == null ? 0 : settingsIndex.get(entry.settings) + 1);
+         writeEntry(out, entry);
+      }
+      return out.toByteArray(allocator);
+   }
+
+   /**
+    * Encodes edits as a stream of operations, for sending to other people
+    * drawing on the same picture. Each operation is an entry as it is
+    * stored in a journal, except that it holds its own settings and stamp
+    * instead of referring to a table of them. Operations don't depend on
+    * anything before them, so streams can be cut up and joined back 
+    * together between any two operations (e.g. by a server batching up 
+    * operations from different people).
+    * 
+    * After the layer id of each operation comes 1 if it has settings, 
+    * followed by the settings and the stamp (1 and the stamp, or 0 if 
+    * there isn't one), or else 0. Then comes the rest of the entry.
+    */
+   public static byte[] writeOps(List<JournalEntry> entries, IntFunction<byte[]> allocator)
+   {
+      ByteWriter out = new ByteWriter();
+      for (JournalEntry entry: entries)
+      {
+         out.writeByte(entry.kind);
+         out.writeVarint(entry.layerId);
+         if (entry.settings == null)
+            out.writeVarint(0);
+         else
+         {
+            out.writeVarint(1);
+            writeSettings(out, entry.settings);
+            if (entry.settings.stamp == null)
+               out.writeVarint(0);
+            else
+            {
+               out.writeVarint(1);
+               writeStamp(out, entry.settings.stamp);
+            }
+         }
+         writeEntry(out, entry);
+      }
+      return out.toByteArray(allocator);
+   }
+
+   /**
+    * Reads a stream of operations for a drawing of the given size, 
+    * returning null if the data is damaged
+    */
+   public static List<JournalEntry> readOps(byte[] data, int offset, int length, RasterFactory factory, int width, int height)
+   {
+      ByteReader in = new ByteReader(data, offset, length);
+      List<JournalEntry> entries = new ArrayList<>();
+      while (in.getRemaining() > 0)
+      {
+         int kind = in.readByte();
+         int layerId = in.readVarint();
+         ToolSettings settings = null;
+         if (in.readVarint() != 0)
+         {
+            settings = readSettings(in);
+            if (in.readVarint() != 0)
+            {
+               settings.stamp = readStamp(in, factory);
+               if (settings.stamp == null) return null;
+            }
+         }
+         JournalEntry entry = JournalEntry.create(kind, layerId, settings);
+         if (!readEntry(in, entry, factory, width, height)) return null;
+         entries.add(entry);
+      }
+      return entries;
+   }
+
+   /**
+    * Writes a run of entries of a single layer that have no stamps (e.g.
+    * the strokes of a VectorLayer in a saved drawing). Like in a journal,
+    * the number of different settings and the settings come first, and
+    * then the number of entries and the entries, each being its kind 
+    * (byte), the index of its settings plus one, and the rest of the entry.
+    */
+   public static void writeEntries(ByteWriter out, List<JournalEntry> entries, int from, int to)
+   {
+      Map<ToolSettings, Integer> settingsIndex = new IdentityHashMap<>();
+      List<ToolSettings> settingsList = new ArrayList<>();
+      for (int n = from; n < to; n++)
+      {
+         ToolSettings settings = entries.get(n).settings;
+         if (settings == null || settingsIndex.containsKey(settings)) continue;
+         settingsIndex.put(settings, settingsList.size());
+         settingsList.add(settings);
+      }
+      out.writeVarint(settingsList.size());
+      for (ToolSettings settings: settingsList)
+         writeSettings(out, settings);
+      out.writeVarint(to - from);
+      for (int n = from; n < to; n++)
+      {
+         JournalEntry entry = entries.get(n);
+         out.writeByte(entry.kind);
+         out.writeVarint(entry.settings == null ? 0 : settingsIndex.get(entry.settings) + 1);
+         writeEntry(out, entry);
+      }
+   }
+
+   /**
+    * Reads entries written by writeEntries() for the layer with the given
+    * id in a drawing of the given size, adding them to a list. Returns
+    * false if the data is damaged.
+    */
+   public static boolean readEntries(ByteReader in, int layerId, RasterFactory factory, int width, int height, List<JournalEntry> entries)
+   {
+      int settingsCount = in.readVarint();
+      if (settingsCount > in.getRemaining()) return false;
+      List<ToolSettings> settingsList = new ArrayList<>();
+      for (int n = 0; n < settingsCount; n++)
+         settingsList.add(readSettings(in));
+      int count = in.readVarint();
+      if (count > in.getRemaining()) return false;
+      for (int n = 0; n < count; n++)
+      {
+         int kind = in.readByte();
+         int settingsIndex = in.readVarint();
+         if (settingsIndex > settingsList.size()) return false;
+         JournalEntry entry = JournalEntry.create(kind, layerId, settingsIndex == 0 ? null : settingsList.get(settingsIndex - 1));
+         if (!readEntry(in, entry, factory, width, height)) return false;
+         entries.add(entry);
+      }
+      return !in.isOverrun();
+   }
+
+   /** 
+    * Settings are the tool, brush size, brush shape, the brush settings
+    * (doubles, apart from anti-aliasing which is a byte), symmetry (a
+    * byte of flags and the mirror width, followed by the number of 
+    * rotations and the height if the ROTATED flag is set), and the flood 
+    * fill settings (ints and a byte). In a journal, they are followed by the stamp index plus one
+    * (0 if there is no stamp).
+    */
+   static void writeSettings(ByteWriter out, ToolSettings settings)
+   {
+      BasicBrush brush = settings.brush;
+      out.writeVarint(settings.tool);
+      out.writeVarint(settings.brushSize);
+      out.writeVarint(brush instanceof SquareBrush ? SQUARE_BRUSH : ROUND_BRUSH);
+      out.writeDouble(brush.getHardness());
+      out.writeDouble(brush.getFullOpacity());
+      out.writeDouble(brush.getSpacing());
+      out.writeByte(brush.isAntiAlias() ? 1 : 0);
+      out.writeDouble(brush.getMinSizeScale());
+      out.writeDouble(brush.getMinOpacityScale());
+      out.writeDouble(brush.getPressureGamma());
+      boolean isRotated = settings.rotations > 1;
+      out.writeByte((settings.mirror ? MIRRORED : 0) | (isRotated ? ROTATED : 0));
+      out.writeSignedVarint(settings.mirrorWidth);
+      if (isRotated)
+      {
+         out.writeVarint(settings.rotations);
+         out.writeSignedVarint(settings.mirrorHeight);
+      }
+      out.writeInt(settings.floodFillEmptyColor);
+      out.writeInt(settings.floodFillFillColor);
+      out.writeInt(settings.floodFillTolerance);
+      out.writeByte(settings.floodFillEightConnected ? 1 : 0);
+   }
+
+   /** Stamps are stored as their width, height, and pixels (as one big tile) */
+   static void writeStamp(ByteWriter out, Raster stamp)
+   {
+      out.writeVarint(stamp.width);
+      out.writeVarint(stamp.height);
+      TileCodec.writeTile(out, stamp, 0);
+   }
+
+   static Raster readStamp(ByteReader in, RasterFactory factory)
+   {
+      int w = in.readVarint();
+      int h = in.readVarint();
+      if (w <= 0 || h <= 0 || in.readByte() != TileCodec.PACKETS) return null;
+      Raster stamp = factory.create(w, h);
+      if (!TileCodec.readPackets(in, stamp)) return null;
+      return stamp;
+   }
+
+   static void writeEntry(ByteWriter out, JournalEntry entry)
+   {
+      if (entry.kind == JournalEntry.FILL)
+      {
+         out.writeInt(entry.color);
+         return;
+      }
+      if (entry.kind == JournalEntry.IMAGE)
+      {
+         out.writeVarint(entry.image.width);
+         out.writeVarint(entry.image.height);
+         writeTiles(out, entry.image);
+         return;
+      }
+      out.writeSignedVarint(entry.clipX);
+      out.writeSignedVarint(entry.clipY);
+      out.writeVarint(entry.clipWidth);
+      out.writeVarint(entry.clipHeight);
+      out.writeVarint(entry.pointCount);
+      int lastX = 0, lastY = 0;
+      double lastPressure = 1.0;
+      for (int n = 0; n < entry.pointCount; n++)
+      {
+         int dx = entry.getX(n) - lastX;
+         double pressure = entry.getPressure(n);
+         int pressureKind = PRESSURE_DOUBLE;
+         if (pressure == lastPressure)
+            pressureKind = PRESSURE_SAME;
+         else if ((double)(float)pressure == pressure)
+            pressureKind = PRESSURE_FLOAT;
+         // The way the pressure is stored goes in the low bits of dx
+         out.writeVarint((((dx << 1) ^ (dx >> 31)) << 2) | pressureKind);
+         out.writeSignedVarint(entry.getY(n) - lastY);
+         if (pressureKind == PRESSURE_FLOAT)
+            out.writeInt(Float.floatToIntBits((float)pressure));
+         else if (pressureKind == PRESSURE_DOUBLE)
+            out.writeDouble(pressure);
+         lastX = entry.getX(n);
+         lastY = entry.getY(n);
+         lastPressure = pressure;
+      }
+   }
+
+   static void writeTiles(ByteWriter out, TiledRaster tiles)
+   {
+      for (int ty = 0; ty < tiles.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < tiles.getTilesAcross(); tx++)
+            TileCodec.writeTile(out, tiles.getTile(tx, ty), tiles.getTileColor(tx, ty));
+      }
+   }
+
+   /** Loads a journal, returning null if the data isn't a journal or is damaged */
+   public static Journal read(byte[] data, int offset, int length, RasterFactory factory)
+   {
+      ByteReader in = new ByteReader(data, offset, length);
+      for (byte b: MAGIC)
+      {
+         if (in.readByte() != b) return null;
+      }
+      if (in.readVarint() != VERSION) return null;
+      int width = in.readVarint();
+      int height = in.readVarint();
+      if (width <= 0 || height <= 0) return null;
+
+      int layerCount = in.readVarint();
+      if (layerCount > in.getRemaining()) return null;
+      Map<Integer, TiledRaster> checkpoint = new LinkedHashMap<>();
+      for (int n = 0; n < layerCount; n++)
+      {
+         int id = in.readVarint();
+         TiledRaster tiles = readTiles(in, factory, width, height);
+         if (tiles == null) return null;
+         checkpoint.put(id, tiles);
+      }
+      Journal journal = new Journal(width, height, checkpoint);
+
+      int stampCount = in.readVarint();
+      if (stampCount > in.getRemaining()) return null;
+      Raster[] stamps = new Raster[stampCount];
+      for (int n = 0; n < stampCount; n++)
+      {
+         stamps[n] = readStamp(in, factory);
+         if (stamps[n] == null) return null;
+      }
+
+      int settingsCount = in.readVarint();
+      if (settingsCount > in.getRemaining()) return null;
+      ToolSettings[] settings = new ToolSettings[settingsCount];
+      for (int n = 0; n < settingsCount; n++)
+      {
+         settings[n] = readSettings(in);
+         int stamp = in.readVarint() - 1;
+         if (stamp >= stampCount || in.isOverrun()) return null;
+         if (stamp >= 0)
+            settings[n].stamp = stamps[stamp];
+      }
+
+      int entryCount = in.readVarint();
+      if (entryCount > in.getRemaining()) return null;
+      for (int n = 0; n < entryCount; n++)
+      {
+         int kind = in.readByte();
+         int layerId = in.readVarint();
+         int settingsIndex = in.readVarint() - 1;
+         if (settingsIndex >= settingsCount) return null;
+         JournalEntry entry = JournalEntry.create(kind, layerId, settingsIndex < 0 ? null : settings[settingsIndex]);
+         if (!readEntry(in, entry, factory, width, height)) return null;
+         journal.add(journal.size(), entry);
+      }
+      return in.isOverrun() ? null : journal;
+   }
+
+   static ToolSettings readSettings(ByteReader in)
+   {
+      ToolSettings settings = new ToolSettings();
+      settings.tool = in.readVarint();
+      settings.brushSize = in.readVarint();
+      BasicBrush brush = in.readVarint() == SQUARE_BRUSH ? new SquareBrush() : new RoundBrush();
+      brush.setHardness(in.readDouble());
+      brush.setOpacity(in.readDouble());
+      brush.setSpacing(in.readDouble());
+      brush.setAntiAlias(in.readByte() != 0);
+      double minSizeScale = in.readDouble();
+      double minOpacityScale = in.readDouble();
+      brush.setPressureResponse(minSizeScale, minOpacityScale, in.readDouble());
+      settings.brush = brush;
+      int symmetryFlags = in.readByte();
+      settings.mirror = (symmetryFlags & MIRRORED) != 0;
+      settings.mirrorWidth = in.readSignedVarint();
+      if ((symmetryFlags & ROTATED) != 0)
+      {
+         settings.rotations = Math.max(1, in.readVarint());
+         settings.mirrorHeight = in.readSignedVarint();
+      }
+      settings.floodFillEmptyColor = in.readInt();
+      settings.floodFillFillColor = in.readInt();
+      settings.floodFillTolerance = in.readInt();
+      settings.floodFillEightConnected = in.readByte() != 0;
+      return settings;
+   }
+
+   static boolean readEntry(ByteReader in, JournalEntry entry, RasterFactory factory, int width, int height)
+   {
+      switch (entry.kind)
+      {
+         case JournalEntry.FILL:
+            entry.color = in.readInt();
+            return !in.isOverrun();
+         case JournalEntry.IMAGE:
+         {
+            int w = in.readVarint();
+            int h = in.readVarint();
+            if (w <= 0 || h <= 0 || w > width || h > height) return false;
+            entry.image = readTiles(in, factory, w, h);
+            return entry.image != null;
+         }
+         case JournalEntry.STROKE:
+         case JournalEntry.STAMP:
+         case JournalEntry.FLOOD_FILL:
+            break;
+         default:
+            return false;
+      }
+      if (entry.settings == null) return false;
+      int clipX = in.readSignedVarint();
+      int clipY = in.readSignedVarint();
+      entry.setClip(clipX, clipY, in.readVarint(), in.readVarint());
+      int pointCount = in.readVarint();
+      if (pointCount > in.getRemaining()) return false;
+      int x = 0, y = 0;
+      double pressure = 1.0;
+      for (int n = 0; n < pointCount; n++)
+      {
+         int header = in.readVarint();
+         int pressureKind = header & 3;
+         int zigzag = header >>> 2;
+         x += (zigzag >>> 1) ^ -(zigzag & 1);
+         y += in.readSignedVarint();
+         if (pressureKind == PRESSURE_FLOAT)
+            pressure = Float.intBitsToFloat(in.readInt());
+         else if (pressureKind == PRESSURE_DOUBLE)
+            pressure = in.readDouble();
+         else if (pressureKind != PRESSURE_SAME)
+            return false;
+         entry.addPoint(x, y, pressure);
+      }
+      return !in.isOverrun();
+   }
+
+   /** Reads a w by h image stored as tiles, returning null if the data is damaged */
+   static TiledRaster readTiles(ByteReader in, RasterFactory factory, int w, int h)
+   {
+      TiledRaster tiles = new TiledRaster(factory, w, h);
+      for (int ty = 0; ty < tiles.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < tiles.getTilesAcross(); tx++)
+         {
+            int kind = in.readByte();
+            if (kind == TileCodec.UNIFORM)
+            {
+               tiles.setTile(tx, ty, null, in.readInt());
+               continue;
+            }
+            Raster tile = factory.create(tiles.getTileWidth(tx), tiles.getTileHeight(ty));
+            if (kind != TileCodec.PACKETS || !TileCodec.readPackets(in, tile)) return null;
+            tiles.setTile(tx, ty, tile, 0);
+         }
+         if (in.isOverrun()) return null;
+      }
+      return tiles;
+   }
+}
@@ -0,0 +1,340 @@
+package org.programmingbasics.layercanvas.io;
+
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Writes an area of a raster as a PNG file, a few rows at a time, so that
+ * big images can be saved without holding up the page. The file is handed
+ * over in pieces as it is made. Each piece is one or more whole chunks of
+ * the PNG file, and the pieces only need to be joined together in order.
+ *
+ * The image is first scanned to see how many colors it uses. Drawings are
+ * usually just a few colors (e.g. black lines on a transparent
+ * background), so they are saved with a palette, using as few bits per
+ * pixel as possible. Only images with more than 256 colors are saved as
+ * full RGBA. All fully transparent pixels are treated as the same color.
+ */
+public class PngEncoder
+{
+   static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+
+   static final int COLOR_TYPE_PALETTE = 3;
+   static final int COLOR_TYPE_RGBA = 6;
+
+   static final int FILTER_NONE = 0;
+   static final int FILTER_UP = 2;
+
+   /** Compressed data is held back until there is at least this much of it, to avoid lots of tiny chunks */
+   static final int MIN_IDAT_SIZE = 32768;
+
+   Raster image;
+   int x;
+   int y;
+   int width;
+   int height;
+
+   /** Makes the arrays that pieces of the file are written into */
+   IntFunction<byte[]> allocator;
+   Consumer<byte[]> output;
+
+   /** The next row to scan for colors, or to encode once scanning is done */
+   int row = 0;
+   boolean isScanned = false;
+   boolean isFinished = false;
+
+   /** Colors used in the image when it has 256 or fewer, else null */
+   int[] palette = new int[256];
+   int paletteSize = 0;
+
+   /** Hash table from colors to their palette entry + 1 (0 for an empty slot) */
+   static final int PALETTE_HASH_SIZE = 1024;
+   int[] hashColors = new int[PALETTE_HASH_SIZE];
+   int[] hashEntries = new int[PALETTE_HASH_SIZE];
+
+   int bitDepth;
+   int colorType;
+
+   /** Filter type byte followed by the bytes of the row being encoded */
+   byte[] rowBytes;
+   
+   /** Unfiltered bytes of the row before it (for RGBA images) */
+   byte[] previousRowBytes;
+
+   ZlibDeflater deflater;
+
+   /**
+    * Sets up encoding of a w by h area of an image at (x, y). The image must not
+    * change until encoding is finished. Each piece of the file is passed
+    * to output in a new array made by the allocator, which the encoder
+    * doesn't touch afterwards.
+    */
+   public PngEncoder(Raster image, int x, int y, int w, int h, IntFunction<byte[]> allocator, Consumer<byte[]> output)
+   {
+      this.image = image;
+      this.x = x;
+      this.y = y;
+      this.width = w;
+      this.height = h;
+      this.allocator = allocator;
+      this.output = output;
+   }
+
+   public boolean isFinished()
+   {
+      return isFinished;
+   }
+
+   public void encodeAll()
+   {
+      while (!encodeRows(height)) {}
+   }
+
+   /**
+    * Scans or encodes up to maxRows rows of the image. Returns true once
+    * the whole file has been output.
+    */
+   public boolean encodeRows(int maxRows)
+   {
+      if (isFinished) return true;
+      if (!isScanned)
+      {
+         int end = Math.min(row + maxRows, height);
+         for (; row < end && palette != null; row++)
+            scanRow(row);
+         if (row < height && palette != null) return false;
+         startImage();
+         return false;
+      }
+      int end = Math.min(row + maxRows, height);
+      for (; row < end; row++)
+      {
+         if (palette != null)
+            packPaletteRow(row);
+         else
+            packRgbaRow(row);
+         deflater.write(rowBytes, 0, rowBytes.length);
+      }
+      if (row == height)
+      {
+         deflater.finish();
+         writeImageData(true);
+         isFinished = true;
+         return true;
+      }
+      if (deflater.getOutputLength() >= MIN_IDAT_SIZE)
+         writeImageData(false);
+      return false;
+   }
+
+   /** Adds the colors of a row to the palette, giving up on the palette if there are too many */
+   void scanRow(int r)
+   {
+      int[] pixels = image.pixels;
+      int lastColor = 0;
+      boolean hasLastColor = false;
+      for (int idx = (y + r) * image.width + x, end = idx + width; idx < end; idx++)
+      {
+         int color = normalize(pixels[idx]);
+         if (hasLastColor && color == lastColor) continue;
+         lastColor = color;
+         hasLastColor = true;
+         if (findPaletteEntry(color) >= 0) continue;
+         if (paletteSize == 256)
+         {
+            palette = null;
+            return;
+         }
+         addPaletteEntry(color);
+      }
+   }
+
+   /** Fully transparent pixels all look the same, so they're all saved as 0 */
+   static int normalize(int color)
+   {
+      return (color >>> 24) == 0 ? 0 : color;
+   }
+
+   int findPaletteEntry(int color)
+   {
+      for (int slot = hashSlot(color); ; slot = (slot + 1) & (PALETTE_HASH_SIZE - 1))
+      {
+         if (hashEntries[slot] == 0) return -1;
+         if (hashColors[slot] == color) return hashEntries[slot] - 1;
+      }
+   }
+
+   void addPaletteEntry(int color)
+   {
+      int slot = hashSlot(color);
+      while (hashEntries[slot] != 0)
+         slot = (slot + 1) & (PALETTE_HASH_SIZE - 1);
+      hashColors[slot] = color;
+      palette[paletteSize] = color;
+      paletteSize++;
+      hashEntries[slot] = paletteSize;
+   }
+
+   static int hashSlot(int color)
+   {
+      // Multiplying ints overflows differently in JavaScript, so the hash only uses shifts
+      int hash = color ^ (color >>> 11) ^ (color >>> 21);
+      return (hash ^ (hash >>> 5)) & (PALETTE_HASH_SIZE - 1);
+   }
+
+   /** Picks the format of the image and outputs everything that comes before the image data */
+   void startImage()
+   {
+      isScanned = true;
+      row = 0;
+      int rowLength;
+      if (palette != null)
+      {
+         colorType = COLOR_TYPE_PALETTE;
+         bitDepth = paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+         rowLength = (width * bitDepth + 7) / 8;
+      }
+      else
+      {
+         colorType = COLOR_TYPE_RGBA;
+         bitDepth = 8;
+         rowLength = width * 4;
+      }
+      rowBytes = new byte[rowLength + 1];
+      if (palette == null)
+         previousRowBytes = new byte[rowLength + 1];
+      deflater = new ZlibDeflater();
+
+      byte[] header = new byte[13];
+      putInt(header, 0, width);
+      putInt(header, 4, height);
+      header[8] = (byte)bitDepth;
+      header[9] = (byte)colorType;
+      int size = SIGNATURE.length + 12 + header.length;
+      byte[] colors = null;
+      byte[] alphas = null;
+      int alphaCount = 0;
+      if (palette != null)
+      {
+         colors = new byte[paletteSize * 3];
+         alphas = new byte[paletteSize];
+         for (int n = 0; n < paletteSize; n++)
+         {
+            colors[n * 3] = (byte)palette[n];
+            colors[n * 3 + 1] = (byte)(palette[n] >> 8);
+            colors[n * 3 + 2] = (byte)(palette[n] >> 16);
+            alphas[n] = (byte)(palette[n] >>> 24);
+            // Entries after the last transparent one don't need to be listed
+            if ((palette[n] >>> 24) != 255)
+               alphaCount = n + 1;
+         }
+         size += 12 + colors.length;
+         if (alphaCount > 0)
+            size += 12 + alphaCount;
+      }
+      byte[] piece = allocator.apply(size);
+      int offset = 0;
+      for (byte b: SIGNATURE)
+         piece[offset++] = b;
+      offset = putChunk(piece, offset, "IHDR", header, header.length);
+      if (palette != null)
+      {
+         offset = putChunk(piece, offset, "PLTE", colors, colors.length);
+         if (alphaCount > 0)
+            offset = putChunk(piece, offset, "tRNS", alphas, alphaCount);
+      }
+      output.accept(piece);
+   }
+
+   /** Palette images compress best without filtering */
+   void packPaletteRow(int r)
+   {
+      int[] pixels = image.pixels;
+      byte[] bytes = rowBytes;
+      bytes[0] = FILTER_NONE;
+      int pixelsPerByte = 8 / bitDepth;
+      int idx = (y + r) * image.width + x;
+      int lastColor = 0;
+      int lastEntry = findPaletteEntry(0);
+      for (int n = 0; n < width; )
+      {
+         int packed = 0;
+         int count = Math.min(pixelsPerByte, width - n);
+         for (int k = 0; k < count; k++, n++, idx++)
+         {
+            int color = normalize(pixels[idx]);
+            if (color != lastColor)
+            {
+               lastColor = color;
+               lastEntry = findPaletteEntry(color);
+            }
+            packed = (packed << bitDepth) | lastEntry;
+         }
+         // The pixels of a partly filled last byte go in its highest bits
+         packed <<= (pixelsPerByte - count) * bitDepth;
+         bytes[1 + (n - 1) / pixelsPerByte] = (byte)packed;
+      }
+   }
+
+   /** RGBA rows are stored as the difference from the row above, which is mostly zeros in drawings */
+   void packRgbaRow(int r)
+   {
+      int[] pixels = image.pixels;
+      byte[] bytes = rowBytes;
+      byte[] above = previousRowBytes;
+      bytes[0] = FILTER_UP;
+      int idx = (y + r) * image.width + x;
+      for (int n = 0, b = 1; n < width; n++, idx++)
+      {
+         int color = normalize(pixels[idx]);
+         for (int channel = 0; channel < 4; channel++, b++)
+         {
+            // The first row is compared against a row of zeros
+            byte raw = (byte)(color >>> (channel * 8));
+            bytes[b] = (byte)(raw - above[b]);
+            above[b] = raw;
+         }
+      }
+   }
+
+   /** Outputs the compressed data so far as an IDAT chunk, followed by the end of the file when finishing */
+   void writeImageData(boolean isLast)
+   {
+      int length = deflater.getOutputLength();
+      int size = (length > 0 ? 12 + length : 0) + (isLast ? 12 : 0);
+      if (size == 0) return;
+      byte[] piece = allocator.apply(size);
+      int offset = 0;
+      if (length > 0)
+         offset = putChunk(piece, offset, "IDAT", deflater.getOutput(), length);
+      if (isLast)
+         putChunk(piece, offset, "IEND", null, 0);
+      deflater.clearOutput();
+      output.accept(piece);
+   }
+
+   /** Writes a chunk into a piece of the file, returning the offset after it */
+   static int putChunk(byte[] piece, int offset, String type, byte[] data, int length)
+   {
+      putInt(piece, offset, length);
+      int start = offset + 4;
+      for (int n = 0; n < 4; n++)
+         piece[start + n] = (byte)type.charAt(n);
+      // Typed arrays can't be copied into with System.arraycopy()
+      for (int n = 0; n < length; n++)
+         piece[start + 4 + n] = data[n];
+      int crc = Checksums.crc32(0, piece, start, 4 + length);
+      putInt(piece, start + 4 + length, crc);
+      return start + 8 + length;
+   }
+
+   static void putInt(byte[] to, int offset, int value)
+   {
+      to[offset] = (byte)(value >>> 24);
+      to[offset + 1] = (byte)(value >>> 16);
+      to[offset + 2] = (byte)(value >>> 8);
+      to[offset + 3] = (byte)value;
+   }
+}
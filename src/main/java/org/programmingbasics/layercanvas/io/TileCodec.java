@@ -0,0 +1,93 @@
+package org.programmingbasics.layercanvas.io;
+
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Packs the pixels of tiles into bytes for saving. A tile that is all one
+ * color is stored as just that color. Other tiles are stored as a series
+ * of packets. Each packet starts with a varint holding a count and a flag
+ * in its lowest bit. A run packet (flag set) is followed by a single 
+ * pixel that is repeated count times, and a literal packet is followed by
+ * count different pixels. Drawings are mostly large areas of a single 
+ * color, which become a few runs, while the edges of antialiased strokes 
+ * become literals that take barely more space than the pixels themselves.
+ */
+public class TileCodec
+{
+   /** Kinds of stored tiles */
+   public static final int UNIFORM = 0;
+   public static final int PACKETS = 1;
+
+   /** Runs shorter than this are stored as part of a literal packet instead */
+   static final int MIN_RUN = 3;
+
+   /** Writes a tile, which is just a color if pixels is null */
+   public static void writeTile(ByteWriter out, Raster pixels, int color)
+   {
+      if (pixels == null)
+      {
+         out.writeByte(UNIFORM);
+         out.writeInt(color);
+         return;
+      }
+      out.writeByte(PACKETS);
+      int[] data = pixels.pixels;
+      int count = pixels.width * pixels.height;
+      int literalStart = 0;
+      int idx = 0;
+      while (idx < count)
+      {
+         int runEnd = idx + 1;
+         while (runEnd < count && data[runEnd] == data[idx])
+            runEnd++;
+         if (runEnd - idx < MIN_RUN)
+         {
+            idx = runEnd;
+            continue;
+         }
+         writeLiteral(out, data, literalStart, idx);
+         out.writeVarint(((runEnd - idx) << 1) | 1);
+         out.writeInt(data[idx]);
+         idx = runEnd;
+         literalStart = runEnd;
+      }
+      writeLiteral(out, data, literalStart, count);
+   }
+
+   private static void writeLiteral(ByteWriter out, int[] data, int start, int end)
+   {
+      if (start == end) return;
+      out.writeVarint((end - start) << 1);
+      for (int n = start; n < end; n++)
+         out.writeInt(data[n]);
+   }
+
+   /** 
+    * Reads the packets of a tile (after its kind has been read) into a 
+    * raster of the same size as the tile. Returns false if the packets 
+    * don't fit the raster.
+    */
+   public static boolean readPackets(ByteReader in, Raster to)
+   {
+      int[] data = to.pixels;
+      int count = to.width * to.height;
+      int idx = 0;
+      while (idx < count)
+      {
+         int header = in.readVarint();
+         int length = header >>> 1;
+         if (length == 0 || length > count - idx || in.isOverrun()) return false;
+         if ((header & 1) != 0)
+         {
+            to.fillSpan(idx, length, in.readInt());
+            idx += length;
+         }
+         else
+         {
+            for (int end = idx + length; idx < end; idx++)
+               data[idx] = in.readInt();
+         }
+      }
+      return !in.isOverrun();
+   }
+}
@@ -0,0 +1,285 @@
+package org.programmingbasics.layercanvas.io;
+
+/**
+ * Compresses data into a zlib stream as it is written, for code that
+ * can't use java.util.zip (which isn't available in the browser).
+ *
+ * Repeated data is found with hash chains like in zlib, and everything is
+ * encoded in a single block with the fixed Huffman codes of deflate. The
+ * fixed codes compress a little worse than codes built for the data, but
+ * they need no second pass over the data and no tables to be sent.
+ * Drawings are mostly long runs of the same few colors, which become
+ * long back-references, so most of the compression comes from matching
+ * anyway.
+ *
+ * Compressed bytes collect in an output buffer that should be emptied
+ * (see getOutput() and clearOutput()) as it fills.
+ */
+public class ZlibDeflater
+{
+   static final int WINDOW_SIZE = 32768;
+   static final int WINDOW_MASK = WINDOW_SIZE - 1;
+   static final int MIN_MATCH = 3;
+   static final int MAX_MATCH = 258;
+   static final int HASH_BITS = 15;
+   static final int HASH_SIZE = 1 << HASH_BITS;
+
+   /** How many earlier positions with the same hash are checked for a match */
+   static final int MAX_CHAIN = 32;
+
+   /**
+    * Input that has been written. The WINDOW_SIZE bytes before pos are
+    * kept for finding matches, and the bytes after it haven't been
+    * compressed yet.
+    */
+   byte[] window = new byte[2 * WINDOW_SIZE];
+   int windowEnd = 0;
+   int pos = 0;
+
+   /** Latest position of each hash of three bytes, or -1 */
+   int[] head = new int[HASH_SIZE];
+
+   /** For each position in the window, the previous position with the same hash */
+   int[] prev = new int[WINDOW_SIZE];
+
+   byte[] output = new byte[16384];
+   int outputLength = 0;
+
+   /** Bits not yet making up a whole byte of output */
+   int bitBuffer = 0;
+   int bitCount = 0;
+
+   int adler = 1;
+   boolean isFinished = false;
+
+   /** Bit-reversed fixed Huffman codes for literals and lengths (deflate sends Huffman codes starting from the highest bit) */
+   static final int[] LITERAL_CODES = new int[288];
+   static final int[] LITERAL_BITS = new int[288];
+   static final int[] DISTANCE_CODES = new int[30];
+
+   static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+   static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+   static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+   static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+   /** Length code (minus 257) of each match length */
+   static final int[] LENGTH_CODE = new int[MAX_MATCH + 1];
+
+   /** Distance code of each distance - 1 below 256, followed by distance code of each (distance - 1) >> 7 */
+   static final int[] DISTANCE_CODE = new int[512];
+
+   static
+   {
+      for (int n = 0; n < 288; n++)
+      {
+         int code, bits;
+         if (n < 144) { code = 0x30 + n; bits = 8; }
+         else if (n < 256) { code = 0x190 + n - 144; bits = 9; }
+         else if (n < 280) { code = n - 256; bits = 7; }
+         else { code = 0xc0 + n - 280; bits = 8; }
+         LITERAL_CODES[n] = reverseBits(code, bits);
+         LITERAL_BITS[n] = bits;
+      }
+      for (int n = 0; n < 30; n++)
+         DISTANCE_CODES[n] = reverseBits(n, 5);
+      for (int code = 0; code < LENGTH_BASE.length; code++)
+      {
+         for (int len = LENGTH_BASE[code]; len < LENGTH_BASE[code] + (1 << LENGTH_EXTRA[code]) && len <= MAX_MATCH; len++)
+            LENGTH_CODE[len] = code;
+      }
+      for (int code = 0; code < DISTANCE_BASE.length; code++)
+      {
+         for (int dist = DISTANCE_BASE[code] - 1; dist < DISTANCE_BASE[code] - 1 + (1 << DISTANCE_EXTRA[code]); dist++)
+         {
+            if (dist < 256)
+               DISTANCE_CODE[dist] = code;
+            else
+               DISTANCE_CODE[256 + (dist >> 7)] = code;
+         }
+      }
+   }
+
+   static int reverseBits(int code, int bits)
+   {
+      int reversed = 0;
+      for (int n = 0; n < bits; n++)
+      {
+         reversed = (reversed << 1) | (code & 1);
+         code >>= 1;
+      }
+      return reversed;
+   }
+
+   public ZlibDeflater()
+   {
+      for (int n = 0; n < HASH_SIZE; n++)
+         head[n] = -1;
+      // zlib header for a 32K window, then the header of a single final
+      // block that uses fixed Huffman codes
+      putByte(0x78);
+      putByte(0x01);
+      writeBits(1, 1);
+      writeBits(1, 2);
+   }
+
+   /** Adds data to the stream, compressing as much of it as possible */
+   public void write(byte[] data, int offset, int length)
+   {
+      adler = Checksums.adler32(adler, data, offset, length);
+      while (length > 0)
+      {
+         if (windowEnd == window.length)
+            slideWindow();
+         int count = Math.min(length, window.length - windowEnd);
+         System.arraycopy(data, offset, window, windowEnd, count);
+         windowEnd += count;
+         offset += count;
+         length -= count;
+         compress(false);
+      }
+   }
+
+   /** Compresses the rest of the data and ends the stream */
+   public void finish()
+   {
+      if (isFinished) return;
+      compress(true);
+      writeBits(LITERAL_CODES[256], LITERAL_BITS[256]);
+      if (bitCount > 0)
+         writeBits(0, 8 - bitCount);
+      putByte(adler >>> 24);
+      putByte((adler >>> 16) & 0xff);
+      putByte((adler >>> 8) & 0xff);
+      putByte(adler & 0xff);
+      isFinished = true;
+   }
+
+   /** Compressed data that hasn't been taken yet is at the start of this array */
+   public byte[] getOutput()
+   {
+      return output;
+   }
+
+   public int getOutputLength()
+   {
+      return outputLength;
+   }
+
+   /** Marks the compressed data as taken */
+   public void clearOutput()
+   {
+      outputLength = 0;
+   }
+
+   /**
+    * Compresses the data in the window. Unless finishing, enough data is
+    * left uncompressed for the longest possible match.
+    */
+   void compress(boolean isFinishing)
+   {
+      int limit = isFinishing ? windowEnd : windowEnd - MAX_MATCH;
+      while (pos < limit)
+      {
+         int matchLength = 0;
+         int matchDistance = 0;
+         if (pos + MIN_MATCH <= windowEnd)
+         {
+            int candidate = insertHash(pos);
+            int maxLength = Math.min(MAX_MATCH, windowEnd - pos);
+            for (int chain = 0; chain < MAX_CHAIN && candidate >= 0 && pos - candidate < WINDOW_SIZE; chain++)
+            {
+               if (window[candidate + matchLength] == window[pos + matchLength])
+               {
+                  int len = 0;
+                  while (len < maxLength && window[candidate + len] == window[pos + len])
+                     len++;
+                  if (len > matchLength)
+                  {
+                     matchLength = len;
+                     matchDistance = pos - candidate;
+                     if (len == maxLength) break;
+                  }
+               }
+               int next = prev[candidate & WINDOW_MASK];
+               // Entries for positions that have left the window may have been overwritten
+               if (next >= candidate) break;
+               candidate = next;
+            }
+         }
+         if (matchLength >= MIN_MATCH)
+         {
+            writeMatch(matchLength, matchDistance);
+            for (int n = 1; n < matchLength; n++)
+            {
+               if (pos + n + MIN_MATCH <= windowEnd)
+                  insertHash(pos + n);
+            }
+            pos += matchLength;
+         }
+         else
+         {
+            int literal = window[pos] & 0xff;
+            writeBits(LITERAL_CODES[literal], LITERAL_BITS[literal]);
+            pos++;
+         }
+      }
+   }
+
+   /** Records a position under the hash of the three bytes there, returning the previous position with that hash */
+   int insertHash(int p)
+   {
+      int hash = (((window[p] & 0xff) << 10) ^ ((window[p + 1] & 0xff) << 5) ^ (window[p + 2] & 0xff)) & (HASH_SIZE - 1);
+      int previous = head[hash];
+      prev[p & WINDOW_MASK] = previous;
+      head[hash] = p;
+      return previous;
+   }
+
+   void writeMatch(int length, int distance)
+   {
+      int lengthCode = LENGTH_CODE[length];
+      writeBits(LITERAL_CODES[257 + lengthCode], LITERAL_BITS[257 + lengthCode]);
+      if (LENGTH_EXTRA[lengthCode] > 0)
+         writeBits(length - LENGTH_BASE[lengthCode], LENGTH_EXTRA[lengthCode]);
+      int distanceCode = distance <= 256 ? DISTANCE_CODE[distance - 1] : DISTANCE_CODE[256 + ((distance - 1) >> 7)];
+      writeBits(DISTANCE_CODES[distanceCode], 5);
+      if (DISTANCE_EXTRA[distanceCode] > 0)
+         writeBits(distance - DISTANCE_BASE[distanceCode], DISTANCE_EXTRA[distanceCode]);
+   }
+
+   /** Drops the oldest half of the window to make room for more data */
+   void slideWindow()
+   {
+      System.arraycopy(window, WINDOW_SIZE, window, 0, windowEnd - WINDOW_SIZE);
+      windowEnd -= WINDOW_SIZE;
+      pos -= WINDOW_SIZE;
+      for (int n = 0; n < HASH_SIZE; n++)
+         head[n] = head[n] >= WINDOW_SIZE ? head[n] - WINDOW_SIZE : -1;
+      for (int n = 0; n < WINDOW_SIZE; n++)
+         prev[n] = prev[n] >= WINDOW_SIZE ? prev[n] - WINDOW_SIZE : -1;
+   }
+
+   /** Adds bits to the output, lowest bit first */
+   void writeBits(int value, int count)
+   {
+      bitBuffer |= value << bitCount;
+      bitCount += count;
+      while (bitCount >= 8)
+      {
+         putByte(bitBuffer & 0xff);
+         bitBuffer >>>= 8;
+         bitCount -= 8;
+      }
+   }
+
+   void putByte(int b)
+   {
+      if (outputLength == output.length)
+      {
+         byte[] newOutput = new byte[output.length * 2];
+         System.arraycopy(output, 0, newOutput, 0, outputLength);
+         output = newOutput;
+      }
+      output[outputLength++] = (byte)b;
+   }
+}
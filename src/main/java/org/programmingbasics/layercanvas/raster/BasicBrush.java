@@ -0,0 +1,144 @@
+package org.programmingbasics.layercanvas.raster;
+
+import jsinterop.annotations.JsType;
+
+/**
+ * Holds the settings common to most brushes. Subclasses supply the
+ * shape of the brush.
+ * 
+ * Pressure is mapped through a power curve, and then scales the size or 
+ * opacity linearly between a minimum fraction (at zero pressure) and the 
+ * full size or opacity (at full pressure).
+ */
+@JsType
+public abstract class BasicBrush implements Brush
+{
+   /** How much of the radius is solid before the edge starts fading out (0 to 1) */
+   double hardness = 1.0;
+   double opacity = 1.0;
+   double spacing = 0.25;
+   
+   /** Whether the edge of the brush is smoothed over a pixel */
+   boolean antiAlias = false;
+   
+   /** Fraction of the full size and opacity used at zero pressure */
+   double minSizeScale = 1.0;
+   double minOpacityScale = 1.0;
+   
+   /** Exponent applied to the pressure before it is used */
+   double pressureGamma = 1.0;
+   
+   public void setHardness(double hardness) { this.hardness = Math.max(0, Math.min(1, hardness)); }
+   public void setOpacity(double opacity) { this.opacity = Math.max(0, Math.min(1, opacity)); }
+   public void setSpacing(double spacing) { this.spacing = Math.max(0.01, spacing); }
+   public void setAntiAlias(boolean antiAlias) { this.antiAlias = antiAlias; }
+   
+   public double getHardness() { return hardness; }
+   /** Opacity at full pressure */
+   public double getFullOpacity() { return opacity; }
+   public boolean isAntiAlias() { return antiAlias; }
+   public double getMinSizeScale() { return minSizeScale; }
+   public double getMinOpacityScale() { return minOpacityScale; }
+   public double getPressureGamma() { return pressureGamma; }
+   
+   /** 
+    * Sets how the size and opacity of the brush respond to pressure. A minimum
+    * of 1 means that pressure has no effect.
+    */
+   public void setPressureResponse(double minSizeScale, double minOpacityScale, double gamma)
+   {
+      this.minSizeScale = minSizeScale;
+      this.minOpacityScale = minOpacityScale;
+      this.pressureGamma = gamma;
+   }
+   
+   /** Copies the settings of another brush, for switching between brush shapes */
+   public void copySettings(BasicBrush other)
+   {
+      hardness = other.hardness;
+      opacity = other.opacity;
+      spacing = other.spacing;
+      antiAlias = other.antiAlias;
+      minSizeScale = other.minSizeScale;
+      minOpacityScale = other.minOpacityScale;
+      pressureGamma = other.pressureGamma;
+   }
+   
+   /** Makes a brush of the same shape with the same settings */
+   public BasicBrush copy()
+   {
+      BasicBrush brush = createSameShape();
+      brush.copySettings(this);
+      return brush;
+   }
+   
+   abstract BasicBrush createSameShape();
+   
+   /** Whether another brush is the same shape with the same settings, so it draws the same strokes */
+   public boolean hasSameSettings(BasicBrush other)
+   {
+      return getClass() == other.getClass()
+            && hardness == other.hardness && opacity == other.opacity 
+            && spacing == other.spacing && antiAlias == other.antiAlias
+            && minSizeScale == other.minSizeScale && minOpacityScale == other.minOpacityScale
+            && pressureGamma == other.pressureGamma;
+   }
+   
+   /** Largest multiple of the brush size that pressure can make the brush */
+   public double getMaxSizeScale()
+   {
+      return Math.max(1.0, minSizeScale);
+   }
+   
+   double pressureCurve(double pressure)
+   {
+      if (pressureGamma == 1.0) return pressure;
+      return Math.pow(pressure, pressureGamma);
+   }
+   
+   @Override public double getSizeScale(double pressure)
+   {
+      if (minSizeScale == 1.0) return 1.0;
+      return minSizeScale + (1 - minSizeScale) * pressureCurve(pressure);
+   }
+   
+   @Override public double getOpacity(double pressure)
+   {
+      if (minOpacityScale == 1.0) return opacity;
+      return opacity * (minOpacityScale + (1 - minOpacityScale) * pressureCurve(pressure));
+   }
+   
+   @Override public double getSpacing()
+   {
+      return spacing;
+   }
+   
+   @Override public boolean isHardCircle()
+   {
+      return false;
+   }
+   
+   /** 
+    * Coverage of a pixel at a distance from the center of the brush, where 
+    * distance is measured however the shape of the brush needs. Soft
+    * brushes fade out from the solid part to the outer edge of the
+    * anti-aliased fringe, so the fringe isn't cut off.
+    */
+   double coverageAtDistance(double dist, double radius)
+   {
+      if (dist > radius + 0.5) return 0;
+      double coverage = 1;
+      double edge = radius;
+      if (antiAlias)
+      {
+         coverage = Math.min(1, radius + 0.5 - dist);
+         edge = radius + 0.5;
+      }
+      else if (dist > radius)
+         return 0;
+      double solidRadius = radius * hardness;
+      if (hardness < 1 && dist > solidRadius)
+         coverage = Math.min(coverage, (edge - dist) / (edge - solidRadius));
+      return coverage > 0 ? coverage : 0;
+   }
+}
@@ -0,0 +1,30 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Describes the shape of a brush and how it responds to pen pressure.
+ * Strokes are drawn by stamping dabs of the brush along the path of
+ * the pen.
+ */
+public interface Brush
+{
+   /** Multiplier for the brush size when drawing with the given pressure (0 to 1) */
+   double getSizeScale(double pressure);
+   
+   /** Opacity (0 to 1) of dabs drawn with the given pressure (0 to 1) */
+   double getOpacity(double pressure);
+   
+   /** Distance between dabs as a fraction of the radius of the brush */
+   double getSpacing();
+   
+   /** 
+    * How much (0 to 1) of the pixel at offset (dx, dy) from the center 
+    * of a dab with the given radius is covered by the dab
+    */
+   double getCoverage(double dx, double dy, double radius);
+   
+   /** 
+    * Whether the brush is a hard-edged, opaque circle that isn't affected by 
+    * pressure, so strokes can be drawn using simpler, faster code
+    */
+   boolean isHardCircle();
+}
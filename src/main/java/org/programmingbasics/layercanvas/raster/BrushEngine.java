@@ -0,0 +1,114 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Draws strokes by stamping dabs of a brush at regular intervals along
+ * the path of the pen. The size and opacity of each dab follows the pen 
+ * pressure, which is interpolated between input events. 
+ * 
+ * Dabs are drawn into a stroke buffer by keeping the maximum alpha of 
+ * the overlapping dabs so that the stroke never becomes more opaque than
+ * the brush opacity, no matter how closely the dabs are spaced. The 
+ * stroke is drawn in black.
+ */
+public class BrushEngine
+{
+   Brush brush;
+   
+   /** Whether a dab has been drawn yet for the current stroke */
+   boolean isStrokeStarted = false;
+   
+   /** How far the pen needs to move before the next dab should be drawn */
+   double distanceToNextDab = 0;
+   
+   public void setBrush(Brush brush)
+   {
+      this.brush = brush;
+   }
+   
+   /** Starts a new stroke */
+   public void reset()
+   {
+      isStrokeStarted = false;
+   }
+   
+   /**
+    * Draws dabs along the line between two points. The dab at the start of 
+    * the line is only drawn if it is the start of the stroke.
+    * 
+    * Positions along the line are worked out relative to the pixel that 
+    * the line starts in. A stroke then comes out exactly the same when it 
+    * is drawn into a raster that is offset by a whole number of pixels 
+    * (e.g. when it is replayed into a different part of the drawing than 
+    * the window it was first drawn in).
+    */
+   public void strokeTo(Raster target, DirtyRect dirty, double baseRadius, 
+         double x0, double y0, double pressure0, double x1, double y1, double pressure1)
+   {
+      int anchorX = (int)Math.floor(x0);
+      int anchorY = (int)Math.floor(y0);
+      double fx = x0 - anchorX;
+      double fy = y0 - anchorY;
+      if (!isStrokeStarted)
+      {
+         dab(target, dirty, anchorX, anchorY, fx, fy, baseRadius, pressure0);
+         distanceToNextDab = dabSpacing(baseRadius, pressure0);
+         isStrokeStarted = true;
+      }
+      double dx = x1 - x0;
+      double dy = y1 - y0;
+      double len = Math.sqrt(dx * dx + dy * dy);
+      double travelled = 0;
+      while (travelled + distanceToNextDab <= len)
+      {
+         travelled += distanceToNextDab;
+         double t = travelled / len;
+         double pressure = pressure0 + (pressure1 - pressure0) * t;
+         dab(target, dirty, anchorX, anchorY, fx + dx * t, fy + dy * t, baseRadius, pressure);
+         distanceToNextDab = dabSpacing(baseRadius, pressure);
+      }
+      distanceToNextDab -= len - travelled;
+   }
+   
+   double dabSpacing(double baseRadius, double pressure)
+   {
+      return Math.max(0.5, brush.getSpacing() * baseRadius * brush.getSizeScale(pressure));
+   }
+   
+   /** Draws a single dab of the brush centered at (cx, cy) */
+   public void dab(Raster target, DirtyRect dirty, double cx, double cy, double baseRadius, double pressure)
+   {
+      int anchorX = (int)Math.floor(cx);
+      int anchorY = (int)Math.floor(cy);
+      dab(target, dirty, anchorX, anchorY, cx - anchorX, cy - anchorY, baseRadius, pressure);
+   }
+   
+   /** Draws a dab centered at an offset of (fx, fy) from the pixel (anchorX, anchorY) */
+   void dab(Raster target, DirtyRect dirty, int anchorX, int anchorY, double fx, double fy, double baseRadius, double pressure)
+   {
+      double radius = baseRadius * brush.getSizeScale(pressure);
+      int alphaScale = (int)Math.round(brush.getOpacity(pressure) * 255);
+      if (alphaScale <= 0) return;
+      int width = target.width;
+      int height = target.height;
+      int minX = Math.max(0, anchorX + (int)Math.floor(fx - radius - 1));
+      int maxX = Math.min(width - 1, anchorX + (int)Math.ceil(fx + radius + 1));
+      int minY = Math.max(0, anchorY + (int)Math.floor(fy - radius - 1));
+      int maxY = Math.min(height - 1, anchorY + (int)Math.ceil(fy + radius + 1));
+      if (minX > maxX || minY > maxY) return;
+      int[] pixels = target.pixels;
+      for (int y = minY; y <= maxY; y++)
+      {
+         double dy = (y - anchorY) - fy;
+         int idx = y * width + minX;
+         for (int x = minX; x <= maxX; x++, idx++)
+         {
+            double coverage = brush.getCoverage((x - anchorX) - fx, dy, radius);
+            if (coverage <= 0) continue;
+            int alpha = (int)(coverage * alphaScale + 0.5);
+            if (alpha <= (pixels[idx] >>> 24)) continue;
+            pixels[idx] = alpha << 24;
+         }
+      }
+      dirty.add(minX, minY, maxX, maxY);
+   }
+}
@@ -0,0 +1,132 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Blends layers and brush strokes together.
+ */
+public class Compositor
+{
+   /** Blends a layer over an area of an image (inclusive coordinates) */
+   public static void blendLayer(Raster out, Raster layer, int alphaScale, int x0, int y0, int x1, int y1)
+   {
+      if (alphaScale == 0) return;
+      int[] outPixels = out.pixels;
+      int[] layerPixels = layer.pixels;
+      int width = out.width;
+      for (int y = y0; y <= y1; y++)
+      {
+         int rowEnd = y * width + x1;
+         for (int idx = y * width + x0; idx <= rowEnd; idx++)
+            outPixels[idx] = Pixels.blendOver(outPixels[idx], Pixels.scaleAlpha(layerPixels[idx], alphaScale));
+      }
+   }
+   
+   /** 
+    * Blends an area of a tiled layer over an image that holds the part of
+    * the drawing with its top-left corner at (originX, originY). The area 
+    * is given in the coordinates of the image (inclusive coordinates). 
+    * Transparent tiles are skipped without looking at any pixels.
+    */
+   public static void blendTiles(Raster out, int originX, int originY, TiledRaster layer, int alphaScale, int x0, int y0, int x1, int y1)
+   {
+      if (alphaScale == 0) return;
+      // Clip to the layer
+      x0 = Math.max(x0, -originX);
+      y0 = Math.max(y0, -originY);
+      x1 = Math.min(x1, layer.width - 1 - originX);
+      y1 = Math.min(y1, layer.height - 1 - originY);
+      if (x0 > x1 || y0 > y1) return;
+      int[] outPixels = out.pixels;
+      int width = out.width;
+      int tileSize = TiledRaster.TILE_SIZE;
+      for (int ty = (y0 + originY) / tileSize; ty <= (y1 + originY) / tileSize; ty++)
+      {
+         int tileTop = ty * tileSize - originY;
+         int ty0 = Math.max(y0, tileTop);
+         int ty1 = Math.min(y1, tileTop + tileSize - 1);
+         for (int tx = (x0 + originX) / tileSize; tx <= (x1 + originX) / tileSize; tx++)
+         {
+            int tileLeft = tx * tileSize - originX;
+            int tx0 = Math.max(x0, tileLeft);
+            int tx1 = Math.min(x1, tileLeft + tileSize - 1);
+            Raster tile = layer.getTile(tx, ty);
+            if (tile == null)
+            {
+               int color = Pixels.scaleAlpha(layer.getTileColor(tx, ty), alphaScale);
+               if (color >>> 24 == 0) continue;
+               for (int y = ty0; y <= ty1; y++)
+               {
+                  int rowEnd = y * width + tx1;
+                  for (int idx = y * width + tx0; idx <= rowEnd; idx++)
+                     outPixels[idx] = Pixels.blendOver(outPixels[idx], color);
+               }
+               continue;
+            }
+            int[] tilePixels = tile.pixels;
+            for (int y = ty0; y <= ty1; y++)
+            {
+               int tileIdx = (y - tileTop) * tile.width + tx0 - tileLeft;
+               int rowEnd = y * width + tx1;
+               for (int idx = y * width + tx0; idx <= rowEnd; idx++, tileIdx++)
+                  outPixels[idx] = Pixels.blendOver(outPixels[idx], Pixels.scaleAlpha(tilePixels[tileIdx], alphaScale));
+            }
+         }
+      }
+   }
+   
+   /**
+    * Composites an area of the layers of a drawing for display. The layers
+    * below and above the active layer are given as already flattened images
+    * (or null if there aren't any). The stroke holds an unfinished brush 
+    * stroke that is shown as if it were already drawn over the active 
+    * layer.
+    */
+   public static void composite(Raster out, Raster below, Raster active, int activeAlphaScale, 
+         Raster stroke, Raster above, DirtyRect rect)
+   {
+      if (rect.isEmpty()) return;
+      int[] outPixels = out.pixels;
+      int[] activePixels = active.pixels;
+      int[] strokePixels = stroke.pixels;
+      int[] belowPixels = below != null ? below.pixels : null;
+      int[] abovePixels = above != null ? above.pixels : null;
+      int width = out.width;
+      for (int y = rect.minY; y <= rect.maxY; y++)
+      {
+         int rowEnd = y * width + rect.maxX;
+         for (int idx = y * width + rect.minX; idx <= rowEnd; idx++)
+         {
+            int pixel = belowPixels != null ? belowPixels[idx] : 0;
+            // The stroke has to be blended with the layer before the layer
+            // opacity is applied
+            int layerPixel = Pixels.blendOver(activePixels[idx], strokePixels[idx]);
+            pixel = Pixels.blendOver(pixel, Pixels.scaleAlpha(layerPixel, activeAlphaScale));
+            if (abovePixels != null)
+               pixel = Pixels.blendOver(pixel, abovePixels[idx]);
+            outPixels[idx] = pixel;
+         }
+      }
+   }
+   
+   /** 
+    * Draws a finished brush stroke onto a layer, and clears the stroke, in
+    * the given area only
+    */
+   public static void mergeStroke(Raster layer, Raster stroke, DirtyRect rect)
+   {
+      if (rect.isEmpty()) return;
+      int[] layerPixels = layer.pixels;
+      int[] strokePixels = stroke.pixels;
+      int width = layer.width;
+      for (int y = rect.minY; y <= rect.maxY; y++)
+      {
+         int rowEnd = y * width + rect.maxX;
+         for (int idx = y * width + rect.minX; idx <= rowEnd; idx++)
+         {
+            int strokePixel = strokePixels[idx];
+            if (strokePixel == 0) continue;
+            layerPixels[idx] = Pixels.blendOver(layerPixels[idx], strokePixel);
+            strokePixels[idx] = 0;
+         }
+      }
+   }
+}
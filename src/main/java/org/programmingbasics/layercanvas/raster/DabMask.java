@@ -0,0 +1,71 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Scratch raster that each part of a symmetric stroke is drawn into once,
+ * before being copied to where each copy of the stroke goes (see
+ * Symmetry). The mask covers the whole part of the stroke, even where it
+ * is outside the window, since its copies might land inside the window.
+ * The raster is reused and only grows, so only the part that was drawn
+ * on is cleared between parts of a stroke.
+ */
+public class DabMask
+{
+   RasterFactory factory;
+
+   /** Pixels of the mask, drawn in black like a stroke */
+   public Raster raster;
+
+   /** Position of the mask in the drawing */
+   public int x;
+   public int y;
+
+   /** Area of the mask that has been drawn on */
+   public DirtyRect dirty = new DirtyRect();
+
+   /** Working area for Symmetry */
+   DirtyRect copyBounds = new DirtyRect();
+
+   public DabMask(RasterFactory factory)
+   {
+      this.factory = factory;
+   }
+
+   /** How far from the points of a stroke its dabs can reach */
+   public static int getMargin(ToolSettings settings)
+   {
+      return (int)Math.ceil(settings.brushSize * settings.brush.getMaxSizeScale()) + 2;
+   }
+
+   /** Sets up an empty mask covering an area of the drawing (inclusive coordinates) */
+   public void start(int x0, int y0, int x1, int y1)
+   {
+      if (!dirty.isEmpty())
+         raster.fillRect(dirty, 0);
+      dirty.clear();
+      int w = x1 - x0 + 1;
+      int h = y1 - y0 + 1;
+      if (raster == null || raster.width < w || raster.height < h)
+         raster = factory.create(Math.max(w, raster == null ? 0 : raster.width), Math.max(h, raster == null ? 0 : raster.height));
+      x = x0;
+      y = y0;
+   }
+
+   /**
+    * Draws the part of a stroke between two points of the drawing into an
+    * empty mask, with a soft brush or as a hard capsule like the tool
+    * would draw it without symmetry
+    */
+   public void drawSegment(ToolSettings settings, BrushEngine brushEngine, StrokeRasterizer strokeRasterizer,
+         int x0, int y0, double pressure0, int x1, int y1, double pressure1)
+   {
+      int margin = getMargin(settings);
+      start(Math.min(x0, x1) - margin, Math.min(y0, y1) - margin, Math.max(x0, x1) + margin, Math.max(y0, y1) + margin);
+      if (settings.tool == ToolSettings.PAINT && !settings.brush.isHardCircle())
+         brushEngine.strokeTo(raster, dirty, settings.brushSize, x0 - x, y0 - y, pressure0, x1 - x, y1 - y, pressure1);
+      else
+      {
+         strokeRasterizer.capsule(x0 - x, y0 - y, x1 - x, y1 - y, settings.brushSize);
+         strokeRasterizer.fill(raster, Pixels.pack(0, 0, 0, 255), dirty);
+      }
+   }
+}
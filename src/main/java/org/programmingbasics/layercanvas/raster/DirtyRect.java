@@ -0,0 +1,48 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Tracks the bounding box of pixels that have been changed since the
+ * rectangle was last cleared, so that only that part of an image needs
+ * to be composited or uploaded to a canvas. Coordinates are inclusive.
+ */
+public class DirtyRect
+{
+   public int minX = Integer.MAX_VALUE;
+   public int minY = Integer.MAX_VALUE;
+   public int maxX = Integer.MIN_VALUE;
+   public int maxY = Integer.MIN_VALUE;
+
+   public boolean isEmpty()
+   {
+      return minX > maxX || minY > maxY;
+   }
+
+   public void clear()
+   {
+      minX = Integer.MAX_VALUE;
+      minY = Integer.MAX_VALUE;
+      maxX = Integer.MIN_VALUE;
+      maxY = Integer.MIN_VALUE;
+   }
+
+   /** Grows the rectangle to include the given box (inclusive coordinates) */
+   public void add(int x0, int y0, int x1, int y1)
+   {
+      if (x0 > x1 || y0 > y1) return;
+      if (x0 < minX) minX = x0;
+      if (y0 < minY) minY = y0;
+      if (x1 > maxX) maxX = x1;
+      if (y1 > maxY) maxY = y1;
+   }
+
+   public void add(DirtyRect other)
+   {
+      if (other.isEmpty()) return;
+      add(other.minX, other.minY, other.maxX, other.maxY);
+   }
+
+   public int getX() { return minX; }
+   public int getY() { return minY; }
+   public int getWidth() { return isEmpty() ? 0 : maxX - minX + 1; }
+   public int getHeight() { return isEmpty() ? 0 : maxY - minY + 1; }
+}
@@ -0,0 +1,304 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.Arrays;
+
+/**
+ * Scanline flood fill. Before filling, a mask with one bit per pixel is
+ * built marking which pixels are allowed to be filled. Whether a pixel
+ * matches is decided once when building the mask, so the fill itself
+ * only needs to test bits, no matter how complicated the matching rule
+ * is. Bits are cleared as pixels are filled, so the mask also tracks
+ * which pixels have been visited.
+ *
+ * Segments of pixels that still need to be examined are kept on a stack
+ * of ints instead of in objects, and each segment remembers which
+ * direction it came from so that the rows it was found from aren't
+ * rescanned, so each pixel is only examined about once (see Heckbert,
+ * "A Seed Fill Algorithm", Graphics Gems, 1990).
+ *
+ * The working arrays are kept between fills, so filling doesn't allocate
+ * memory once they have grown large enough. The runs of pixels that were
+ * filled are recorded so that callers can copy the results elsewhere
+ * without scanning the whole image.
+ */
+public class FloodFill
+{
+   int width;
+   int height;
+
+   /** One bit per pixel, set for pixels that can be filled but haven't been yet */
+   int[] mask;
+
+   /** One bit per pixel, set for pixels filled from earlier seeds (see fillRasterFromSeeds()) */
+   int[] done;
+
+   /** Whether diagonally adjacent pixels are considered connected */
+   boolean eightConnected = false;
+
+   /** Segments still to be examined, stored as (y, x1, x2, dy) */
+   int[] stack = new int[256];
+   int stackSize = 0;
+
+   /** Runs of pixels filled by the last fill, stored as (y, x1, x2) */
+   int[] filledRuns = new int[256];
+   int filledRunsSize = 0;
+
+   public FloodFill(int width, int height)
+   {
+      this.width = width;
+      this.height = height;
+      mask = new int[(width * height + 31) >>> 5];
+   }
+
+   public int getWidth() { return width; }
+   public int getHeight() { return height; }
+
+   public void setEightConnected(boolean eightConnected)
+   {
+      this.eightConnected = eightConnected;
+   }
+
+   /**
+    * Marks the pixels of a raster of packed RGBA pixels (red in the lowest
+    * byte, alpha in the highest) whose channels all differ from the
+    * given color by at most tolerance.
+    */
+   public void buildMask(int[] pixels, int color, int tolerance)
+   {
+      int word = 0;
+      int numPixels = width * height;
+      for (int n = 0; n < numPixels; n++)
+      {
+         if (isColorMatch(pixels[n], color, tolerance))
+            word |= 1 << (n & 31);
+         if ((n & 31) == 31 || n == numPixels - 1)
+         {
+            mask[n >>> 5] = word;
+            word = 0;
+         }
+      }
+   }
+
+   /** 
+    * Marks the pixels of a raster of packed RGBA pixels whose alpha is
+    * exactly the given value
+    */
+   public void buildAlphaMask(int[] pixels, int alpha)
+   {
+      int word = 0;
+      int numPixels = width * height;
+      for (int n = 0; n < numPixels; n++)
+      {
+         if ((pixels[n] >>> 24) == alpha)
+            word |= 1 << (n & 31);
+         if ((n & 31) == 31 || n == numPixels - 1)
+         {
+            mask[n >>> 5] = word;
+            word = 0;
+         }
+      }
+   }
+
+   public static boolean isColorMatch(int pixel, int color, int tolerance)
+   {
+      if (pixel == color) return true;
+      for (int shift = 0; shift < 32; shift += 8)
+      {
+         int diff = ((pixel >>> shift) & 255) - ((color >>> shift) & 255);
+         if (diff > tolerance || diff < -tolerance)
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Fills the pixels marked in the mask that are connected to (x, y).
+    * The mask must have been set up beforehand. The filled pixels can be
+    * retrieved afterwards using getFilledRunCount() etc.
+    */
+   public void fill(int x, int y)
+   {
+      filledRunsSize = 0;
+      if (x < 0 || x >= width || y < 0 || y >= height) return;
+      if (!isMarked(y * width + x)) return;
+      // When diagonals are connected, the pixels one to the left and
+      // right of a run in the next row also need to be examined
+      int d = eightConnected ? 1 : 0;
+      stackSize = 0;
+      push(y, x, x, 1);
+      push(y - 1, x - d, x + d, -1);
+      while (stackSize > 0)
+      {
+         stackSize -= 4;
+         int segY = stack[stackSize];
+         int x1 = stack[stackSize + 1];
+         int x2 = stack[stackSize + 2];
+         int dy = stack[stackSize + 3];
+         int rowStart = segY * width;
+
+         // Extend the segment to the left. Anything found there must also
+         // be checked in the row that the segment came from
+         x = x1;
+         if (isMarked(rowStart + x))
+         {
+            while (x > 0 && isMarked(rowStart + x - 1))
+               x--;
+            if (x < x1)
+               fillRun(rowStart, segY, x, x1 - 1);
+            if (x - d < x1)
+               push(segY - dy, x - d, x1 - 1, -dy);
+         }
+
+         // Fill runs inside the segment, and extend the last one to the right
+         while (x1 <= x2)
+         {
+            int runStart = x1;
+            while (x1 < width && isMarked(rowStart + x1))
+               x1++;
+            if (x1 > runStart)
+               fillRun(rowStart, segY, runStart, x1 - 1);
+            if (x1 > x)
+               push(segY + dy, x - d, x1 - 1 + d, dy);
+            if (x1 - 1 + d > x2)
+               push(segY - dy, x2 + 1, x1 - 1 + d, -dy);
+            x1++;
+            while (x1 < x2 && !isMarked(rowStart + x1))
+               x1++;
+            x = x1;
+         }
+      }
+   }
+
+   /**
+    * Flood fills a raster starting from (x, y), saving tiles in an undo
+    * recorder before they are changed. With a negative tolerance, pixels
+    * whose alpha is emptyAlpha are filled by setting their alpha to 
+    * fillAlpha. Otherwise, pixels whose channels are all within the 
+    * tolerance of the clicked pixel are replaced with black of alpha 
+    * fillAlpha. The area that was filled is added to changed, and saved
+    * by the undo recorder (if there is one) before it is changed.
+    */
+   public void fillRaster(Raster raster, int x, int y, int emptyAlpha, int tolerance, int fillAlpha, UndoRecorder undoRecorder, DirtyRect changed)
+   {
+      filledRunsSize = 0;
+      if (x < 0 || x >= width || y < 0 || y >= height) return;
+      int[] pixels = raster.pixels;
+      if (tolerance < 0)
+         buildAlphaMask(pixels, emptyAlpha);
+      else
+         buildMask(pixels, pixels[y * width + x], tolerance);
+      fill(x, y);
+      copyFilledRuns(raster, tolerance, fillAlpha, undoRecorder, changed, false);
+   }
+
+   /**
+    * Flood fills a raster from several seed points, given as (x, y) pairs,
+    * like calling fillRaster() for each of them in turn. Seeds that land
+    * in an area that was already filled from an earlier seed are skipped,
+    * and the mask is only rebuilt when a seed needs a different one, so
+    * symmetric seeds in the same region cost about as much as one fill.
+    */
+   public void fillRasterFromSeeds(Raster raster, int[] seeds, int emptyAlpha, int tolerance, int fillAlpha, UndoRecorder undoRecorder, DirtyRect changed)
+   {
+      if (done == null || done.length != mask.length)
+         done = new int[mask.length];
+      else
+         Arrays.fill(done, 0);
+      int[] pixels = raster.pixels;
+      boolean hasMask = false;
+      int maskColor = 0;
+      for (int n = 0; n + 1 < seeds.length; n += 2)
+      {
+         int x = seeds[n];
+         int y = seeds[n + 1];
+         if (x < 0 || x >= width || y < 0 || y >= height) continue;
+         int idx = y * width + x;
+         if ((done[idx >>> 5] & (1 << (idx & 31))) != 0) continue;
+         // Filled pixels have already been cleared from the mask, so it
+         // stays correct for any seed looking for the same color
+         if (!hasMask || (tolerance >= 0 && pixels[idx] != maskColor))
+         {
+            if (tolerance < 0)
+               buildAlphaMask(pixels, emptyAlpha);
+            else
+               buildMask(pixels, pixels[idx], tolerance);
+            maskColor = pixels[idx];
+            hasMask = true;
+         }
+         fill(x, y);
+         copyFilledRuns(raster, tolerance, fillAlpha, undoRecorder, changed, true);
+      }
+   }
+
+   /** Copies the pixels filled by the last fill into the raster, optionally marking them as done */
+   void copyFilledRuns(Raster raster, int tolerance, int fillAlpha, UndoRecorder undoRecorder, DirtyRect changed, boolean markDone)
+   {
+      int[] pixels = raster.pixels;
+      for (int n = 0; n < getFilledRunCount(); n++)
+      {
+         int runY = getFilledRunY(n);
+         int startX = getFilledRunStartX(n);
+         int endX = getFilledRunEndX(n);
+         if (undoRecorder != null)
+            undoRecorder.capture(raster, startX, runY, endX, runY);
+         if (tolerance < 0)
+         {
+            for (int idx = runY * width + startX; idx <= runY * width + endX; idx++)
+               pixels[idx] = (pixels[idx] & 0xffffff) | (fillAlpha << 24);
+         }
+         else
+            raster.fillRect(startX, runY, endX, runY, Pixels.pack(0, 0, 0, fillAlpha));
+         if (markDone)
+         {
+            for (int idx = runY * width + startX; idx <= runY * width + endX; idx++)
+               done[idx >>> 5] |= 1 << (idx & 31);
+         }
+         changed.add(startX, runY, endX, runY);
+      }
+   }
+
+   public int getFilledRunCount() { return filledRunsSize / 3; }
+   public int getFilledRunY(int n) { return filledRuns[n * 3]; }
+   public int getFilledRunStartX(int n) { return filledRuns[n * 3 + 1]; }
+   public int getFilledRunEndX(int n) { return filledRuns[n * 3 + 2]; }
+
+   private boolean isMarked(int idx)
+   {
+      return (mask[idx >>> 5] & (1 << (idx & 31))) != 0;
+   }
+
+   private void fillRun(int rowStart, int y, int x1, int x2)
+   {
+      for (int idx = rowStart + x1; idx <= rowStart + x2; idx++)
+         mask[idx >>> 5] &= ~(1 << (idx & 31));
+      if (filledRunsSize + 3 > filledRuns.length)
+         filledRuns = grow(filledRuns);
+      filledRuns[filledRunsSize] = y;
+      filledRuns[filledRunsSize + 1] = x1;
+      filledRuns[filledRunsSize + 2] = x2;
+      filledRunsSize += 3;
+   }
+
+   private void push(int y, int x1, int x2, int dy)
+   {
+      if (y < 0 || y >= height) return;
+      if (x1 < 0) x1 = 0;
+      if (x2 >= width) x2 = width - 1;
+      if (x1 > x2) return;
+      if (stackSize + 4 > stack.length)
+         stack = grow(stack);
+      stack[stackSize] = y;
+      stack[stackSize + 1] = x1;
+      stack[stackSize + 2] = x2;
+      stack[stackSize + 3] = dy;
+      stackSize += 4;
+   }
+
+   private static int[] grow(int[] arr)
+   {
+      int[] newArr = new int[arr.length * 2];
+      for (int n = 0; n < arr.length; n++)
+         newArr[n] = arr[n];
+      return newArr;
+   }
+}
@@ -0,0 +1,262 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the edits made to a drawing as the input that made them (see
+ * JournalEntry) instead of as the pixels that changed. Replaying the 
+ * entries in order over a checkpoint (a copy of the layers from before 
+ * the first entry) rebuilds the drawing exactly. The journal takes much
+ * less memory than undo snapshots, so it can go further back in the
+ * history, at the cost of taking longer to go back.
+ * 
+ * The entries follow the undo history: undoing an edit and then making a
+ * different edit replaces the entries after that point.
+ * 
+ * More checkpoints can be added further along the journal (see
+ * needsCheckpoint()), so that going back only replays the entries since
+ * the nearest one. Checkpoints share the pixels of tiles that didn't
+ * change in between. Once the journal goes over its memory budget, the
+ * oldest checkpoint and the entries up to the next one are thrown away
+ * (see trim()), so the earliest edits can no longer be gone back to.
+ */
+public class Journal
+{
+   public static final int DEFAULT_MEMORY_BUDGET = 32 * 1024 * 1024;
+   
+   /** Most entries between checkpoints, which limits how many are replayed to go back */
+   public static final int CHECKPOINT_INTERVAL = 64;
+   
+   /** Most bytes of entries between checkpoints (e.g. for images put into the drawing) */
+   public static final int CHECKPOINT_BYTES = 4 * 1024 * 1024;
+   
+   /** Copy of the layers from before an entry of the journal */
+   public static class Checkpoint
+   {
+      /** Number of entries before the checkpoint */
+      public int position;
+   
+      /** Copies of the tiles of each layer (by layer id, from the bottom up) */
+      public Map<Integer, TiledRaster> layers;
+   
+      /** Number of strokes applied on each vector layer (see VectorLayer.getCount()) */
+      public Map<Integer, Integer> vectorCounts;
+   
+      /**
+       * Layers that the copies were made from, and their change counts at
+       * the time, for sharing unchanged tiles with the next checkpoint.
+       * Only the newest checkpoint keeps these.
+       */
+      Map<Integer, TiledRaster> sources;
+      Map<Integer, Integer> changeCounts;
+   }
+   
+   /** Size of the drawing */
+   public final int width;
+   public final int height;
+   
+   /** Checkpoints in order, where the first one comes before all of the entries */
+   List<Checkpoint> checkpoints = new ArrayList<>();
+   
+   List<JournalEntry> entries = new ArrayList<>();
+   
+   /** Bytes used by the entries, and by the checkpoints (counting shared tiles once) */
+   int entryBytes = 0;
+   int checkpointBytes = 0;
+   
+   int memoryBudget = DEFAULT_MEMORY_BUDGET;
+   
+   public Journal(int width, int height, Map<Integer, TiledRaster> checkpoint)
+   {
+      this.width = width;
+      this.height = height;
+      Checkpoint first = new Checkpoint();
+      first.position = 0;
+      first.layers = checkpoint;
+      first.vectorCounts = new HashMap<>();
+      checkpoints.add(first);
+      checkpointBytes = countCheckpointBytes();
+   }
+   
+   /** Starts a journal with copies of the given layers (by layer id) as its checkpoint */
+   public static Journal startFrom(int width, int height, Map<Integer, TiledRaster> layers)
+   {
+      return startFrom(width, height, layers, new HashMap<>());
+   }
+   
+   /** Starts a journal from copies of the given layers and the stroke counts of the vector layers among them */
+   public static Journal startFrom(int width, int height, Map<Integer, TiledRaster> layers, Map<Integer, Integer> vectorCounts)
+   {
+      Journal journal = new Journal(width, height, new LinkedHashMap<>());
+      journal.checkpoints.clear();
+      journal.addCheckpoint(layers, vectorCounts);
+      return journal;
+   }
+   
+   /** Copies of the layers from before the first entry */
+   public Map<Integer, TiledRaster> getCheckpoint()
+   {
+      return checkpoints.get(0).layers;
+   }
+   
+   /** The last checkpoint from before the entry at position (or at the end) */
+   public Checkpoint findCheckpoint(int position)
+   {
+      for (int n = checkpoints.size() - 1; n > 0; n--)
+      {
+         if (checkpoints.get(n).position <= position)
+            return checkpoints.get(n);
+      }
+      return checkpoints.get(0);
+   }
+   
+   /** Puts an entry at the given position, throwing away the entries (and checkpoints) from there on */
+   public void add(int index, JournalEntry entry)
+   {
+      while (entries.size() > index)
+         entryBytes -= entries.remove(entries.size() - 1).getByteSize();
+      int oldCheckpointCount = checkpoints.size();
+      while (checkpoints.size() > 1 && checkpoints.get(checkpoints.size() - 1).position > index)
+         checkpoints.remove(checkpoints.size() - 1);
+      if (checkpoints.size() != oldCheckpointCount)
+         checkpointBytes = countCheckpointBytes();
+      entries.add(entry);
+      entryBytes += entry.getByteSize();
+   }
+   
+   /**
+    * Whether enough has been added since the last checkpoint that a new
+    * one should be made at the end of the journal
+    */
+   public boolean needsCheckpoint()
+   {
+      Checkpoint last = checkpoints.get(checkpoints.size() - 1);
+      if (entries.size() - last.position >= CHECKPOINT_INTERVAL) return true;
+      int bytes = 0;
+      for (int n = last.position; n < entries.size(); n++)
+         bytes += entries.get(n).getByteSize();
+      return bytes >= CHECKPOINT_BYTES;
+   }
+   
+   /**
+    * Adds a checkpoint at the end of the journal holding copies of the
+    * given layers (by layer id), which must be the drawing after all of
+    * the entries
+    */
+   public void addCheckpoint(Map<Integer, TiledRaster> layers, Map<Integer, Integer> vectorCounts)
+   {
+      Checkpoint last = checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+      if (last != null && last.position == entries.size())
+      {
+         checkpoints.remove(checkpoints.size() - 1);
+         last = checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+      }
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.position = entries.size();
+      checkpoint.layers = new LinkedHashMap<>();
+      checkpoint.vectorCounts = new HashMap<>(vectorCounts);
+      checkpoint.sources = new HashMap<>();
+      checkpoint.changeCounts = new HashMap<>();
+      for (Map.Entry<Integer, TiledRaster> layer: layers.entrySet())
+      {
+         int id = layer.getKey();
+         TiledRaster tiles = layer.getValue();
+         // Tiles that haven't changed since the last checkpoint are shared with it
+         if (last != null && last.sources != null && last.sources.get(id) == tiles)
+            checkpoint.layers.put(id, tiles.copyChangedSince(last.layers.get(id), last.changeCounts.get(id)));
+         else
+            checkpoint.layers.put(id, tiles.copy());
+         checkpoint.sources.put(id, tiles);
+         checkpoint.changeCounts.put(id, tiles.getChangeCount());
+      }
+      if (last != null)
+      {
+         last.sources = null;
+         last.changeCounts = null;
+      }
+      checkpoints.add(checkpoint);
+      checkpointBytes = countCheckpointBytes();
+   }
+   
+   /**
+    * Throws away the oldest checkpoints and the entries up to the next
+    * checkpoint until the journal is under its memory budget, but only
+    * while the next checkpoint is at or before position (e.g. the current
+    * position in the history). The first checkpoint is always kept.
+    * Returns the number of entries thrown away, which positions in the
+    * journal are moved back by.
+    */
+   public int trim(int position)
+   {
+      int dropped = 0;
+      while (getMemoryUsage() > memoryBudget && checkpoints.size() > 1
+            && checkpoints.get(1).position - dropped <= position)
+      {
+         int count = checkpoints.get(1).position - dropped;
+         for (int n = 0; n < count; n++)
+            entryBytes -= entries.get(n).getByteSize();
+         entries.subList(0, count).clear();
+         checkpoints.remove(0);
+         dropped += count;
+         position -= count;
+         checkpointBytes = countCheckpointBytes();
+      }
+      for (Checkpoint checkpoint: checkpoints)
+         checkpoint.position -= dropped;
+      return dropped;
+   }
+   
+   public void setMemoryBudget(int bytes)
+   {
+      memoryBudget = bytes;
+   }
+   
+   public int size()
+   {
+      return entries.size();
+   }
+   
+   public JournalEntry get(int n)
+   {
+      return entries.get(n);
+   }
+   
+   public int getCheckpointCount()
+   {
+      return checkpoints.size();
+   }
+   
+   /** Bytes of memory used by the entries and the checkpoints */
+   public int getMemoryUsage()
+   {
+      return entryBytes + checkpointBytes;
+   }
+   
+   int countCheckpointBytes()
+   {
+      Map<Raster, Boolean> counted = new IdentityHashMap<>();
+      int bytes = 0;
+      for (Checkpoint checkpoint: checkpoints)
+      {
+         for (TiledRaster layer: checkpoint.layers.values())
+         {
+            bytes += layer.getTilesAcross() * layer.getTilesDown() * 8;
+            for (int ty = 0; ty < layer.getTilesDown(); ty++)
+            {
+               for (int tx = 0; tx < layer.getTilesAcross(); tx++)
+               {
+                  Raster tile = layer.getTile(tx, ty);
+                  if (tile == null || counted.put(tile, Boolean.TRUE) != null) continue;
+                  bytes += tile.width * tile.height * 4;
+               }
+            }
+         }
+      }
+      return bytes;
+   }
+}
@@ -0,0 +1,120 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * A single edit to a layer, recorded as the input that made it instead
+ * of as the pixels it changed. All positions are in the coordinates of
+ * the drawing.
+ */
+public class JournalEntry
+{
+   /** A brush stroke or eraser stroke through a series of points */
+   public static final int STROKE = 0;
+   /** A stamp placed with its top-left corner at the first point */
+   public static final int STAMP = 1;
+   /** A flood fill from the first point (and its symmetric copies) */
+   public static final int FLOOD_FILL = 2;
+   /** The whole layer filled with a color */
+   public static final int FILL = 3;
+   /** An image replacing the top-left corner of the layer */
+   public static final int IMAGE = 4;
+   
+   public int kind;
+   
+   /** Id of the layer that was changed */
+   public int layerId;
+   
+   public ToolSettings settings;
+   
+   /** 
+    * Area that the edit was limited to. For strokes and fills, this is the
+    * window that was unpacked at the time, and for stamps, it is the part
+    * of the stamp that was drawn.
+    */
+   public int clipX;
+   public int clipY;
+   public int clipWidth;
+   public int clipHeight;
+   
+   /** Positions (as x, y pairs) and pen pressures of the points of the edit */
+   public int[] points = new int[8];
+   public double[] pressures = new double[4];
+   public int pointCount = 0;
+   
+   /** Color for filling the whole layer */
+   public int color;
+   
+   /** Tiles of an image put into the top-left corner of the layer */
+   public TiledRaster image;
+   
+   public static JournalEntry create(int kind, int layerId, ToolSettings settings)
+   {
+      JournalEntry entry = new JournalEntry();
+      entry.kind = kind;
+      entry.layerId = layerId;
+      entry.settings = settings;
+      return entry;
+   }
+   
+   public void setClip(int x, int y, int w, int h)
+   {
+      clipX = x;
+      clipY = y;
+      clipWidth = w;
+      clipHeight = h;
+   }
+   
+   /** Adds a point, unless it is the same as the last point */
+   public void addPoint(int x, int y, double pressure)
+   {
+      if (pointCount > 0 && points[pointCount * 2 - 2] == x && points[pointCount * 2 - 1] == y 
+            && pressures[pointCount - 1] == pressure)
+         return;
+      if (pointCount == pressures.length)
+      {
+         int[] newPoints = new int[points.length * 2];
+         double[] newPressures = new double[pressures.length * 2];
+         System.arraycopy(points, 0, newPoints, 0, pointCount * 2);
+         System.arraycopy(pressures, 0, newPressures, 0, pointCount);
+         points = newPoints;
+         pressures = newPressures;
+      }
+      points[pointCount * 2] = x;
+      points[pointCount * 2 + 1] = y;
+      pressures[pointCount] = pressure;
+      pointCount++;
+   }
+   
+   public int getX(int n) { return points[n * 2]; }
+   public int getY(int n) { return points[n * 2 + 1]; }
+   public double getPressure(int n) { return pressures[n]; }
+   
+   /** Bytes of memory used by the entry, not counting settings shared with other entries */
+   public int getByteSize()
+   {
+      int bytes = 64 + points.length * 4 + pressures.length * 8;
+      if (image != null)
+         bytes += image.getMemoryUsage();
+      return bytes;
+   }
+   
+   /**
+    * Copy of a stroke for drawing it at a whole number of times its size.
+    * Each point is moved to the middle of the block of pixels that its
+    * pixel becomes, and the brush grows with it.
+    */
+   public JournalEntry scaled(int scale)
+   {
+      if (scale == 1) return this;
+      JournalEntry copy = create(kind, layerId, settings == null ? null : settings.scaled(scale));
+      copy.setClip(clipX * scale, clipY * scale, clipWidth * scale, clipHeight * scale);
+      copy.points = new int[Math.max(pointCount, 4) * 2];
+      copy.pressures = new double[Math.max(pointCount, 4)];
+      int offset = scale / 2;
+      for (int n = 0; n < pointCount * 2; n++)
+         copy.points[n] = points[n] * scale + offset;
+      System.arraycopy(pressures, 0, copy.pressures, 0, pointCount);
+      copy.pointCount = pointCount;
+      copy.color = color;
+      return copy;
+   }
+}
@@ -0,0 +1,270 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Replays journal entries onto the tiles of a layer, using the same
+ * drawing code that made them in the first place, so that the result
+ * comes out exactly the same.
+ *
+ * An edit only changes pixels near its points, so only that area of the
+ * layer is unpacked and drawn on. The exception is flood fill, where what
+ * gets filled depends on everything that was in the window at the time.
+ */
+public class JournalPlayer
+{
+   /** Used for allocating memory for the pixels being drawn on */
+   RasterFactory factory;
+
+   /** Copy of the area of the layer being changed */
+   Raster data;
+
+   /** Strokes are drawn here and then merged into the layer */
+   Raster stroke;
+
+   BrushEngine brushEngine = new BrushEngine();
+   StrokeRasterizer strokeRasterizer = new StrokeRasterizer();
+   DabMask dabMask;
+   FloodFill floodFill;
+   DirtyRect dirty = new DirtyRect();
+   DirtyRect strokeBounds = new DirtyRect();
+
+   /** Area of the drawing being changed */
+   int areaX;
+   int areaY;
+   int areaWidth;
+   int areaHeight;
+
+   /** Whether the tiles are saved before they're changed, and the undo command that they're saved in */
+   boolean isSavingUndo = false;
+   UndoableCommand undo;
+
+   /** When set, strokes and stamps only change this area of the layer (e.g. the tiles being rendered by a VectorLayer) */
+   DirtyRect limit;
+
+   public JournalPlayer(RasterFactory factory)
+   {
+      this.factory = factory;
+      dabMask = new DabMask(factory);
+   }
+
+   /** Limits strokes and stamps to an area of the layer (inclusive coordinates), or removes the limit if it is null */
+   public void setLimit(DirtyRect limit)
+   {
+      this.limit = limit;
+   }
+
+   /** Applies an entry to the tiles of the layer that it changed */
+   public void play(JournalEntry entry, TiledRaster target)
+   {
+      switch (entry.kind)
+      {
+         case JournalEntry.STROKE:
+            playStroke(entry, target);
+            break;
+         case JournalEntry.STAMP:
+            playStamp(entry, target);
+            break;
+         case JournalEntry.FLOOD_FILL:
+            playFloodFill(entry, target);
+            break;
+         case JournalEntry.FILL:
+            target.fill(entry.color);
+            break;
+         case JournalEntry.IMAGE:
+            target.replaceTiles(entry.image.copy(), 0, 0);
+            break;
+      }
+   }
+
+   /** 
+    * Applies an entry like play(), but returns an undo command holding 
+    * the tiles from before the change (or null if nothing changed)
+    */
+   public UndoableCommand playUndoable(JournalEntry entry, TiledRaster target)
+   {
+      if (entry.kind == JournalEntry.FILL)
+         return target.fill(entry.color);
+      if (entry.kind == JournalEntry.IMAGE)
+         return target.replaceTiles(entry.image.copy(), 0, 0);
+      isSavingUndo = true;
+      play(entry, target);
+      isSavingUndo = false;
+      UndoableCommand cmd = undo;
+      undo = null;
+      return cmd;
+   }
+
+   void playStroke(JournalEntry entry, TiledRaster target)
+   {
+      ToolSettings settings = entry.settings;
+      if (entry.pointCount == 0) return;
+      Symmetry symmetry = settings.getSymmetry();
+      strokeBounds.clear();
+      addStrokeBounds(entry, strokeBounds);
+      if (!startArea(entry, target, strokeBounds.minX, strokeBounds.minY, strokeBounds.maxX, strokeBounds.maxY)) return;
+
+      boolean isSoft = settings.tool == ToolSettings.PAINT && !settings.brush.isHardCircle();
+      brushEngine.setBrush(settings.brush);
+      brushEngine.reset();
+      // The first point is drawn as a segment from itself to itself, like
+      // when a stroke starts
+      for (int n = 0; n < entry.pointCount; n++)
+      {
+         int prev = Math.max(n - 1, 0);
+         int x0 = entry.getX(prev), y0 = entry.getY(prev);
+         int x1 = entry.getX(n), y1 = entry.getY(n);
+         double pressure0 = entry.getPressure(prev);
+         double pressure1 = entry.getPressure(n);
+         if (symmetry.hasCopies())
+            drawSymmetricSegment(settings, symmetry, x0, y0, pressure0, x1, y1, pressure1);
+         else if (isSoft)
+            brushEngine.strokeTo(stroke, dirty, settings.brushSize, x0 - areaX, y0 - areaY, pressure0, x1 - areaX, y1 - areaY, pressure1);
+         else
+            drawSegment(settings, x0 - areaX, y0 - areaY, x1 - areaX, y1 - areaY);
+      }
+      brushEngine.reset();
+      finishArea(target, true);
+   }
+
+   /** 
+    * Adds the area of the drawing that a stroke can touch to bounds. This
+    * covers all of its symmetric copies, but isn't limited to its clip area.
+    */
+   public static void addStrokeBounds(JournalEntry entry, DirtyRect bounds)
+   {
+      if (entry.pointCount == 0) return;
+      ToolSettings settings = entry.settings;
+      Symmetry symmetry = settings.getSymmetry();
+      int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+      int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+      for (int n = 0; n < entry.pointCount; n++)
+      {
+         for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+         {
+            int x = symmetry.copyX(copy, entry.getX(n), entry.getY(n));
+            int y = symmetry.copyY(copy, entry.getX(n), entry.getY(n));
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+         }
+      }
+      // With symmetry, the area stretches across all the copies, which can
+      // land a little further out because of rounding
+      int margin = DabMask.getMargin(settings) + (symmetry.hasCopies() ? 2 : 0);
+      bounds.add(minX - margin, minY - margin, maxX + margin, maxY + margin);
+   }
+
+   /** Paints or erases the area covered by the brush moving in a straight line (see LayerCanvas.drawBrushSegment()) */
+   void drawSegment(ToolSettings settings, int x0, int y0, int x1, int y1)
+   {
+      strokeRasterizer.capsule(x0, y0, x1, y1, settings.brushSize);
+      if (settings.tool == ToolSettings.ERASER)
+         strokeRasterizer.fill(data, 0, dirty);
+      else
+         strokeRasterizer.fill(stroke, Pixels.pack(0, 0, 0, 255), dirty);
+   }
+
+   /** Draws a part of a stroke once, and copies it to each of its symmetric copies (see LayerCanvas.drawSymmetricSegment()) */
+   void drawSymmetricSegment(ToolSettings settings, Symmetry symmetry, int x0, int y0, double pressure0, int x1, int y1, double pressure1)
+   {
+      dabMask.drawSegment(settings, brushEngine, strokeRasterizer, x0, y0, pressure0, x1, y1, pressure1);
+      for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+      {
+         if (settings.tool == ToolSettings.ERASER)
+            symmetry.eraseCopy(copy, dabMask, data, areaX, areaY, dirty);
+         else
+            symmetry.drawCopy(copy, dabMask, stroke, areaX, areaY, dirty);
+      }
+   }
+
+   void playStamp(JournalEntry entry, TiledRaster target)
+   {
+      Raster stamp = entry.settings.stamp;
+      if (entry.pointCount == 0 || stamp == null) return;
+      int stampX = entry.getX(0);
+      int stampY = entry.getY(0);
+      if (!startArea(entry, target, stampX, stampY, stampX + stamp.width - 1, stampY + stamp.height - 1)) return;
+      stroke.copyRect(stamp, areaX - stampX, areaY - stampY, 0, 0, areaWidth, areaHeight);
+      finishArea(target, true);
+   }
+
+   void playFloodFill(JournalEntry entry, TiledRaster target)
+   {
+      ToolSettings settings = entry.settings;
+      if (entry.pointCount == 0 || entry.clipX < 0 || entry.clipY < 0) return;
+      // The fill worked on the whole window, including any part of it that
+      // hung over the edge of the drawing
+      areaX = entry.clipX;
+      areaY = entry.clipY;
+      areaWidth = entry.clipWidth;
+      areaHeight = entry.clipHeight;
+      if (areaWidth <= 0 || areaHeight <= 0) return;
+      allocate();
+      target.readRect(areaX, areaY, data, 0, 0, areaWidth, areaHeight);
+      if (floodFill == null || floodFill.getWidth() != areaWidth || floodFill.getHeight() != areaHeight)
+         floodFill = new FloodFill(areaWidth, areaHeight);
+      floodFill.setEightConnected(settings.floodFillEightConnected);
+      int[] seeds = settings.getSymmetry().copyPoints(entry.getX(0), entry.getY(0), areaX, areaY);
+      floodFill.fillRasterFromSeeds(data, seeds, settings.floodFillEmptyColor,
+            settings.floodFillTolerance, settings.floodFillFillColor, null, dirty);
+      finishArea(target, false);
+   }
+
+   /**
+    * Unpacks the part of an area of the layer (inclusive coordinates) that
+    * is inside the image, the clip area of the entry, and any limit. 
+    * Returns false if there's nothing left.
+    */
+   boolean startArea(JournalEntry entry, TiledRaster target, int x0, int y0, int x1, int y1)
+   {
+      x0 = Math.max(Math.max(x0, entry.clipX), 0);
+      y0 = Math.max(Math.max(y0, entry.clipY), 0);
+      x1 = Math.min(Math.min(x1, entry.clipX + entry.clipWidth - 1), target.width - 1);
+      y1 = Math.min(Math.min(y1, entry.clipY + entry.clipHeight - 1), target.height - 1);
+      if (limit != null)
+      {
+         x0 = Math.max(x0, limit.minX);
+         y0 = Math.max(y0, limit.minY);
+         x1 = Math.min(x1, limit.maxX);
+         y1 = Math.min(y1, limit.maxY);
+      }
+      if (x0 > x1 || y0 > y1) return false;
+      areaX = x0;
+      areaY = y0;
+      areaWidth = x1 - x0 + 1;
+      areaHeight = y1 - y0 + 1;
+      allocate();
+      target.readRect(areaX, areaY, data, 0, 0, areaWidth, areaHeight);
+      return true;
+   }
+
+   /** Makes sure that the rasters for drawing on are the size of the area, with nothing in the stroke */
+   void allocate()
+   {
+      if (data == null || data.width != areaWidth || data.height != areaHeight)
+      {
+         data = factory.create(areaWidth, areaHeight);
+         stroke = factory.create(areaWidth, areaHeight);
+      }
+      else
+         stroke.fillRect(0, 0, areaWidth - 1, areaHeight - 1, 0);
+      dirty.clear();
+   }
+
+   /** Merges any stroke into the area, and stores the part of the area inside the image back into the layer */
+   void finishArea(TiledRaster target, boolean hasStroke)
+   {
+      if (hasStroke)
+      {
+         dirty.clear();
+         dirty.add(0, 0, areaWidth - 1, areaHeight - 1);
+         Compositor.mergeStroke(data, stroke, dirty);
+      }
+      int w = Math.min(areaWidth, target.width - areaX);
+      int h = Math.min(areaHeight, target.height - areaY);
+      if (w <= 0 || h <= 0) return;
+      if (isSavingUndo)
+         undo = target.saveTiles(areaX, areaY, w, h);
+      target.writeRect(data, 0, 0, areaX, areaY, w, h);
+   }
+}
@@ -0,0 +1,308 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.Arrays;
+
+/**
+ * Keeps shrunken copies of an image for showing it zoomed out. Level n
+ * holds the image at 1/2^n of its full size. Level 0 is the full-size
+ * image itself, which is read from a TileSource and isn't cached.
+ *
+ * Each level is stored as tiles, and a tile is made by shrinking the four
+ * tiles under it in the level below. Tiles are only made when they are
+ * read, so showing any part of the image at any zoom only involves a
+ * number of tiles proportional to the size of the screen (apart from the
+ * first time a zoomed-out view is shown). When part of the image changes,
+ * the tiles covering it in every level are marked as out of date and are
+ * made again the next time they are read.
+ */
+public class MipCache
+{
+   static final int TILE_SIZE = TiledRaster.TILE_SIZE;
+
+   TileSource source;
+
+   /** Size of the full-size image */
+   final int width;
+   final int height;
+
+   /** levels[n - 1] holds level n */
+   TiledRaster[] levels;
+
+   /** Which tiles of each level are up-to-date (indexed like levels) */
+   boolean[][] isValid;
+
+   /**
+    * quads[n] holds the four tiles that are shrunk into a tile of level n.
+    * Making a tile can involve making the tiles under it first, so each
+    * level needs its own. quads[0] is used for reading full-size tiles.
+    */
+   Raster[] quads;
+
+   /** Holds a shrunken tile before it is stored */
+   Raster shrunk;
+
+   public MipCache(RasterFactory factory, int width, int height, TileSource source)
+   {
+      this.source = source;
+      this.width = width;
+      this.height = height;
+      // Levels continue until the whole image fits in a single tile
+      int count = 1;
+      while (levelSize(width, count) > TILE_SIZE || levelSize(height, count) > TILE_SIZE)
+         count++;
+      levels = new TiledRaster[count];
+      isValid = new boolean[count][];
+      quads = new Raster[count + 1];
+      for (int n = 0; n < count; n++)
+      {
+         levels[n] = new TiledRaster(factory, levelSize(width, n + 1), levelSize(height, n + 1));
+         isValid[n] = new boolean[levels[n].tilesAcross * levels[n].tilesDown];
+      }
+      for (int n = 0; n <= count; n++)
+         quads[n] = factory.create(2 * TILE_SIZE, 2 * TILE_SIZE);
+      shrunk = factory.create(TILE_SIZE, TILE_SIZE);
+   }
+
+   static int levelSize(int size, int level)
+   {
+      return (size + (1 << level) - 1) >> level;
+   }
+
+   /** Number of shrunken levels (so the last level is getLevelCount()) */
+   public int getLevelCount()
+   {
+      return levels.length;
+   }
+
+   public int getLevelWidth(int level)
+   {
+      return level == 0 ? width : levels[level - 1].width;
+   }
+
+   public int getLevelHeight(int level)
+   {
+      return level == 0 ? height : levels[level - 1].height;
+   }
+
+   /**
+    * The level to show when the image is drawn at the given scale. It is
+    * the smallest level that still has at least as many pixels as will be
+    * shown, so it is shrunk by less than half when it is drawn.
+    */
+   public int chooseLevel(double scale)
+   {
+      int level = 0;
+      while (level < levels.length && scale * (1 << (level + 1)) <= 1)
+         level++;
+      return level;
+   }
+
+   /** Marks the tiles covering an area of the full-size image (inclusive coordinates) as out of date */
+   public void invalidate(int x0, int y0, int x1, int y1)
+   {
+      x0 = Math.max(x0, 0);
+      y0 = Math.max(y0, 0);
+      x1 = Math.min(x1, width - 1);
+      y1 = Math.min(y1, height - 1);
+      if (x0 > x1 || y0 > y1) return;
+      for (int level = 1; level <= levels.length; level++)
+      {
+         boolean[] valid = isValid[level - 1];
+         int tilesAcross = levels[level - 1].tilesAcross;
+         for (int ty = (y0 >> level) / TILE_SIZE; ty <= (y1 >> level) / TILE_SIZE; ty++)
+         {
+            for (int tx = (x0 >> level) / TILE_SIZE; tx <= (x1 >> level) / TILE_SIZE; tx++)
+               valid[ty * tilesAcross + tx] = false;
+         }
+      }
+   }
+
+   public void invalidateAll()
+   {
+      for (boolean[] valid: isValid)
+         Arrays.fill(valid, false);
+   }
+
+   /**
+    * Copies a w by h block of a level at (x, y) into a raster, making any
+    * out of date tiles first. Parts of the block outside of the image are
+    * made transparent.
+    */
+   public void readRect(int level, int x, int y, Raster to, int toX, int toY, int w, int h)
+   {
+      if (level == 0)
+      {
+         readFullSize(x, y, to, toX, toY, w, h);
+         return;
+      }
+      TiledRaster tiles = levels[level - 1];
+      boolean[] valid = isValid[level - 1];
+      int x1 = Math.min(x + w, tiles.width);
+      int y1 = Math.min(y + h, tiles.height);
+      for (int ty = Math.max(y, 0) / TILE_SIZE; ty * TILE_SIZE < y1; ty++)
+      {
+         for (int tx = Math.max(x, 0) / TILE_SIZE; tx * TILE_SIZE < x1; tx++)
+         {
+            if (!valid[ty * tiles.tilesAcross + tx])
+               update(level, tx, ty);
+         }
+      }
+      tiles.readRect(x, y, to, toX, toY, w, h);
+   }
+
+   /** Reads a block of the full-size image from the source one tile at a time */
+   void readFullSize(int x, int y, Raster to, int toX, int toY, int w, int h)
+   {
+      to.fillRect(toX, toY, toX + w - 1, toY + h - 1, 0);
+      Raster tile = quads[0];
+      int x1 = Math.min(x + w, width);
+      int y1 = Math.min(y + h, height);
+      for (int ty = Math.max(y, 0) / TILE_SIZE; ty * TILE_SIZE < y1; ty++)
+      {
+         int tileY0 = Math.max(y, ty * TILE_SIZE);
+         int tileY1 = Math.min(y1, (ty + 1) * TILE_SIZE);
+         for (int tx = Math.max(x, 0) / TILE_SIZE; tx * TILE_SIZE < x1; tx++)
+         {
+            int tileX0 = Math.max(x, tx * TILE_SIZE);
+            int tileX1 = Math.min(x1, (tx + 1) * TILE_SIZE);
+            if (!source.readTile(tx, ty, tile, 0, 0))
+               tile.fillRect(0, 0, TILE_SIZE - 1, TILE_SIZE - 1, tile.pixels[0]);
+            to.copyRect(tile, tileX0 - tx * TILE_SIZE, tileY0 - ty * TILE_SIZE, toX + tileX0 - x, toY + tileY0 - y,
+                  tileX1 - tileX0, tileY1 - tileY0);
+         }
+      }
+   }
+
+   /** Makes a tile of a level by shrinking the four tiles under it */
+   void update(int level, int tx, int ty)
+   {
+      Raster quad = quads[level];
+      // Tiles that are a single color only have their color read at first,
+      // so if all four are the same color, no pixels need to be touched
+      int uniformChildren = 0;
+      boolean isUniform = true;
+      int color = 0;
+      for (int n = 0; n < 4; n++)
+      {
+         int qx = (n & 1) * TILE_SIZE;
+         int qy = (n >> 1) * TILE_SIZE;
+         if (readChild(level - 1, tx * 2 + (n & 1), ty * 2 + (n >> 1), quad, qx, qy))
+         {
+            isUniform = false;
+            continue;
+         }
+         uniformChildren |= 1 << n;
+         int childColor = quad.pixels[qy * quad.width + qx];
+         if (n == 0)
+            color = childColor;
+         else if (childColor != color)
+            isUniform = false;
+      }
+      TiledRaster tiles = levels[level - 1];
+      if (isUniform)
+         tiles.setTile(tx, ty, null, color);
+      else
+      {
+         for (int n = 0; n < 4; n++)
+         {
+            if ((uniformChildren & (1 << n)) == 0) continue;
+            int qx = (n & 1) * TILE_SIZE;
+            int qy = (n >> 1) * TILE_SIZE;
+            quad.fillRect(qx, qy, qx + TILE_SIZE - 1, qy + TILE_SIZE - 1, quad.pixels[qy * quad.width + qx]);
+         }
+         shrink(quad, shrunk);
+         tiles.writeRect(shrunk, 0, 0, tx * TILE_SIZE, ty * TILE_SIZE, tiles.getTileWidth(tx), tiles.getTileHeight(ty));
+      }
+      isValid[level - 1][ty * tiles.tilesAcross + tx] = true;
+   }
+
+   /**
+    * Reads a tile of a level into a quarter of a quad. Returns false if
+    * the tile is a single color, in which case only that color is written
+    * into the top-left pixel of the quarter.
+    */
+   boolean readChild(int level, int tx, int ty, Raster quad, int qx, int qy)
+   {
+      if (level == 0)
+      {
+         if (tx * TILE_SIZE >= width || ty * TILE_SIZE >= height)
+         {
+            quad.pixels[qy * quad.width + qx] = 0;
+            return false;
+         }
+         return source.readTile(tx, ty, quad, qx, qy);
+      }
+      TiledRaster tiles = levels[level - 1];
+      if (tx >= tiles.tilesAcross || ty >= tiles.tilesDown)
+      {
+         quad.pixels[qy * quad.width + qx] = 0;
+         return false;
+      }
+      if (!isValid[level - 1][ty * tiles.tilesAcross + tx])
+         update(level, tx, ty);
+      Raster tile = tiles.getTile(tx, ty);
+      int tileWidth = tiles.getTileWidth(tx);
+      int tileHeight = tiles.getTileHeight(ty);
+      boolean isWholeTile = tileWidth == TILE_SIZE && tileHeight == TILE_SIZE;
+      if (tile == null && isWholeTile)
+      {
+         quad.pixels[qy * quad.width + qx] = tiles.getTileColor(tx, ty);
+         return false;
+      }
+      // Tiles along the edges of the image are smaller, with the rest of
+      // their quarter being outside the image
+      if (!isWholeTile)
+         quad.fillRect(qx, qy, qx + TILE_SIZE - 1, qy + TILE_SIZE - 1, 0);
+      tiles.readRect(tx * TILE_SIZE, ty * TILE_SIZE, quad, qx, qy, tileWidth, tileHeight);
+      return true;
+   }
+
+   /**
+    * Shrinks a raster to half its size. Each 2x2 block of pixels is
+    * averaged, with the colors weighted by alpha so that transparent
+    * pixels don't darken the edges of shapes.
+    */
+   static void shrink(Raster from, Raster to)
+   {
+      int[] in = from.pixels;
+      int[] out = to.pixels;
+      int rowLength = from.width;
+      for (int y = 0; y < to.height; y++)
+      {
+         int idx = 2 * y * rowLength;
+         int outIdx = y * to.width;
+         for (int x = 0; x < to.width; x++, idx += 2, outIdx++)
+         {
+            int p0 = in[idx];
+            int p1 = in[idx + 1];
+            int p2 = in[idx + rowLength];
+            int p3 = in[idx + rowLength + 1];
+            if (p0 == p1 && p0 == p2 && p0 == p3)
+            {
+               out[outIdx] = p0;
+               continue;
+            }
+            int a0 = Pixels.alpha(p0), a1 = Pixels.alpha(p1), a2 = Pixels.alpha(p2), a3 = Pixels.alpha(p3);
+            int a = a0 + a1 + a2 + a3;
+            if (a == 0)
+            {
+               out[outIdx] = 0;
+               continue;
+            }
+            int r = (Pixels.red(p0) * a0 + Pixels.red(p1) * a1 + Pixels.red(p2) * a2 + Pixels.red(p3) * a3) / a;
+            int g = (Pixels.green(p0) * a0 + Pixels.green(p1) * a1 + Pixels.green(p2) * a2 + Pixels.green(p3) * a3) / a;
+            int b = (Pixels.blue(p0) * a0 + Pixels.blue(p1) * a1 + Pixels.blue(p2) * a2 + Pixels.blue(p3) * a3) / a;
+            out[outIdx] = Pixels.pack(r, g, b, (a + 2) / 4);
+         }
+      }
+   }
+
+   /** Bytes of memory used for the shrunken tiles */
+   public int getMemoryUsage()
+   {
+      int bytes = 0;
+      for (TiledRaster level: levels)
+         bytes += level.getMemoryUsage();
+      return bytes;
+   }
+}
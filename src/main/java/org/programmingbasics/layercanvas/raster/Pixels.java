@@ -0,0 +1,44 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Helpers for working with pixels packed into an int, with red in the 
+ * lowest byte, then green and blue, and alpha in the highest byte.
+ * Colors are not premultiplied by alpha.
+ */
+public class Pixels
+{
+   public static int pack(int r, int g, int b, int a)
+   {
+      return r | (g << 8) | (b << 16) | (a << 24);
+   }
+   
+   public static int red(int pixel) { return pixel & 255; }
+   public static int green(int pixel) { return (pixel >> 8) & 255; }
+   public static int blue(int pixel) { return (pixel >> 16) & 255; }
+   public static int alpha(int pixel) { return pixel >>> 24; }
+   
+   /** Multiplies the alpha of a pixel by alphaScale / 255 */
+   public static int scaleAlpha(int pixel, int alphaScale)
+   {
+      if (alphaScale == 255) return pixel;
+      int a = ((pixel >>> 24) * alphaScale + 127) / 255;
+      return (pixel & 0xffffff) | (a << 24);
+   }
+   
+   /** Returns the result of drawing src over dst (i.e. source-over compositing) */
+   public static int blendOver(int dst, int src)
+   {
+      int a = src >>> 24;
+      if (a == 0) return dst;
+      int dstA = dst >>> 24;
+      if (a == 255 || dstA == 0) return src;
+      // Weights are scaled by 255 * 255
+      int srcWeight = a * 255;
+      int dstWeight = dstA * (255 - a);
+      int outWeight = srcWeight + dstWeight;
+      int r = ((src & 255) * srcWeight + (dst & 255) * dstWeight) / outWeight;
+      int g = (((src >> 8) & 255) * srcWeight + ((dst >> 8) & 255) * dstWeight) / outWeight;
+      int b = (((src >> 16) & 255) * srcWeight + ((dst >> 16) & 255) * dstWeight) / outWeight;
+      return r | (g << 8) | (b << 16) | (((outWeight + 127) / 255) << 24);
+   }
+}
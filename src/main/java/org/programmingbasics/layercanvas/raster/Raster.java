@@ -0,0 +1,115 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * An image stored as one int per pixel, with red in the lowest byte and
+ * alpha in the highest byte (see Pixels). This is the same layout as the
+ * bytes of canvas image data when viewed as little-endian 32-bit ints, 
+ * so in the browser, a raster can share its memory with image data.
+ * 
+ * The code for manipulating rasters doesn't use any browser APIs, so it 
+ * can also be run and measured on a normal JVM.
+ */
+public class Raster
+{
+   public final int width;
+   public final int height;
+   
+   /** 
+    * Pixels in rows from top to bottom. The array may be replaced by one
+    * with the same contents when the memory holding the pixels is moved
+    * (e.g. when it is handed to a web worker and back)
+    */
+   public int[] pixels;
+   
+   public Raster(int width, int height, int[] pixels)
+   {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+   }
+   
+   public static Raster create(int width, int height)
+   {
+      return new Raster(width, height, new int[width * height]);
+   }
+   
+   /** Sets count pixels, starting from index idx, to a color */
+   public void fillSpan(int idx, int count, int color)
+   {
+      int end = idx + count;
+      for (; idx < end; idx++)
+         pixels[idx] = color;
+   }
+   
+   /** Copies count pixels from another raster, starting at the given indices */
+   public void copySpan(Raster from, int fromIdx, int toIdx, int count)
+   {
+      int[] fromPixels = from.pixels;
+      for (int n = 0; n < count; n++)
+         pixels[toIdx + n] = fromPixels[fromIdx + n];
+   }
+   
+   /** Sets an area of the raster to a color (inclusive coordinates) */
+   public void fillRect(int x0, int y0, int x1, int y1, int color)
+   {
+      if (x0 == 0 && x1 == width - 1)
+      {
+         // Whole rows can be filled all at once
+         fillSpan(y0 * width, (y1 - y0 + 1) * width, color);
+         return;
+      }
+      for (int y = y0; y <= y1; y++)
+         fillSpan(y * width + x0, x1 - x0 + 1, color);
+   }
+   
+   public void fillRect(DirtyRect rect, int color)
+   {
+      if (rect.isEmpty()) return;
+      fillRect(rect.minX, rect.minY, rect.maxX, rect.maxY, color);
+   }
+   
+   /** Copies a w by h block of pixels from another raster into this one */
+   public void copyRect(Raster from, int fromX, int fromY, int toX, int toY, int w, int h)
+   {
+      if (w == width && w == from.width)
+      {
+         // Whole rows can be copied all at once
+         copySpan(from, fromY * w, toY * w, w * h);
+         return;
+      }
+      for (int y = 0; y < h; y++)
+         copySpan(from, (fromY + y) * from.width + fromX, (toY + y) * width + toX, w);
+   }
+   
+   /** Exchanges a w by h block of pixels of this raster with a block of another raster */
+   public void swapRect(Raster other, int otherX, int otherY, int x, int y, int w, int h)
+   {
+      for (int row = 0; row < h; row++)
+      {
+         int otherIdx = (otherY + row) * other.width + otherX;
+         int idx = (y + row) * width + x;
+         for (int n = 0; n < w; n++)
+         {
+            int val = pixels[idx + n];
+            pixels[idx + n] = other.pixels[otherIdx + n];
+            other.pixels[otherIdx + n] = val;
+         }
+      }
+   }
+   
+   /** Checks whether a w by h block of pixels of this raster is the same as a block of another raster */
+   public boolean isRectEqual(Raster other, int otherX, int otherY, int x, int y, int w, int h)
+   {
+      for (int row = 0; row < h; row++)
+      {
+         int otherIdx = (otherY + row) * other.width + otherX;
+         int idx = (y + row) * width + x;
+         for (int n = 0; n < w; n++)
+         {
+            if (pixels[idx + n] != other.pixels[otherIdx + n])
+               return false;
+         }
+      }
+      return true;
+   }
+}
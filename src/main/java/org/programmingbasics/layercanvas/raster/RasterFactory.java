@@ -0,0 +1,11 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Allocates memory for rasters. In the browser, pixels are better kept 
+ * in typed arrays than in normal arrays, so code that creates rasters 
+ * takes a factory instead of calling Raster.create() directly.
+ */
+public interface RasterFactory
+{
+   Raster create(int width, int height);
+}
@@ -0,0 +1,23 @@
+package org.programmingbasics.layercanvas.raster;
+
+import jsinterop.annotations.JsType;
+
+@JsType
+public class RoundBrush extends BasicBrush
+{
+   @Override BasicBrush createSameShape()
+   {
+      return new RoundBrush();
+   }
+   
+   @Override public double getCoverage(double dx, double dy, double radius)
+   {
+      return coverageAtDistance(Math.sqrt(dx * dx + dy * dy), radius);
+   }
+   
+   @Override public boolean isHardCircle()
+   {
+      return hardness == 1.0 && opacity == 1.0 && !antiAlias 
+            && minSizeScale == 1.0 && minOpacityScale == 1.0;
+   }
+}
@@ -0,0 +1,17 @@
+package org.programmingbasics.layercanvas.raster;
+
+import jsinterop.annotations.JsType;
+
+@JsType
+public class SquareBrush extends BasicBrush
+{
+   @Override BasicBrush createSameShape()
+   {
+      return new SquareBrush();
+   }
+   
+   @Override public double getCoverage(double dx, double dy, double radius)
+   {
+      return coverageAtDistance(Math.max(Math.abs(dx), Math.abs(dy)), radius);
+   }
+}
@@ -0,0 +1,164 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Works out which pixels are covered by a round brush moved along a line.
+ * The area covered is a capsule shape (the line thickened by the radius
+ * of the brush), which is calculated directly as one horizontal span of
+ * pixels per row instead of stamping a circle at every pixel along the
+ * line.
+ *
+ * The spans of the last shape calculated are kept in arrays that are
+ * reused between calls, so nothing is allocated once the arrays have
+ * grown large enough. Nothing is shared between rasterizers, so
+ * different threads can each use their own (e.g. when rendering many
+ * drawings at once).
+ */
+public class StrokeRasterizer
+{
+   /** Half-widths of circles of different radii, indexed by radius then by row distance from the center */
+   int[][] circleSpansCache = new int[0][];
+
+   /** Rows covered by the last shape */
+   int minY;
+   int maxY;
+
+   /** Left and right ends of the span in each row (indexed by y - minY). Rows with nothing have left > right */
+   int[] left = new int[64];
+   int[] right = new int[64];
+
+   /**
+    * Returns the half-width of each row of a circle of the given radius,
+    * indexed by distance from the center row.
+    */
+   public int[] circleSpans(int radius)
+   {
+      if (radius >= circleSpansCache.length)
+      {
+         int[][] newCache = new int[radius + 1][];
+         for (int n = 0; n < circleSpansCache.length; n++)
+            newCache[n] = circleSpansCache[n];
+         circleSpansCache = newCache;
+      }
+      if (circleSpansCache[radius] == null)
+      {
+         int[] spans = new int[radius + 1];
+         for (int y = 0; y <= radius; y++)
+            spans[y] = (int)Math.sqrt(radius * radius - y * y);
+         circleSpansCache[radius] = spans;
+      }
+      return circleSpansCache[radius];
+   }
+
+   /** Calculates the pixels covered by a circle */
+   public void dab(int x, int y, int radius)
+   {
+      capsule(x, y, x, y, radius);
+   }
+
+   /** Calculates the pixels covered by a circle moving from (ax, ay) to (bx, by) */
+   public void capsule(int ax, int ay, int bx, int by, int radius)
+   {
+      minY = Math.min(ay, by) - radius;
+      maxY = Math.max(ay, by) + radius;
+      int rows = maxY - minY + 1;
+      if (rows > left.length)
+      {
+         left = new int[rows * 2];
+         right = new int[rows * 2];
+      }
+      for (int n = 0; n < rows; n++)
+      {
+         left[n] = Integer.MAX_VALUE;
+         right[n] = Integer.MIN_VALUE;
+      }
+
+      // Circles at the two ends
+      int[] halfWidths = circleSpans(radius);
+      addCircle(ax, ay, radius, halfWidths);
+      if (ax != bx || ay != by)
+         addCircle(bx, by, radius, halfWidths);
+      else
+         return;
+
+      // The band swept out between the two circles. In coordinates relative
+      // to the start point, a pixel is inside if its distance along the line
+      // is between 0 and the length of the line, and its distance across the
+      // line is at most the radius. The band is widened by half a pixel so
+      // that diagonal lines don't come out thinner than horizontal ones.
+      double dx = bx - ax;
+      double dy = by - ay;
+      double len = Math.sqrt(dx * dx + dy * dy);
+      double ux = dx / len;
+      double uy = dy / len;
+      double bandRadius = radius + 0.5;
+      for (int y = minY; y <= maxY; y++)
+      {
+         double ry = y - ay;
+         double lo = Double.NEGATIVE_INFINITY;
+         double hi = Double.POSITIVE_INFINITY;
+         if (ux != 0)
+         {
+            double t0 = -ry * uy / ux;
+            double t1 = (len - ry * uy) / ux;
+            lo = Math.max(lo, Math.min(t0, t1));
+            hi = Math.min(hi, Math.max(t0, t1));
+         }
+         else if (ry * uy < 0 || ry * uy > len)
+            continue;
+         if (uy != 0)
+         {
+            double s0 = (ry * ux - bandRadius) / uy;
+            double s1 = (ry * ux + bandRadius) / uy;
+            lo = Math.max(lo, Math.min(s0, s1));
+            hi = Math.min(hi, Math.max(s0, s1));
+         }
+         else if (Math.abs(ry * ux) > bandRadius)
+            continue;
+         if (lo > hi) continue;
+         addSpan(y, ax + (int)Math.ceil(lo), ax + (int)Math.floor(hi));
+      }
+   }
+
+   /** Adds the area covered by the last shape to a rectangle */
+   public void addBounds(DirtyRect rect)
+   {
+      for (int y = minY; y <= maxY; y++)
+         rect.add(left[y - minY], y, right[y - minY], y);
+   }
+
+   /**
+    * Sets the pixels covered by the last shape to a color, and adds the
+    * area that was changed to a rectangle
+    */
+   public void fill(Raster target, int color, DirtyRect changed)
+   {
+      int width = target.width;
+      int startY = Math.max(minY, 0);
+      int endY = Math.min(maxY, target.height - 1);
+      for (int y = startY; y <= endY; y++)
+      {
+         int leftX = Math.max(left[y - minY], 0);
+         int rightX = Math.min(right[y - minY], width - 1);
+         if (leftX > rightX) continue;
+         target.fillSpan(y * width + leftX, rightX - leftX + 1, color);
+         changed.add(leftX, y, rightX, y);
+      }
+   }
+
+   private void addCircle(int cx, int cy, int radius, int[] halfWidths)
+   {
+      for (int y = -radius; y <= radius; y++)
+      {
+         int halfWidth = halfWidths[y < 0 ? -y : y];
+         addSpan(cy + y, cx - halfWidth, cx + halfWidth);
+      }
+   }
+
+   private void addSpan(int y, int x0, int x1)
+   {
+      if (x0 > x1) return;
+      int row = y - minY;
+      if (x0 < left[row]) left[row] = x0;
+      if (x1 > right[row]) right[row] = x1;
+   }
+}
@@ -0,0 +1,118 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Drops the points of a stroke that don't change its shape as they come
+ * in, so that strokes kept as vectors (see VectorLayer) only hold the
+ * corners of their paths. Pens and mice report many points along lines
+ * and gentle curves that can be replaced by a few straight segments.
+ *
+ * The points since the last point that was kept are held back. A new
+ * point is accepted as the end of a segment if all the held back points
+ * are within a tolerance of the straight line to it, and their pressures
+ * are close to what they would be if the pressure changed evenly along
+ * the line. Otherwise, the previous point is kept, and a new segment
+ * starts from it. Only the points of one segment are ever held back, so
+ * the work done for each point doesn't grow with the length of the stroke.
+ */
+public class StrokeSimplifier
+{
+   /** How far (in pixels) a dropped point can be from the simplified stroke */
+   public static final double DEFAULT_TOLERANCE = 0.75;
+
+   /** How far the pressure of a dropped point can be from the pressure along the simplified stroke */
+   public static final double DEFAULT_PRESSURE_TOLERANCE = 1.0 / 32;
+
+   /** Most points held back for a single segment, so that very long straight lines are still checked quickly */
+   static final int MAX_HELD_POINTS = 64;
+
+   double tolerance = DEFAULT_TOLERANCE;
+   double pressureTolerance = DEFAULT_PRESSURE_TOLERANCE;
+
+   /** Entry that the kept points are added to */
+   JournalEntry entry;
+
+   /** Last point that was kept, where the current segment starts */
+   int anchorX;
+   int anchorY;
+   double anchorPressure;
+
+   /** Points received since the anchor, the last of which is the end of the current segment */
+   int[] heldX = new int[MAX_HELD_POINTS];
+   int[] heldY = new int[MAX_HELD_POINTS];
+   double[] heldPressures = new double[MAX_HELD_POINTS];
+   int heldCount = 0;
+
+   public void setTolerance(double tolerance, double pressureTolerance)
+   {
+      this.tolerance = tolerance;
+      this.pressureTolerance = pressureTolerance;
+   }
+
+   /** Starts simplifying a stroke whose points are added to an entry */
+   public void start(JournalEntry entry)
+   {
+      this.entry = entry;
+      heldCount = 0;
+   }
+
+   public void addPoint(int x, int y, double pressure)
+   {
+      if (entry.pointCount == 0)
+      {
+         keep(x, y, pressure);
+         return;
+      }
+      // Repeated points don't add anything
+      if (heldCount > 0 && heldX[heldCount - 1] == x && heldY[heldCount - 1] == y && heldPressures[heldCount - 1] == pressure)
+         return;
+      if (heldCount == 0 && anchorX == x && anchorY == y && anchorPressure == pressure)
+         return;
+      if (heldCount == MAX_HELD_POINTS || (heldCount > 0 && !isSegmentCloseEnough(x, y, pressure)))
+      {
+         keep(heldX[heldCount - 1], heldY[heldCount - 1], heldPressures[heldCount - 1]);
+         heldCount = 0;
+      }
+      heldX[heldCount] = x;
+      heldY[heldCount] = y;
+      heldPressures[heldCount] = pressure;
+      heldCount++;
+   }
+
+   /** Keeps the end of the last segment, finishing the stroke */
+   public void finish()
+   {
+      if (heldCount > 0)
+         keep(heldX[heldCount - 1], heldY[heldCount - 1], heldPressures[heldCount - 1]);
+      heldCount = 0;
+      entry = null;
+   }
+
+   void keep(int x, int y, double pressure)
+   {
+      entry.addPoint(x, y, pressure);
+      anchorX = x;
+      anchorY = y;
+      anchorPressure = pressure;
+   }
+
+   /** Whether the held back points all stay close to a segment from the anchor to a new end point */
+   boolean isSegmentCloseEnough(int x, int y, double pressure)
+   {
+      double dx = x - anchorX;
+      double dy = y - anchorY;
+      double lengthSquared = dx * dx + dy * dy;
+      for (int n = 0; n < heldCount; n++)
+      {
+         double px = heldX[n] - anchorX;
+         double py = heldY[n] - anchorY;
+         // How far along the segment the point is, and how far it is from the segment
+         double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+         double ex = px - t * dx;
+         double ey = py - t * dy;
+         if (ex * ex + ey * ey > tolerance * tolerance) return false;
+         double expectedPressure = anchorPressure + (pressure - anchorPressure) * t;
+         if (Math.abs(heldPressures[n] - expectedPressure) > pressureTolerance) return false;
+      }
+      return true;
+   }
+}
@@ -0,0 +1,202 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Symmetric copies of strokes and fills. There are a number of copies
+ * rotated evenly around a center, and in a kaleidoscope, each of them
+ * also has a copy reflected across a vertical line through the center.
+ * Horizontal mirroring is a single rotation with reflection.
+ *
+ * Rather than drawing every copy of a stroke with the brush, each part of
+ * the stroke is drawn once into a DabMask, which is then copied to where
+ * each copy goes. Each pixel of a copy is mapped back to the nearest
+ * pixel of the mask, so rotated copies don't have any holes. Everything
+ * is worked out in drawing coordinates, so the copies come out the same
+ * no matter which part of the drawing they are drawn into (e.g. when a
+ * journal is replayed). Pixel coordinates refer to the centers of pixels,
+ * so mirroring across the middle of a drawing of width w moves x to w - x.
+ */
+public class Symmetry
+{
+   /** Number of rotated copies, including the original */
+   final int rotations;
+
+   /** Whether each rotated copy also has a reflected copy */
+   final boolean mirror;
+
+   final double centerX;
+   final double centerY;
+
+   /** Cosine and sine of the angle of each rotated copy */
+   final double[] cos;
+   final double[] sin;
+
+   public Symmetry(int rotations, boolean mirror, double centerX, double centerY)
+   {
+      this.rotations = Math.max(1, rotations);
+      this.mirror = mirror;
+      this.centerX = centerX;
+      this.centerY = centerY;
+      cos = new double[this.rotations];
+      sin = new double[this.rotations];
+      for (int n = 0; n < this.rotations; n++)
+      {
+         double angle = 2 * Math.PI * n / this.rotations;
+         cos[n] = snap(Math.cos(angle));
+         sin[n] = snap(Math.sin(angle));
+      }
+   }
+
+   /** Makes quarter turns exact, so that they map pixels onto pixels without rounding */
+   static double snap(double val)
+   {
+      double rounded = Math.rint(val);
+      return Math.abs(val - rounded) < 1e-12 ? rounded : val;
+   }
+
+   /** Number of copies of everything drawn, including the original */
+   public int getCopyCount()
+   {
+      return mirror ? rotations * 2 : rotations;
+   }
+
+   /** Whether there are any copies besides the original */
+   public boolean hasCopies()
+   {
+      return getCopyCount() > 1;
+   }
+
+   boolean isReflected(int copy)
+   {
+      return mirror && (copy & 1) != 0;
+   }
+
+   int getRotation(int copy)
+   {
+      return mirror ? copy >> 1 : copy;
+   }
+
+   /** Where a point of the drawing ends up in a copy, rounded to the nearest pixel */
+   public int copyX(int copy, int x, int y)
+   {
+      double dx = isReflected(copy) ? centerX - x : x - centerX;
+      double dy = y - centerY;
+      int r = getRotation(copy);
+      return (int)Math.floor(centerX + dx * cos[r] - dy * sin[r] + 0.5);
+   }
+
+   public int copyY(int copy, int x, int y)
+   {
+      double dx = isReflected(copy) ? centerX - x : x - centerX;
+      double dy = y - centerY;
+      int r = getRotation(copy);
+      return (int)Math.floor(centerY + dx * sin[r] + dy * cos[r] + 0.5);
+   }
+
+   /**
+    * Returns every copy of a point as (x, y) pairs, relative to an origin
+    * (e.g. the position of the window in the drawing)
+    */
+   public int[] copyPoints(int x, int y, int originX, int originY)
+   {
+      int[] points = new int[getCopyCount() * 2];
+      for (int n = 0; n < getCopyCount(); n++)
+      {
+         points[n * 2] = copyX(n, x, y) - originX;
+         points[n * 2 + 1] = copyY(n, x, y) - originY;
+      }
+      return points;
+   }
+
+   /**
+    * Works out the area of a raster that a copy of the mask could touch.
+    * The raster is at (targetX, targetY) in the drawing, and the area is
+    * in the raster's coordinates.
+    */
+   public void getCopyBounds(int copy, DabMask mask, Raster target, int targetX, int targetY, DirtyRect bounds)
+   {
+      bounds.clear();
+      if (mask.dirty.isEmpty()) return;
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for (int corner = 0; corner < 4; corner++)
+      {
+         int x = mask.x + ((corner & 1) == 0 ? mask.dirty.minX : mask.dirty.maxX);
+         int y = mask.y + ((corner & 2) == 0 ? mask.dirty.minY : mask.dirty.maxY);
+         int cx = copyX(copy, x, y);
+         int cy = copyY(copy, x, y);
+         minX = Math.min(minX, cx);
+         maxX = Math.max(maxX, cx);
+         minY = Math.min(minY, cy);
+         maxY = Math.max(maxY, cy);
+      }
+      // Rounding can shift rotated pixels out by one
+      int slack = isQuarterTurn(getRotation(copy)) ? 0 : 1;
+      bounds.add(Math.max(minX - slack - targetX, 0), Math.max(minY - slack - targetY, 0),
+            Math.min(maxX + slack - targetX, target.width - 1), Math.min(maxY + slack - targetY, target.height - 1));
+   }
+
+   boolean isQuarterTurn(int rotation)
+   {
+      return cos[rotation] == Math.rint(cos[rotation]) && sin[rotation] == Math.rint(sin[rotation]);
+   }
+
+   /**
+    * Draws a copy of the mask into a stroke raster, keeping the maximum
+    * alpha of what's there and the mask like the BrushEngine does. The
+    * area changed is added to changed.
+    */
+   public void drawCopy(int copy, DabMask mask, Raster target, int targetX, int targetY, DirtyRect changed)
+   {
+      blit(copy, mask, target, targetX, targetY, false, changed);
+   }
+
+   /** Clears the pixels of a layer that are covered by a copy of the mask */
+   public void eraseCopy(int copy, DabMask mask, Raster target, int targetX, int targetY, DirtyRect changed)
+   {
+      blit(copy, mask, target, targetX, targetY, true, changed);
+   }
+
+   void blit(int copy, DabMask mask, Raster target, int targetX, int targetY, boolean erase, DirtyRect changed)
+   {
+      DirtyRect bounds = mask.copyBounds;
+      getCopyBounds(copy, mask, target, targetX, targetY, bounds);
+      if (bounds.isEmpty()) return;
+      // Each pixel is mapped back to the mask by the inverse of the copy's transform
+      int r = getRotation(copy);
+      double c = cos[r];
+      double s = sin[r];
+      double flip = isReflected(copy) ? -1 : 1;
+      int[] maskPixels = mask.raster.pixels;
+      int maskWidth = mask.raster.width;
+      DirtyRect maskDirty = mask.dirty;
+      int[] pixels = target.pixels;
+      int width = target.width;
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for (int y = bounds.minY; y <= bounds.maxY; y++)
+      {
+         double dy = y + targetY - centerY;
+         int idx = y * width + bounds.minX;
+         for (int x = bounds.minX; x <= bounds.maxX; x++, idx++)
+         {
+            double dx = x + targetX - centerX;
+            int mx = (int)Math.floor(centerX + flip * (dx * c + dy * s) + 0.5) - mask.x;
+            int my = (int)Math.floor(centerY - dx * s + dy * c + 0.5) - mask.y;
+            if (mx < maskDirty.minX || mx > maskDirty.maxX || my < maskDirty.minY || my > maskDirty.maxY) continue;
+            int alpha = maskPixels[my * maskWidth + mx] >>> 24;
+            if (alpha == 0) continue;
+            if (erase)
+               pixels[idx] = 0;
+            else if (alpha > (pixels[idx] >>> 24))
+               pixels[idx] = alpha << 24;
+            else
+               continue;
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+         }
+      }
+      changed.add(minX, minY, maxX, maxY);
+   }
+}
@@ -0,0 +1,85 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Remembers which tiles of an image have been touched, so that later 
+ * work can be limited to those tiles. This is much less than the 
+ * bounding box of everything that was touched when the changes are 
+ * spread out (e.g. a stroke going diagonally across the whole image).
+ */
+public class TileSet
+{
+   public static final int TILE_SIZE = UndoRecorder.TILE_SIZE;
+   
+   int width;
+   int height;
+   int tilesAcross;
+   
+   /** Whether each tile has been touched, indexed by tile number */
+   boolean[] marked;
+   
+   /** Tile numbers of the touched tiles in the order they were touched */
+   int[] list;
+   int count = 0;
+   
+   public TileSet(int width, int height)
+   {
+      this.width = width;
+      this.height = height;
+      tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+      int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+      marked = new boolean[tilesAcross * tilesDown];
+      list = new int[tilesAcross * tilesDown];
+   }
+   
+   /** Marks the tiles overlapping an area (inclusive coordinates) */
+   public void add(int x0, int y0, int x1, int y1)
+   {
+      if (x0 < 0) x0 = 0;
+      if (y0 < 0) y0 = 0;
+      if (x1 >= width) x1 = width - 1;
+      if (y1 >= height) y1 = height - 1;
+      if (x0 > x1 || y0 > y1) return;
+      for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ty++)
+      {
+         for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; tx++)
+         {
+            int tile = ty * tilesAcross + tx;
+            if (marked[tile]) continue;
+            marked[tile] = true;
+            list[count++] = tile;
+         }
+      }
+   }
+   
+   public void add(DirtyRect rect)
+   {
+      if (rect.isEmpty()) return;
+      add(rect.minX, rect.minY, rect.maxX, rect.maxY);
+   }
+   
+   public boolean isEmpty()
+   {
+      return count == 0;
+   }
+   
+   public int size()
+   {
+      return count;
+   }
+   
+   public void clear()
+   {
+      for (int n = 0; n < count; n++)
+         marked[list[n]] = false;
+      count = 0;
+   }
+   
+   /** Sets a rectangle to the area covered by the nth touched tile */
+   public void getTileRect(int n, DirtyRect rect)
+   {
+      int x = (list[n] % tilesAcross) * TILE_SIZE;
+      int y = (list[n] / tilesAcross) * TILE_SIZE;
+      rect.clear();
+      rect.add(x, y, Math.min(x + TILE_SIZE, width) - 1, Math.min(y + TILE_SIZE, height) - 1);
+   }
+}
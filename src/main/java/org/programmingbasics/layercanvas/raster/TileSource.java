@@ -0,0 +1,16 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Supplies the full-size tiles of an image that a MipCache shrinks down.
+ */
+public interface TileSource
+{
+   /**
+    * Writes the tile at (tx, ty) into a TILE_SIZE by TILE_SIZE block of a
+    * raster at (toX, toY), with any part of the block outside of the image
+    * made transparent. If the whole block is a single color, the source
+    * can instead write only that color into the pixel at (toX, toY) and
+    * return false.
+    */
+   boolean readTile(int tx, int ty, Raster to, int toX, int toY);
+}
@@ -0,0 +1,450 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * A (possibly very large) image stored as square tiles. Tiles that are
+ * all one color are stored as just that color instead of as pixels, so
+ * empty areas of a drawing, which are usually most of it, take no memory
+ * beyond an entry in the table of tiles. Memory use then depends on how
+ * much of the image has been drawn on instead of on its size.
+ * 
+ * Drawing tools work on ordinary rasters, so an area of the image is 
+ * copied into a raster (see readRect()) before being worked on, and the
+ * changed tiles are stored back afterwards, which converts any of them
+ * that ended up a single color back into just a color.
+ * 
+ * Tiles are full size except along the right and bottom edges of the 
+ * image. The raster of a non-uniform tile is owned by the tiled raster,
+ * but it can be handed over to an undo command and back without copying.
+ */
+public class TiledRaster
+{
+   public static final int TILE_SIZE = UndoRecorder.TILE_SIZE;
+   
+   /** Used for allocating memory for tiles */
+   RasterFactory factory;
+   
+   public final int width;
+   public final int height;
+   final int tilesAcross;
+   final int tilesDown;
+   
+   /** Pixels of each tile, or null if the tile is all one color */
+   Raster[] tiles;
+   
+   /** Color of tiles that are all one color */
+   int[] tileColors;
+   
+   /** 
+    * Counts changes to the tiles, so that the tiles changed since some
+    * earlier point (e.g. the last time the drawing was saved) can be found
+    */
+   int changeCount = 0;
+   
+   /** Value of changeCount when each tile last changed */
+   int[] tileChanges;
+   
+   public TiledRaster(RasterFactory factory, int width, int height)
+   {
+      this.factory = factory;
+      this.width = width;
+      this.height = height;
+      tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+      tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+      tiles = new Raster[tilesAcross * tilesDown];
+      tileColors = new int[tilesAcross * tilesDown];
+      tileChanges = new int[tilesAcross * tilesDown];
+   }
+   
+   /** Splits a raster into tiles */
+   public static TiledRaster fromRaster(RasterFactory factory, Raster from)
+   {
+      TiledRaster tiled = new TiledRaster(factory, from.width, from.height);
+      tiled.writeRect(from, 0, 0, 0, 0, from.width, from.height);
+      return tiled;
+   }
+   
+   /** Makes a copy of the image that shares no pixels with it */
+   public TiledRaster copy()
+   {
+      TiledRaster copy = new TiledRaster(factory, width, height);
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         copy.tileColors[tile] = tileColors[tile];
+         if (tiles[tile] == null) continue;
+         copy.tiles[tile] = factory.create(tiles[tile].width, tiles[tile].height);
+         copy.tiles[tile].copyRect(tiles[tile], 0, 0, 0, 0, tiles[tile].width, tiles[tile].height);
+      }
+      return copy;
+   }
+   
+   /**
+    * Makes a copy of the image like copy(), except that tiles that haven't
+    * changed since an earlier copy was made (when getChangeCount() was
+    * changeCount) share their pixels with that copy. Neither copy may be
+    * drawn on afterwards.
+    */
+   public TiledRaster copyChangedSince(TiledRaster earlier, int changeCount)
+   {
+      TiledRaster copy = new TiledRaster(factory, width, height);
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         copy.tileColors[tile] = tileColors[tile];
+         if (tiles[tile] == null) continue;
+         if (tileChanges[tile] <= changeCount && earlier.tiles[tile] != null)
+         {
+            copy.tiles[tile] = earlier.tiles[tile];
+            continue;
+         }
+         copy.tiles[tile] = factory.create(tiles[tile].width, tiles[tile].height);
+         copy.tiles[tile].copyRect(tiles[tile], 0, 0, 0, 0, tiles[tile].width, tiles[tile].height);
+      }
+      return copy;
+   }
+   
+   public int getTilesAcross() { return tilesAcross; }
+   public int getTilesDown() { return tilesDown; }
+   public int getTileWidth(int tx) { return Math.min(TILE_SIZE, width - tx * TILE_SIZE); }
+   public int getTileHeight(int ty) { return Math.min(TILE_SIZE, height - ty * TILE_SIZE); }
+   
+   /** Pixels of a tile, or null if the tile is all one color (see getTileColor()) */
+   public Raster getTile(int tx, int ty)
+   {
+      return tiles[ty * tilesAcross + tx];
+   }
+   
+   public int getTileColor(int tx, int ty)
+   {
+      return tileColors[ty * tilesAcross + tx];
+   }
+   
+   public int getChangeCount()
+   {
+      return changeCount;
+   }
+   
+   /** Value of getChangeCount() just after a tile last changed (0 if it never has) */
+   public int getTileChangeCount(int tx, int ty)
+   {
+      return tileChanges[ty * tilesAcross + tx];
+   }
+   
+   private void markChanged(int tile)
+   {
+      changeCount++;
+      tileChanges[tile] = changeCount;
+   }
+   
+   /** Replaces a tile with the given pixels, or with a single color if the pixels are null */
+   public void setTile(int tx, int ty, Raster tile, int color)
+   {
+      tiles[ty * tilesAcross + tx] = tile;
+      tileColors[ty * tilesAcross + tx] = tile == null ? color : 0;
+      markChanged(ty * tilesAcross + tx);
+   }
+   
+   public int getPixel(int x, int y)
+   {
+      int tile = (y / TILE_SIZE) * tilesAcross + x / TILE_SIZE;
+      if (tiles[tile] == null) return tileColors[tile];
+      return tiles[tile].pixels[(y % TILE_SIZE) * tiles[tile].width + x % TILE_SIZE];
+   }
+   
+   /** 
+    * Copies a w by h block of the image at (x, y) into a raster. Parts of
+    * the block outside of the image are made transparent.
+    */
+   public void readRect(int x, int y, Raster to, int toX, int toY, int w, int h)
+   {
+      if (x < 0 || y < 0 || x + w > width || y + h > height)
+      {
+         to.fillRect(toX, toY, toX + w - 1, toY + h - 1, 0);
+         int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+         int x1 = Math.min(x + w, width), y1 = Math.min(y + h, height);
+         if (x0 >= x1 || y0 >= y1) return;
+         toX += x0 - x;
+         toY += y0 - y;
+         x = x0;
+         y = y0;
+         w = x1 - x0;
+         h = y1 - y0;
+      }
+      for (int ty = y / TILE_SIZE; ty <= (y + h - 1) / TILE_SIZE; ty++)
+      {
+         int y0 = Math.max(y, ty * TILE_SIZE);
+         int y1 = Math.min(y + h, (ty + 1) * TILE_SIZE);
+         for (int tx = x / TILE_SIZE; tx <= (x + w - 1) / TILE_SIZE; tx++)
+         {
+            int x0 = Math.max(x, tx * TILE_SIZE);
+            int x1 = Math.min(x + w, (tx + 1) * TILE_SIZE);
+            int tile = ty * tilesAcross + tx;
+            if (tiles[tile] == null)
+               to.fillRect(toX + x0 - x, toY + y0 - y, toX + x1 - x - 1, toY + y1 - y - 1, tileColors[tile]);
+            else
+               to.copyRect(tiles[tile], x0 - tx * TILE_SIZE, y0 - ty * TILE_SIZE, toX + x0 - x, toY + y0 - y, x1 - x0, y1 - y0);
+         }
+      }
+   }
+   
+   /** 
+    * Stores a w by h block of a raster into the image at (x, y), which must
+    * be inside the image. Tiles that end up all one color are stored as 
+    * just that color.
+    */
+   public void writeRect(Raster from, int fromX, int fromY, int x, int y, int w, int h)
+   {
+      for (int ty = y / TILE_SIZE; ty <= (y + h - 1) / TILE_SIZE; ty++)
+      {
+         int y0 = Math.max(y, ty * TILE_SIZE);
+         int y1 = Math.min(y + h, (ty + 1) * TILE_SIZE);
+         for (int tx = x / TILE_SIZE; tx <= (x + w - 1) / TILE_SIZE; tx++)
+         {
+            int x0 = Math.max(x, tx * TILE_SIZE);
+            int x1 = Math.min(x + w, (tx + 1) * TILE_SIZE);
+            writeTile(tx, ty, from, fromX + x0 - x, fromY + y0 - y, x0 - tx * TILE_SIZE, y0 - ty * TILE_SIZE, x1 - x0, y1 - y0);
+         }
+      }
+   }
+   
+   /** Stores a block of a raster into part of a single tile */
+   private void writeTile(int tx, int ty, Raster from, int fromX, int fromY, int x, int y, int w, int h)
+   {
+      int tile = ty * tilesAcross + tx;
+      int tileWidth = getTileWidth(tx);
+      int tileHeight = getTileHeight(ty);
+      boolean isWholeTile = w == tileWidth && h == tileHeight;
+      if (isWholeTile && isUniform(from, fromX, fromY, w, h))
+      {
+         tiles[tile] = null;
+         tileColors[tile] = from.pixels[fromY * from.width + fromX];
+         markChanged(tile);
+         return;
+      }
+      if (tiles[tile] == null)
+      {
+         if (!isWholeTile && isUniform(from, fromX, fromY, w, h) && from.pixels[fromY * from.width + fromX] == tileColors[tile])
+            return;
+         Raster newTile = factory.create(tileWidth, tileHeight);
+         // New rasters are already transparent
+         if (!isWholeTile && tileColors[tile] != 0)
+            newTile.fillRect(0, 0, tileWidth - 1, tileHeight - 1, tileColors[tile]);
+         tiles[tile] = newTile;
+         tileColors[tile] = 0;
+      }
+      tiles[tile].copyRect(from, fromX, fromY, x, y, w, h);
+      markChanged(tile);
+      if (!isWholeTile && isUniform(tiles[tile], 0, 0, tileWidth, tileHeight))
+      {
+         tileColors[tile] = tiles[tile].pixels[0];
+         tiles[tile] = null;
+      }
+   }
+   
+   /** Checks whether a w by h block of a raster is all one color */
+   public static boolean isUniform(Raster raster, int x, int y, int w, int h)
+   {
+      int[] pixels = raster.pixels;
+      int color = pixels[y * raster.width + x];
+      for (int row = y; row < y + h; row++)
+      {
+         int end = row * raster.width + x + w;
+         for (int idx = row * raster.width + x; idx < end; idx++)
+         {
+            if (pixels[idx] != color) return false;
+         }
+      }
+      return true;
+   }
+   
+   /** 
+    * Makes an undo command holding copies of the tiles under a w by h area
+    * at (x, y), so that they can be restored after the area is changed
+    */
+   public UndoableCommand saveTiles(int x, int y, int w, int h)
+   {
+      int tx0 = x / TILE_SIZE, tx1 = (x + w - 1) / TILE_SIZE;
+      int ty0 = y / TILE_SIZE, ty1 = (y + h - 1) / TILE_SIZE;
+      UndoableCommand cmd = UndoableCommand.createEmpty(this, (tx1 - tx0 + 1) * (ty1 - ty0 + 1));
+      for (int ty = ty0; ty <= ty1; ty++)
+      {
+         for (int tx = tx0; tx <= tx1; tx++)
+         {
+            Raster tile = tiles[ty * tilesAcross + tx];
+            Raster copy = null;
+            if (tile != null)
+            {
+               copy = factory.create(tile.width, tile.height);
+               copy.copyRect(tile, 0, 0, 0, 0, tile.width, tile.height);
+            }
+            cmd.addTile(tx * TILE_SIZE, ty * TILE_SIZE, getTileWidth(tx), getTileHeight(ty), copy, tileColors[ty * tilesAcross + tx]);
+         }
+      }
+      return cmd;
+   }
+   
+   /** 
+    * Sets the whole image to a color, returning an undo command that holds
+    * the old tiles (or null if nothing changed). Only the table of tiles 
+    * is changed, so this doesn't depend on the size of the image.
+    */
+   public UndoableCommand fill(int color)
+   {
+      int count = 0;
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         if (tiles[tile] != null || tileColors[tile] != color)
+            count++;
+      }
+      if (count == 0) return null;
+      UndoableCommand cmd = UndoableCommand.createEmpty(this, count);
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         if (tiles[tile] == null && tileColors[tile] == color) continue;
+         int tx = tile % tilesAcross;
+         int ty = tile / tilesAcross;
+         cmd.addTile(tx * TILE_SIZE, ty * TILE_SIZE, getTileWidth(tx), getTileHeight(ty), tiles[tile], tileColors[tile]);
+         tiles[tile] = null;
+         tileColors[tile] = color;
+         markChanged(tile);
+      }
+      return cmd;
+   }
+   
+   /**
+    * Moves the tiles of another tiled raster into this one, with the 
+    * other raster's top-left tile going to tile (tx, ty). Returns an undo
+    * command holding the replaced tiles (or null if nothing changed). The
+    * other raster must be made of full-size tiles except where it reaches 
+    * the edges of this image, and it is left empty.
+    */
+   public UndoableCommand replaceTiles(TiledRaster from, int tx, int ty)
+   {
+      int across = Math.min(from.tilesAcross, tilesAcross - tx);
+      int down = Math.min(from.tilesDown, tilesDown - ty);
+      UndoableCommand cmd = UndoableCommand.createEmpty(this, across * down);
+      for (int row = 0; row < down; row++)
+      {
+         for (int col = 0; col < across; col++)
+         {
+            int tile = (ty + row) * tilesAcross + tx + col;
+            int fromTile = row * from.tilesAcross + col;
+            Raster newTile = from.tiles[fromTile];
+            int newColor = from.tileColors[fromTile];
+            from.tiles[fromTile] = null;
+            if (newTile == null && tiles[tile] == null && newColor == tileColors[tile]) continue;
+            if (newTile != null && (newTile.width != getTileWidth(tx + col) || newTile.height != getTileHeight(ty + row)))
+            {
+               // Tiles of the other raster can be bigger along the edges of this image
+               Raster cropped = factory.create(getTileWidth(tx + col), getTileHeight(ty + row));
+               cropped.copyRect(newTile, 0, 0, 0, 0, cropped.width, cropped.height);
+               newTile = cropped;
+            }
+            cmd.addTile((tx + col) * TILE_SIZE, (ty + row) * TILE_SIZE, getTileWidth(tx + col), getTileHeight(ty + row), tiles[tile], tileColors[tile]);
+            tiles[tile] = newTile;
+            tileColors[tile] = newTile == null ? newColor : 0;
+            markChanged(tile);
+         }
+      }
+      return cmd.getTileCount() > 0 ? cmd : null;
+   }
+   
+   /**
+    * Stores changed tiles of a raster that holds a copy of an area of the
+    * image, and makes an undo command out of the old contents of those
+    * tiles. The raster's top-left corner is at (originX, originY) in the
+    * image, which must be the corner of a tile. The changed tiles are 
+    * given by their position in the raster and their old contents, and
+    * parts of them outside the image are ignored.
+    */
+   public UndoableCommand commit(Raster from, int originX, int originY, int count, int[] tileX, int[] tileY, Raster[] oldTiles)
+   {
+      UndoableCommand cmd = UndoableCommand.createEmpty(this, count);
+      for (int n = 0; n < count; n++)
+      {
+         int x = originX + tileX[n];
+         int y = originY + tileY[n];
+         if (x >= width || y >= height) continue;
+         int tx = x / TILE_SIZE;
+         int ty = y / TILE_SIZE;
+         int w = getTileWidth(tx);
+         int h = getTileHeight(ty);
+         Raster old = oldTiles[n];
+         int oldColor = 0;
+         if (isUniform(old, 0, 0, w, h))
+         {
+            oldColor = old.pixels[0];
+            old = null;
+         }
+         else if (old.width != w || old.height != h)
+         {
+            Raster cropped = factory.create(w, h);
+            cropped.copyRect(old, 0, 0, 0, 0, w, h);
+            old = cropped;
+         }
+         cmd.addTile(x, y, w, h, old, oldColor);
+         writeTile(tx, ty, from, tileX[n], tileY[n], 0, 0, w, h);
+      }
+      return cmd.getTileCount() > 0 ? cmd : null;
+   }
+   
+   /** 
+    * Adds the area of the image that isn't fully transparent to bounds. 
+    * Tiles that are a single color, or that are already inside the bounds,
+    * don't need their pixels looked at.
+    */
+   public void addInkedBounds(DirtyRect bounds)
+   {
+      for (int ty = 0; ty < tilesDown; ty++)
+      {
+         for (int tx = 0; tx < tilesAcross; tx++)
+         {
+            int tile = ty * tilesAcross + tx;
+            int left = tx * TILE_SIZE;
+            int top = ty * TILE_SIZE;
+            int right = left + getTileWidth(tx) - 1;
+            int bottom = top + getTileHeight(ty) - 1;
+            if (tiles[tile] == null)
+            {
+               if ((tileColors[tile] >>> 24) != 0)
+                  bounds.add(left, top, right, bottom);
+               continue;
+            }
+            if (left >= bounds.minX && right <= bounds.maxX && top >= bounds.minY && bottom <= bounds.maxY)
+               continue;
+            int[] pixels = tiles[tile].pixels;
+            int tileWidth = tiles[tile].width;
+            for (int y = 0; y <= bottom - top; y++)
+            {
+               for (int x = 0; x < tileWidth; x++)
+               {
+                  if ((pixels[y * tileWidth + x] >>> 24) != 0)
+                     bounds.add(left + x, top + y, left + x, top + y);
+               }
+            }
+         }
+      }
+   }
+   
+   /** Number of tiles whose pixels are stored */
+   public int getAllocatedTileCount()
+   {
+      int count = 0;
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         if (tiles[tile] != null)
+            count++;
+      }
+      return count;
+   }
+   
+   /** Bytes of memory used by the tiles, including the table of tiles */
+   public int getMemoryUsage()
+   {
+      int bytes = tiles.length * 8;
+      for (int tile = 0; tile < tiles.length; tile++)
+      {
+         if (tiles[tile] != null)
+            bytes += tiles[tile].width * tiles[tile].height * 4;
+      }
+      return bytes;
+   }
+}
@@ -0,0 +1,99 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Settings of the drawing tools that affect what an edit draws, as they
+ * were when the edit was made. Entries of a journal share the same 
+ * settings until they change, so settings are never changed once they 
+ * have been recorded.
+ */
+public class ToolSettings
+{
+   /** Tools */
+   public static final int PAINT = 0;
+   public static final int ERASER = 1;
+   public static final int STAMP = 2;
+   public static final int FLOOD_FILL = 3;
+   
+   public int tool;
+   public int brushSize;
+   
+   /** Brush used for painting (a copy that isn't changed afterwards) */
+   public BasicBrush brush;
+   
+   /** Whether strokes and fills are mirrored, and the width of the drawing they are mirrored across */
+   public boolean mirror;
+   public int mirrorWidth;
+   
+   /** 
+    * Number of copies of strokes and fills rotated around the middle of 
+    * the drawing (1 for none), and the height of the drawing. With 
+    * mirroring as well, every rotated copy is also mirrored.
+    */
+   public int rotations = 1;
+   public int mirrorHeight;
+   
+   /** Flood fill settings (see FloodFill.fillRaster()) */
+   public int floodFillEmptyColor;
+   public int floodFillFillColor;
+   public int floodFillTolerance;
+   public boolean floodFillEightConnected;
+   
+   /** Pixels of the stamp (null if not stamping) */
+   public Raster stamp;
+   
+   Symmetry symmetry;
+   
+   /** Last copy made by scaled() */
+   ToolSettings scaledCopy;
+   int scaledCopyScale;
+   
+   /** Whether some other settings would make every edit come out the same as these ones */
+   public boolean isSame(ToolSettings other)
+   {
+      return tool == other.tool && brushSize == other.brushSize 
+            && brush.hasSameSettings(other.brush)
+            && mirror == other.mirror && mirrorWidth == other.mirrorWidth
+            && rotations == other.rotations && mirrorHeight == other.mirrorHeight
+            && floodFillEmptyColor == other.floodFillEmptyColor && floodFillFillColor == other.floodFillFillColor
+            && floodFillTolerance == other.floodFillTolerance && floodFillEightConnected == other.floodFillEightConnected
+            && stamp == other.stamp;
+   }
+   
+   /** Copies of strokes and fills made by mirroring and rotation */
+   public Symmetry getSymmetry()
+   {
+      if (symmetry == null)
+         symmetry = new Symmetry(rotations, mirror, mirrorWidth / 2.0, mirrorHeight / 2.0);
+      return symmetry;
+   }
+   
+   /** 
+    * Copy of the settings for drawing an edit at a whole number of times
+    * its size (see JournalEntry.scaled()). The last copy is kept, since 
+    * many edits share the same settings.
+    */
+   public ToolSettings scaled(int scale)
+   {
+      if (scale == 1) return this;
+      if (scaledCopy != null && scaledCopyScale == scale) return scaledCopy;
+      ToolSettings copy = new ToolSettings();
+      copy.tool = tool;
+      copy.brushSize = brushSize * scale;
+      copy.brush = brush;
+      copy.mirror = mirror;
+      // Points are moved to the middle of the block of pixels they become,
+      // so the size of the drawing has to grow by the same amount on both
+      // sides to keep the copies lined up
+      copy.mirrorWidth = mirrorWidth * scale + scale / 2 * 2;
+      copy.rotations = rotations;
+      copy.mirrorHeight = mirrorHeight * scale + scale / 2 * 2;
+      copy.floodFillEmptyColor = floodFillEmptyColor;
+      copy.floodFillFillColor = floodFillFillColor;
+      copy.floodFillTolerance = floodFillTolerance;
+      copy.floodFillEightConnected = floodFillEightConnected;
+      copy.stamp = stamp;
+      scaledCopy = copy;
+      scaledCopyScale = scale;
+      return copy;
+   }
+}
@@ -0,0 +1,139 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Saves copies of the tiles of an image just before they are changed
+ * so that an undo command holding only the changed tiles can be made 
+ * once an operation is complete.
+ */
+public class UndoRecorder
+{
+   public static final int TILE_SIZE = 64;
+   
+   /** Used for allocating memory for saved tiles */
+   RasterFactory factory;
+   int width;
+   int height;
+   int tilesAcross;
+   int tilesDown;
+   
+   /** Tiles that have been saved so far, indexed by tile number */
+   Raster[] savedTiles;
+   
+   /** Tile numbers of the saved tiles in the order they were saved */
+   int[] savedList;
+   int savedCount = 0;
+   
+   public UndoRecorder(RasterFactory factory, int width, int height)
+   {
+      this.factory = factory;
+      this.width = width;
+      this.height = height;
+      tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+      tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+      savedTiles = new Raster[tilesAcross * tilesDown];
+      savedList = new int[tilesAcross * tilesDown];
+   }
+   
+   /** 
+    * Saves the tiles overlapping the given area of the image (inclusive 
+    * coordinates) if they haven't already been saved. Must be called before
+    * the area is modified.
+    */
+   public void capture(Raster data, int x0, int y0, int x1, int y1)
+   {
+      if (x0 < 0) x0 = 0;
+      if (y0 < 0) y0 = 0;
+      if (x1 >= width) x1 = width - 1;
+      if (y1 >= height) y1 = height - 1;
+      if (x0 > x1 || y0 > y1) return;
+      for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ty++)
+      {
+         for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; tx++)
+         {
+            int tile = ty * tilesAcross + tx;
+            if (savedTiles[tile] != null) continue;
+            int tileWidth = Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+            int tileHeight = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+            Raster saved = factory.create(tileWidth, tileHeight);
+            saved.copyRect(data, tx * TILE_SIZE, ty * TILE_SIZE, 0, 0, tileWidth, tileHeight);
+            savedTiles[tile] = saved;
+            savedList[savedCount] = tile;
+            savedCount++;
+         }
+      }
+   }
+   
+   public void capture(Raster data, DirtyRect rect)
+   {
+      if (rect.isEmpty()) return;
+      capture(data, rect.minX, rect.minY, rect.maxX, rect.maxY);
+   }
+   
+   /**
+    * Creates an undo command from the tiles saved so far, dropping any 
+    * tiles that didn't actually change, and starts recording afresh. The 
+    * changed tiles are stored into the tiled image that the recorded 
+    * raster is a copy of, with the raster's top-left corner at 
+    * (originX, originY) in that image. Returns null if nothing changed.
+    */
+   public UndoableCommand finish(Raster data, TiledRaster target, int originX, int originY)
+   {
+      int changedCount = collectChangedTiles(data);
+      UndoableCommand cmd = null;
+      if (changedCount > 0)
+      {
+         int[] tileX = new int[changedCount];
+         int[] tileY = new int[changedCount];
+         Raster[] tiles = new Raster[changedCount];
+         for (int n = 0; n < changedCount; n++)
+         {
+            tileX[n] = getChangedTileX(n);
+            tileY[n] = getChangedTileY(n);
+            tiles[n] = getChangedTile(n);
+         }
+         cmd = target.commit(data, originX, originY, changedCount, tileX, tileY, tiles);
+      }
+      reset();
+      return cmd;
+   }
+   
+   /** 
+    * Drops the saved tiles that didn't change and returns how many tiles
+    * did change. Their old pixels can then be retrieved with getChangedTile()
+    * until reset() is called.
+    */
+   public int collectChangedTiles(Raster data)
+   {
+      int changedCount = 0;
+      for (int n = 0; n < savedCount; n++)
+      {
+         int tile = savedList[n];
+         if (isTileChanged(data, tile))
+            savedList[changedCount++] = tile;
+         else
+            savedTiles[tile] = null;
+      }
+      savedCount = changedCount;
+      return changedCount;
+   }
+   
+   public int getChangedTileX(int n) { return (savedList[n] % tilesAcross) * TILE_SIZE; }
+   public int getChangedTileY(int n) { return (savedList[n] / tilesAcross) * TILE_SIZE; }
+   public Raster getChangedTile(int n) { return savedTiles[savedList[n]]; }
+   
+   /** Forgets the saved tiles and starts recording afresh */
+   public void reset()
+   {
+      for (int n = 0; n < savedCount; n++)
+         savedTiles[savedList[n]] = null;
+      savedCount = 0;
+   }
+   
+   private boolean isTileChanged(Raster data, int tile)
+   {
+      Raster saved = savedTiles[tile];
+      int x = (tile % tilesAcross) * TILE_SIZE;
+      int y = (tile / tilesAcross) * TILE_SIZE;
+      return !saved.isRectEqual(data, x, y, 0, 0, saved.width, saved.height);
+   }
+}
@@ -0,0 +1,247 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.List;
+
+/**
+ * Holds undo commands in a ring buffer, oldest first. Instead of 
+ * limiting the number of commands, the total memory used by the 
+ * commands is tracked, and the oldest commands are thrown away once 
+ * that memory goes over budget.
+ * 
+ * Only the few commands closest to the current position in the history
+ * are kept uncompressed. Older commands are compressed, and are only 
+ * decompressed when an undo or redo reaches them.
+ * 
+ * A command can change how much memory it uses after it has been pushed
+ * (e.g. when undoing or redoing it swaps its contents with the image), so
+ * the size that each command was counted at is kept alongside it, and the
+ * commands on either side of the current position are counted again 
+ * before anything else is done with the history.
+ */
+public class UndoStack
+{
+   public static final int DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+   
+   /** Number of commands on either side of the current position that are kept uncompressed */
+   public static final int HOT_COMMANDS = 4;
+   
+   /** Used for allocating memory when decompressing commands */
+   RasterFactory factory;
+   
+   UndoableCommand[] ring = new UndoableCommand[16];
+   /** Bytes used by each command in the ring buffer when it was last counted */
+   int[] sizes = new int[16];
+   /** Position in the ring buffer of the oldest command */
+   int head = 0;
+   /** Number of commands in the ring buffer */
+   int size = 0;
+   /** Number of commands (counting from the oldest one) that are currently applied */
+   int idx = 0;
+   
+   /** Bytes used by all the commands, and how many bytes they are allowed to use */
+   int memoryUsage = 0;
+   int memoryBudget = DEFAULT_MEMORY_BUDGET;
+   
+   /** Number of the oldest commands that have been thrown away to stay under budget */
+   int discardedCount = 0;
+   
+   public UndoStack(RasterFactory factory)
+   {
+      this.factory = factory;
+   }
+   
+   public UndoableCommand undo()
+   {
+      recountSwapped();
+      if (idx <= 0) return null;
+      idx--;
+      UndoableCommand toReturn = get(idx);
+      decompress(idx);
+      compress(idx + HOT_COMMANDS);
+      evictOverBudget();
+      return toReturn;
+   }
+   
+   public UndoableCommand redo()
+   {
+      recountSwapped();
+      if (idx >= size) return null;
+      UndoableCommand toReturn = get(idx);
+      decompress(idx);
+      idx++;
+      compress(idx - 1 - HOT_COMMANDS);
+      evictOverBudget();
+      return toReturn;
+   }
+   
+   public void push(UndoableCommand command)
+   {
+      recountSwapped();
+      while (idx < size)
+         removeNewest();
+      if (size == ring.length)
+         grow();
+      int pos = (head + size) % ring.length;
+      ring[pos] = command;
+      sizes[pos] = command.getByteSize();
+      size++;
+      memoryUsage += sizes[pos];
+      idx = size;
+      compress(idx - 1 - HOT_COMMANDS);
+      evictOverBudget();
+   }
+   
+   /** 
+    * Replaces the history with the given commands, oldest first, of which
+    * the first position commands are currently applied (e.g. when a saved
+    * drawing is loaded)
+    */
+   public void restore(List<UndoableCommand> commands, int position)
+   {
+      ring = new UndoableCommand[Math.max(16, commands.size())];
+      sizes = new int[ring.length];
+      head = 0;
+      size = commands.size();
+      idx = position;
+      memoryUsage = 0;
+      discardedCount = 0;
+      for (int n = 0; n < size; n++)
+      {
+         ring[n] = commands.get(n);
+         sizes[n] = ring[n].getByteSize();
+         memoryUsage += sizes[n];
+      }
+      for (int n = 0; n < size; n++)
+      {
+         if (n < idx - HOT_COMMANDS || n >= idx + HOT_COMMANDS)
+            compress(n);
+      }
+      evictOverBudget();
+   }
+   
+   /** Throws away the whole history */
+   public void clear()
+   {
+      ring = new UndoableCommand[16];
+      sizes = new int[16];
+      head = 0;
+      size = 0;
+      idx = 0;
+      memoryUsage = 0;
+      discardedCount = 0;
+   }
+   
+   /** 
+    * Number of commands that have been thrown away from the oldest end of
+    * the history since it was last cleared or restored. The position in
+    * the history plus this number always counts from the same command.
+    */
+   public int getDiscardedCount()
+   {
+      return discardedCount;
+   }
+   
+   /** Number of commands in the history */
+   public int size()
+   {
+      return size;
+   }
+   
+   /** Number of commands (counting from the oldest one) that are currently applied */
+   public int getPosition()
+   {
+      return idx;
+   }
+   
+   public int getMemoryUsage()
+   {
+      recountSwapped();
+      return memoryUsage;
+   }
+   
+   public void setMemoryBudget(int bytes)
+   {
+      memoryBudget = bytes;
+      recountSwapped();
+      evictOverBudget();
+   }
+   
+   /** Command in the history, counting from the oldest one */
+   public UndoableCommand get(int n)
+   {
+      return ring[(head + n) % ring.length];
+   }
+   
+   private void compress(int n)
+   {
+      if (n < 0 || n >= size) return;
+      UndoableCommand cmd = get(n);
+      if (cmd.isCompressed()) return;
+      cmd.compress();
+      recount(n);
+   }
+   
+   private void decompress(int n)
+   {
+      UndoableCommand cmd = get(n);
+      if (!cmd.isCompressed()) return;
+      cmd.decompress(factory);
+      recount(n);
+   }
+   
+   /** Updates the memory used by a command after it has changed */
+   private void recount(int n)
+   {
+      int pos = (head + n) % ring.length;
+      int bytes = ring[pos].getByteSize();
+      memoryUsage += bytes - sizes[pos];
+      sizes[pos] = bytes;
+   }
+   
+   /** Counts again the commands that may have been swapped since the last undo or redo */
+   private void recountSwapped()
+   {
+      if (idx > 0) recount(idx - 1);
+      if (idx < size) recount(idx);
+   }
+   
+   private void evictOverBudget()
+   {
+      // Throw away the oldest commands first, but always keep the
+      // most recent one so that the last operation can be undone
+      while (memoryUsage > memoryBudget && idx > 1)
+      {
+         memoryUsage -= sizes[head];
+         ring[head] = null;
+         head = (head + 1) % ring.length;
+         size--;
+         idx--;
+         discardedCount++;
+      }
+      // Then throw away commands that could be redone, newest first
+      while (memoryUsage > memoryBudget && size > idx)
+         removeNewest();
+   }
+   
+   private void removeNewest()
+   {
+      int pos = (head + size - 1) % ring.length;
+      memoryUsage -= sizes[pos];
+      ring[pos] = null;
+      size--;
+   }
+   
+   private void grow()
+   {
+      UndoableCommand[] newRing = new UndoableCommand[ring.length * 2];
+      int[] newSizes = new int[ring.length * 2];
+      for (int n = 0; n < size; n++)
+      {
+         newRing[n] = get(n);
+         newSizes[n] = sizes[(head + n) % ring.length];
+      }
+      ring = newRing;
+      sizes = newSizes;
+      head = 0;
+   }
+}
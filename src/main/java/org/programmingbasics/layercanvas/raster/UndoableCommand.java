@@ -0,0 +1,253 @@
+package org.programmingbasics.layercanvas.raster;
+
+/**
+ * Records the tiles of an image that were changed by an operation. 
+ * Each tile holds the pixels from the "other" side of the command: before
+ * it is undone, the tiles hold the old pixels, and after it is undone, 
+ * they hold the new pixels. Undoing and redoing the command is then just
+ * a matter of exchanging the tiles with the ones in the image, which 
+ * only moves references around instead of copying pixels. Like in the 
+ * image, tiles that are all one color are held as just that color.
+ * 
+ * Commands that are far from the current position in the undo history
+ * can be compressed to save memory. They must be decompressed before they
+ * can be swapped with the image again.
+ * 
+ * Edits of a VectorLayer also change how many of its strokes are applied,
+ * so the command holds the count from the other side as well.
+ */
+public class UndoableCommand
+{
+   /** Image that was changed */
+   TiledRaster target;
+   
+   /** Top-left corner and size of each changed tile */
+   int[] tileX;
+   int[] tileY;
+   int[] tileWidth;
+   int[] tileHeight;
+   int tileCount = 0;
+   
+   /** Uncompressed pixels of each tile (null for tiles that are compressed or all one color) */
+   Raster[] tiles;
+   
+   /** Color of tiles that are all one color */
+   int[] tileColors;
+   
+   /** Run-length encoded pixels of each tile (null if the command isn't compressed) */
+   int[][] compressedTiles;
+   
+   /** Area of the image covered by all the tiles */
+   DirtyRect bounds = new DirtyRect();
+   
+   /** Number of times the command has been undone or redone */
+   int swapCount = 0;
+   
+   /** Vector layer that was changed along with the image (or null), and its count of applied strokes on the other side */
+   VectorLayer vector;
+   int vectorCount;
+   
+   /** Creates a command with room for the given number of tiles, which are added using addTile() */
+   public static UndoableCommand createEmpty(TiledRaster target, int maxTiles)
+   {
+      UndoableCommand command = new UndoableCommand();
+      command.target = target;
+      command.tileX = new int[maxTiles];
+      command.tileY = new int[maxTiles];
+      command.tileWidth = new int[maxTiles];
+      command.tileHeight = new int[maxTiles];
+      command.tiles = new Raster[maxTiles];
+      command.tileColors = new int[maxTiles];
+      return command;
+   }
+   
+   /** Adds a tile holding either pixels or, if tile is null, a single color */
+   public void addTile(int x, int y, int w, int h, Raster tile, int color)
+   {
+      tileX[tileCount] = x;
+      tileY[tileCount] = y;
+      tileWidth[tileCount] = w;
+      tileHeight[tileCount] = h;
+      tiles[tileCount] = tile;
+      tileColors[tileCount] = tile == null ? color : 0;
+      bounds.add(x, y, x + w - 1, y + h - 1);
+      tileCount++;
+   }
+   
+   /** Makes the command also change the number of applied strokes of a vector layer */
+   public void setVectorChange(VectorLayer vector, int otherCount)
+   {
+      this.vector = vector;
+      this.vectorCount = otherCount;
+   }
+   
+   public VectorLayer getVector()
+   {
+      return vector;
+   }
+   
+   /** Number of applied strokes of the vector layer on the other side of the command */
+   public int getVectorCount()
+   {
+      return vectorCount;
+   }
+   
+   public TiledRaster getTarget()
+   {
+      return target;
+   }
+   
+   public DirtyRect getBounds()
+   {
+      return bounds;
+   }
+   
+   public int getTileCount()
+   {
+      return tileCount;
+   }
+   
+   public int getTileX(int n) { return tileX[n]; }
+   public int getTileY(int n) { return tileY[n]; }
+   public int getTileWidth(int n) { return tileWidth[n]; }
+   public int getTileHeight(int n) { return tileHeight[n]; }
+   public int getTileColor(int n) { return tileColors[n]; }
+   
+   /** 
+    * Pixels of a tile, or null if the tile is all one color (see 
+    * getTileColor()). The pixels of compressed tiles are unpacked into a 
+    * new raster, and the command stays compressed.
+    */
+   public Raster getTilePixels(int n, RasterFactory factory)
+   {
+      if (compressedTiles == null || compressedTiles[n] == null) 
+         return tiles[n];
+      Raster tile = factory.create(tileWidth[n], tileHeight[n]);
+      unpackRuns(compressedTiles[n], tile);
+      return tile;
+   }
+   
+   public int getSwapCount()
+   {
+      return swapCount;
+   }
+   
+   /** Memory used for holding the pixels of the command */
+   public int getByteSize()
+   {
+      int bytes = 0;
+      for (int n = 0; n < tileCount; n++)
+      {
+         if (compressedTiles != null && compressedTiles[n] != null)
+            bytes += compressedTiles[n].length * 4;
+         else if (tiles[n] != null)
+            bytes += tileWidth[n] * tileHeight[n] * 4;
+         else
+            bytes += 4;
+      }
+      return bytes;
+   }
+   
+   public boolean isCompressed()
+   {
+      return compressedTiles != null;
+   }
+   
+   /**
+    * Run-length encodes the pixels of the tiles. Drawings are mostly made
+    * of large areas of a single color (usually transparent or black), so 
+    * runs of identical pixels are stored as a (count, pixel) pair. Tiles
+    * that don't get any smaller are left uncompressed.
+    */
+   public void compress()
+   {
+      if (compressedTiles != null) return;
+      compressedTiles = new int[tileCount][];
+      // Worst case is every pixel being different from its neighbor 
+      int[] runs = new int[UndoRecorder.TILE_SIZE * UndoRecorder.TILE_SIZE * 2];
+      for (int n = 0; n < tileCount; n++)
+      {
+         if (tiles[n] == null) continue;
+         int[] pixels = tiles[n].pixels;
+         int numPixels = tileWidth[n] * tileHeight[n];
+         int runsLength = 0;
+         int runPixel = 0;
+         int runCount = 0;
+         for (int idx = 0; idx < numPixels; idx++)
+         {
+            int pixel = pixels[idx];
+            if (runCount > 0 && pixel == runPixel)
+            {
+               runCount++;
+               continue;
+            }
+            if (runCount > 0)
+            {
+               runs[runsLength++] = runCount;
+               runs[runsLength++] = runPixel;
+            }
+            runPixel = pixel;
+            runCount = 1;
+         }
+         runs[runsLength++] = runCount;
+         runs[runsLength++] = runPixel;
+         if (runsLength >= numPixels) continue;
+         int[] compressed = new int[runsLength];
+         for (int i = 0; i < runsLength; i++)
+            compressed[i] = runs[i];
+         compressedTiles[n] = compressed;
+         tiles[n] = null;
+      }
+   }
+   
+   /** Restores the uncompressed pixels of the tiles */
+   public void decompress(RasterFactory factory)
+   {
+      if (compressedTiles == null) return;
+      for (int n = 0; n < tileCount; n++)
+      {
+         int[] compressed = compressedTiles[n];
+         if (compressed == null) continue;
+         Raster tile = factory.create(tileWidth[n], tileHeight[n]);
+         unpackRuns(compressed, tile);
+         tiles[n] = tile;
+      }
+      compressedTiles = null;
+   }
+   
+   /** Unpacks run-length encoded pixels into a newly created raster */
+   private static void unpackRuns(int[] compressed, Raster tile)
+   {
+      int idx = 0;
+      for (int i = 0; i < compressed.length; i += 2)
+      {
+         int pixel = compressed[i + 1];
+         // Newly created rasters are already all transparent black
+         if (pixel != 0)
+            tile.fillSpan(idx, compressed[i], pixel);
+         idx += compressed[i];
+      }
+   }
+   
+   /** Exchanges the tiles stored in the command with the ones in the image */
+   public void swap()
+   {
+      for (int n = 0; n < tileCount; n++)
+      {
+         int tx = tileX[n] / TiledRaster.TILE_SIZE;
+         int ty = tileY[n] / TiledRaster.TILE_SIZE;
+         Raster tile = target.getTile(tx, ty);
+         int color = target.getTileColor(tx, ty);
+         target.setTile(tx, ty, tiles[n], tileColors[n]);
+         tiles[n] = tile;
+         tileColors[n] = tile == null ? color : 0;
+      }
+      if (vector != null)
+      {
+         int count = vector.getCount();
+         vector.setCount(vectorCount);
+         vectorCount = count;
+      }
+      swapCount++;
+   }
+}
@@ -0,0 +1,194 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the strokes of a layer as their (simplified) points and settings
+ * instead of only as pixels, so that the layer can be drawn again at any
+ * size. The layer still has its full-size pixels, which are drawn the
+ * same way as on any other layer, and which must always be what playing
+ * the strokes gives. Bigger copies of the layer (e.g. for exporting at a
+ * higher resolution) are drawn from the strokes a tile at a time when
+ * they are needed, and are cached in a VectorTileCache.
+ *
+ * Only edits that can be drawn at any size are kept: strokes of the paint
+ * brush and eraser, and fills of the whole layer. The edits are kept like
+ * a journal, where the first getCount() are applied, and the rest are
+ * undone edits that can still be redone.
+ */
+public class VectorLayer
+{
+   /** Used for allocating memory for the pixels being drawn on */
+   RasterFactory factory;
+
+   /** Size of the layer at full size */
+   public final int width;
+   public final int height;
+
+   List<JournalEntry> entries = new ArrayList<>();
+
+   /** Area of the full-size layer that each entry can change */
+   List<DirtyRect> entryBounds = new ArrayList<>();
+
+   /** Number of entries that are applied */
+   int count = 0;
+
+   /** Draws the entries into the tiles of bigger copies of the layer */
+   JournalPlayer player;
+   DirtyRect renderArea = new DirtyRect();
+   DirtyRect scaledBounds = new DirtyRect();
+
+   /** Bigger copies of the layer */
+   VectorTileCache cache;
+
+   public VectorLayer(RasterFactory factory, int width, int height)
+   {
+      this.factory = factory;
+      this.width = width;
+      this.height = height;
+      player = new JournalPlayer(factory);
+      cache = new VectorTileCache(factory, this);
+   }
+
+   /** Whether an edit can be kept as a vector */
+   public static boolean canHold(JournalEntry entry)
+   {
+      if (entry.kind == JournalEntry.FILL) return true;
+      return entry.kind == JournalEntry.STROKE
+            && (entry.settings.tool == ToolSettings.PAINT || entry.settings.tool == ToolSettings.ERASER);
+   }
+
+   public int getCount()
+   {
+      return count;
+   }
+
+   /** Number of entries, including undone ones after getCount() */
+   public int size()
+   {
+      return entries.size();
+   }
+
+   public JournalEntry get(int n)
+   {
+      return entries.get(n);
+   }
+
+   /** All the entries, including undone ones (which mustn't be changed) */
+   public List<JournalEntry> getEntries()
+   {
+      return entries;
+   }
+
+   /**
+    * Adds an entry after the applied ones, throwing away any undone
+    * entries. Returns the number of entries that were applied before, for
+    * undoing it with setCount(). Adding the entry that was undone last
+    * (e.g. when playing back a journal) just applies it again, so that the
+    * entries after it can still be redone.
+    */
+   public int add(JournalEntry entry)
+   {
+      if (count < entries.size() && entries.get(count) == entry)
+      {
+         setCount(count + 1);
+         return count - 1;
+      }
+      while (entries.size() > count)
+      {
+         entries.remove(entries.size() - 1);
+         entryBounds.remove(entryBounds.size() - 1);
+      }
+      DirtyRect bounds = new DirtyRect();
+      if (entry.kind == JournalEntry.FILL)
+         bounds.add(0, 0, width - 1, height - 1);
+      else
+         JournalPlayer.addStrokeBounds(entry, bounds);
+      entries.add(entry);
+      entryBounds.add(bounds);
+      int oldCount = count;
+      count++;
+      cache.invalidate(bounds.minX, bounds.minY, bounds.maxX, bounds.maxY);
+      return oldCount;
+   }
+
+   /** Changes how many entries are applied (e.g. when undoing or redoing) */
+   public void setCount(int newCount)
+   {
+      newCount = Math.max(0, Math.min(newCount, entries.size()));
+      for (int n = Math.min(count, newCount); n < Math.max(count, newCount); n++)
+      {
+         DirtyRect bounds = entryBounds.get(n);
+         cache.invalidate(bounds.minX, bounds.minY, bounds.maxX, bounds.maxY);
+      }
+      count = newCount;
+   }
+
+   /**
+    * Index of the last applied fill of the whole layer, or -1 if there
+    * isn't one. Nothing before it can be seen.
+    */
+   int findLastFill()
+   {
+      for (int n = count - 1; n >= 0; n--)
+      {
+         if (entries.get(n).kind == JournalEntry.FILL) return n;
+      }
+      return -1;
+   }
+
+   /**
+    * Draws the applied entries into an area of a copy of the layer that
+    * is scale times the size, replacing what was there. The area must
+    * cover whole tiles of the copy (inclusive coordinates of the copy).
+    */
+   public void render(TiledRaster target, int scale, int x0, int y0, int x1, int y1)
+   {
+      int lastFill = findLastFill();
+      int color = lastFill < 0 ? 0 : entries.get(lastFill).color;
+      for (int ty = y0 / TiledRaster.TILE_SIZE; ty <= y1 / TiledRaster.TILE_SIZE; ty++)
+      {
+         for (int tx = x0 / TiledRaster.TILE_SIZE; tx <= x1 / TiledRaster.TILE_SIZE; tx++)
+            target.setTile(tx, ty, null, color);
+      }
+      renderArea.clear();
+      renderArea.add(x0, y0, x1, y1);
+      player.setLimit(renderArea);
+      for (int n = lastFill + 1; n < count; n++)
+      {
+         DirtyRect bounds = entryBounds.get(n);
+         if (bounds.isEmpty()) continue;
+         scaledBounds.clear();
+         scaledBounds.add(bounds.minX * scale, bounds.minY * scale, (bounds.maxX + 1) * scale - 1, (bounds.maxY + 1) * scale - 1);
+         if (scaledBounds.maxX < x0 || scaledBounds.minX > x1 || scaledBounds.maxY < y0 || scaledBounds.minY > y1) continue;
+         player.play(entries.get(n).scaled(scale), target);
+      }
+      player.setLimit(null);
+   }
+
+   /**
+    * Copies a w by h block at (x, y) of a copy of the layer that is scale
+    * times the size (2, 4, or 8) into a raster, drawing any tiles of the
+    * copy that aren't cached
+    */
+   public void readScaledRect(int scale, int x, int y, Raster to, int toX, int toY, int w, int h)
+   {
+      cache.readRect(VectorTileCache.getLevel(scale), x, y, to, toX, toY, w, h);
+   }
+
+   /** Sets how many bytes of memory the bigger copies of the layer may use */
+   public void setCacheBudget(int bytes)
+   {
+      cache.setMemoryBudget(bytes);
+   }
+
+   /** Bytes of memory used by the entries and the bigger copies of the layer */
+   public int getMemoryUsage()
+   {
+      int bytes = cache.getMemoryUsage();
+      for (JournalEntry entry: entries)
+         bytes += entry.getByteSize();
+      return bytes;
+   }
+}
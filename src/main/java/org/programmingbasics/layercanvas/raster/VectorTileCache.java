@@ -0,0 +1,193 @@
+package org.programmingbasics.layercanvas.raster;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Keeps bigger copies of a VectorLayer, drawn from its strokes. Level n
+ * holds the layer at 2^n times its full size, up to MAX_LEVEL. Level 0 is
+ * the layer's own pixels, which aren't kept here.
+ *
+ * Like a MipCache, each level is stored as tiles that are only drawn when
+ * they are read, and changes to the layer mark the tiles they cover as out
+ * of date. Tiles that are next to each other in a row are drawn together,
+ * so each stroke is only set up once for a whole row of a block being
+ * read. Bigger levels take a lot of memory, so tiles are thrown away,
+ * least recently drawn first, once the cache goes over its budget.
+ */
+public class VectorTileCache
+{
+   static final int TILE_SIZE = TiledRaster.TILE_SIZE;
+
+   /** Biggest level, which is 8 times the size of the layer */
+   public static final int MAX_LEVEL = 3;
+
+   public static final int DEFAULT_MEMORY_BUDGET = 32 * 1024 * 1024;
+
+   RasterFactory factory;
+   VectorLayer layer;
+
+   /** levels[n - 1] holds level n (null until it is first read) */
+   TiledRaster[] levels = new TiledRaster[MAX_LEVEL];
+
+   /** Which tiles of each level are up-to-date (indexed like levels) */
+   boolean[][] isValid = new boolean[MAX_LEVEL][];
+
+   /**
+    * Tiles holding pixels, least recently drawn first. Each is stored as
+    * its tile index times MAX_LEVEL plus its level minus one.
+    */
+   LinkedHashSet<Integer> drawnTiles = new LinkedHashSet<>();
+
+   /** Bytes used by the pixels of the tiles, and how many they may use */
+   int memoryUsage = 0;
+   int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+   public VectorTileCache(RasterFactory factory, VectorLayer layer)
+   {
+      this.factory = factory;
+      this.layer = layer;
+   }
+
+   /** The level holding the layer at a scale of 2, 4, or 8 */
+   public static int getLevel(int scale)
+   {
+      int level = 0;
+      while (level < MAX_LEVEL && (2 << level) <= scale)
+         level++;
+      return level;
+   }
+
+   public void setMemoryBudget(int bytes)
+   {
+      memoryBudget = bytes;
+      evictOverBudget();
+   }
+
+   /** Marks the tiles of every level covering an area of the full-size layer (inclusive coordinates) as out of date */
+   public void invalidate(int x0, int y0, int x1, int y1)
+   {
+      x0 = Math.max(x0, 0);
+      y0 = Math.max(y0, 0);
+      x1 = Math.min(x1, layer.width - 1);
+      y1 = Math.min(y1, layer.height - 1);
+      if (x0 > x1 || y0 > y1) return;
+      for (int level = 1; level <= MAX_LEVEL; level++)
+      {
+         TiledRaster tiles = levels[level - 1];
+         if (tiles == null) continue;
+         // Each pixel of the layer becomes a block of pixels in the level
+         for (int ty = (y0 << level) / TILE_SIZE; ty <= (((y1 + 1) << level) - 1) / TILE_SIZE; ty++)
+         {
+            for (int tx = (x0 << level) / TILE_SIZE; tx <= (((x1 + 1) << level) - 1) / TILE_SIZE; tx++)
+               discard(level, tx, ty);
+         }
+      }
+   }
+
+   /**
+    * Copies a w by h block of a level at (x, y) into a raster, drawing any
+    * out of date tiles first. Parts of the block outside of the level are
+    * made transparent.
+    */
+   public void readRect(int level, int x, int y, Raster to, int toX, int toY, int w, int h)
+   {
+      TiledRaster tiles = getLevelTiles(level);
+      // Tiles are only thrown away before drawing more, so that everything
+      // read at once is still there when it is copied
+      evictOverBudget();
+      int x1 = Math.min(x + w, tiles.width);
+      int y1 = Math.min(y + h, tiles.height);
+      boolean[] valid = isValid[level - 1];
+      for (int ty = Math.max(y, 0) / TILE_SIZE; ty * TILE_SIZE < y1; ty++)
+      {
+         int runStart = -1;
+         for (int tx = Math.max(x, 0) / TILE_SIZE; tx * TILE_SIZE < x1; tx++)
+         {
+            if (!valid[ty * tiles.tilesAcross + tx])
+            {
+               if (runStart < 0)
+                  runStart = tx;
+               continue;
+            }
+            if (runStart >= 0)
+               update(level, runStart, tx - 1, ty);
+            runStart = -1;
+         }
+         if (runStart >= 0)
+            update(level, runStart, (x1 - 1) / TILE_SIZE, ty);
+      }
+      tiles.readRect(x, y, to, toX, toY, w, h);
+   }
+
+   TiledRaster getLevelTiles(int level)
+   {
+      if (levels[level - 1] == null)
+      {
+         levels[level - 1] = new TiledRaster(factory, layer.width << level, layer.height << level);
+         isValid[level - 1] = new boolean[levels[level - 1].tilesAcross * levels[level - 1].tilesDown];
+      }
+      return levels[level - 1];
+   }
+
+   /** Draws a run of tiles in a row of a level */
+   void update(int level, int tx0, int tx1, int ty)
+   {
+      TiledRaster tiles = levels[level - 1];
+      for (int tx = tx0; tx <= tx1; tx++)
+         discard(level, tx, ty);
+      layer.render(tiles, 1 << level, tx0 * TILE_SIZE, ty * TILE_SIZE,
+            Math.min((tx1 + 1) * TILE_SIZE, tiles.width) - 1, Math.min((ty + 1) * TILE_SIZE, tiles.height) - 1);
+      for (int tx = tx0; tx <= tx1; tx++)
+      {
+         int tile = ty * tiles.tilesAcross + tx;
+         isValid[level - 1][tile] = true;
+         Raster pixels = tiles.tiles[tile];
+         if (pixels == null) continue;
+         memoryUsage += pixels.width * pixels.height * 4;
+         drawnTiles.add(tile * MAX_LEVEL + level - 1);
+      }
+   }
+
+   /** Marks a tile as out of date, freeing its pixels */
+   void discard(int level, int tx, int ty)
+   {
+      TiledRaster tiles = levels[level - 1];
+      int tile = ty * tiles.tilesAcross + tx;
+      isValid[level - 1][tile] = false;
+      Raster pixels = tiles.tiles[tile];
+      if (pixels == null) return;
+      memoryUsage -= pixels.width * pixels.height * 4;
+      drawnTiles.remove(tile * MAX_LEVEL + level - 1);
+      tiles.setTile(tx, ty, null, 0);
+   }
+
+   void evictOverBudget()
+   {
+      Iterator<Integer> oldest = drawnTiles.iterator();
+      while (memoryUsage > memoryBudget && oldest.hasNext())
+      {
+         int key = oldest.next();
+         oldest.remove();
+         int level = key % MAX_LEVEL + 1;
+         int tile = key / MAX_LEVEL;
+         TiledRaster tiles = levels[level - 1];
+         Raster pixels = tiles.tiles[tile];
+         memoryUsage -= pixels.width * pixels.height * 4;
+         isValid[level - 1][tile] = false;
+         tiles.setTile(tile % tiles.tilesAcross, tile / tiles.tilesAcross, null, 0);
+      }
+   }
+
+   /** Bytes of memory used for the bigger copies of the layer */
+   public int getMemoryUsage()
+   {
+      int bytes = memoryUsage;
+      for (TiledRaster level: levels)
+      {
+         if (level != null)
+            bytes += level.tiles.length * 8;
+      }
+      return bytes;
+   }
+}
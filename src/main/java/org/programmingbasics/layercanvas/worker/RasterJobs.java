@@ -0,0 +1,107 @@
+package org.programmingbasics.layercanvas.worker;
+
+import org.programmingbasics.layercanvas.raster.DirtyRect;
+import org.programmingbasics.layercanvas.raster.FloodFill;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.UndoRecorder;
+
+/**
+ * Carries out the operations requested of the raster worker. Each 
+ * request holds a block of pixels, which is sent back in the reply 
+ * along with the results of the operation.
+ */
+public class RasterJobs
+{
+   /** Used for allocating memory for saved tiles */
+   RasterFactory factory;
+   
+   /** Kept between requests so that its working memory can be reused */
+   FloodFill floodFill;
+   
+   public RasterJobs(RasterFactory factory)
+   {
+      this.factory = factory;
+   }
+   
+   public WorkerMessage run(WorkerMessage request)
+   {
+      int width = request.getInt("width");
+      int height = request.getInt("height");
+      Raster raster = new Raster(width, height, request.getPixels("pixels"));
+      WorkerMessage reply = WorkerMessage.create(request.getOp(), width, height, raster.pixels);
+      switch (request.getOp())
+      {
+      case WorkerMessage.FLOOD_FILL:
+         doFloodFill(request, raster, reply);
+         break;
+      case WorkerMessage.SPLIT_TILES:
+         splitTiles(raster, reply);
+         break;
+      }
+      return reply;
+   }
+   
+   /** 
+    * Flood fills a part of a layer. The reply holds the old contents of 
+    * the tiles that changed (for undo) and the bounds of the filled area.
+    */
+   void doFloodFill(WorkerMessage request, Raster layer, WorkerMessage reply)
+   {
+      UndoRecorder undoRecorder = new UndoRecorder(factory, layer.width, layer.height);
+      DirtyRect changed = new DirtyRect();
+      if (floodFill == null || floodFill.getWidth() != layer.width || floodFill.getHeight() != layer.height)
+         floodFill = new FloodFill(layer.width, layer.height);
+      floodFill.setEightConnected(request.getInt("eightConnected") != 0);
+      int emptyAlpha = request.getInt("emptyAlpha");
+      int tolerance = request.getInt("tolerance");
+      int fillAlpha = request.getInt("fillAlpha");
+      // Each symmetric copy is filled after the ones before it, so it sees their changes
+      floodFill.fillRasterFromSeeds(layer, request.getPixels("seeds"), emptyAlpha, tolerance, fillAlpha, undoRecorder, changed);
+      
+      int tileCount = undoRecorder.collectChangedTiles(layer);
+      int[] tileX = new int[tileCount];
+      int[] tileY = new int[tileCount];
+      for (int n = 0; n < tileCount; n++)
+      {
+         tileX[n] = undoRecorder.getChangedTileX(n);
+         tileY[n] = undoRecorder.getChangedTileY(n);
+         reply.addTile(undoRecorder.getChangedTile(n).pixels);
+      }
+      reply.setPixels("tileX", tileX);
+      reply.setPixels("tileY", tileY);
+      reply.setInt("minX", changed.minX);
+      reply.setInt("minY", changed.minY);
+      reply.setInt("maxX", changed.maxX);
+      reply.setInt("maxY", changed.maxY);
+   }
+   
+   /**
+    * Splits an image into tiles, so that it can be put into a layer 
+    * without any more copying. The reply holds the tiles that aren't all
+    * one color, plus, for every tile in order, either the index of its 
+    * pixels in the list of tiles or -1 and the tile's color.
+    */
+   void splitTiles(Raster image, WorkerMessage reply)
+   {
+      TiledRaster tiled = TiledRaster.fromRaster(factory, image);
+      int tileCount = tiled.getTilesAcross() * tiled.getTilesDown();
+      int[] tileIndex = new int[tileCount];
+      int[] tileColors = new int[tileCount];
+      int n = 0;
+      for (int ty = 0; ty < tiled.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < tiled.getTilesAcross(); tx++, n++)
+         {
+            Raster tile = tiled.getTile(tx, ty);
+            tileColors[n] = tiled.getTileColor(tx, ty);
+            tileIndex[n] = tile == null ? -1 : reply.getTileCount();
+            if (tile != null)
+               reply.addTile(tile.pixels);
+         }
+      }
+      reply.setPixels("tileIndex", tileIndex);
+      reply.setPixels("tileColors", tileColors);
+   }
+}
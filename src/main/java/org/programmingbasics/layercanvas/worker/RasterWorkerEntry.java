@@ -0,0 +1,44 @@
+package org.programmingbasics.layercanvas.worker;
+
+import org.programmingbasics.layercanvas.raster.Raster;
+
+import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Entry point of the raster worker, which runs in a web worker so that 
+ * big operations on layers don't freeze the page. It is compiled as a 
+ * separate module (LayerCanvasWorker) that only includes the raster 
+ * code, and it is loaded by the page using RasterWorker.
+ */
+public class RasterWorkerEntry implements EntryPoint
+{
+  RasterJobs jobs = new RasterJobs((w, h) -> new Raster(w, h, newIntArray(w * h)));
+  
+  public void onModuleLoad()
+  {
+    listenForRequests();
+    WorkerMessage.create(WorkerMessage.READY, 0, 0, null).postTo(getGlobalScope());
+  }
+  
+  void handleRequest(WorkerMessage request)
+  {
+    jobs.run(request).postTo(getGlobalScope());
+  }
+  
+  private native void listenForRequests() /*-{
+    var self = this;
+    $wnd.onmessage = function(e) {
+      self.@org.programmingbasics.layercanvas.worker.RasterWorkerEntry::handleRequest(*)(e.data);
+    };
+  }-*/;
+  
+  private static native JavaScriptObject getGlobalScope() /*-{
+    return $wnd;
+  }-*/;
+  
+  // Saved tiles are made of typed arrays so that they can be transferred back to the page
+  private static native int[] newIntArray(int size) /*-{
+    return new Int32Array(size);
+  }-*/;
+}
@@ -0,0 +1,77 @@
+package org.programmingbasics.layercanvas.worker;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * A message sent between the page and the raster worker. Messages are 
+ * plain JavaScript objects. Pixels are sent as Int32Arrays, and their 
+ * memory is transferred to the receiver instead of being copied, so the 
+ * sender can't use the pixels until they are sent back.
+ * 
+ * A request has an "op" and the width, height, and pixels to work on,
+ * plus the parameters of the operation. A reply has the same pixels,
+ * which may have been changed, plus any tiles made by the operation 
+ * (see RasterJobs).
+ */
+public class WorkerMessage extends JavaScriptObject
+{
+   /** Sent by the worker once it has loaded */
+   public static final String READY = "ready";
+   public static final String FLOOD_FILL = "floodFill";
+   public static final String SPLIT_TILES = "splitTiles";
+   
+   protected WorkerMessage() {}
+   
+   public static native WorkerMessage create(String op, int width, int height, int[] pixels) /*-{
+      return {op: op, width: width, height: height, pixels: pixels, tiles: []};
+   }-*/;
+   
+   public final native String getOp() /*-{
+      return this.op;
+   }-*/;
+   
+   public final native int getInt(String key) /*-{
+      return this[key];
+   }-*/;
+   
+   public final native void setInt(String key, int val) /*-{
+      this[key] = val;
+   }-*/;
+   
+   public final native int[] getPixels(String key) /*-{
+      return this[key];
+   }-*/;
+   
+   /** Typed arrays are transferred when the message is sent. Other arrays are copied */
+   public final native void setPixels(String key, int[] pixels) /*-{
+      this[key] = pixels;
+   }-*/;
+   
+   public final native int getTileCount() /*-{
+      return this.tiles.length;
+   }-*/;
+   
+   public final native int[] getTile(int n) /*-{
+      return this.tiles[n];
+   }-*/;
+   
+   public final native void addTile(int[] pixels) /*-{
+      this.tiles.push(pixels);
+   }-*/;
+   
+   /** 
+    * Sends the message to a worker (or from a worker back to the page), 
+    * transferring the memory of all the pixels in the message
+    */
+   public final native void postTo(JavaScriptObject target) /*-{
+      var transfer = [];
+      for (var key in this)
+      {
+         if ($wnd.ArrayBuffer.isView(this[key]))
+            transfer.push(this[key].buffer);
+      }
+      for (var n = 0; n < this.tiles.length; n++)
+         transfer.push(this.tiles[n].buffer);
+      target.postMessage(this, transfer);
+   }-*/;
+}
@@ -0,0 +1,64 @@
+package org.programmingbasics.linker;
+
+import java.util.SortedSet;
+
+import com.google.gwt.core.ext.LinkerContext;
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.core.ext.UnableToCompleteException;
+import com.google.gwt.core.ext.linker.AbstractLinker;
+import com.google.gwt.core.ext.linker.ArtifactSet;
+import com.google.gwt.core.ext.linker.CompilationResult;
+import com.google.gwt.core.ext.linker.LinkerOrder;
+import com.google.gwt.core.ext.linker.LinkerOrder.Order;
+
+/**
+ * Links a module into a single script that can be run in a web worker 
+ * (modulename.worker.js). The usual GWT linkers need a document to 
+ * load a module, but workers don't have one, so the compiled code is 
+ * put directly in the script with the globals that it expects, and the 
+ * module is started at the end of the script. The module must only have 
+ * one permutation and can't use code splitting.
+ * 
+ * This isn't part of the GWT source path because it runs in the 
+ * compiler, not the browser.
+ */
+@LinkerOrder(Order.PRIMARY)
+public class WorkerLinker extends AbstractLinker
+{
+   @Override public String getDescription()
+   {
+      return "Web Worker";
+   }
+
+   @Override public ArtifactSet link(TreeLogger logger, LinkerContext context, ArtifactSet artifacts) throws UnableToCompleteException
+   {
+      SortedSet<CompilationResult> results = artifacts.find(CompilationResult.class);
+      if (results.size() != 1)
+      {
+         logger.log(TreeLogger.ERROR, "The " + getDescription() + " linker needs exactly one permutation, but found " + results.size());
+         throw new UnableToCompleteException();
+      }
+      CompilationResult result = results.first();
+      String[] js = result.getJavaScript();
+      if (js.length != 1)
+      {
+         logger.log(TreeLogger.ERROR, "The " + getDescription() + " linker can't be used with code splitting");
+         throw new UnableToCompleteException();
+      }
+      
+      StringBuilder out = new StringBuilder();
+      out.append("(function () {\n");
+      out.append("var $wnd = self;\n");
+      out.append("var $doc = {};\n");
+      out.append("var $moduleName, $moduleBase;\n");
+      out.append("var $stats = null, $sessionId = null;\n");
+      out.append("var $strongName = '" + result.getStrongName() + "';\n");
+      out.append(js[0]);
+      out.append("\ngwtOnLoad(null, '" + context.getModuleName() + "', '', 0);\n");
+      out.append("})();\n");
+      
+      ArtifactSet toReturn = new ArtifactSet(artifacts);
+      toReturn.add(emitString(logger, out.toString(), context.getModuleName() + ".worker.js"));
+      return toReturn;
+   }
+}
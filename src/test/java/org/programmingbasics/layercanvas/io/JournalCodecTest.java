@@ -0,0 +1,312 @@
+package org.programmingbasics.layercanvas.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.programmingbasics.layercanvas.raster.BasicBrush;
+import org.programmingbasics.layercanvas.raster.Journal;
+import org.programmingbasics.layercanvas.raster.JournalEntry;
+import org.programmingbasics.layercanvas.raster.JournalPlayer;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+import org.programmingbasics.layercanvas.raster.RasterFactory;
+import org.programmingbasics.layercanvas.raster.RoundBrush;
+import org.programmingbasics.layercanvas.raster.SquareBrush;
+import org.programmingbasics.layercanvas.raster.TiledRaster;
+import org.programmingbasics.layercanvas.raster.ToolSettings;
+
+public class JournalCodecTest
+{
+   static final int WIDTH = 180;
+   static final int HEIGHT = 140;
+
+   RasterFactory factory = Raster::create;
+   Random random = new Random(1);
+
+   ToolSettings createSettings(int tool, BasicBrush brush)
+   {
+      ToolSettings settings = new ToolSettings();
+      settings.tool = tool;
+      settings.brushSize = 2 + random.nextInt(10);
+      settings.brush = brush;
+      settings.mirrorWidth = WIDTH;
+      settings.mirrorHeight = HEIGHT;
+      return settings;
+   }
+
+   /** Makes one of each kind of entry, with a variety of settings, points, and pressures */
+   List<JournalEntry> createEntries()
+   {
+      RoundBrush soft = new RoundBrush();
+      soft.setHardness(0.3);
+      soft.setOpacity(0.75);
+      soft.setSpacing(0.2);
+      soft.setPressureResponse(0.25, 0.5, 1.7);
+      SquareBrush square = new SquareBrush();
+      square.setAntiAlias(false);
+
+      ToolSettings paint = createSettings(ToolSettings.PAINT, soft);
+      ToolSettings mirrored = createSettings(ToolSettings.PAINT, new RoundBrush());
+      mirrored.mirror = true;
+      ToolSettings rotated = createSettings(ToolSettings.ERASER, square);
+      rotated.rotations = 4;
+      rotated.mirror = true;
+      ToolSettings stamp = createSettings(ToolSettings.STAMP, new RoundBrush());
+      stamp.stamp = Raster.create(30, 20);
+      for (int n = 0; n < stamp.stamp.pixels.length; n++)
+         stamp.stamp.pixels[n] = n % 7 == 0 ? 0 : Pixels.pack(n & 255, 40, 90, 255);
+      ToolSettings fill = createSettings(ToolSettings.FLOOD_FILL, new RoundBrush());
+      fill.floodFillEmptyColor = 0;
+      fill.floodFillFillColor = 255;
+      fill.floodFillTolerance = -1;
+      fill.floodFillEightConnected = true;
+      fill.rotations = 3;
+
+      List<JournalEntry> entries = new ArrayList<>();
+      entries.add(createFill(Pixels.pack(255, 255, 255, 0)));
+      for (ToolSettings settings: new ToolSettings[] {paint, mirrored, rotated, paint})
+      {
+         JournalEntry stroke = JournalEntry.create(JournalEntry.STROKE, 1, settings);
+         stroke.setClip(-10, -5, WIDTH + 20, HEIGHT + 10);
+         for (int n = 0; n < 30; n++)
+         {
+            // Full pressure, pen pressures that fit in a float, and ones that don't
+            double pressure = n < 5 ? 1.0 : n % 3 == 0 ? (float)random.nextDouble() : random.nextDouble();
+            stroke.addPoint(random.nextInt(WIDTH + 40) - 20, random.nextInt(HEIGHT + 40) - 20, pressure);
+         }
+         entries.add(stroke);
+      }
+      JournalEntry stamped = JournalEntry.create(JournalEntry.STAMP, 1, stamp);
+      stamped.setClip(0, 0, WIDTH, HEIGHT);
+      stamped.addPoint(WIDTH - 12, 30, 1.0);
+      entries.add(stamped);
+      JournalEntry flood = JournalEntry.create(JournalEntry.FLOOD_FILL, 1, fill);
+      flood.setClip(0, 0, WIDTH, HEIGHT);
+      flood.addPoint(5, 7, 1.0);
+      entries.add(flood);
+      JournalEntry image = JournalEntry.create(JournalEntry.IMAGE, 1, null);
+      // Images are made of whole tiles, apart from where they reach the edges of the drawing
+      Raster pixels = Raster.create(2 * TiledRaster.TILE_SIZE, 2 * TiledRaster.TILE_SIZE);
+      for (int n = 0; n < pixels.pixels.length; n++)
+         pixels.pixels[n] = n < 5000 ? Pixels.pack(0, 128, 0, 255) : random.nextInt();
+      image.image = TiledRaster.fromRaster(factory, pixels);
+      entries.add(image);
+      // An entry for another layer, which replaying one layer should skip
+      JournalEntry other = createFill(Pixels.pack(1, 2, 3, 255));
+      other.layerId = 2;
+      entries.add(other);
+      return entries;
+   }
+
+   static JournalEntry createFill(int color)
+   {
+      JournalEntry entry = JournalEntry.create(JournalEntry.FILL, 1, null);
+      entry.color = color;
+      return entry;
+   }
+
+   static void assertSettings(ToolSettings expected, ToolSettings actual)
+   {
+      if (expected == null)
+      {
+         assertNull(actual);
+         return;
+      }
+      assertEquals(expected.tool, actual.tool);
+      assertEquals(expected.brushSize, actual.brushSize);
+      assertSame(expected.brush.getClass(), actual.brush.getClass());
+      assertTrue(expected.brush.hasSameSettings(actual.brush));
+      assertEquals(expected.mirror, actual.mirror);
+      assertEquals(expected.mirrorWidth, actual.mirrorWidth);
+      assertEquals(expected.rotations, actual.rotations);
+      if (expected.rotations > 1)
+         assertEquals(expected.mirrorHeight, actual.mirrorHeight);
+      assertEquals(expected.floodFillEmptyColor, actual.floodFillEmptyColor);
+      assertEquals(expected.floodFillFillColor, actual.floodFillFillColor);
+      assertEquals(expected.floodFillTolerance, actual.floodFillTolerance);
+      assertEquals(expected.floodFillEightConnected, actual.floodFillEightConnected);
+      if (expected.stamp == null)
+         assertNull(actual.stamp);
+      else
+      {
+         assertEquals(expected.stamp.width, actual.stamp.width);
+         assertEquals(expected.stamp.height, actual.stamp.height);
+         assertArrayEquals(expected.stamp.pixels, actual.stamp.pixels);
+      }
+   }
+
+   static void assertEntry(JournalEntry expected, JournalEntry actual)
+   {
+      assertEquals(expected.kind, actual.kind);
+      assertEquals(expected.layerId, actual.layerId);
+      assertSettings(expected.settings, actual.settings);
+      if (expected.kind == JournalEntry.FILL)
+      {
+         assertEquals(expected.color, actual.color);
+         return;
+      }
+      if (expected.kind == JournalEntry.IMAGE)
+      {
+         assertArrayEquals(pixels(expected.image), pixels(actual.image));
+         return;
+      }
+      assertEquals(expected.clipX, actual.clipX);
+      assertEquals(expected.clipY, actual.clipY);
+      assertEquals(expected.clipWidth, actual.clipWidth);
+      assertEquals(expected.clipHeight, actual.clipHeight);
+      assertEquals(expected.pointCount, actual.pointCount);
+      for (int n = 0; n < expected.pointCount; n++)
+      {
+         assertEquals(expected.getX(n), actual.getX(n));
+         assertEquals(expected.getY(n), actual.getY(n));
+         // Pressures are stored exactly
+         assertEquals(Double.doubleToLongBits(expected.getPressure(n)), Double.doubleToLongBits(actual.getPressure(n)));
+      }
+   }
+
+   static int[] pixels(TiledRaster layer)
+   {
+      Raster out = Raster.create(layer.width, layer.height);
+      layer.readRect(0, 0, out, 0, 0, layer.width, layer.height);
+      return out.pixels;
+   }
+
+   /** Plays the entries for layer 1 over a copy of a layer */
+   int[] replay(TiledRaster start, List<JournalEntry> entries)
+   {
+      JournalPlayer player = new JournalPlayer(factory);
+      TiledRaster layer = start.copy();
+      for (JournalEntry entry: entries)
+      {
+         if (entry.layerId == 1)
+            player.play(entry, layer);
+      }
+      return pixels(layer);
+   }
+
+   TiledRaster createLayer()
+   {
+      Raster pixels = Raster.create(WIDTH, HEIGHT);
+      pixels.fillRect(20, 20, 90, 60, Pixels.pack(200, 10, 10, 255));
+      for (int n = 0; n < 200; n++)
+         pixels.pixels[random.nextInt(pixels.pixels.length)] = random.nextInt();
+      return TiledRaster.fromRaster(factory, pixels);
+   }
+
+   @Test
+   public void testJournalRoundTrip()
+   {
+      TiledRaster layer = createLayer();
+      Map<Integer, TiledRaster> checkpoint = new LinkedHashMap<>();
+      checkpoint.put(1, layer);
+      checkpoint.put(2, new TiledRaster(factory, WIDTH, HEIGHT));
+      Journal journal = Journal.startFrom(WIDTH, HEIGHT, checkpoint);
+      List<JournalEntry> entries = createEntries();
+      for (int n = 0; n < entries.size(); n++)
+         journal.add(n, entries.get(n));
+
+      byte[] data = JournalCodec.write(journal, journal.size(), byte[]::new);
+      Journal read = JournalCodec.read(data, 0, data.length, factory);
+      assertNotNull(read);
+      assertEquals(WIDTH, read.width);
+      assertEquals(HEIGHT, read.height);
+      assertEquals(journal.getCheckpoint().keySet(), read.getCheckpoint().keySet());
+      for (int id: journal.getCheckpoint().keySet())
+         assertArrayEquals(pixels(journal.getCheckpoint().get(id)), pixels(read.getCheckpoint().get(id)));
+      assertEquals(journal.size(), read.size());
+      List<JournalEntry> readEntries = new ArrayList<>();
+      for (int n = 0; n < read.size(); n++)
+      {
+         assertEntry(journal.get(n), read.get(n));
+         readEntries.add(read.get(n));
+      }
+      // Entries sharing settings still share them
+      assertSame(read.get(1).settings, read.get(4).settings);
+      assertArrayEquals(replay(layer, entries), replay(read.getCheckpoint().get(1), readEntries));
+
+      // Only the first entries can be saved
+      byte[] partial = JournalCodec.write(journal, 3, byte[]::new);
+      assertEquals(3, JournalCodec.read(partial, 0, partial.length, factory).size());
+   }
+
+   @Test
+   public void testOpsRoundTrip()
+   {
+      List<JournalEntry> entries = createEntries();
+      byte[] data = JournalCodec.writeOps(entries, byte[]::new);
+      List<JournalEntry> read = JournalCodec.readOps(data, 0, data.length, factory, WIDTH, HEIGHT);
+      assertNotNull(read);
+      assertEquals(entries.size(), read.size());
+      for (int n = 0; n < entries.size(); n++)
+         assertEntry(entries.get(n), read.get(n));
+      TiledRaster layer = createLayer();
+      assertArrayEquals(replay(layer, entries), replay(layer, read));
+
+      // Streams can be joined between any two operations
+      byte[] first = JournalCodec.writeOps(entries.subList(0, 3), byte[]::new);
+      byte[] rest = JournalCodec.writeOps(entries.subList(3, entries.size()), byte[]::new);
+      byte[] joined = new byte[first.length + rest.length + 5];
+      System.arraycopy(first, 0, joined, 5, first.length);
+      System.arraycopy(rest, 0, joined, 5 + first.length, rest.length);
+      List<JournalEntry> rejoined = JournalCodec.readOps(joined, 5, first.length + rest.length, factory, WIDTH, HEIGHT);
+      assertEquals(entries.size(), rejoined.size());
+      for (int n = 0; n < entries.size(); n++)
+         assertEntry(entries.get(n), rejoined.get(n));
+   }
+
+   @Test
+   public void testEntriesRoundTrip()
+   {
+      // Runs of entries are for vector layers, so they have no stamps
+      List<JournalEntry> entries = new ArrayList<>();
+      for (JournalEntry entry: createEntries())
+      {
+         if (entry.layerId == 1 && (entry.kind == JournalEntry.STROKE || entry.kind == JournalEntry.FILL))
+            entries.add(entry);
+      }
+      ByteWriter out = new ByteWriter();
+      out.writeVarint(77);
+      JournalCodec.writeEntries(out, entries, 1, entries.size());
+      out.writeVarint(88);
+      byte[] data = out.toByteArray(byte[]::new);
+
+      ByteReader in = new ByteReader(data, 0, data.length);
+      assertEquals(77, in.readVarint());
+      List<JournalEntry> read = new ArrayList<>();
+      assertTrue(JournalCodec.readEntries(in, 1, factory, WIDTH, HEIGHT, read));
+      assertEquals(88, in.readVarint());
+      assertEquals(0, in.getRemaining());
+      assertEquals(entries.size() - 1, read.size());
+      for (int n = 0; n < read.size(); n++)
+         assertEntry(entries.get(n + 1), read.get(n));
+      assertSame(read.get(0).settings, read.get(3).settings);
+   }
+
+   @Test
+   public void testDamagedData()
+   {
+      Map<Integer, TiledRaster> checkpoint = new LinkedHashMap<>();
+      checkpoint.put(1, createLayer());
+      Journal journal = Journal.startFrom(WIDTH, HEIGHT, checkpoint);
+      List<JournalEntry> entries = createEntries();
+      for (int n = 0; n < entries.size(); n++)
+         journal.add(n, entries.get(n));
+      byte[] data = JournalCodec.write(journal, journal.size(), byte[]::new);
+      for (int length = 0; length < data.length; length += 1 + length / 8)
+         assertNull(JournalCodec.read(data, 0, length, factory));
+      byte[] wrongMagic = data.clone();
+      wrongMagic[0] = 'X';
+      assertNull(JournalCodec.read(wrongMagic, 0, wrongMagic.length, factory));
+   }
+}
@@ -0,0 +1,173 @@
+package org.programmingbasics.layercanvas.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.programmingbasics.layercanvas.raster.Pixels;
+import org.programmingbasics.layercanvas.raster.Raster;
+
+/**
+ * Checks that the encoded PNG files decode (using the JDK's PNG reader)
+ * back to the pixels they were made from
+ */
+public class PngEncoderTest
+{
+   /** Makes an image using the given number of colors, some of them transparent */
+   static Raster makeImage(Random random, int width, int height, int colorCount)
+   {
+      int[] colors = new int[colorCount];
+      for (int n = 0; n < colorCount; n++)
+         colors[n] = Pixels.pack(random.nextInt(256), random.nextInt(256), random.nextInt(256), n % 3 == 0 ? 255 : random.nextInt(256));
+      Raster image = Raster.create(width, height);
+      for (int n = 0; n < width * height; n++)
+         image.pixels[n] = colors[random.nextInt(colorCount)];
+      return image;
+   }
+
+   static byte[] encode(Raster image, int x, int y, int w, int h, int rowsPerCall) throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PngEncoder encoder = new PngEncoder(image, x, y, w, h, byte[]::new, piece -> out.write(piece, 0, piece.length));
+      if (rowsPerCall <= 0)
+         encoder.encodeAll();
+      else
+      {
+         while (!encoder.encodeRows(rowsPerCall))
+            assertFalse(encoder.isFinished());
+      }
+      assertTrue(encoder.isFinished());
+      return out.toByteArray();
+   }
+
+   /** Decodes the file and checks it against an area of the image */
+   static void assertDecodesTo(byte[] png, Raster image, int x, int y, int w, int h) throws IOException
+   {
+      BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+      assertEquals(w, decoded.getWidth());
+      assertEquals(h, decoded.getHeight());
+      for (int py = 0; py < h; py++)
+      {
+         for (int px = 0; px < w; px++)
+         {
+            int pixel = image.pixels[(y + py) * image.width + x + px];
+            int argb = decoded.getRGB(px, py);
+            int alpha = Pixels.alpha(pixel);
+            assertEquals(alpha, argb >>> 24);
+            // All fully transparent pixels are the same color
+            if (alpha == 0) continue;
+            assertEquals(pixel & 255, (argb >>> 16) & 255);
+            assertEquals((pixel >>> 8) & 255, (argb >>> 8) & 255);
+            assertEquals((pixel >>> 16) & 255, argb & 255);
+         }
+      }
+   }
+
+   @Test
+   public void testPaletteRoundTrip() throws IOException
+   {
+      Random random = new Random(1);
+      // Covers each bit depth that a palette can use, and the largest palette
+      for (int colorCount: new int[] {1, 2, 3, 4, 5, 16, 17, 256})
+      {
+         Raster image = makeImage(random, 37, 23, colorCount);
+         assertDecodesTo(encode(image, 0, 0, 37, 23, 0), image, 0, 0, 37, 23);
+      }
+   }
+
+   @Test
+   public void testRgbaRoundTrip() throws IOException
+   {
+      Random random = new Random(2);
+      Raster image = Raster.create(50, 40);
+      for (int n = 0; n < image.pixels.length; n++)
+         image.pixels[n] = random.nextInt();
+      assertDecodesTo(encode(image, 0, 0, 50, 40, 0), image, 0, 0, 50, 40);
+      // Just over the size of a palette
+      Raster barely = makeImage(random, 60, 60, 257);
+      assertDecodesTo(encode(barely, 0, 0, 60, 60, 0), barely, 0, 0, 60, 60);
+   }
+
+   @Test
+   public void testTransparentPixelsShareColor() throws IOException
+   {
+      Raster image = Raster.create(8, 8);
+      for (int n = 0; n < image.pixels.length; n++)
+         image.pixels[n] = Pixels.pack(n, 255 - n, n * 3, 0);
+      image.pixels[5] = Pixels.pack(10, 20, 30, 255);
+      assertDecodesTo(encode(image, 0, 0, 8, 8, 0), image, 0, 0, 8, 8);
+   }
+
+   @Test
+   public void testSubArea() throws IOException
+   {
+      Random random = new Random(3);
+      Raster image = makeImage(random, 80, 70, 6);
+      assertDecodesTo(encode(image, 13, 9, 41, 50, 0), image, 13, 9, 41, 50);
+      assertDecodesTo(encode(image, 79, 69, 1, 1, 0), image, 79, 69, 1, 1);
+      for (int n = 0; n < image.pixels.length; n++)
+         image.pixels[n] = random.nextInt();
+      assertDecodesTo(encode(image, 5, 30, 75, 1, 0), image, 5, 30, 75, 1);
+   }
+
+   @Test
+   public void testEncodeInRows() throws IOException
+   {
+      Random random = new Random(4);
+      Raster palette = makeImage(random, 300, 250, 12);
+      Raster rgba = Raster.create(300, 250);
+      for (int n = 0; n < rgba.pixels.length; n++)
+         rgba.pixels[n] = random.nextInt();
+      for (Raster image: new Raster[] {palette, rgba})
+      {
+         // Where the image data is split into chunks depends on how many
+         // rows are encoded at a time, so only the pixels are compared
+         for (int rows: new int[] {1, 7, 64, 1000})
+            assertDecodesTo(encode(image, 0, 0, 300, 250, rows), image, 0, 0, 300, 250);
+      }
+   }
+
+   @Test
+   public void testOutputsWholeChunks() throws IOException
+   {
+      Random random = new Random(5);
+      Raster image = Raster.create(200, 200);
+      for (int n = 0; n < image.pixels.length; n++)
+         image.pixels[n] = random.nextInt();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int[] pieceCount = new int[1];
+      PngEncoder encoder = new PngEncoder(image, 0, 0, 200, 200, byte[]::new, piece -> {
+         // Each piece after the signature starts with the length of a chunk
+         // and holds whole chunks
+         if (pieceCount[0] > 0)
+         {
+            int offset = 0;
+            while (offset < piece.length)
+            {
+               int length = ((piece[offset] & 255) << 24) | ((piece[offset + 1] & 255) << 16)
+                     | ((piece[offset + 2] & 255) << 8) | (piece[offset + 3] & 255);
+               offset += 12 + length;
+            }
+            assertEquals(piece.length, offset);
+         }
+         pieceCount[0]++;
+         out.write(piece, 0, piece.length);
+      });
+      while (!encoder.encodeRows(10)) {}
+      assertTrue(pieceCount[0] > 3);
+      byte[] png = out.toByteArray();
+      assertArrayEquals(PngEncoder.SIGNATURE, Arrays.copyOf(png, 8));
+      assertDecodesTo(png, image, 0, 0, 200, 200);
+   }
+}
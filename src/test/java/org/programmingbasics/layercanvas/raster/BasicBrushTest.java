@@ -0,0 +1,74 @@
+package org.programmingbasics.layercanvas.raster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BasicBrushTest
+{
+   static final double EPSILON = 1e-9;
+
+   static RoundBrush createBrush(double hardness, boolean antiAlias)
+   {
+      RoundBrush brush = new RoundBrush();
+      brush.setHardness(hardness);
+      brush.setAntiAlias(antiAlias);
+      return brush;
+   }
+
+   @Test
+   public void testHardEdge()
+   {
+      RoundBrush brush = createBrush(1.0, false);
+      assertEquals(1, brush.getCoverage(0, 0, 5), EPSILON);
+      assertEquals(1, brush.getCoverage(5, 0, 5), EPSILON);
+      assertEquals(0, brush.getCoverage(5.1, 0, 5), EPSILON);
+   }
+
+   @Test
+   public void testAntiAliasedHardEdge()
+   {
+      // The edge fades out over the pixel around the radius
+      RoundBrush brush = createBrush(1.0, true);
+      assertEquals(1, brush.getCoverage(4.5, 0, 5), EPSILON);
+      assertEquals(0.75, brush.getCoverage(4.75, 0, 5), EPSILON);
+      assertEquals(0.5, brush.getCoverage(5, 0, 5), EPSILON);
+      assertEquals(0.25, brush.getCoverage(5.25, 0, 5), EPSILON);
+      assertEquals(0, brush.getCoverage(5.5, 0, 5), EPSILON);
+      SquareBrush square = new SquareBrush();
+      square.copySettings(brush);
+      assertEquals(0.5, square.getCoverage(5, -3, 5), EPSILON);
+   }
+
+   @Test
+   public void testSoftEdge()
+   {
+      // Fades out evenly from the solid part to the radius
+      RoundBrush brush = createBrush(0.5, false);
+      assertEquals(1, brush.getCoverage(2, 0, 4), EPSILON);
+      assertEquals(0.5, brush.getCoverage(3, 0, 4), EPSILON);
+      assertEquals(0, brush.getCoverage(4, 0, 4), EPSILON);
+      assertEquals(0, brush.getCoverage(4.2, 0, 4), EPSILON);
+   }
+
+   @Test
+   public void testAntiAliasedSoftEdge()
+   {
+      // Fades out evenly to the outer edge of the fringe, so pixels past
+      // the radius still get some paint
+      RoundBrush brush = createBrush(0.5, true);
+      assertEquals(1, brush.getCoverage(2, 0, 4), EPSILON);
+      assertEquals(0.5 / 2.5, brush.getCoverage(4, 0, 4), EPSILON);
+      assertTrue(brush.getCoverage(4.25, 0, 4) > 0);
+      assertEquals(0, brush.getCoverage(4.5, 0, 4), EPSILON);
+      // Coverage never increases going outwards
+      double last = 1;
+      for (double dist = 0; dist <= 5; dist += 0.01)
+      {
+         double coverage = brush.getCoverage(dist, 0, 4);
+         assertTrue(coverage <= last + EPSILON);
+         last = coverage;
+      }
+   }
+}
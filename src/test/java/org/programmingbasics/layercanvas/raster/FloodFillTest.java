@@ -0,0 +1,305 @@
+package org.programmingbasics.layercanvas.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the scanline flood fill against a simple breadth-first fill of
+ * the same pixels
+ */
+public class FloodFillTest
+{
+   /**
+    * Makes an image of a few colors in blobs and noise, so that regions
+    * have holes, narrow necks, and diagonal connections. No color is close
+    * to the fill color, so filled pixels never match a later fill.
+    */
+   static Raster makeImage(Random random, int width, int height)
+   {
+      int[] colors = {
+            Pixels.pack(200, 200, 200, 255),
+            Pixels.pack(204, 197, 203, 255),
+            Pixels.pack(120, 180, 240, 255),
+            Pixels.pack(250, 120, 130, 0),
+            Pixels.pack(100, 100, 100, 128)};
+      Raster image = Raster.create(width, height);
+      for (int y = 0; y < height; y++)
+      {
+         for (int x = 0; x < width; x++)
+         {
+            // Mostly follow the pixel above or to the left
+            int color;
+            int choice = random.nextInt(10);
+            if (choice < 4 && x > 0)
+               color = image.pixels[y * width + x - 1];
+            else if (choice < 8 && y > 0)
+               color = image.pixels[(y - 1) * width + x];
+            else
+               color = colors[random.nextInt(colors.length)];
+            image.pixels[y * width + x] = color;
+         }
+      }
+      return image;
+   }
+
+   /** Pixels connected to (x, y) that match, found one pixel at a time */
+   static boolean[] referenceFill(boolean[] matches, int width, int height, int x, int y, boolean eightConnected)
+   {
+      boolean[] filled = new boolean[width * height];
+      if (!matches[y * width + x]) return filled;
+      ArrayDeque<Integer> queue = new ArrayDeque<>();
+      filled[y * width + x] = true;
+      queue.add(y * width + x);
+      while (!queue.isEmpty())
+      {
+         int idx = queue.poll();
+         int px = idx % width;
+         int py = idx / width;
+         for (int dy = -1; dy <= 1; dy++)
+         {
+            for (int dx = -1; dx <= 1; dx++)
+            {
+               if (dx == 0 && dy == 0) continue;
+               if (!eightConnected && dx != 0 && dy != 0) continue;
+               int nx = px + dx;
+               int ny = py + dy;
+               if (nx < 0 || nx >= width || ny < 0 || ny >= height) continue;
+               int n = ny * width + nx;
+               if (filled[n] || !matches[n]) continue;
+               filled[n] = true;
+               queue.add(n);
+            }
+         }
+      }
+      return filled;
+   }
+
+   static boolean[] findMatches(int[] pixels, int seedIdx, int emptyAlpha, int tolerance)
+   {
+      boolean[] matches = new boolean[pixels.length];
+      for (int n = 0; n < pixels.length; n++)
+      {
+         if (tolerance < 0)
+            matches[n] = (pixels[n] >>> 24) == emptyAlpha;
+         else
+            matches[n] = FloodFill.isColorMatch(pixels[n], pixels[seedIdx], tolerance);
+      }
+      return matches;
+   }
+
+   /** What fillRaster() should do, returning the filled pixels */
+   static boolean[] referenceFillRaster(Raster raster, int x, int y, int emptyAlpha, int tolerance, int fillAlpha, boolean eightConnected)
+   {
+      boolean[] matches = findMatches(raster.pixels, y * raster.width + x, emptyAlpha, tolerance);
+      boolean[] filled = referenceFill(matches, raster.width, raster.height, x, y, eightConnected);
+      for (int n = 0; n < filled.length; n++)
+      {
+         if (!filled[n]) continue;
+         if (tolerance < 0)
+            raster.pixels[n] = (raster.pixels[n] & 0xffffff) | (fillAlpha << 24);
+         else
+            raster.pixels[n] = Pixels.pack(0, 0, 0, fillAlpha);
+      }
+      return filled;
+   }
+
+   /** Seeds in the corners and along the edges, as well as inside */
+   static int[] pickSeeds(Random random, int width, int height)
+   {
+      return new int[] {
+            0, 0,
+            width - 1, 0,
+            0, height - 1,
+            width - 1, height - 1,
+            random.nextInt(width), 0,
+            0, random.nextInt(height),
+            random.nextInt(width), height - 1,
+            width - 1, random.nextInt(height),
+            random.nextInt(width), random.nextInt(height),
+            random.nextInt(width), random.nextInt(height)};
+   }
+
+   static void assertFilled(boolean[] expected, FloodFill fill, int width)
+   {
+      boolean[] filled = new boolean[expected.length];
+      for (int n = 0; n < fill.getFilledRunCount(); n++)
+      {
+         int y = fill.getFilledRunY(n);
+         for (int x = fill.getFilledRunStartX(n); x <= fill.getFilledRunEndX(n); x++)
+         {
+            // Each pixel is only filled once
+            assertTrue(!filled[y * width + x]);
+            filled[y * width + x] = true;
+         }
+      }
+      assertArrayEquals(expected, filled);
+   }
+
+   @Test
+   public void testFillMatchesReference()
+   {
+      Random random = new Random(1);
+      for (int trial = 0; trial < 40; trial++)
+      {
+         int width = 1 + random.nextInt(70);
+         int height = 1 + random.nextInt(50);
+         Raster image = makeImage(random, width, height);
+         FloodFill fill = new FloodFill(width, height);
+         for (boolean eightConnected: new boolean[] {false, true})
+         {
+            fill.setEightConnected(eightConnected);
+            for (int tolerance: new int[] {0, 8, 60})
+            {
+               int[] seeds = pickSeeds(random, width, height);
+               for (int n = 0; n < seeds.length; n += 2)
+               {
+                  int idx = seeds[n + 1] * width + seeds[n];
+                  fill.buildMask(image.pixels, image.pixels[idx], tolerance);
+                  fill.fill(seeds[n], seeds[n + 1]);
+                  boolean[] matches = findMatches(image.pixels, idx, 0, tolerance);
+                  assertFilled(referenceFill(matches, width, height, seeds[n], seeds[n + 1], eightConnected), fill, width);
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testFillOutsideOrUnmarked()
+   {
+      FloodFill fill = new FloodFill(10, 10);
+      fill.buildAlphaMask(new int[100], 255);
+      fill.fill(3, 3);
+      assertEquals(0, fill.getFilledRunCount());
+      fill.buildAlphaMask(new int[100], 0);
+      fill.fill(-1, 3);
+      assertEquals(0, fill.getFilledRunCount());
+      fill.fill(3, 10);
+      assertEquals(0, fill.getFilledRunCount());
+      fill.fill(9, 9);
+      int count = 0;
+      for (int n = 0; n < fill.getFilledRunCount(); n++)
+         count += fill.getFilledRunEndX(n) - fill.getFilledRunStartX(n) + 1;
+      assertEquals(100, count);
+   }
+
+   @Test
+   public void testFillRasterMatchesReference()
+   {
+      Random random = new Random(2);
+      for (int trial = 0; trial < 40; trial++)
+      {
+         int width = 1 + random.nextInt(70);
+         int height = 1 + random.nextInt(50);
+         Raster image = makeImage(random, width, height);
+         boolean eightConnected = random.nextBoolean();
+         // A negative tolerance fills by alpha
+         int tolerance = random.nextInt(4) == 0 ? -1 : random.nextInt(30);
+         int x = random.nextInt(width);
+         int y = random.nextInt(height);
+
+         Raster expected = Raster.create(width, height);
+         expected.copyRect(image, 0, 0, 0, 0, width, height);
+         boolean[] filled = referenceFillRaster(expected, x, y, 0, tolerance, 255, eightConnected);
+
+         FloodFill fill = new FloodFill(width, height);
+         fill.setEightConnected(eightConnected);
+         DirtyRect changed = new DirtyRect();
+         fill.fillRaster(image, x, y, 0, tolerance, 255, null, changed);
+         assertArrayEquals(expected.pixels, image.pixels);
+         assertArrayEquals(bounds(filled, width), bounds(changed));
+      }
+   }
+
+   @Test
+   public void testFillRasterFromSeedsMatchesSeparateFills()
+   {
+      Random random = new Random(3);
+      for (int trial = 0; trial < 40; trial++)
+      {
+         int width = 2 + random.nextInt(70);
+         int height = 2 + random.nextInt(50);
+         Raster image = makeImage(random, width, height);
+         boolean eightConnected = random.nextBoolean();
+         int tolerance = random.nextInt(4) == 0 ? -1 : random.nextInt(30);
+         int fillAlpha = tolerance < 0 ? 255 : 200 + random.nextInt(56);
+
+         // Symmetric copies of a point, repeated, plus points on the edges
+         Symmetry symmetry = new Symmetry(1 + random.nextInt(4), random.nextBoolean(), width / 2.0, height / 2.0);
+         int[] copies = symmetry.copyPoints(random.nextInt(width), random.nextInt(height), 0, 0);
+         int[] edges = pickSeeds(random, width, height);
+         int[] seeds = new int[copies.length * 2 + edges.length];
+         System.arraycopy(copies, 0, seeds, 0, copies.length);
+         System.arraycopy(copies, 0, seeds, copies.length, copies.length);
+         System.arraycopy(edges, 0, seeds, copies.length * 2, edges.length);
+
+         // Seeds landing in an area that has already been filled are skipped
+         Raster expected = Raster.create(width, height);
+         expected.copyRect(image, 0, 0, 0, 0, width, height);
+         boolean[] done = new boolean[width * height];
+         for (int n = 0; n < seeds.length; n += 2)
+         {
+            int x = seeds[n];
+            int y = seeds[n + 1];
+            if (x < 0 || x >= width || y < 0 || y >= height || done[y * width + x]) continue;
+            boolean[] filled = referenceFillRaster(expected, x, y, 0, tolerance, fillAlpha, eightConnected);
+            for (int i = 0; i < filled.length; i++)
+               done[i] |= filled[i];
+         }
+
+         FloodFill fill = new FloodFill(width, height);
+         fill.setEightConnected(eightConnected);
+         DirtyRect changed = new DirtyRect();
+         fill.fillRasterFromSeeds(image, seeds, 0, tolerance, fillAlpha, null, changed);
+         assertArrayEquals(expected.pixels, image.pixels);
+         assertArrayEquals(bounds(done, width), bounds(changed));
+      }
+   }
+
+   @Test
+   public void testUndoRestoresFill()
+   {
+      Random random = new Random(4);
+      int width = 150;
+      int height = 130;
+      Raster image = makeImage(random, width, height);
+      TiledRaster tiles = TiledRaster.fromRaster(Raster::create, image);
+      Raster before = Raster.create(width, height);
+      before.copyRect(image, 0, 0, 0, 0, width, height);
+
+      UndoRecorder recorder = new UndoRecorder(Raster::create, width, height);
+      FloodFill fill = new FloodFill(width, height);
+      fill.fillRasterFromSeeds(image, new int[] {0, 0, width - 1, height - 1}, 0, 20, 255, recorder, new DirtyRect());
+      UndoableCommand cmd = recorder.finish(image, tiles, 0, 0);
+      Raster after = Raster.create(width, height);
+      tiles.readRect(0, 0, after, 0, 0, width, height);
+      assertArrayEquals(image.pixels, after.pixels);
+      cmd.swap();
+      tiles.readRect(0, 0, after, 0, 0, width, height);
+      assertArrayEquals(before.pixels, after.pixels);
+   }
+
+   /** Bounding box of the marked pixels */
+   static int[] bounds(boolean[] marked, int width)
+   {
+      DirtyRect rect = new DirtyRect();
+      for (int n = 0; n < marked.length; n++)
+      {
+         if (marked[n])
+            rect.add(n % width, n / width, n % width, n / width);
+      }
+      return bounds(rect);
+   }
+
+   static int[] bounds(DirtyRect rect)
+   {
+      if (rect.isEmpty()) return new int[0];
+      return new int[] {rect.minX, rect.minY, rect.maxX, rect.maxY};
+   }
+}
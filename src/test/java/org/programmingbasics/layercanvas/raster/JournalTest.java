@@ -0,0 +1,167 @@
+package org.programmingbasics.layercanvas.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JournalTest
+{
+   static final int WIDTH = 256;
+   static final int HEIGHT = 256;
+
+   RasterFactory factory = Raster::create;
+   JournalPlayer player = new JournalPlayer(factory);
+   ToolSettings settings = createSettings();
+
+   static ToolSettings createSettings()
+   {
+      ToolSettings settings = new ToolSettings();
+      settings.tool = ToolSettings.PAINT;
+      settings.brushSize = 3;
+      settings.brush = new RoundBrush();
+      settings.mirrorWidth = WIDTH;
+      return settings;
+   }
+
+   JournalEntry createStroke(int n)
+   {
+      JournalEntry entry = JournalEntry.create(JournalEntry.STROKE, 1, settings);
+      entry.setClip(0, 0, WIDTH, HEIGHT);
+      entry.addPoint((n * 37) % WIDTH, (n * 11) % HEIGHT, 1.0);
+      entry.addPoint((n * 53 + 20) % WIDTH, (n * 29 + 7) % HEIGHT, 1.0);
+      return entry;
+   }
+
+   /** Makes edits to a layer, recording them in a journal with checkpoints like the canvas does */
+   Journal record(TiledRaster layer, int count, int budget)
+   {
+      Journal journal = Journal.startFrom(WIDTH, HEIGHT, Collections.singletonMap(1, layer), new HashMap<>());
+      journal.setMemoryBudget(budget);
+      int position = 0;
+      for (int n = 0; n < count; n++)
+      {
+         JournalEntry entry = createStroke(n);
+         player.play(entry, layer);
+         journal.add(position, entry);
+         position++;
+         if (journal.needsCheckpoint())
+            journal.addCheckpoint(Collections.singletonMap(1, layer), new HashMap<>());
+         position -= journal.trim(position);
+         assertEquals(journal.size(), position);
+      }
+      return journal;
+   }
+
+   static int[] pixels(TiledRaster layer)
+   {
+      Raster out = Raster.create(layer.width, layer.height);
+      layer.readRect(0, 0, out, 0, 0, layer.width, layer.height);
+      return out.pixels;
+   }
+
+   /** Rebuilds the layer at a position like LayerCanvas.replayJournalTo() */
+   TiledRaster replay(Journal journal, int position)
+   {
+      Journal.Checkpoint checkpoint = journal.findCheckpoint(position);
+      TiledRaster layer = checkpoint.layers.get(1).copy();
+      for (int n = checkpoint.position; n < position; n++)
+         player.play(journal.get(n), layer);
+      return layer;
+   }
+
+   @Test
+   public void testCheckpointsLimitReplay()
+   {
+      TiledRaster layer = new TiledRaster(factory, WIDTH, HEIGHT);
+      Journal journal = record(layer, Journal.CHECKPOINT_INTERVAL * 3 + 5, Integer.MAX_VALUE);
+      assertEquals(4, journal.getCheckpointCount());
+      for (int position = 0; position <= journal.size(); position++)
+         assertTrue(position - journal.findCheckpoint(position).position < Journal.CHECKPOINT_INTERVAL);
+      assertArrayEquals(pixels(layer), pixels(replay(journal, journal.size())));
+
+      // Every position rebuilds the same as replaying from the first checkpoint
+      for (int position = 0; position <= journal.size(); position += 17)
+      {
+         TiledRaster expected = journal.getCheckpoint().get(1).copy();
+         for (int n = 0; n < position; n++)
+            player.play(journal.get(n), expected);
+         assertArrayEquals(pixels(expected), pixels(replay(journal, position)));
+      }
+   }
+
+   @Test
+   public void testCheckpointsShareUnchangedTiles()
+   {
+      TiledRaster layer = new TiledRaster(factory, WIDTH, HEIGHT);
+      Journal journal = record(layer, Journal.CHECKPOINT_INTERVAL, Integer.MAX_VALUE);
+      Map<Integer, TiledRaster> first = journal.findCheckpoint(Journal.CHECKPOINT_INTERVAL).layers;
+      // Only one tile is changed before the next checkpoint
+      Raster patch = Raster.create(4, 4);
+      patch.fillRect(0, 0, 3, 3, Pixels.pack(255, 0, 0, 255));
+      layer.writeRect(patch, 0, 0, 1, 1, 4, 4);
+      journal.add(journal.size(), createStroke(0));
+      journal.addCheckpoint(Collections.singletonMap(1, layer), new HashMap<>());
+      TiledRaster second = journal.findCheckpoint(journal.size()).layers.get(1);
+      for (int ty = 0; ty < layer.getTilesDown(); ty++)
+      {
+         for (int tx = 0; tx < layer.getTilesAcross(); tx++)
+         {
+            if (second.getTile(tx, ty) == null || (tx == 0 && ty == 0)) continue;
+            assertSame(first.get(1).getTile(tx, ty), second.getTile(tx, ty));
+         }
+      }
+      assertArrayEquals(pixels(layer), pixels(second));
+   }
+
+   @Test
+   public void testTrimStaysUnderBudget()
+   {
+      TiledRaster layer = new TiledRaster(factory, WIDTH, HEIGHT);
+      Journal unlimited = record(new TiledRaster(factory, WIDTH, HEIGHT), 1000, Integer.MAX_VALUE);
+      int budget = unlimited.getMemoryUsage() / 4;
+      Journal journal = record(layer, 1000, budget);
+      assertTrue(journal.size() < 1000);
+      assertTrue(journal.getMemoryUsage() <= budget + journal.getMemoryUsage() / journal.getCheckpointCount());
+      // The remaining history still rebuilds the drawing
+      assertArrayEquals(pixels(layer), pixels(replay(journal, journal.size())));
+      TiledRaster expected = journal.getCheckpoint().get(1).copy();
+      for (int n = 0; n < journal.size(); n++)
+         player.play(journal.get(n), expected);
+      assertArrayEquals(pixels(layer), pixels(expected));
+   }
+
+   @Test
+   public void testTrimKeepsCurrentPosition()
+   {
+      TiledRaster layer = new TiledRaster(factory, WIDTH, HEIGHT);
+      Journal journal = record(layer, Journal.CHECKPOINT_INTERVAL * 4, Integer.MAX_VALUE);
+      journal.setMemoryBudget(0);
+      // Positions before the second checkpoint can't be trimmed away
+      assertEquals(0, journal.trim(Journal.CHECKPOINT_INTERVAL - 1));
+      int dropped = journal.trim(Journal.CHECKPOINT_INTERVAL * 2 + 3);
+      assertEquals(Journal.CHECKPOINT_INTERVAL * 2, dropped);
+      assertEquals(0, journal.findCheckpoint(0).position);
+      assertEquals(Journal.CHECKPOINT_INTERVAL * 2, journal.size());
+   }
+
+   @Test
+   public void testAddDropsLaterCheckpoints()
+   {
+      TiledRaster layer = new TiledRaster(factory, WIDTH, HEIGHT);
+      Journal journal = record(layer, Journal.CHECKPOINT_INTERVAL * 2 + 1, Integer.MAX_VALUE);
+      assertEquals(3, journal.getCheckpointCount());
+      journal.add(Journal.CHECKPOINT_INTERVAL + 1, createStroke(1));
+      assertEquals(2, journal.getCheckpointCount());
+      assertEquals(Journal.CHECKPOINT_INTERVAL + 2, journal.size());
+      Map<Integer, TiledRaster> empty = new LinkedHashMap<>();
+      assertEquals(0, new Journal(WIDTH, HEIGHT, empty).findCheckpoint(5).position);
+   }
+}
@@ -0,0 +1,264 @@
+package org.programmingbasics.layercanvas.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SymmetryTest
+{
+   static final int WIDTH = 120;
+   static final int HEIGHT = 90;
+
+   RasterFactory factory = Raster::create;
+
+   /** Makes a mask with a random blob of pixels of varying alpha in part of the drawing */
+   DabMask createMask(Random random, int x0, int y0, int x1, int y1)
+   {
+      DabMask mask = new DabMask(factory);
+      mask.start(x0, y0, x1, y1);
+      for (int n = 0; n < 60; n++)
+      {
+         int x = random.nextInt(x1 - x0 + 1);
+         int y = random.nextInt(y1 - y0 + 1);
+         mask.raster.pixels[y * mask.raster.width + x] = Pixels.pack(0, 0, 0, 1 + random.nextInt(255));
+         mask.dirty.add(x, y, x, y);
+      }
+      return mask;
+   }
+
+   /** Alpha of the mask at a point of the drawing */
+   static int maskAlpha(DabMask mask, int x, int y)
+   {
+      int mx = x - mask.x;
+      int my = y - mask.y;
+      if (mx < mask.dirty.minX || mx > mask.dirty.maxX || my < mask.dirty.minY || my > mask.dirty.maxY) return 0;
+      return Pixels.alpha(mask.raster.pixels[my * mask.raster.width + mx]);
+   }
+
+   @Test
+   public void testCopyCount()
+   {
+      assertEquals(1, new Symmetry(1, false, 0, 0).getCopyCount());
+      assertFalse(new Symmetry(1, false, 0, 0).hasCopies());
+      assertEquals(2, new Symmetry(1, true, 0, 0).getCopyCount());
+      assertEquals(6, new Symmetry(6, false, 0, 0).getCopyCount());
+      assertEquals(8, new Symmetry(4, true, 0, 0).getCopyCount());
+      // Anything less than one rotation is just the original
+      assertEquals(1, new Symmetry(0, false, 0, 0).getCopyCount());
+   }
+
+   @Test
+   public void testMirrorAcrossMiddle()
+   {
+      Symmetry symmetry = new Symmetry(1, true, WIDTH / 2.0, HEIGHT / 2.0);
+      for (int x = 0; x < WIDTH; x++)
+      {
+         assertEquals(x, symmetry.copyX(0, x, 7));
+         assertEquals(WIDTH - x, symmetry.copyX(1, x, 7));
+         assertEquals(7, symmetry.copyY(1, x, 7));
+      }
+   }
+
+   @Test
+   public void testQuarterTurnsAreExact()
+   {
+      // With the center on a pixel or between pixels, the copies of the
+      // copies of a point are the copies of the point
+      for (double center: new double[] {50, 50.5})
+      {
+         Symmetry symmetry = new Symmetry(4, true, center, center);
+         Random random = new Random(1);
+         for (int trial = 0; trial < 100; trial++)
+         {
+            int[] points = symmetry.copyPoints(random.nextInt(100), random.nextInt(100), 0, 0);
+            int[] expected = sortedPairs(points);
+            for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+            {
+               int[] copies = symmetry.copyPoints(points[copy * 2], points[copy * 2 + 1], 0, 0);
+               assertArrayEquals(expected, sortedPairs(copies));
+            }
+         }
+      }
+   }
+
+   static int[] sortedPairs(int[] points)
+   {
+      long[] pairs = new long[points.length / 2];
+      for (int n = 0; n < pairs.length; n++)
+         pairs[n] = ((long)points[n * 2] << 32) | (points[n * 2 + 1] & 0xffffffffL);
+      Arrays.sort(pairs);
+      int[] sorted = new int[points.length];
+      for (int n = 0; n < pairs.length; n++)
+      {
+         sorted[n * 2] = (int)(pairs[n] >> 32);
+         sorted[n * 2 + 1] = (int)pairs[n];
+      }
+      return sorted;
+   }
+
+   @Test
+   public void testCopyPointsRelativeToOrigin()
+   {
+      Symmetry symmetry = new Symmetry(3, true, WIDTH / 2.0, HEIGHT / 2.0);
+      int[] points = symmetry.copyPoints(17, 29, 0, 0);
+      int[] shifted = symmetry.copyPoints(17, 29, 10, -4);
+      assertEquals(symmetry.getCopyCount() * 2, points.length);
+      assertEquals(17, points[0]);
+      assertEquals(29, points[1]);
+      for (int n = 0; n < symmetry.getCopyCount(); n++)
+      {
+         assertEquals(symmetry.copyX(n, 17, 29), points[n * 2]);
+         assertEquals(symmetry.copyY(n, 17, 29), points[n * 2 + 1]);
+         assertEquals(points[n * 2] - 10, shifted[n * 2]);
+         assertEquals(points[n * 2 + 1] + 4, shifted[n * 2 + 1]);
+      }
+   }
+
+   @Test
+   public void testExactCopiesOfMask()
+   {
+      Random random = new Random(2);
+      Symmetry symmetry = new Symmetry(4, true, WIDTH / 2.0, HEIGHT / 2.0);
+      DabMask mask = createMask(random, 20, 10, 50, 35);
+      for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+      {
+         Raster target = Raster.create(WIDTH, HEIGHT);
+         DirtyRect changed = new DirtyRect();
+         symmetry.drawCopy(copy, mask, target, 0, 0, changed);
+         // Quarter turns and reflections move every pixel onto a pixel
+         Raster expected = Raster.create(WIDTH, HEIGHT);
+         DirtyRect expectedChanged = new DirtyRect();
+         for (int y = mask.y; y < mask.y + mask.raster.height; y++)
+         {
+            for (int x = mask.x; x < mask.x + mask.raster.width; x++)
+            {
+               int alpha = maskAlpha(mask, x, y);
+               if (alpha == 0) continue;
+               int cx = symmetry.copyX(copy, x, y);
+               int cy = symmetry.copyY(copy, x, y);
+               if (cx < 0 || cx >= WIDTH || cy < 0 || cy >= HEIGHT) continue;
+               expected.pixels[cy * WIDTH + cx] = alpha << 24;
+               expectedChanged.add(cx, cy, cx, cy);
+            }
+         }
+         assertArrayEquals(expected.pixels, target.pixels);
+         assertEquals(expectedChanged.minX, changed.minX);
+         assertEquals(expectedChanged.minY, changed.minY);
+         assertEquals(expectedChanged.maxX, changed.maxX);
+         assertEquals(expectedChanged.maxY, changed.maxY);
+      }
+   }
+
+   @Test
+   public void testCopiesDontDependOnWindow()
+   {
+      Random random = new Random(3);
+      for (int rotations: new int[] {2, 3, 5, 6})
+      {
+         Symmetry symmetry = new Symmetry(rotations, true, WIDTH / 2.0, HEIGHT / 2.0);
+         DabMask mask = createMask(random, 5, 40, 40, 80);
+         for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+         {
+            Raster whole = Raster.create(WIDTH, HEIGHT);
+            symmetry.drawCopy(copy, mask, whole, 0, 0, new DirtyRect());
+            // The same copy drawn into a window onto part of the drawing
+            int windowX = 30, windowY = 17;
+            Raster window = Raster.create(50, 60);
+            symmetry.drawCopy(copy, mask, window, windowX, windowY, new DirtyRect());
+            for (int y = 0; y < window.height; y++)
+            {
+               for (int x = 0; x < window.width; x++)
+                  assertEquals(whole.pixels[(y + windowY) * WIDTH + x + windowX], window.pixels[y * window.width + x]);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testRotatedCopiesStayInBounds()
+   {
+      Random random = new Random(4);
+      Symmetry symmetry = new Symmetry(6, false, WIDTH / 2.0, HEIGHT / 2.0);
+      DabMask mask = createMask(random, 30, 5, 70, 30);
+      for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+      {
+         Raster target = Raster.create(WIDTH, HEIGHT);
+         DirtyRect changed = new DirtyRect();
+         symmetry.drawCopy(copy, mask, target, 0, 0, changed);
+         DirtyRect bounds = new DirtyRect();
+         symmetry.getCopyBounds(copy, mask, target, 0, 0, bounds);
+         assertFalse(changed.isEmpty());
+         assertTrue(changed.minX >= bounds.minX && changed.maxX <= bounds.maxX);
+         assertTrue(changed.minY >= bounds.minY && changed.maxY <= bounds.maxY);
+         for (int y = 0; y < HEIGHT; y++)
+         {
+            for (int x = 0; x < WIDTH; x++)
+            {
+               if (target.pixels[y * WIDTH + x] == 0) continue;
+               assertTrue(x >= changed.minX && x <= changed.maxX && y >= changed.minY && y <= changed.maxY);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testRotatedCopiesHaveNoHoles()
+   {
+      // A solid rectangle stays solid when rotated by any angle
+      Symmetry symmetry = new Symmetry(7, false, WIDTH / 2.0, HEIGHT / 2.0);
+      DabMask mask = new DabMask(factory);
+      mask.start(40, 10, 80, 30);
+      mask.raster.fillRect(0, 0, 40, 20, Pixels.pack(0, 0, 0, 255));
+      mask.dirty.add(0, 0, 40, 20);
+      for (int copy = 1; copy < symmetry.getCopyCount(); copy++)
+      {
+         Raster target = Raster.create(WIDTH, HEIGHT);
+         symmetry.drawCopy(copy, mask, target, 0, 0, new DirtyRect());
+         for (int y = 12; y <= 28; y++)
+         {
+            for (int x = 42; x <= 78; x++)
+            {
+               int cx = symmetry.copyX(copy, x, y);
+               int cy = symmetry.copyY(copy, x, y);
+               if (cx < 0 || cx >= WIDTH || cy < 0 || cy >= HEIGHT) continue;
+               assertEquals(255, Pixels.alpha(target.pixels[cy * WIDTH + cx]));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testDrawKeepsMaxAlphaAndEraseClears()
+   {
+      Random random = new Random(5);
+      Symmetry symmetry = new Symmetry(2, true, WIDTH / 2.0, HEIGHT / 2.0);
+      DabMask mask = createMask(random, 10, 10, 45, 40);
+      for (int copy = 0; copy < symmetry.getCopyCount(); copy++)
+      {
+         Raster drawn = Raster.create(WIDTH, HEIGHT);
+         symmetry.drawCopy(copy, mask, drawn, 0, 0, new DirtyRect());
+
+         Raster target = Raster.create(WIDTH, HEIGHT);
+         for (int n = 0; n < target.pixels.length; n++)
+            target.pixels[n] = Pixels.pack(0, 0, 0, 128);
+         symmetry.drawCopy(copy, mask, target, 0, 0, new DirtyRect());
+         for (int n = 0; n < target.pixels.length; n++)
+            assertEquals(Math.max(128, Pixels.alpha(drawn.pixels[n])), Pixels.alpha(target.pixels[n]));
+
+         Raster layer = Raster.create(WIDTH, HEIGHT);
+         for (int n = 0; n < layer.pixels.length; n++)
+            layer.pixels[n] = Pixels.pack(10, 20, 30, 255);
+         DirtyRect erased = new DirtyRect();
+         symmetry.eraseCopy(copy, mask, layer, 0, 0, erased);
+         assertFalse(erased.isEmpty());
+         for (int n = 0; n < layer.pixels.length; n++)
+            assertEquals(drawn.pixels[n] != 0 ? 0 : Pixels.pack(10, 20, 30, 255), layer.pixels[n]);
+      }
+   }
+}
@@ -0,0 +1,219 @@
+package org.programmingbasics.layercanvas.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class UndoStackTest
+{
+   static final int WIDTH = 200;
+   static final int HEIGHT = 150;
+
+   RasterFactory factory = Raster::create;
+   TiledRaster image = new TiledRaster(factory, WIDTH, HEIGHT);
+   Random random = new Random(1);
+
+   /**
+    * Draws a rectangle of a solid color with a little noise in it onto the
+    * image, returning the command for undoing it
+    */
+   UndoableCommand draw()
+   {
+      int x = random.nextInt(WIDTH - 1);
+      int y = random.nextInt(HEIGHT - 1);
+      int w = 1 + random.nextInt(WIDTH - x);
+      int h = 1 + random.nextInt(HEIGHT - y);
+      UndoableCommand cmd = image.saveTiles(x, y, w, h);
+      Raster rect = Raster.create(w, h);
+      rect.fillRect(0, 0, w - 1, h - 1, Pixels.pack(random.nextInt(256), 0, 0, 255));
+      for (int n = 0; n < 20; n++)
+         rect.pixels[random.nextInt(w * h)] = random.nextInt();
+      image.writeRect(rect, 0, 0, x, y, w, h);
+      return cmd;
+   }
+
+   Raster snapshot()
+   {
+      Raster pixels = Raster.create(WIDTH, HEIGHT);
+      image.readRect(0, 0, pixels, 0, 0, WIDTH, HEIGHT);
+      return pixels;
+   }
+
+   static int countBytes(UndoStack stack)
+   {
+      int bytes = 0;
+      for (int n = 0; n < stack.size(); n++)
+         bytes += stack.get(n).getByteSize();
+      return bytes;
+   }
+
+   @Test
+   public void testUndoRedoRestoresPixels()
+   {
+      UndoStack stack = new UndoStack(factory);
+      List<Raster> snapshots = new ArrayList<>();
+      snapshots.add(snapshot());
+      for (int n = 0; n < 15; n++)
+      {
+         stack.push(draw());
+         snapshots.add(snapshot());
+      }
+      // Undo all the way back, including through compressed commands
+      for (int n = 15; n > 0; n--)
+      {
+         UndoableCommand cmd = stack.undo();
+         assertFalse(cmd.isCompressed());
+         cmd.swap();
+         assertArrayEquals(snapshots.get(n - 1).pixels, snapshot().pixels);
+         assertEquals(n - 1, stack.getPosition());
+      }
+      assertNull(stack.undo());
+      for (int n = 1; n <= 15; n++)
+      {
+         UndoableCommand cmd = stack.redo();
+         assertFalse(cmd.isCompressed());
+         cmd.swap();
+         assertArrayEquals(snapshots.get(n).pixels, snapshot().pixels);
+      }
+      assertNull(stack.redo());
+      assertEquals(countBytes(stack), stack.getMemoryUsage());
+   }
+
+   @Test
+   public void testOnlyNearbyCommandsAreUncompressed()
+   {
+      UndoStack stack = new UndoStack(factory);
+      for (int n = 0; n < 20; n++)
+         stack.push(draw());
+      for (int n = 0; n < 20; n++)
+         assertEquals(n < 20 - UndoStack.HOT_COMMANDS, stack.get(n).isCompressed());
+      for (int n = 0; n < 10; n++)
+         stack.undo().swap();
+      // Only the undone commands near the position have been decompressed,
+      // since older ones aren't decompressed until an undo reaches them
+      for (int n = 0; n < 20; n++)
+         assertEquals(n < 10 || n >= 10 + UndoStack.HOT_COMMANDS, stack.get(n).isCompressed());
+      assertEquals(countBytes(stack), stack.getMemoryUsage());
+   }
+
+   @Test
+   public void testPushThrowsAwayRedo()
+   {
+      UndoStack stack = new UndoStack(factory);
+      for (int n = 0; n < 6; n++)
+         stack.push(draw());
+      stack.undo().swap();
+      stack.undo().swap();
+      UndoableCommand cmd = draw();
+      stack.push(cmd);
+      assertEquals(5, stack.size());
+      assertEquals(5, stack.getPosition());
+      assertSame(cmd, stack.get(4));
+      assertNull(stack.redo());
+      assertEquals(countBytes(stack), stack.getMemoryUsage());
+   }
+
+   @Test
+   public void testEvictsOldestOverBudget()
+   {
+      UndoStack stack = new UndoStack(factory);
+      List<UndoableCommand> commands = new ArrayList<>();
+      for (int n = 0; n < 40; n++)
+      {
+         UndoableCommand cmd = draw();
+         commands.add(cmd);
+         stack.push(cmd);
+      }
+      int budget = stack.getMemoryUsage() / 3;
+      stack.setMemoryBudget(budget);
+      assertTrue(stack.getMemoryUsage() <= budget);
+      assertTrue(stack.getDiscardedCount() > 0);
+      assertEquals(40, stack.getDiscardedCount() + stack.size());
+      assertEquals(stack.size(), stack.getPosition());
+      // The newest commands are the ones kept
+      for (int n = 0; n < stack.size(); n++)
+         assertSame(commands.get(stack.getDiscardedCount() + n), stack.get(n));
+      assertEquals(countBytes(stack), stack.getMemoryUsage());
+
+      // The history keeps counting from the same command after more are thrown away
+      int oldDiscarded = stack.getDiscardedCount();
+      for (int n = 0; n < 10; n++)
+         stack.push(draw());
+      assertTrue(stack.getDiscardedCount() > oldDiscarded);
+      assertEquals(50, stack.getDiscardedCount() + stack.getPosition());
+      assertTrue(stack.getMemoryUsage() <= budget);
+   }
+
+   @Test
+   public void testKeepsLastCommandOverBudget()
+   {
+      UndoStack stack = new UndoStack(factory);
+      stack.setMemoryBudget(1);
+      stack.push(draw());
+      stack.push(draw());
+      UndoableCommand last = draw();
+      stack.push(last);
+      assertEquals(1, stack.size());
+      assertEquals(2, stack.getDiscardedCount());
+      assertSame(last, stack.undo());
+      last.swap();
+      assertNull(stack.undo());
+      assertEquals(0, stack.getPosition());
+   }
+
+   @Test
+   public void testEvictsRedoNewestFirst()
+   {
+      UndoStack stack = new UndoStack(factory);
+      List<UndoableCommand> commands = new ArrayList<>();
+      for (int n = 0; n < 8; n++)
+      {
+         UndoableCommand cmd = draw();
+         commands.add(cmd);
+         stack.push(cmd);
+      }
+      for (int n = 0; n < 7; n++)
+         stack.undo().swap();
+      // Nothing before the position can be thrown away, so commands that
+      // could be redone go instead, starting from the newest
+      int budget = stack.get(0).getByteSize() + stack.get(1).getByteSize() + stack.get(2).getByteSize();
+      stack.setMemoryBudget(budget);
+      assertEquals(0, stack.getDiscardedCount());
+      assertEquals(1, stack.getPosition());
+      assertTrue(stack.getMemoryUsage() <= budget);
+      for (int n = 0; n < stack.size(); n++)
+         assertSame(commands.get(n), stack.get(n));
+   }
+
+   @Test
+   public void testRestoreAndClear()
+   {
+      UndoStack stack = new UndoStack(factory);
+      List<UndoableCommand> commands = new ArrayList<>();
+      for (int n = 0; n < 20; n++)
+         commands.add(draw());
+      stack.restore(commands, 12);
+      assertEquals(20, stack.size());
+      assertEquals(12, stack.getPosition());
+      assertEquals(0, stack.getDiscardedCount());
+      assertTrue(stack.get(0).isCompressed());
+      assertFalse(stack.get(11).isCompressed());
+      assertFalse(stack.get(12).isCompressed());
+      assertTrue(stack.get(19).isCompressed());
+      assertEquals(countBytes(stack), stack.getMemoryUsage());
+
+      stack.clear();
+      assertEquals(0, stack.size());
+      assertEquals(0, stack.getMemoryUsage());
+      assertNull(stack.undo());
+   }
+}